@@ -51,9 +51,8 @@ public class AutoCompleteAction extends ETextAction {
         final int endPosition = textArea.getSelectionStart();
         final int startPosition = endPosition - prefix.length();
         
-        // FIXME: we should be able to offer completions for other languages.
-        JavaResearcher javaResearcher = JavaResearcher.getSharedInstance();
-        List<String> completionsList = javaResearcher.listIdentifiersStartingWith(prefix);
+        ETextWindow textWindow = (ETextWindow) SwingUtilities.getAncestorOfClass(ETextWindow.class, textArea);
+        List<String> completionsList = CompletionIndex.getCompletions(prefix, textWindow);
         boolean noCompletions = completionsList.isEmpty();
         if (noCompletions) {
             completionsList.add("No completions found.");
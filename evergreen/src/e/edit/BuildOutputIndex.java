@@ -0,0 +1,165 @@
+package e.edit;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * The links in an errors window's output, in order, so the window can style
+ * a line by looking up its links, and step from one error to the next in
+ * constant time.
+ * 
+ * Offsets are counted from the start of the task's output, so they don't
+ * change when the oldest output is discarded from the window. Subtract
+ * getDiscardedLength to turn one into an offset in the text area.
+ * 
+ * Only used on the event dispatch thread.
+ */
+final class BuildOutputIndex {
+    static final class Link {
+        final long offset;
+        final String address;
+        // The directory make said it was in when we saw this link, or null.
+        final String directory;
+        
+        Link(long offset, String address, String directory) {
+            this.offset = offset;
+            this.address = address;
+            this.directory = directory;
+        }
+        
+        long getEnd() {
+            return offset + address.length();
+        }
+    }
+    
+    private final ArrayList<Link> links = new ArrayList<Link>();
+    // Links before this index are in discarded output. We remove them in bulk, so discarding is cheap.
+    private int firstLink;
+    // The index of the link most recently visited, or firstLink - 1 if there isn't one.
+    private int currentLink = -1;
+    private long discardedLength;
+    
+    public void clear() {
+        links.clear();
+        firstLink = 0;
+        currentLink = -1;
+        discardedLength = 0;
+    }
+    
+    /**
+     * Adds links found in newly-appended output.
+     */
+    public void addAll(List<Link> newLinks) {
+        links.addAll(newLinks);
+    }
+    
+    public long getDiscardedLength() {
+        return discardedLength;
+    }
+    
+    /**
+     * Forgets the links in the first 'length' characters of the text area.
+     */
+    public void discardOutput(int length) {
+        discardedLength += length;
+        while (firstLink < links.size() && links.get(firstLink).offset < discardedLength) {
+            ++firstLink;
+        }
+        currentLink = Math.max(currentLink, firstLink - 1);
+        if (firstLink > links.size() / 2) {
+            links.subList(0, firstLink).clear();
+            currentLink -= firstLink;
+            firstLink = 0;
+        }
+    }
+    
+    /**
+     * Returns the links entirely within the given range of output offsets.
+     * The list is only valid until the index next changes.
+     */
+    public List<Link> getLinksBetween(long start, long end) {
+        int from = indexOfFirstLinkAtOrAfter(start);
+        int to = from;
+        while (to < links.size() && links.get(to).getEnd() <= end) {
+            ++to;
+        }
+        return links.subList(from, to);
+    }
+    
+    private int indexOfFirstLinkAtOrAfter(long offset) {
+        int low = firstLink;
+        int high = links.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (links.get(mid).offset < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Makes the link at 'offset' the current link, so that nextLink and
+     * previousLink carry on from there.
+     */
+    public void visitLinkAt(long offset) {
+        final int index = indexOfFirstLinkAtOrAfter(offset);
+        if (index < links.size() && links.get(index).offset == offset) {
+            currentLink = index;
+        }
+    }
+    
+    /**
+     * Returns the link after the current one, making it current, or null if
+     * we've run out.
+     */
+    public Link nextLink() {
+        if (currentLink + 1 >= links.size()) {
+            return null;
+        }
+        return links.get(++currentLink);
+    }
+    
+    /**
+     * Returns the link before the current one, making it current, or null if
+     * there isn't one.
+     */
+    public Link previousLink() {
+        if (currentLink - 1 < firstLink) {
+            return null;
+        }
+        return links.get(--currentLink);
+    }
+    
+    @Test private static void testNavigation() {
+        final BuildOutputIndex index = new BuildOutputIndex();
+        final List<Link> links = new ArrayList<Link>();
+        for (int i = 0; i < 10; ++i) {
+            links.add(new Link(i * 100, "f" + i + ".c:1", null));
+        }
+        index.addAll(links);
+        Assert.equals(index.previousLink(), null);
+        Assert.equals(index.nextLink().address, "f0.c:1");
+        Assert.equals(index.nextLink().address, "f1.c:1");
+        Assert.equals(index.previousLink().address, "f0.c:1");
+        Assert.equals(index.previousLink(), null);
+        
+        index.visitLinkAt(500);
+        Assert.equals(index.nextLink().address, "f6.c:1");
+        Assert.equals(index.getLinksBetween(200, 400).size(), 2);
+        Assert.equals(index.getLinksBetween(200, 406).size(), 3);
+        
+        // Discarding output discards its links, but not our place.
+        index.discardOutput(350);
+        Assert.equals(index.getDiscardedLength(), 350L);
+        Assert.equals(index.getLinksBetween(0, 1000).get(0).address, "f4.c:1");
+        Assert.equals(index.nextLink().address, "f7.c:1");
+        index.discardOutput(500);
+        Assert.equals(index.getLinksBetween(0, 1000).get(0).address, "f9.c:1");
+        Assert.equals(index.previousLink(), null);
+        Assert.equals(index.nextLink().address, "f9.c:1");
+        Assert.equals(index.nextLink(), null);
+    }
+}
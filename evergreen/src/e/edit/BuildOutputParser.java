@@ -0,0 +1,121 @@
+package e.edit;
+
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * Finds the links in an errors window's output a line at a time, as the output
+ * arrives, so we don't have to run regular expressions over it every time it's
+ * redrawn.
+ * 
+ * The output and the links we've found accumulate here until the errors window
+ * takes them to append in one go on the event dispatch thread. Callers must
+ * synchronize, because output can arrive on several threads.
+ */
+final class BuildOutputParser {
+    private static final Pattern MAKE_ENTERING_DIRECTORY_PATTERN = Pattern.compile("^make(?:\\[\\d+\\])?: Entering directory `(.*)'$");
+    
+    /**
+     * Matches addresses (such as "filename.ext:line:col:line:col").
+     * 
+     * We avoid matching the " or ' before a filename.
+     * We insist that an interesting extension has between 1 and 4 characters, and contains only alphabetic characters.
+     * (There's an additional check later that the extension isn't known to be uninteresting, such as ".o" or ".class".)
+     */
+    private static final Pattern ADDRESS_PATTERN = Pattern.compile("(?:^| |\"|')([^ :\"']+(?:Makefile|\\w+\\.[A-Za-z]{1,4}\\b)([\\d:]+|\\([\\d,]+\\))?)");
+    
+    private final Matcher directoryMatcher = MAKE_ENTERING_DIRECTORY_PATTERN.matcher("");
+    private final Matcher addressMatcher = ADDRESS_PATTERN.matcher("");
+    
+    // The directory make last told us it was entering, or null.
+    private String currentDirectory;
+    // The offset from the start of the output of the next line.
+    private long outputLength;
+    
+    private StringBuilder pendingText = new StringBuilder();
+    private ArrayList<BuildOutputIndex.Link> pendingLinks = new ArrayList<BuildOutputIndex.Link>();
+    
+    /**
+     * Forgets everything, ready for a new task's output.
+     */
+    public void reset() {
+        currentDirectory = null;
+        outputLength = 0;
+        pendingText = new StringBuilder();
+        pendingLinks = new ArrayList<BuildOutputIndex.Link>();
+    }
+    
+    /**
+     * Adds 'line' (which doesn't include its newline) to the pending output,
+     * and any links in it to the pending links. Links to files 'fileIgnorer'
+     * ignores aren't links; a null 'fileIgnorer' ignores nothing.
+     */
+    public void parseLine(String line, FileIgnorer fileIgnorer) {
+        if (line.startsWith("make") && directoryMatcher.reset(line).matches()) {
+            currentDirectory = directoryMatcher.group(1);
+        }
+        addressMatcher.reset(line);
+        while (addressMatcher.find()) {
+            final String address = addressMatcher.group(1);
+            if (fileIgnorer != null && fileIgnorer.isIgnoredExtension(address)) {
+                continue;
+            }
+            final long offset = outputLength + addressMatcher.start(1);
+            pendingLinks.add(new BuildOutputIndex.Link(offset, address, currentDirectory));
+        }
+        pendingText.append(line).append('\n');
+        outputLength += line.length() + 1;
+    }
+    
+    public boolean hasPendingText() {
+        return pendingText.length() > 0;
+    }
+    
+    /**
+     * Returns the output parsed since the last call, and forgets it.
+     */
+    public String takePendingText() {
+        final String result = pendingText.toString();
+        pendingText = new StringBuilder();
+        return result;
+    }
+    
+    /**
+     * Returns the links found since the last call, and forgets them.
+     */
+    public List<BuildOutputIndex.Link> takePendingLinks() {
+        final List<BuildOutputIndex.Link> result = pendingLinks;
+        pendingLinks = new ArrayList<BuildOutputIndex.Link>();
+        return result;
+    }
+    
+    @Test private static void testParseLine() {
+        final BuildOutputParser parser = new BuildOutputParser();
+        parser.parseLine("src/a.cpp:12:3: error: oops", null);
+        parser.parseLine("make[1]: Entering directory `/home/me/lib'", null);
+        parser.parseLine("In file included from \"bb.h\"; see cc.java(4,5) and src/Makefile", null);
+        parser.parseLine("nothing to see here.", null);
+        Assert.equals(parser.takePendingText(), "src/a.cpp:12:3: error: oops\nmake[1]: Entering directory `/home/me/lib'\nIn file included from \"bb.h\"; see cc.java(4,5) and src/Makefile\nnothing to see here.\n");
+        Assert.equals(parser.hasPendingText(), false);
+        
+        final List<BuildOutputIndex.Link> links = parser.takePendingLinks();
+        Assert.equals(links.size(), 4);
+        Assert.equals(links.get(0).address, "src/a.cpp:12:3:");
+        Assert.equals(links.get(0).offset, 0L);
+        Assert.equals(links.get(0).directory, null);
+        Assert.equals(links.get(1).address, "bb.h");
+        Assert.equals(links.get(1).offset, 28L + 43L + 23L);
+        Assert.equals(links.get(1).directory, "/home/me/lib");
+        Assert.equals(links.get(2).address, "cc.java(4,5)");
+        Assert.equals(links.get(3).address, "src/Makefile");
+        Assert.equals(parser.takePendingLinks().size(), 0);
+        
+        // Offsets carry on from where the taken output left off, until we're reset.
+        parser.parseLine("dd.py:1", null);
+        Assert.equals(parser.takePendingLinks().get(0).offset, 28L + 43L + 64L + 21L);
+        parser.reset();
+        parser.parseLine("dd.py:1", null);
+        Assert.equals(parser.takePendingLinks().get(0).offset, 0L);
+    }
+}
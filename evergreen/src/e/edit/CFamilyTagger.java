@@ -0,0 +1,890 @@
+package e.edit;
+
+import e.ptextarea.FileType;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * Tags Java and C/C++ in-process, for the tags panel.
+ * 
+ * This isn't a parser.
+ * We track braces, parentheses, comments and literals, and only look for declarations where declarations can be: at the top level, and directly inside classes and namespaces.
+ * We skip method bodies and initializers, which is most of the text in most files.
+ * We use the same kinds and contexts as ctags, so TagReader.makeTag can treat our tags the same as ctags'.
+ */
+class CFamilyTagger extends IncrementalTagger<CFamilyTagger.State> {
+    private static final int CODE = 0;
+    private static final int BLOCK_COMMENT = 1;
+    private static final int TEXT_BLOCK = 2;
+    private static final int PREPROCESSOR_CONTINUATION = 3;
+    
+    // Statement flags.
+    private static final int STATIC = 1 << 0;
+    private static final int ABSTRACT = 1 << 1;
+    private static final int TYPEDEF = 1 << 2;
+    private static final int IGNORED = 1 << 3;
+    private static final int DECLARED_FUNCTION = 1 << 4;
+    private static final int MULTIPLE_DECLARATORS = 1 << 5;
+    private static final int DESTRUCTOR = 1 << 6;
+    private static final int EXTERN_STRING = 1 << 7;
+    
+    private static final Scope TOP_LEVEL = new Scope("", "", null, false, null, null);
+    private static final State INITIAL_STATE = new State(CODE, 0, TOP_LEVEL, new Statement());
+    
+    private static final Set<String> NOT_FUNCTIONS = new HashSet<String>(Arrays.asList("__attribute__", "alignas", "catch", "decltype", "defined", "delete", "do", "else", "for", "if", "new", "return", "sizeof", "static_assert", "switch", "synchronized", "throw", "typeof", "while"));
+    private static final Set<String> JAVA_MODIFIERS = new HashSet<String>(Arrays.asList("default", "final", "native", "non", "sealed", "strictfp", "synchronized", "transient", "volatile"));
+    private static final Pattern FUNCTION_POINTER_TYPEDEF_PATTERN = Pattern.compile("\\(\\s*\\*\\s*(\\w+)\\s*\\)");
+    private static final Pattern GTEST_PATTERN = Pattern.compile("\\s*\\(\\s*(\\w+)\\s*,\\s*(\\w+)\\s*\\)");
+    
+    private final boolean isJava;
+    private final String classSeparator;
+    
+    // The state of the line being scanned.
+    private String text;
+    private List<LineTag> tags;
+    private int mode;
+    private int skippedConditionalDepth;
+    private Scope scope;
+    private Statement statement;
+    
+    public CFamilyTagger(FileType fileType) {
+        super(fileType);
+        this.isJava = (fileType == FileType.JAVA);
+        this.classSeparator = isJava ? "." : "::";
+    }
+    
+    /**
+     * A brace-delimited block.
+     * Scopes are immutable, so all the lines in a block can share one.
+     */
+    private static final class Scope {
+        // "class", "enum", "interface", "namespace", "struct", or "union" for a block we tag the members of, "" for the top level, and null for code and initializers.
+        private final String kind;
+        // The qualified name, as used for the context of the members.
+        private final String name;
+        // The access of C++ members declared here, as changed by "public:" and the like.
+        private final String access;
+        // Whether we're still in an enum's list of constants.
+        private final boolean inEnumConstants;
+        private final Scope parent;
+        // The statement the opening brace was part of, which carries on after the closing brace if the block was part of an expression or typedef.
+        private final Statement enclosingStatement;
+        
+        private Scope(String kind, String name, String access, boolean inEnumConstants, Scope parent, Statement enclosingStatement) {
+            this.kind = kind;
+            this.name = name;
+            this.access = access;
+            this.inEnumConstants = inEnumConstants;
+            this.parent = parent;
+            this.enclosingStatement = enclosingStatement;
+        }
+        
+        private Scope withAccess(String newAccess) {
+            return new Scope(kind, name, newAccess, inEnumConstants, parent, enclosingStatement);
+        }
+        
+        private Scope withoutEnumConstants() {
+            return new Scope(kind, name, access, false, parent, enclosingStatement);
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof Scope == false) {
+                return false;
+            }
+            Scope other = (Scope) o;
+            return equal(kind, other.kind) && equal(name, other.name) && equal(access, other.access) && inEnumConstants == other.inEnumConstants && equal(parent, other.parent) && equal(enclosingStatement, other.enclosingStatement);
+        }
+        
+        @Override public int hashCode() {
+            return (name != null) ? name.hashCode() : 0;
+        }
+    }
+    
+    /**
+     * What we know about the declaration we're part-way through.
+     * Mutable while we scan a line, but never changed once it's part of a State.
+     */
+    private static final class Statement {
+        private int flags;
+        private int parenDepth;
+        private int angleDepth;
+        private boolean afterEquals;
+        // The Java access modifier, if any.
+        private String access;
+        // How many names we've seen, not counting modifiers; "int x" is a declaration but "x" alone isn't.
+        private int tokenCount;
+        private String lastName;
+        private String lastQualifier;
+        private boolean lastWasName;
+        // The C++ qualifier we've seen so far for the next name, as in "A::B::".
+        private String qualifier;
+        // The kind and name of the class or namespace we're declaring.
+        private String pendingKind;
+        private String pendingName;
+        
+        private Statement copy() {
+            Statement result = new Statement();
+            result.flags = flags;
+            result.parenDepth = parenDepth;
+            result.angleDepth = angleDepth;
+            result.afterEquals = afterEquals;
+            result.access = access;
+            result.tokenCount = tokenCount;
+            result.lastName = lastName;
+            result.lastQualifier = lastQualifier;
+            result.lastWasName = lastWasName;
+            result.qualifier = qualifier;
+            result.pendingKind = pendingKind;
+            result.pendingName = pendingName;
+            return result;
+        }
+        
+        private boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof Statement == false) {
+                return false;
+            }
+            Statement other = (Statement) o;
+            return flags == other.flags && parenDepth == other.parenDepth && angleDepth == other.angleDepth && afterEquals == other.afterEquals && tokenCount == other.tokenCount && lastWasName == other.lastWasName && equal(access, other.access) && equal(lastName, other.lastName) && equal(lastQualifier, other.lastQualifier) && equal(qualifier, other.qualifier) && equal(pendingKind, other.pendingKind) && equal(pendingName, other.pendingName);
+        }
+        
+        @Override public int hashCode() {
+            return flags ^ tokenCount;
+        }
+    }
+    
+    static final class State {
+        private final int mode;
+        // How many preprocessor conditionals deep we are in an #else or #elif branch, or 0 if we're not in one.
+        private final int skippedConditionalDepth;
+        private final Scope scope;
+        private final Statement statement;
+        
+        private State(int mode, int skippedConditionalDepth, Scope scope, Statement statement) {
+            this.mode = mode;
+            this.skippedConditionalDepth = skippedConditionalDepth;
+            this.scope = scope;
+            this.statement = statement;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof State == false) {
+                return false;
+            }
+            State other = (State) o;
+            return mode == other.mode && skippedConditionalDepth == other.skippedConditionalDepth && scope.equals(other.scope) && statement.equals(other.statement);
+        }
+        
+        @Override public int hashCode() {
+            return mode ^ scope.hashCode() ^ statement.hashCode();
+        }
+    }
+    
+    private static boolean equal(Object lhs, Object rhs) {
+        return (lhs == null) ? (rhs == null) : lhs.equals(rhs);
+    }
+    
+    @Override protected State initialState() {
+        return INITIAL_STATE;
+    }
+    
+    @Override protected State scanLine(String text, int start, int end, State state, List<LineTag> tags) {
+        this.text = text;
+        this.tags = tags;
+        this.mode = state.mode;
+        this.skippedConditionalDepth = state.skippedConditionalDepth;
+        this.scope = state.scope;
+        this.statement = state.statement.copy();
+        
+        if (mode == PREPROCESSOR_CONTINUATION) {
+            mode = endsWithBackslash(start, end) ? PREPROCESSOR_CONTINUATION : CODE;
+            return makeState(state);
+        }
+        if (mode == CODE && isJava == false) {
+            int i = skipSpaces(start, end);
+            if (i < end && text.charAt(i) == '#') {
+                scanPreprocessorLine(i + 1, end);
+                mode = endsWithBackslash(start, end) ? PREPROCESSOR_CONTINUATION : CODE;
+                return makeState(state);
+            }
+        }
+        if (skippedConditionalDepth > 0) {
+            return makeState(state);
+        }
+        
+        int i = start;
+        while (i < end) {
+            if (mode == BLOCK_COMMENT) {
+                int close = indexOf("*/", i, end);
+                if (close == -1) {
+                    break;
+                }
+                mode = CODE;
+                i = close + 2;
+                continue;
+            }
+            if (mode == TEXT_BLOCK) {
+                int close = indexOf("\"\"\"", i, end);
+                if (close == -1) {
+                    break;
+                }
+                mode = CODE;
+                i = close + 3;
+                continue;
+            }
+            
+            char ch = text.charAt(i);
+            if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\f') {
+                ++i;
+            } else if (ch == '/' && i + 1 < end && text.charAt(i + 1) == '/') {
+                break;
+            } else if (ch == '/' && i + 1 < end && text.charAt(i + 1) == '*') {
+                mode = BLOCK_COMMENT;
+                i += 2;
+            } else if (isJava && text.startsWith("\"\"\"", i)) {
+                mode = TEXT_BLOCK;
+                i += 3;
+            } else if (ch == '"' || ch == '\'') {
+                if (ch == '"' && statement.lastWasName && "extern".equals(statement.lastName)) {
+                    statement.flags |= EXTERN_STRING;
+                }
+                statement.lastWasName = false;
+                i = skipLiteral(i, end);
+            } else if (Character.isJavaIdentifierStart(ch)) {
+                int nameEnd = i + 1;
+                while (nameEnd < end && Character.isJavaIdentifierPart(text.charAt(nameEnd))) {
+                    ++nameEnd;
+                }
+                i = name(i, nameEnd, end);
+            } else if (Character.isDigit(ch)) {
+                while (i < end && (Character.isJavaIdentifierPart(text.charAt(i)) || text.charAt(i) == '.')) {
+                    ++i;
+                }
+                statement.lastWasName = false;
+            } else {
+                i = punctuation(ch, i, end);
+            }
+        }
+        return makeState(state);
+    }
+    
+    private State makeState(State previous) {
+        State result = new State(mode, skippedConditionalDepth, scope, statement);
+        return result.equals(previous) ? previous : result;
+    }
+    
+    /**
+     * Tests whether we're somewhere declarations can be, rather than in code.
+     */
+    private boolean inDeclarations() {
+        return scope.kind != null;
+    }
+    
+    /**
+     * Tests whether we're somewhere a name would be the name of something being declared.
+     */
+    private boolean atDeclarationLevel() {
+        return inDeclarations() && statement.parenDepth == 0 && statement.angleDepth == 0 && statement.afterEquals == false && statement.hasFlag(IGNORED) == false;
+    }
+    
+    private int name(int start, int nameEnd, int end) {
+        if (atDeclarationLevel() == false) {
+            statement.lastWasName = false;
+            return nameEnd;
+        }
+        String name = text.substring(start, nameEnd);
+        
+        if (scope.inEnumConstants) {
+            // Each constant is the first name in its part of the list.
+            if (statement.tokenCount == 0) {
+                tag(name, 'e', null);
+            }
+            ++statement.tokenCount;
+            statement.lastWasName = false;
+            return nameEnd;
+        }
+        if (statement.pendingKind != null) {
+            // "class Name", perhaps followed by a list of superclasses.
+            if (statement.pendingName == null && name.equals("class") == false && name.equals("struct") == false) {
+                return containerName(name, nameEnd, end);
+            }
+            return nameEnd;
+        }
+        if (name.equals("static")) {
+            statement.flags |= STATIC;
+            return nameEnd;
+        }
+        if (name.equals("class") || name.equals("enum") || name.equals("interface") || name.equals("namespace") || name.equals("struct") || name.equals("union")) {
+            // "Foo.class" is an expression, not a declaration.
+            if (start == 0 || text.charAt(start - 1) != '.') {
+                statement.pendingKind = name;
+                return nameEnd;
+            }
+        }
+        return isJava ? javaName(name, start, nameEnd, end) : cName(name, start, nameEnd, end);
+    }
+    
+    private int javaName(String name, int start, int nameEnd, int end) {
+        if (name.equals("public") || name.equals("private") || name.equals("protected")) {
+            statement.access = name;
+            return nameEnd;
+        } else if (name.equals("abstract")) {
+            statement.flags |= ABSTRACT;
+            return nameEnd;
+        } else if (JAVA_MODIFIERS.contains(name)) {
+            return nameEnd;
+        } else if (name.equals("import")) {
+            statement.flags |= IGNORED;
+            return nameEnd;
+        } else if (name.equals("package")) {
+            int packageStart = skipSpaces(nameEnd, end);
+            int packageEnd = packageStart;
+            while (packageEnd < end && (Character.isJavaIdentifierPart(text.charAt(packageEnd)) || text.charAt(packageEnd) == '.')) {
+                ++packageEnd;
+            }
+            if (packageEnd > packageStart) {
+                tag(text.substring(packageStart, packageEnd), 'p', null);
+            }
+            statement.flags |= IGNORED;
+            return packageEnd;
+        }
+        return ordinaryName(name, nameEnd);
+    }
+    
+    private int cName(String name, int start, int nameEnd, int end) {
+        if (name.equals("typedef")) {
+            statement.flags |= TYPEDEF;
+            return nameEnd;
+        } else if (name.equals("using") || name.equals("friend")) {
+            statement.flags |= IGNORED;
+            return nameEnd;
+        } else if (name.equals("operator")) {
+            return operatorName(nameEnd, end);
+        } else if (statement.tokenCount == 0 && (name.equals("TEST") || name.equals("TEST_F") || name.equals("TEST_P"))) {
+            // gtest's macros expand to functions, so tag them as the functions they expand to.
+            Matcher matcher = GTEST_PATTERN.matcher(text).region(nameEnd, end);
+            if (matcher.lookingAt()) {
+                if (name.equals("TEST")) {
+                    tag(matcher.group(1) + "_" + matcher.group(2) + "_Test", 'f', null);
+                } else {
+                    tag(matcher.group(2), 'f', matcher.group(1));
+                }
+                statement.flags |= DECLARED_FUNCTION;
+                return matcher.end();
+            }
+        } else if (statement.tokenCount == 0 && isClassLike(scope.kind)) {
+            // Labels in classes are access specifiers, or Qt's "signals:" and "public slots:".
+            int colon = skipSpaces(nameEnd, end);
+            if (colon < end && text.charAt(colon) != ':' && (name.equals("public") || name.equals("private") || name.equals("protected"))) {
+                int wordEnd = colon;
+                while (wordEnd < end && Character.isJavaIdentifierPart(text.charAt(wordEnd))) {
+                    ++wordEnd;
+                }
+                colon = skipSpaces(wordEnd, end);
+            }
+            if (isSingleColon(colon, end)) {
+                if (name.equals("public") || name.equals("private") || name.equals("protected")) {
+                    scope = scope.withAccess(name);
+                }
+                statement = new Statement();
+                return colon + 1;
+            }
+        }
+        return ordinaryName(name, nameEnd);
+    }
+    
+    private int ordinaryName(String name, int nameEnd) {
+        if (statement.hasFlag(DESTRUCTOR)) {
+            name = "~" + name;
+            statement.flags &= ~DESTRUCTOR;
+        }
+        statement.lastName = name;
+        statement.lastQualifier = statement.qualifier;
+        statement.qualifier = null;
+        statement.lastWasName = true;
+        ++statement.tokenCount;
+        return nameEnd;
+    }
+    
+    /**
+     * Handles a C++ operator's name, which we treat as a single name such as "operator==".
+     */
+    private int operatorName(int nameEnd, int end) {
+        int i = skipSpaces(nameEnd, end);
+        int symbolStart = i;
+        if (text.startsWith("()", i)) {
+            i += 2;
+        }
+        while (i < end && text.charAt(i) != '(') {
+            ++i;
+        }
+        String symbol = text.substring(symbolStart, i).trim();
+        boolean isWord = symbol.length() > 0 && Character.isJavaIdentifierStart(symbol.charAt(0));
+        ordinaryName("operator" + (isWord ? " " : "") + symbol, i);
+        return i;
+    }
+    
+    /**
+     * Handles the name of a class or namespace we're declaring.
+     */
+    private int containerName(String name, int nameEnd, int end) {
+        if (isJava == false) {
+            // In C++, "struct stat st;" declares a variable, and "class Foo;" is only a forward declaration.
+            // It's a definition if the next thing is an opening brace or a list of superclasses, which may be on the next line.
+            for (int i = nameEnd; i < end; ++i) {
+                char ch = text.charAt(i);
+                if (ch == ';' || ch == '(' || ch == '=' || ch == ')' || ch == ',') {
+                    statement.pendingKind = null;
+                    return ordinaryName(name, nameEnd);
+                } else if (ch == '{' || ch == ':' || ch == '/') {
+                    break;
+                }
+            }
+        }
+        statement.pendingName = name;
+        tag(name, kindChar(statement.pendingKind), null);
+        return nameEnd;
+    }
+    
+    private char kindChar(String kind) {
+        if (kind.equals("class")) {
+            return 'c';
+        } else if (kind.equals("enum")) {
+            return 'g';
+        } else if (kind.equals("interface")) {
+            return 'i';
+        } else if (kind.equals("namespace")) {
+            return 'n';
+        } else if (kind.equals("struct")) {
+            return 's';
+        } else {
+            return 'u';
+        }
+    }
+    
+    private static boolean isClassLike(String kind) {
+        return "class".equals(kind) || "struct".equals(kind) || "union".equals(kind);
+    }
+    
+    private int punctuation(char ch, int i, int end) {
+        if (ch == '{') {
+            openBrace();
+            return i + 1;
+        } else if (ch == '}') {
+            closeBrace();
+            return i + 1;
+        }
+        if (inDeclarations() == false) {
+            // Code is only interesting for its braces.
+            return i + 1;
+        }
+        
+        final Statement s = statement;
+        if (ch == '(') {
+            if (atDeclarationLevel() && s.hasFlag(TYPEDEF)) {
+                // "typedef int (*Function)(int);" declares a type, not a function.
+                Matcher matcher = FUNCTION_POINTER_TYPEDEF_PATTERN.matcher(text).region(i, end);
+                if (matcher.lookingAt()) {
+                    tag(matcher.group(1), 't', null);
+                    s.flags |= IGNORED;
+                }
+            } else if (atDeclarationLevel() && s.lastWasName && s.pendingKind == null && scope.inEnumConstants == false && s.hasFlag(DECLARED_FUNCTION) == false && NOT_FUNCTIONS.contains(s.lastName) == false) {
+                tag(s.lastName, functionKind(i, end), s.lastQualifier);
+                s.flags |= DECLARED_FUNCTION;
+            }
+            ++s.parenDepth;
+            s.lastWasName = false;
+        } else if (ch == ')') {
+            s.parenDepth = Math.max(0, s.parenDepth - 1);
+            s.lastWasName = false;
+        } else if (ch == ';') {
+            if (s.parenDepth == 0) {
+                if (s.afterEquals == false) {
+                    endDeclarator();
+                }
+                if (scope.inEnumConstants) {
+                    scope = scope.withoutEnumConstants();
+                }
+                statement = new Statement();
+            }
+        } else if (ch == '=') {
+            if (i + 1 < end && text.charAt(i + 1) == '=') {
+                return i + 2;
+            }
+            if (i > 0 && "!<>=+-*/%&|^".indexOf(text.charAt(i - 1)) != -1) {
+                return i + 1;
+            }
+            if (atDeclarationLevel()) {
+                endDeclarator();
+            }
+            if (s.parenDepth == 0 && s.angleDepth == 0) {
+                s.afterEquals = true;
+            }
+        } else if (ch == ',') {
+            if (s.parenDepth == 0 && s.angleDepth == 0) {
+                if (scope.inEnumConstants) {
+                    statement = new Statement();
+                } else {
+                    if (s.afterEquals == false && s.hasFlag(IGNORED) == false) {
+                        endDeclarator();
+                    }
+                    s.afterEquals = false;
+                    s.flags |= MULTIPLE_DECLARATORS;
+                    s.lastWasName = false;
+                }
+            }
+        } else if (ch == '<') {
+            if (s.parenDepth == 0 && s.afterEquals == false) {
+                ++s.angleDepth;
+            }
+            s.lastWasName = false;
+        } else if (ch == '>') {
+            if (s.angleDepth > 0 && s.parenDepth == 0 && s.afterEquals == false) {
+                --s.angleDepth;
+            }
+            s.lastWasName = false;
+        } else if (ch == ':') {
+            if (i + 1 < end && text.charAt(i + 1) == ':') {
+                if (s.lastWasName) {
+                    // "std::string" is one type, so only counts once.
+                    s.qualifier = (s.lastQualifier != null) ? (s.lastQualifier + "::" + s.lastName) : s.lastName;
+                    --s.tokenCount;
+                }
+                s.lastWasName = false;
+                return i + 2;
+            }
+            // A bit-field's width, or the start of a constructor's initializer list.
+            if (isJava == false && atDeclarationLevel() && s.pendingKind == null && s.hasFlag(DECLARED_FUNCTION) == false) {
+                endDeclarator();
+                s.afterEquals = true;
+            }
+        } else if (ch == '~') {
+            if (atDeclarationLevel()) {
+                s.flags |= DESTRUCTOR;
+            }
+        } else if (ch == '[') {
+            // Skip array dimensions, so "int x[4];" still ends with a name.
+            int close = indexOf("]", i, end);
+            return (close != -1) ? close + 1 : end;
+        } else if (ch == '@') {
+            // Java annotations aren't names, and "@interface" declares an annotation type.
+            int nameEnd = i + 1;
+            while (nameEnd < end && (Character.isJavaIdentifierPart(text.charAt(nameEnd)) || text.charAt(nameEnd) == '.')) {
+                ++nameEnd;
+            }
+            if (atDeclarationLevel() && text.substring(i + 1, nameEnd).equals("interface")) {
+                s.pendingKind = "interface";
+            }
+            s.lastWasName = false;
+            return nameEnd;
+        } else {
+            s.lastWasName = false;
+        }
+        return i + 1;
+    }
+    
+    /**
+     * Returns ctags' kind for a function whose parameter list starts at 'i': 'p' for a C++ prototype, and 'f' for a C++ definition or 'm' for a Java method.
+     */
+    private char functionKind(int i, int end) {
+        if (isJava) {
+            return 'm';
+        }
+        int depth = 0;
+        for (; i < end; ++i) {
+            char ch = text.charAt(i);
+            if (ch == '(') {
+                ++depth;
+            } else if (ch == ')') {
+                --depth;
+            } else if (depth == 0 && (ch == ';' || ch == '=')) {
+                return 'p';
+            } else if (depth == 0 && (ch == '{' || ch == ':')) {
+                return 'f';
+            } else if (ch == '/' && i + 1 < end && text.charAt(i + 1) == '/') {
+                break;
+            }
+        }
+        return 'f';
+    }
+    
+    /**
+     * Called at the end of each declarator, to tag the variable or typedef it declares, if any.
+     */
+    private void endDeclarator() {
+        Statement s = statement;
+        if (s.lastWasName == false || s.pendingKind != null || s.hasFlag(DECLARED_FUNCTION) || s.hasFlag(IGNORED) || scope.inEnumConstants) {
+            return;
+        }
+        if (s.hasFlag(TYPEDEF)) {
+            tag(s.lastName, 't', null);
+        } else if (s.tokenCount >= 2 || s.hasFlag(MULTIPLE_DECLARATORS)) {
+            char kind = 'f';
+            if (isJava == false) {
+                kind = isClassLike(scope.kind) ? 'm' : 'v';
+            }
+            tag(s.lastName, kind, s.lastQualifier);
+        }
+    }
+    
+    private void openBrace() {
+        Statement s = statement;
+        Scope child;
+        if (inDeclarations() == false || s.afterEquals || s.parenDepth > 0 || s.hasFlag(DECLARED_FUNCTION)) {
+            child = new Scope(null, null, null, false, scope, s);
+        } else if (s.pendingKind != null && s.pendingName != null) {
+            String name = (scope.name.length() > 0) ? (scope.name + classSeparator + s.pendingName) : s.pendingName;
+            String access = null;
+            if (isJava == false) {
+                access = s.pendingKind.equals("class") ? "private" : s.pendingKind.equals("struct") || s.pendingKind.equals("union") ? "public" : null;
+            }
+            child = new Scope(s.pendingKind, name, access, s.pendingKind.equals("enum"), scope, s);
+        } else if (s.hasFlag(EXTERN_STRING) || "namespace".equals(s.pendingKind) || ("enum".equals(s.pendingKind) && s.hasFlag(TYPEDEF) == false)) {
+            // 'extern "C"' blocks and anonymous namespaces don't affect what's inside them, and nor do anonymous enums, as far as their constants are concerned.
+            child = new Scope(scope.kind, scope.name, scope.access, "enum".equals(s.pendingKind), scope, s);
+        } else {
+            child = new Scope(null, null, null, false, scope, s);
+        }
+        scope = child;
+        statement = new Statement();
+    }
+    
+    private void closeBrace() {
+        if (scope.parent == null) {
+            // Unbalanced, but there's nothing better to do than carry on.
+            statement = new Statement();
+            return;
+        }
+        Statement enclosing = scope.enclosingStatement;
+        scope = scope.parent;
+        if (enclosing.afterEquals || enclosing.parenDepth > 0 || enclosing.hasFlag(TYPEDEF)) {
+            // "int[] x = { 1, 2 };" or "typedef struct { ... } name;" carry on after the brace.
+            statement = enclosing.copy();
+            statement.pendingKind = null;
+            statement.pendingName = null;
+            statement.lastWasName = false;
+        } else {
+            statement = new Statement();
+        }
+    }
+    
+    private void scanPreprocessorLine(int i, int end) {
+        i = skipSpaces(i, end);
+        int directiveEnd = i;
+        while (directiveEnd < end && Character.isLetter(text.charAt(directiveEnd))) {
+            ++directiveEnd;
+        }
+        String directive = text.substring(i, directiveEnd);
+        // Like ctags, we only follow the first branch of a conditional, because code like this would otherwise leave us a brace out:
+        //   #ifdef X
+        //   if (x) {
+        //   #else
+        //   if (y) {
+        //   #endif
+        if (skippedConditionalDepth > 0) {
+            if (directive.startsWith("if")) {
+                ++skippedConditionalDepth;
+            } else if (directive.equals("endif")) {
+                --skippedConditionalDepth;
+            }
+            return;
+        }
+        if (directive.equals("else") || directive.equals("elif")) {
+            skippedConditionalDepth = 1;
+        } else if (directive.equals("define")) {
+            int nameStart = skipSpaces(i + "define".length(), end);
+            int nameEnd = nameStart;
+            while (nameEnd < end && Character.isJavaIdentifierPart(text.charAt(nameEnd))) {
+                ++nameEnd;
+            }
+            if (nameEnd > nameStart && nameStart > i + "define".length()) {
+                tags.add(new LineTag(text.substring(nameStart, nameEnd), 'd', "", false));
+            }
+        }
+    }
+    
+    private void tag(String identifier, char kind, String qualifier) {
+        String containingKind = scope.kind;
+        String containingName = scope.name;
+        String access = isJava ? statement.access : scope.access;
+        if (qualifier != null) {
+            // A member defined outside its class, as in "void Foo::bar() {".
+            containingKind = "class";
+            containingName = (containingName.length() > 0) ? (containingName + "::" + qualifier) : qualifier;
+            access = null;
+        }
+        StringBuilder context = new StringBuilder();
+        if (containingName.length() > 0) {
+            context.append(containingKind).append(':').append(containingName);
+        }
+        if (access != null) {
+            appendContextField(context, "access:" + access);
+        }
+        if (statement.hasFlag(ABSTRACT)) {
+            appendContextField(context, "implementation:abstract");
+        }
+        tags.add(new LineTag(identifier, kind, context.toString(), statement.hasFlag(STATIC)));
+    }
+    
+    private static void appendContextField(StringBuilder context, String field) {
+        if (context.length() > 0) {
+            context.append('\t');
+        }
+        context.append(field);
+    }
+    
+    private int skipSpaces(int i, int end) {
+        while (i < end && Character.isWhitespace(text.charAt(i))) {
+            ++i;
+        }
+        return i;
+    }
+    
+    private boolean isSingleColon(int i, int end) {
+        return i < end && text.charAt(i) == ':' && (i + 1 == end || text.charAt(i + 1) != ':');
+    }
+    
+    private boolean endsWithBackslash(int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            --end;
+        }
+        return end > start && text.charAt(end - 1) == '\\';
+    }
+    
+    /**
+     * Returns the index just past the string or character literal starting at 'i', or 'end' if it's unterminated.
+     */
+    private int skipLiteral(int i, int end) {
+        final char quote = text.charAt(i);
+        for (++i; i < end; ++i) {
+            char ch = text.charAt(i);
+            if (ch == '\\') {
+                ++i;
+            } else if (ch == quote) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+    
+    /**
+     * Like String.indexOf, but without looking past 'end', so that an unterminated comment doesn't mean searching the rest of the file on every line.
+     */
+    private int indexOf(String s, int i, int end) {
+        for (end -= s.length(); i <= end; ++i) {
+            if (text.startsWith(s, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static List<String> tagsFor(FileType fileType, String text) {
+        IncrementalTagger<?> tagger = IncrementalTagger.forFileType(fileType);
+        tagger.update(text, IncrementalTagger.UNCANCELLABLE);
+        return tagger.describeTags();
+    }
+    
+    @Test private static void testJava() {
+        String text = "package e.edit;\n" +
+            "import java.util.*;\n" +
+            "/** Comment with class Bogus { */\n" +
+            "public abstract class Outer<T extends Comparable<T>> implements Runnable {\n" +
+            "    private static final Map<String, Integer> MAP = new HashMap<String, Integer>() {{ put(\"}\", 1); }};\n" +
+            "    private int a, b;\n" +
+            "    public Outer(int x) {\n" +
+            "        if (x > 0) { a = x; }\n" +
+            "    }\n" +
+            "    @Override public void run() {\n" +
+            "    }\n" +
+            "    enum Color { RED, GREEN(2) { void f() {} }; int value; }\n" +
+            "    interface Listener {\n" +
+            "        void changed(Object o);\n" +
+            "    }\n" +
+            "}\n";
+        List<String> expected = Arrays.asList(
+            "1 package e.edit",
+            "4 class Outer",
+            "5 field Outer MAP",
+            "6 field Outer a",
+            "6 field Outer b",
+            "7 constructor Outer Outer",
+            "10 method Outer run",
+            "12 enum Outer Color",
+            "12 enum constant Outer.Color RED",
+            "12 enum constant Outer.Color GREEN",
+            "12 field Outer.Color value",
+            "13 interface Outer Listener",
+            "14 method Outer.Listener changed");
+        Assert.equals(tagsFor(FileType.JAVA, text), expected);
+    }
+    
+    @Test private static void testCPlusPlus() {
+        String text = "#define MAX(a, b) \\\n" +
+            "    ((a) > (b) ? (a) : (b))\n" +
+            "struct stat st;\n" +
+            "class Forward;\n" +
+            "namespace ns {\n" +
+            "class Foo : public Bar<int, int> {\n" +
+            "public:\n" +
+            "    Foo();\n" +
+            "    virtual ~Foo();\n" +
+            "    int size() const { return n; }\n" +
+            "private:\n" +
+            "    int n;\n" +
+            "};\n" +
+            "}\n" +
+            "typedef struct { int x; } Point;\n" +
+            "enum { A, B = 2 };\n" +
+            "static int helper(int x)\n" +
+            "{\n" +
+            "    return x;\n" +
+            "}\n" +
+            "ns::Foo::Foo() : n(0) {\n" +
+            "}\n" +
+            "TEST_F(FooTest, Works) {\n" +
+            "}\n" +
+            "typedef void (*Callback)(int);\n" +
+            "void f() {\n" +
+            "#ifdef X\n" +
+            "    if (x) {\n" +
+            "#else\n" +
+            "    if (y) {\n" +
+            "#endif\n" +
+            "    }\n" +
+            "}\n" +
+            "int g();\n";
+        List<String> expected = Arrays.asList(
+            "1 macro MAX",
+            "3 variable st",
+            "5 namespace ns",
+            "6 class ns Foo",
+            "8 constructor ns::Foo Foo",
+            "9 destructor ns::Foo ~Foo",
+            "10 method ns::Foo size",
+            "12 field ns::Foo n",
+            "15 typedef Point",
+            "16 enum constant A",
+            "16 enum constant B",
+            "17 method helper",
+            "21 constructor ns::Foo Foo",
+            "23 method FooTest Works",
+            "25 typedef Callback",
+            "26 method f",
+            "34 prototype g");
+        Assert.equals(tagsFor(FileType.C_PLUS_PLUS, text), expected);
+    }
+}
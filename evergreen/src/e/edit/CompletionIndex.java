@@ -0,0 +1,352 @@
+package e.edit;
+
+import e.ptextarea.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Knows the words that might complete a prefix: those in the open files, the definitions in the workspace's indexed files, and, for Java, the JDK's identifiers.
+ * 
+ * We count the words in each open buffer the first time we're asked for completions, and then keep the counts up to date as the buffer changes.
+ * An edit can only change the words touching it, so each update costs the length of those words rather than the length of the buffer.
+ * All the counts are kept in sorted maps, so the candidates for a prefix are a sub-map rather than a search.
+ * 
+ * Candidates are ranked by locality and frequency: words used in the current file first, then words used in other open files, then words defined elsewhere in the workspace.
+ */
+public class CompletionIndex {
+    // Shorter words are quicker to type than to choose from a list.
+    private static final int MIN_WORD_LENGTH = 3;
+    
+    private static final int MAX_COMPLETIONS = 200;
+    
+    // Guarded by CompletionIndex.class.
+    private static final HashMap<PTextBuffer, BufferWords> wordsByBuffer = new HashMap<PTextBuffer, BufferWords>();
+    // How often each word occurs in all the buffers we've counted.
+    private static final TreeMap<String, int[]> openBufferWordCounts = new TreeMap<String, int[]>();
+    
+    private CompletionIndex() {
+    }
+    
+    /**
+     * Starts tracking the words in 'buffer'. We don't count them until someone asks for completions.
+     */
+    public static void attach(PTextBuffer buffer) {
+        BufferWords words = new BufferWords(buffer);
+        synchronized (CompletionIndex.class) {
+            if (wordsByBuffer.containsKey(buffer)) {
+                return;
+            }
+            wordsByBuffer.put(buffer, words);
+        }
+        // The buffer calls its listeners with its listener list locked, and ours take our lock, so we mustn't touch its list with our lock held.
+        buffer.addTextListener(words);
+    }
+    
+    /**
+     * Stops tracking the words in 'buffer', and forgets any we'd counted.
+     */
+    public static void detach(PTextBuffer buffer) {
+        BufferWords words;
+        synchronized (CompletionIndex.class) {
+            words = wordsByBuffer.remove(buffer);
+            if (words == null) {
+                return;
+            }
+            words.forget();
+        }
+        buffer.removeTextListener(words);
+    }
+    
+    /**
+     * Returns the best completions for 'prefix' in 'window', best first.
+     * The list is empty if there's nothing to offer, and never includes 'prefix' itself unless it's used elsewhere.
+     */
+    public static List<String> getCompletions(String prefix, ETextWindow window) {
+        Map<String, Integer> workspaceCounts = Collections.emptyMap();
+        Workspace workspace = window.getWorkspace();
+        if (prefix.length() > 0 && workspace != null) {
+            workspaceCounts = workspace.getSymbolIndex().getIdentifiersStartingWith(prefix);
+        }
+        Collection<String> jdkIdentifiers = Collections.emptyList();
+        if (prefix.length() > 0 && window.getFileType() == FileType.JAVA) {
+            jdkIdentifiers = JavaResearcher.getSharedInstance().listIdentifiersStartingWith(prefix);
+        }
+        return getCompletions(prefix, window.getTextArea().getTextBuffer(), workspaceCounts, jdkIdentifiers);
+    }
+    
+    static synchronized List<String> getCompletions(String prefix, PTextBuffer currentBuffer, Map<String, Integer> workspaceCounts, Collection<String> jdkIdentifiers) {
+        if (prefix.length() == 0) {
+            // Every word would be a candidate; there's no useful list to show.
+            return new ArrayList<String>();
+        }
+        for (BufferWords words : wordsByBuffer.values()) {
+            words.ensureCounted();
+        }
+        BufferWords currentWords = wordsByBuffer.get(currentBuffer);
+        
+        HashMap<String, Candidate> candidates = new HashMap<String, Candidate>();
+        for (Map.Entry<String, int[]> entry : openBufferWordCounts.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            String word = entry.getKey();
+            int currentCount = (currentWords != null) ? currentWords.getCount(word) : 0;
+            if (word.equals(prefix)) {
+                // The prefix itself is in the current buffer: it's what's being typed, not a use of the word.
+                --currentCount;
+            }
+            int otherCount = entry.getValue()[0] - ((currentWords != null) ? currentWords.getCount(word) : 0);
+            if (currentCount > 0 || otherCount > 0) {
+                Candidate candidate = getCandidate(candidates, word);
+                candidate.currentBufferCount = currentCount;
+                candidate.otherBufferCount = otherCount;
+            }
+        }
+        for (Map.Entry<String, Integer> entry : workspaceCounts.entrySet()) {
+            getCandidate(candidates, entry.getKey()).workspaceFileCount = entry.getValue();
+        }
+        for (String identifier : jdkIdentifiers) {
+            getCandidate(candidates, identifier).isJdkIdentifier = true;
+        }
+        
+        ArrayList<Candidate> ranked = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(ranked);
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < ranked.size() && i < MAX_COMPLETIONS; ++i) {
+            result.add(ranked.get(i).word);
+        }
+        return result;
+    }
+    
+    private static Candidate getCandidate(HashMap<String, Candidate> candidates, String word) {
+        Candidate candidate = candidates.get(word);
+        if (candidate == null) {
+            candidate = new Candidate(word);
+            candidates.put(word, candidate);
+        }
+        return candidate;
+    }
+    
+    private static class Candidate implements Comparable<Candidate> {
+        private final String word;
+        private int currentBufferCount;
+        private int otherBufferCount;
+        private int workspaceFileCount;
+        private boolean isJdkIdentifier;
+        
+        private Candidate(String word) {
+            this.word = word;
+        }
+        
+        public int compareTo(Candidate other) {
+            if (currentBufferCount != other.currentBufferCount) {
+                return (currentBufferCount > other.currentBufferCount) ? -1 : 1;
+            }
+            if (otherBufferCount != other.otherBufferCount) {
+                return (otherBufferCount > other.otherBufferCount) ? -1 : 1;
+            }
+            if (workspaceFileCount != other.workspaceFileCount) {
+                return (workspaceFileCount > other.workspaceFileCount) ? -1 : 1;
+            }
+            if (isJdkIdentifier != other.isJdkIdentifier) {
+                return isJdkIdentifier ? -1 : 1;
+            }
+            return word.compareTo(other.word);
+        }
+    }
+    
+    private static boolean isWordChar(char ch) {
+        return ch == '_' || Character.isLetterOrDigit(ch);
+    }
+    
+    /**
+     * Adds 'delta' to 'words''s count of each word in 'chars'.
+     */
+    private static void countWords(CharSequence chars, BufferWords words, int delta) {
+        final int length = chars.length();
+        int i = 0;
+        while (i < length) {
+            if (isWordChar(chars.charAt(i)) == false) {
+                ++i;
+                continue;
+            }
+            final int start = i;
+            while (i < length && isWordChar(chars.charAt(i))) {
+                ++i;
+            }
+            if (i - start >= MIN_WORD_LENGTH && Character.isDigit(chars.charAt(start)) == false) {
+                words.adjustCount(chars.subSequence(start, i).toString(), delta);
+            }
+        }
+    }
+    
+    /**
+     * Counts the words in one buffer, and keeps the counts up to date.
+     */
+    private static class BufferWords implements PTextListener {
+        private final PTextBuffer buffer;
+        // Null until we're first asked for completions.
+        private HashMap<String, int[]> counts;
+        
+        private BufferWords(PTextBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        private void ensureCounted() {
+            if (counts == null) {
+                counts = new HashMap<String, int[]>();
+                countWords(buffer, this, 1);
+            }
+        }
+        
+        private void forget() {
+            if (counts != null) {
+                for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                    adjustGlobalCount(entry.getKey(), -entry.getValue()[0]);
+                }
+                counts = null;
+            }
+        }
+        
+        private int getCount(String word) {
+            int[] count = counts.get(word);
+            return (count != null) ? count[0] : 0;
+        }
+        
+        private void adjustCount(String word, int delta) {
+            int[] count = counts.get(word);
+            if (count == null) {
+                count = new int[1];
+                counts.put(word, count);
+            }
+            count[0] += delta;
+            if (count[0] == 0) {
+                counts.remove(word);
+            }
+            adjustGlobalCount(word, delta);
+        }
+        
+        private static void adjustGlobalCount(String word, int delta) {
+            int[] count = openBufferWordCounts.get(word);
+            if (count == null) {
+                count = new int[1];
+                openBufferWordCounts.put(word, count);
+            }
+            count[0] += delta;
+            if (count[0] == 0) {
+                openBufferWordCounts.remove(word);
+            }
+        }
+        
+        private int wordStart(int offset) {
+            while (offset > 0 && isWordChar(buffer.charAt(offset - 1))) {
+                --offset;
+            }
+            return offset;
+        }
+        
+        private int wordEnd(int offset) {
+            final int length = buffer.length();
+            while (offset < length && isWordChar(buffer.charAt(offset))) {
+                ++offset;
+            }
+            return offset;
+        }
+        
+        public void textInserted(PTextEvent e) {
+            synchronized (CompletionIndex.class) {
+                if (counts == null) {
+                    return;
+                }
+                // The inserted text may have joined or split the word it landed in, so we replace that word's old count with the count of the words now there.
+                final int start = e.getOffset();
+                final int end = start + e.getLength();
+                final int left = wordStart(start);
+                final int right = wordEnd(end);
+                String oldWord = buffer.subSequence(left, start).toString() + buffer.subSequence(end, right);
+                countWords(oldWord, this, -1);
+                countWords(buffer.subSequence(left, right), this, 1);
+            }
+        }
+        
+        public void textRemoved(PTextEvent e) {
+            synchronized (CompletionIndex.class) {
+                if (counts == null) {
+                    return;
+                }
+                final int offset = e.getOffset();
+                final int left = wordStart(offset);
+                final int right = wordEnd(offset);
+                String oldText = buffer.subSequence(left, offset).toString() + e.getCharacters() + buffer.subSequence(offset, right);
+                countWords(oldText, this, -1);
+                countWords(buffer.subSequence(left, right), this, 1);
+            }
+        }
+        
+        public void textCompletelyReplaced(PTextEvent e) {
+            synchronized (CompletionIndex.class) {
+                if (counts != null) {
+                    forget();
+                    ensureCounted();
+                }
+            }
+        }
+    }
+    
+    private static final PTextBuffer.SelectionSetter NO_SELECTION_CHANGE = new PTextBuffer.SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    @Test private static void testIncrementalCounts() {
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.replace(NO_SELECTION_CHANGE, 0, 0, "int count = countAll(items); // count them\n", NO_SELECTION_CHANGE);
+        attach(buffer);
+        try {
+            Assert.equals(getCompletions("co", buffer), Arrays.asList("count", "countAll"));
+            // Split a word in two, join two words into one, and remove a word altogether.
+            buffer.replace(NO_SELECTION_CHANGE, 17, 0, " ", NO_SELECTION_CHANGE);
+            buffer.replace(NO_SELECTION_CHANGE, 9, 3, null, NO_SELECTION_CHANGE);
+            buffer.replace(NO_SELECTION_CHANGE, 18, 7, null, NO_SELECTION_CHANGE);
+            Assert.equals(buffer.toString(), "int countcount All; // count them\n");
+            Assert.equals(getCompletions("co", buffer), Arrays.asList("count", "countcount"));
+            Assert.equals(getCompletions("item", buffer), Collections.<String>emptyList());
+            BufferWords words = wordsByBuffer.get(buffer);
+            BufferWords recounted = new BufferWords(buffer);
+            recounted.ensureCounted();
+            Assert.equals(words.counts.keySet(), recounted.counts.keySet());
+            recounted.forget();
+            
+            // The word being typed doesn't count as a use of itself.
+            buffer.replace(NO_SELECTION_CHANGE, buffer.length(), 0, "them", NO_SELECTION_CHANGE);
+            Assert.equals(getCompletions("them", buffer), Arrays.asList("them"));
+            buffer.replace(NO_SELECTION_CHANGE, 0, buffer.length(), "them", NO_SELECTION_CHANGE);
+            Assert.equals(getCompletions("them", buffer), Collections.<String>emptyList());
+        } finally {
+            detach(buffer);
+        }
+        Assert.equals(openBufferWordCounts.isEmpty(), true);
+    }
+    
+    @Test private static void testRanking() {
+        PTextBuffer current = new PTextBuffer();
+        current.replace(NO_SELECTION_CHANGE, 0, 0, "reader reader writer", NO_SELECTION_CHANGE);
+        PTextBuffer other = new PTextBuffer();
+        other.replace(NO_SELECTION_CHANGE, 0, 0, "readLine readLine readLine reader", NO_SELECTION_CHANGE);
+        attach(current);
+        attach(other);
+        try {
+            Map<String, Integer> workspaceCounts = new TreeMap<String, Integer>();
+            workspaceCounts.put("readAll", 2);
+            workspaceCounts.put("readBytes", 5);
+            List<String> jdkIdentifiers = Arrays.asList("read", "readAll", "readUTF");
+            List<String> expected = Arrays.asList("reader", "readLine", "readBytes", "readAll", "read", "readUTF");
+            Assert.equals(getCompletions("rea", current, workspaceCounts, jdkIdentifiers), expected);
+            Assert.equals(getCompletions("", current, workspaceCounts, jdkIdentifiers), Collections.<String>emptyList());
+        } finally {
+            detach(current);
+            detach(other);
+        }
+    }
+    
+    private static List<String> getCompletions(String prefix, PTextBuffer buffer) {
+        return getCompletions(prefix, buffer, Collections.<String, Integer>emptyMap(), Collections.<String>emptyList());
+    }
+}
@@ -5,6 +5,7 @@ import java.awt.event.*;
 import java.io.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import javax.swing.*;
 import javax.swing.event.*;
@@ -13,24 +14,24 @@ import e.gui.*;
 import e.util.*;
 
 /**
- * Keeps track of the current directory based on the messages about
- * entering and leaving directories in GNU Make output.
+ * Shows the output of a task such as a build, with links to the files
+ * mentioned in it.
  * 
- * This was called on the event dispatch thread via EErrorsWindow.append,
- * rather than ErrorLinkStyler (where it used to be) because the link
- * styler is called over and over again as we're redrawn or the mouse
- * moves across us, et cetera. Unfortunately, this wasn't the right place
- * either, because the styler still has to use this information to try
- * to turn a relative name into an absolute name, and a big recursive
- * build may have moved on since the output we were currently redrawing.
+ * Output is parsed a line at a time as it arrives, on whichever thread it
+ * arrives on, by a BuildOutputParser. That finds the links, and notes the
+ * directory GNU Make said it had entered at the time, for resolving relative
+ * names. The ErrorLinkStyler only has to look links up in the resulting
+ * BuildOutputIndex, because it's called over and over again as we're redrawn
+ * or the mouse moves across us, et cetera. Output is appended in batches, and
+ * once there's more than "errorsWindow.maxCharacters" of it, the oldest is
+ * moved to a file.
  * 
- * As far as I know, the best solution is to make sure that your
- * build output only contains absolute names, and to not rely on this
- * code to do anything useful.
+ * The directory tracking still can't cope with a parallel recursive build
+ * that interleaves the output from several directories. As far as I know,
+ * the best solution is to make sure that your build output only contains
+ * absolute names, and to not rely on this code to do anything useful.
  */
 public class EErrorsWindow extends JFrame {
-    private static final Pattern MAKE_ENTERING_DIRECTORY_PATTERN = Pattern.compile("^make(?:\\[\\d+\\])?: Entering directory `(.*)'$", Pattern.MULTILINE);
-    
     /**
      * Matches lines in a Java stack trace, such as "package.Class$Inner$1.method(Class.java:line)"
      */
@@ -38,6 +39,9 @@ public class EErrorsWindow extends JFrame {
     
     private static final ClearErrorsAction CLEAR_ERRORS_ACTION = new ClearErrorsAction();
     
+    // Writes the oldest output to the windows' spill files, in order.
+    private static final ExecutorService SPILL_EXECUTOR = ThreadUtilities.newSingleThreadExecutor("Errors Window Spiller");
+    
     private final Workspace workspace;
     private JButton killButton;
     private PTextArea textArea;
@@ -46,6 +50,17 @@ public class EErrorsWindow extends JFrame {
     private int currentBuildErrorCount;
     private Process process;
     
+    // Output waiting to be appended, guarded by outputParser's lock.
+    private final BuildOutputParser outputParser = new BuildOutputParser();
+    private boolean appendScheduled;
+    private boolean clearPending;
+    private boolean stdErrPending;
+    
+    // Only touched on the EDT.
+    private final BuildOutputIndex linkIndex = new BuildOutputIndex();
+    private final int maxOutputLength = Parameters.getInteger("errorsWindow.maxCharacters", 4 * 1024 * 1024);
+    private File spillFile;
+    
     private boolean shouldAutoScroll;
     private ChangeListener autoScroller;
     
@@ -87,6 +102,14 @@ public class EErrorsWindow extends JFrame {
         getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0, false), CLEAR_ERRORS_ACTION_NAME);
         getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put((KeyStroke) CLEAR_ERRORS_ACTION.getValue(Action.ACCELERATOR_KEY), CLEAR_ERRORS_ACTION_NAME);
         getRootPane().getActionMap().put(CLEAR_ERRORS_ACTION_NAME, CLEAR_ERRORS_ACTION);
+        initKeyboardEquivalent(new NextErrorAction(true));
+        initKeyboardEquivalent(new NextErrorAction(false));
+    }
+    
+    private void initKeyboardEquivalent(Action action) {
+        final String name = (String) action.getValue(Action.NAME);
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put((KeyStroke) action.getValue(Action.ACCELERATOR_KEY), name);
+        getRootPane().getActionMap().put(name, action);
     }
     
     private void initKillButton() {
@@ -103,12 +126,14 @@ public class EErrorsWindow extends JFrame {
         initFont();
         // No margin, because all the text should be machine-generated.
         textArea.showRightHandMarginAt(PTextArea.NO_MARGIN);
-        textArea.addStyleApplicator(new ErrorLinkStyler(textArea));
+        textArea.addStyleApplicator(new ErrorLinkStyler());
         // Traditionally we were editable in imitation of acme.
         // PTextArea currently decides whether you have to hold down control to follow a link based on whether the text area is editable.
         // The easiest fix, which may or may not be sufficient, is to make errors windows non-editable.
         textArea.setEditable(false);
         textArea.setWrapStyleWord(true);
+        // Nobody can undo build output, so there's no point remembering it twice.
+        textArea.getTextBuffer().getUndoBuffer().setMemoryLimit(0);
         initTextAreaPopupMenu();
     }
     
@@ -126,8 +151,7 @@ public class EErrorsWindow extends JFrame {
     }
     
     public void taskDidStart(Process process) {
-        EventQueue.invokeLater(new ClearRunnable());
-        this.currentBuildErrorCount = 0;
+        clearOutput();
         this.process = process;
         killButton.setEnabled(true);
     }
@@ -135,7 +159,11 @@ public class EErrorsWindow extends JFrame {
     public void taskDidExit(int exitStatus) {
         killButton.setEnabled(false);
         this.process = null;
-        if (exitStatus == 0 && currentBuildErrorCount == 0) {
+        final int errorCount;
+        synchronized (outputParser) {
+            errorCount = currentBuildErrorCount;
+        }
+        if (exitStatus == 0 && errorCount == 0) {
             Thread waitThenHide = new Thread(new Runnable() {
                 public void run() {
                     // Add a short pause before hiding, so the user gets chance to see that everything went okay.
@@ -152,48 +180,52 @@ public class EErrorsWindow extends JFrame {
         }
     }
     
-    private class ErrorLinkStyler extends RegularExpressionStyleApplicator {
-        /**
-         * Matches addresses (such as "filename.ext:line:col:line:col").
-         * 
-         * We avoid matching the " or ' before a filename.
-         * We insist that an interesting extension has between 1 and 4 characters, and contains only alphabetic characters.
-         * (There's an additional check later that the extension isn't known to be uninteresting, such as ".o" or ".class".)
-         */
-        private static final String ADDRESS_PATTERN = "(?:^| |\"|')([^ :\"']+(?:Makefile|\\w+\\.[A-Za-z]{1,4}\\b)([\\d:]+|\\([\\d,]+\\))?)";
-        
-        public ErrorLinkStyler(PTextArea textArea) {
-            super(textArea, ADDRESS_PATTERN, PStyle.HYPERLINK);
-        }
-        
-        @Override
-        public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
-            String match = matcher.group(1);
-            
-            FileIgnorer fileIgnorer = workspace.getFileList().getFileIgnorer();
-            if (fileIgnorer.isIgnoredExtension(match)) {
-                return false;
+    private class ErrorLinkStyler implements StyleApplicator {
+        public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
+            final long discardedLength = linkIndex.getDiscardedLength();
+            final int offset = segment.getOffset();
+            final List<BuildOutputIndex.Link> links = linkIndex.getLinksBetween(discardedLength + offset, discardedLength + segment.getEnd());
+            if (links.isEmpty()) {
+                // Most segments don't contain links, so it's worth not allocating anything.
+                return Collections.singletonList(segment);
             }
-            
-            return true;
+            ArrayList<PLineSegment> result = new ArrayList<PLineSegment>();
+            int normalStart = 0;
+            for (BuildOutputIndex.Link link : links) {
+                final int linkStart = (int) (link.offset - discardedLength) - offset;
+                final int linkEnd = linkStart + link.address.length();
+                if (linkStart > normalStart) {
+                    result.add(segment.subSegment(normalStart, linkStart));
+                }
+                PTextSegment linkSegment = new PTextSegment(textArea, offset + linkStart, offset + linkEnd, PStyle.HYPERLINK);
+                linkSegment.setLinkAction(new ErrorLinkActionListener(link));
+                result.add(linkSegment);
+                normalStart = linkEnd;
+            }
+            if (segment.getModelTextLength() > normalStart) {
+                result.add(segment.subSegment(normalStart));
+            }
+            return result;
         }
         
-        @Override
-        protected void configureSegment(PTextSegment segment, Matcher matcher) {
-            segment.setLinkAction(new ErrorLinkActionListener(matcher.group(1), segment.getOffset()));
+        public boolean canApplyStylingTo(PStyle style) {
+            return (style == PStyle.NORMAL);
         }
     }
     
     private class ErrorLinkActionListener implements ActionListener {
+        private final BuildOutputIndex.Link link;
         private final String address;
-        private final int offset;
         
-        public ErrorLinkActionListener(String address, int offset) {
-            this.address = address;
-            this.offset = offset;
+        public ErrorLinkActionListener(BuildOutputIndex.Link link) {
+            this.link = link;
+            this.address = link.address;
         }
         
         public void actionPerformed(ActionEvent e) {
+            // Carry on from here if the user asks for the next error.
+            linkIndex.visitLinkAt(link.offset);
+            
             // The link was probably a combination of filename and address within the file.
             // Break that into the two components.
             String name = address;
@@ -241,13 +273,8 @@ public class EErrorsWindow extends JFrame {
         }
         
         private void handleNonCanonicalFilename(String name, String tail) {
-            // Try to resolve the non-canonical filename by finding the last-known directory.
-            String currentDirectory = workspace.getRootDirectory();
-            String errors = textArea.getText();
-            Matcher matcher = MAKE_ENTERING_DIRECTORY_PATTERN.matcher(errors);
-            while (matcher.find() && matcher.start() < offset) {
-                currentDirectory = matcher.group(1);
-            }
+            // Try to resolve the non-canonical filename using the directory make was in when the link was output.
+            String currentDirectory = (link.directory != null) ? link.directory : workspace.getRootDirectory();
             open(currentDirectory + File.separator + name + tail);
         }
         
@@ -261,31 +288,112 @@ public class EErrorsWindow extends JFrame {
     }
     
     private class AppendRunnable implements Runnable {
-        private boolean isStdErr;
-        private String text;
-        
-        public AppendRunnable(boolean isStdErr, List<String> lines) {
-            this.isStdErr = isStdErr;
-            this.text = StringUtilities.join(lines, "\n") + "\n";
-        }
-        
         public void run() {
+            final boolean shouldClear;
+            final boolean isStdErr;
+            final String text;
+            final List<BuildOutputIndex.Link> links;
+            synchronized (outputParser) {
+                appendScheduled = false;
+                shouldClear = clearPending;
+                clearPending = false;
+                isStdErr = stdErrPending;
+                stdErrPending = false;
+                text = outputParser.takePendingText();
+                links = outputParser.takePendingLinks();
+            }
+            // We update the index before the text, so it's right by the time the text area restyles anything.
+            if (shouldClear) {
+                linkIndex.clear();
+                textArea.setText("");
+                textArea.getTextBuffer().getUndoBuffer().resetUndoBuffer();
+                spillFile = null;
+                enableAutoScroll();
+            }
+            if (text.length() == 0) {
+                return;
+            }
             // This conditional stops the errors window from grabbing the focus every time it's updated.
             if (isVisible() == false) {
                 setVisible(true);
             }
+            linkIndex.addAll(links);
             textArea.append(text);
+            spillOldestOutput();
             if (isStdErr) {
                 disableAutoScroll();
             }
         }
     }
     
-    private class ClearRunnable implements Runnable {
-        public void run() {
-            textArea.setText("");
-            textArea.getTextBuffer().getUndoBuffer().resetUndoBuffer();
-            enableAutoScroll();
+    /**
+     * Moves the oldest output to our spill file if we're showing more than
+     * maxOutputLength characters. We remove whole lines, and leave only
+     * three quarters of the maximum, so we don't have to do this on every
+     * append.
+     */
+    private void spillOldestOutput() {
+        final PTextBuffer buffer = textArea.getTextBuffer();
+        if (buffer.length() <= maxOutputLength) {
+            return;
+        }
+        int end = buffer.length() - maxOutputLength / 4 * 3;
+        while (buffer.charAt(end - 1) != '\n') {
+            ++end;
+        }
+        if (spillFile == null) {
+            try {
+                spillFile = FileUtilities.createTemporaryFile("e.edit.EErrorsWindow-", ".txt", "file for earlier output", null);
+            } catch (RuntimeException ex) {
+                // Better to lose the oldest output than to run out of memory.
+                Log.warn("Discarding earlier output", ex);
+            }
+            if (spillFile != null) {
+                showStatus("Earlier output moved to " + spillFile);
+            }
+        }
+        final File file = spillFile;
+        final String text = buffer.subSequence(0, end).toString();
+        linkIndex.discardOutput(end);
+        // Deleting normally selects and scrolls to where the text was, but the user may be looking at an error further down.
+        textArea.deletePreservingSelection(0, end);
+        if (file != null) {
+            SPILL_EXECUTOR.execute(new Runnable() {
+                public void run() {
+                    Writer out = null;
+                    try {
+                        out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+                        out.write(text);
+                    } catch (IOException ex) {
+                        Log.warn("Couldn't write earlier output to \"" + file + "\"", ex);
+                    } finally {
+                        FileUtilities.close(out);
+                    }
+                }
+            });
+        }
+    }
+    
+    private class NextErrorAction extends AbstractAction {
+        private final boolean forwards;
+        
+        public NextErrorAction(boolean forwards) {
+            super(forwards ? "Next Error" : "Previous Error");
+            putValue(ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_F4, forwards ? 0 : InputEvent.SHIFT_MASK));
+            this.forwards = forwards;
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            final BuildOutputIndex.Link link = forwards ? linkIndex.nextLink() : linkIndex.previousLink();
+            if (link == null) {
+                showStatus(forwards ? "No more errors" : "No earlier errors");
+                return;
+            }
+            // Don't let new output scroll the error we're showing away.
+            disableAutoScroll();
+            final int start = (int) (link.offset - linkIndex.getDiscardedLength());
+            textArea.centerOnNewSelection(start, start + link.address.length());
+            new ErrorLinkActionListener(link).actionPerformed(e);
         }
     }
     
@@ -296,18 +404,48 @@ public class EErrorsWindow extends JFrame {
         }
     }
     
+    /**
+     * Parses 'lines' and queues them to be appended, along with any other
+     * output that arrives before the event dispatch thread gets round to it.
+     * Safe to call on any thread, and best called off the event dispatch thread.
+     */
     public void appendLines(boolean isStdErr, List<String> lines) {
-        for (String line : lines) {
-            // FIXME: this is a bit weak, and no longer necessary for our builds. The FIXME in this file about treating stderr specially might be a better way forward if we want to keep a hack.
-            if (line.contains("***") || line.contains("warning:")) {
-                ++currentBuildErrorCount;
+        final FileIgnorer fileIgnorer = workspace.getFileList().getFileIgnorer();
+        synchronized (outputParser) {
+            for (String line : lines) {
+                // FIXME: this is a bit weak, and no longer necessary for our builds. The FIXME in this file about treating stderr specially might be a better way forward if we want to keep a hack.
+                if (line.contains("***") || line.contains("warning:")) {
+                    ++currentBuildErrorCount;
+                }
+                outputParser.parseLine(line, fileIgnorer);
             }
+            stdErrPending |= isStdErr;
+            scheduleAppend();
+        }
+    }
+    
+    /**
+     * Discards all the output, including any not yet appended.
+     */
+    private void clearOutput() {
+        synchronized (outputParser) {
+            currentBuildErrorCount = 0;
+            outputParser.reset();
+            clearPending = true;
+            stdErrPending = false;
+            scheduleAppend();
+        }
+    }
+    
+    private void scheduleAppend() {
+        if (appendScheduled == false) {
+            appendScheduled = true;
+            EventQueue.invokeLater(new AppendRunnable());
         }
-        EventQueue.invokeLater(new AppendRunnable(isStdErr, lines));
     }
     
     public void clearErrors() {
-        EventQueue.invokeLater(new ClearRunnable());
+        clearOutput();
         EventQueue.invokeLater(new HideRunnable());
     }
     
@@ -335,8 +473,27 @@ public class EErrorsWindow extends JFrame {
                 actions.add(new CheckInChangesAction());
                 actions.add(null);
                 actions.add(CLEAR_ERRORS_ACTION);
+                actions.add(null);
+                actions.add(new NextErrorAction(true));
+                actions.add(new NextErrorAction(false));
+                if (spillFile != null) {
+                    actions.add(new OpenEarlierOutputAction(spillFile));
+                }
                 EPopupMenu.addNumberInfoItems(actions, textArea.getSelectedText());
             }
         });
     }
+    
+    private static class OpenEarlierOutputAction extends AbstractAction {
+        private final File file;
+        
+        public OpenEarlierOutputAction(File file) {
+            super("Open Earlier Output");
+            this.file = file;
+        }
+        
+        public void actionPerformed(ActionEvent e) {
+            Evergreen.getInstance().openFile(file.toString());
+        }
+    }
 }
@@ -6,6 +6,7 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.List;
@@ -16,10 +17,13 @@ import javax.swing.Timer;
 /**
  * A text-editing component.
  */
-public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTextListener {
+public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PBatchTextListener {
     // Used to update the watermark without creating and destroying an excessive number of threads.
     private static final ExecutorService WATERMARK_UPDATE_EXECUTOR = ThreadUtilities.newSingleThreadExecutor("Watermark Updater");
     
+    // Used to write files without blocking the EDT. Files are written in the order their saves were started.
+    private static final ExecutorService FILE_SAVER_EXECUTOR = ThreadUtilities.newSingleThreadExecutor("File Saver");
+    
     private final String filename;
     private final File file;
     private final PTextArea textArea;
@@ -29,8 +33,16 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     private final WatermarkViewPort watermarkViewPort;
     private final BirdView birdView;
     private final TagsUpdater tagsUpdater;
+    private PUndoHistoryLog undoHistoryLog;
+    
+    // What the file was like on disk when we last read or wrote it.
+    // The watermark updater reads this on its own thread.
+    private volatile DiskState diskState;
     
-    private long lastModifiedTime;
+    // The save in progress, if any.
+    private FileSaver fileSaver;
+    // Incremented whenever the text changes, so a save can tell whether the text's changed since its snapshot.
+    private int changeCount;
     
     // Each text window has its own current regular expression for finds, which may be null if there's no currently active search in that window.
     private String currentRegularExpression;
@@ -41,6 +53,12 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             // FIXME: isn't this too conservative? shouldn't we check whether the timer is running? if it's not, aren't the results already up to date?
             updateFindResults();
         }
+        
+        public void findResultsChanged() {
+            if (currentRegularExpression != null) {
+                updateStatusLine();
+            }
+        }
     };
     
     /**
@@ -80,10 +98,20 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         
         this.tagsUpdater = new TagsUpdater(this);
         fillWithContent();
+        initUndoHistoryLog();
         initUserConfigurableDefaults();
         initFindResultsUpdater();
     }
     
+    private void initUndoHistoryLog() {
+        // The undo history is only restored if the file's content is as it was when we last saved it, so it's keyed on the canonical path.
+        try {
+            this.undoHistoryLog = PUndoHistoryLog.attach(textArea, file.getCanonicalPath(), new File(Evergreen.getPreferenceFilename("undo-history")));
+        } catch (Exception ex) {
+            Log.warn("Couldn't restore undo history for \"" + filename + "\"", ex);
+        }
+    }
+    
     private void initTextArea() {
         textArea.setPastedTextReformatter(new UnaryFunctor<String, String>() {
             public String evaluate(String pastedText) {
@@ -103,6 +131,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         textArea.getActionMap().remove(PActionFactory.makeFindAction().getValue(Action.NAME));
         
         textArea.getTextBuffer().addTextListener(this);
+        CompletionIndex.attach(textArea.getTextBuffer());
     }
     
     private void initUserConfigurableDefaults() {
@@ -292,6 +321,10 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         textBecameDirty();
     }
     
+    public void textChangedInBatch(PBatchTextEvent e) {
+        textBecameDirty();
+    }
+    
     private void highlightMergeConflicts() {
         // All merge conflict indications I've ever seen (and I've seen a few) contain this substring:
         final String MERGE_CONFLICT_INDICATOR = "<<<<<<<";
@@ -339,8 +372,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     
     private void fillWithContent() {
         try {
-            lastModifiedTime = file.lastModified();
+            // Look at the file before reading it, so that if it changes while we're reading, we'll notice.
+            final long lastModified = file.lastModified();
+            final long length = file.length();
             textArea.getTextBuffer().readFromFile(file);
+            diskState = new DiskState(lastModified, length, textArea.getTextBuffer().getFileChecksum());
             
             configureForGuessedFileType();
             updateWatermarkAndTitleBar();
@@ -432,6 +468,11 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             findResultsUpdateTimer.stop();
             findResultsUpdateTimer = null;
         }
+        if (undoHistoryLog != null) {
+            undoHistoryLog.detach();
+            undoHistoryLog = null;
+        }
+        CompletionIndex.detach(textArea.getTextBuffer());
         Evergreen.getInstance().showStatus("Closed " + filename);
         // FIXME: what else needs doing to ensure that we give back memory?
     }
@@ -520,6 +561,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     public void textBecameDirty() {
+        ++changeCount;
         if (findResultsUpdateTimer != null) {
             findResultsUpdateTimer.restart();
         }
@@ -611,19 +653,23 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     }
     
     private boolean isOutOfDateWithRespectToDisk() {
-        // If the time stamp on disk is the same as it was when we last read
-        // or wrote the file, assume it hasn't changed.
-        if (file.lastModified() == lastModifiedTime) {
+        // If the time stamp and size on disk are the same as they were when
+        // we last read or wrote the file, assume it hasn't changed.
+        final DiskState lastDiskState = diskState;
+        if (file.lastModified() == lastDiskState.lastModified && file.length() == lastDiskState.length) {
             return false;
         }
         
-        // If the on-disk content is the same as what we have in memory, then
-        // the fact that the time stamp is different isn't significant.
+        // If the on-disk content is the same as when we last read or wrote it,
+        // or the same as what we have in memory, then the fact that the time
+        // stamp is different isn't significant. We compare checksums so that
+        // we never need to decode the file.
         try {
-            String currentContentInMemory = textArea.getText();
-            String currentContentOnDisk = StringUtilities.readFile(file);
-            if (currentContentInMemory.equals(currentContentOnDisk)) {
-                lastModifiedTime = file.lastModified();
+            final long lastModified = file.lastModified();
+            final long length = file.length();
+            final long checksum = FileUtilities.crc32(file);
+            if (checksum == lastDiskState.checksum || checksum == checksumOfTextInMemory()) {
+                diskState = new DiskState(lastModified, length, checksum);
                 return false;
             }
         } catch (Exception ex) {
@@ -633,68 +679,111 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         return true;
     }
     
-    /** Saves the text. Returns true if the file was saved okay. */
+    /**
+     * Returns the checksum of the bytes we'd write if we saved now, or -1
+     * (which no CRC-32 checksum equals) if the text can't be encoded.
+     */
+    private long checksumOfTextInMemory() throws IOException {
+        final PTextFileWriter writer = textArea.getTextBuffer().makeFileWriter();
+        try {
+            writer.writeTo(new NullOutputStream());
+        } catch (CharacterCodingException ex) {
+            return -1;
+        }
+        return writer.getChecksum();
+    }
+    
+    /**
+     * Saves the text, waiting until the file has been written. Returns true
+     * if the file was saved okay. Use saveInBackground if you don't need to know.
+     */
     public boolean save() {
-        Evergreen editor = Evergreen.getInstance();
-        
-        PTextBuffer buffer = textArea.getTextBuffer();
-        String charsetName = (String) buffer.getProperty(PTextBuffer.CHARSET_PROPERTY);
-        if (buffer.attemptEncoding(charsetName) == false) {
-            Evergreen.getInstance().showAlert("Can't encode file with encoding", "The " + charsetName + " encoding is not capable of representing all characters found in this file. You can change the file's encoding in the File Properties dialog, available from the View menu.");
-            return false;
+        final FileSaver saver = startSaving();
+        return (saver != null && saver.waitAndFinish());
+    }
+    
+    /**
+     * Saves the text without waiting for the file to be written. Progress,
+     * success, and failure are reported just as they are by save.
+     */
+    public void saveInBackground() {
+        startSaving();
+    }
+    
+    /**
+     * Does the part of saving that needs the EDT: checking with the user if
+     * the file has changed on disk, tidying the text, and taking a snapshot.
+     * Returns the FileSaver writing the snapshot, or null if we're not saving
+     * after all.
+     */
+    private FileSaver startSaving() {
+        // Let any save already in progress finish, so we know what's on disk.
+        if (fileSaver != null) {
+            fileSaver.waitAndFinish();
         }
         
+        Evergreen editor = Evergreen.getInstance();
+        
         // If the file already exists, check it hasn't changed while we've been editing it.
         try {
             editor.showStatus("Preparing to save " + filename + "...");
             if (file.exists() && isOutOfDateWithRespectToDisk()) {
                 if (showPatchAndAskForConfirmation("Overwrite", "Overwrite the currently saved version of \"" + file.getName() + "\"? (Equivalent to applying the following patch.)", false) == false) {
-                    return false;
+                    return null;
                 }
             }
         } finally {
             editor.showStatus("");
         }
         
-        // Try to save a backup copy first. Ideally, we should do this from
-        // a timer and always have a recent backup around.
-        File backupFile = FileUtilities.fileFromString(this.filename + ".bak");
-        if (file.exists()) {
-            try {
-                editor.showStatus("Saving backup copy of " + filename + "...");
-                writeToFile(backupFile);
-            } catch (Exception ex) {
-                editor.showStatus("");
-                editor.showAlert("Couldn't save \"" + this.filename + "\"", "Couldn't create backup file: " + ex.getMessage() + ".");
-                Log.warn("Problem creating backup file before saving \"" + filename + "\"", ex);
-                return false;
+        prepareTextForSaving();
+        fileSaver = new FileSaver(textArea.getTextBuffer().makeFileWriter(), changeCount);
+        fileSaver.start();
+        return fileSaver;
+    }
+    
+    /**
+     * Writes a snapshot of the text to a backup file alongside the file, and
+     * then replaces the file with the backup. Returns the file's new DiskState.
+     * Runs on FILE_SAVER_EXECUTOR.
+     */
+    private DiskState writeFile(PTextFileWriter writer) throws IOException {
+        final File backupFile = FileUtilities.fileFromString(filename + ".bak");
+        final FileOutputStream out = new FileOutputStream(backupFile);
+        boolean written = false;
+        try {
+            writer.writeTo(out);
+            // Make sure the new content is really on disk before it replaces the old.
+            out.getFD().sync();
+            written = true;
+        } finally {
+            FileUtilities.close(out);
+            if (written == false) {
+                backupFile.delete();
             }
         }
-        
-        try {
-            editor.showStatus("Saving " + filename + "...");
-            // The file may be a symbolic link on a CIFS server.
-            // In this case, it's important that we write into the original file rather than creating a new one.
-            writeToFile(file);
-            buffer.getUndoBuffer().setCurrentStateClean();
-            getTitleBar().repaint();
-            editor.showStatus("Saved " + filename);
-            backupFile.delete();
-            this.lastModifiedTime = file.lastModified();
-            configureForGuessedFileType();
-            updateWatermarkAndTitleBar();
-            tagsUpdater.updateTags();
-            SaveMonitor.getInstance().fireSaveListeners();
-            return true;
-        } catch (Exception ex) {
-            editor.showStatus("");
-            editor.showAlert("Couldn't save file \"" + filename + "\"", ex.getMessage());
-            Log.warn("Problem saving \"" + filename + "\"", ex);
+        FileUtilities.replaceFile(file, backupFile);
+        return new DiskState(file.lastModified(), file.length(), writer.getChecksum());
+    }
+    
+    /**
+     * Does the rest of saving once the file has been written.
+     */
+    private void didSave(int snapshotChangeCount) {
+        // The text is only clean if it's the text we wrote.
+        if (changeCount == snapshotChangeCount) {
+            textArea.getTextBuffer().setFileChecksum(diskState.checksum);
+            textArea.getTextBuffer().getUndoBuffer().setCurrentStateClean();
         }
-        return false;
+        getTitleBar().repaint();
+        Evergreen.getInstance().showStatus("Saved " + filename);
+        configureForGuessedFileType();
+        updateWatermarkAndTitleBar();
+        tagsUpdater.updateTags();
+        SaveMonitor.getInstance().fireSaveListeners(filename);
     }
     
-    private void writeToFile(File file) {
+    private void prepareTextForSaving() {
         // Only Java has newline hygiene as part of its language specification, but it probably applies to most computer languages.
         // For now, though, we let authors of plain text do what they like.
         if (getFileType() != FileType.PLAIN_TEXT) {
@@ -713,8 +802,6 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
             // This code can do a perfect job of maintaining the selection, so it comes outside the cruder code above.
             trimTrailingWhitespace();
         }
-        
-        textArea.getTextBuffer().writeToFile(file);
     }
     
     private void trimTrailingWhitespace() {
@@ -725,6 +812,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
         Pattern trailingWhitespacePattern = Pattern.compile("([ \t]+)$", Pattern.MULTILINE);
         if (trailingWhitespacePattern.matcher(buffer).find()) {
             buffer.getUndoBuffer().startCompoundEdit();
+            buffer.startBatch();
             try {
                 final PCoordinates selectionStart = textArea.getLogicalCoordinates(textArea.getSelectionStart());
                 final PCoordinates selectionEnd = textArea.getLogicalCoordinates(textArea.getSelectionEnd());
@@ -738,6 +826,7 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
                 
                 textArea.select(clampedOffsetOf(selectionStart), clampedOffsetOf(selectionEnd));
             } finally {
+                buffer.finishBatch();
                 buffer.getUndoBuffer().finishCompoundEdit();
             }
         }
@@ -794,4 +883,106 @@ public class ETextWindow extends EWindow implements Comparable<ETextWindow>, PTe
     public String getCurrentRegularExpression() {
         return currentRegularExpression;
     }
+    
+    /**
+     * What a file was like on disk: enough to tell cheaply whether it's changed since.
+     */
+    private static final class DiskState {
+        private final long lastModified;
+        private final long length;
+        private final long checksum;
+        
+        private DiskState(long lastModified, long length, long checksum) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the text on FILE_SAVER_EXECUTOR, showing progress
+     * in the status line, and then finishes saving back on the EDT.
+     */
+    private class FileSaver implements Runnable {
+        private final PTextFileWriter writer;
+        private final int snapshotChangeCount;
+        private final Timer progressTimer;
+        private Future<?> future;
+        // Set on the writing thread before 'future' completes.
+        private Exception failure;
+        private boolean finished = false;
+        
+        private FileSaver(final PTextFileWriter writer, int snapshotChangeCount) {
+            this.writer = writer;
+            this.snapshotChangeCount = snapshotChangeCount;
+            this.progressTimer = new Timer(500, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    Evergreen.getInstance().showStatus("Saving " + filename + " (" + writer.getPercentageWritten() + "%)...");
+                }
+            });
+        }
+        
+        private void start() {
+            Evergreen.getInstance().showStatus("Saving " + filename + "...");
+            progressTimer.start();
+            future = FILE_SAVER_EXECUTOR.submit(this);
+        }
+        
+        public void run() {
+            try {
+                diskState = writeFile(writer);
+            } catch (Exception ex) {
+                failure = ex;
+            }
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    finish();
+                }
+            });
+        }
+        
+        /**
+         * Waits for the file to be written and finishes saving. Returns true
+         * if the file was saved okay.
+         */
+        private boolean waitAndFinish() {
+            try {
+                future.get();
+            } catch (Exception ex) {
+                failure = ex;
+            }
+            return finish();
+        }
+        
+        /**
+         * Reports how the save went, the first time it's called. Returns true
+         * if the file was saved okay.
+         */
+        private boolean finish() {
+            if (finished == false) {
+                finished = true;
+                progressTimer.stop();
+                if (fileSaver == this) {
+                    fileSaver = null;
+                }
+                if (failure == null) {
+                    didSave(snapshotChangeCount);
+                } else {
+                    reportFailure();
+                }
+            }
+            return (failure == null);
+        }
+        
+        private void reportFailure() {
+            Evergreen editor = Evergreen.getInstance();
+            editor.showStatus("");
+            if (failure instanceof CharacterCodingException) {
+                editor.showAlert("Can't encode file with encoding", "The " + writer.getCharsetName() + " encoding is not capable of representing all characters found in this file. You can change the file's encoding in the File Properties dialog, available from the View menu.");
+            } else {
+                editor.showAlert("Couldn't save file \"" + filename + "\"", failure.getMessage());
+                Log.warn("Problem saving \"" + filename + "\"", failure);
+            }
+        }
+    }
 }
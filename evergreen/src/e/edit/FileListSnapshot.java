@@ -0,0 +1,294 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import org.jessies.os.*;
+
+/**
+ * A workspace's list of files, together with the modification time of every directory the list came from.
+ * 
+ * We save one of these for each workspace, so that when Evergreen starts, Open Quickly and Find in Files can use the saved list immediately.
+ * A directory's modification time changes whenever an entry is added, removed, or renamed, so to bring a saved list up to date we only need to re-read the directories whose times have changed.
+ * That's far cheaper than walking the whole tree again, which is what we'd otherwise do on every startup.
+ */
+class FileListSnapshot {
+    private static final int MAGIC = 0x45464c53; // "EFLS"
+    private static final int VERSION = 1;
+    
+    // Directory times are only accurate to the second, so a directory changed in the same second we read it might look unchanged later.
+    // We record times that recent as unknown, so the directory is always re-read next time.
+    private static final long UNKNOWN_TIME = -1;
+    
+    private final File rootDirectory;
+    private final SortedPathList files;
+    // Each directory we entered, relative to the root and with a trailing '/'. The root itself is "".
+    // The trailing '/' means a directory sorts just before its contents, in the order FileFinder visits them.
+    private final SortedPathList directories;
+    // The st_mtime of each directory, or UNKNOWN_TIME.
+    private final long[] directoryTimes;
+    
+    private FileListSnapshot(File rootDirectory, SortedPathList files, SortedPathList directories, long[] directoryTimes) {
+        this.rootDirectory = rootDirectory;
+        this.files = files;
+        this.directories = directories;
+        this.directoryTimes = directoryTimes;
+    }
+    
+    public SortedPathList getFiles() {
+        return files;
+    }
+    
+    /**
+     * Returns the file in which we keep the snapshot for the workspace at 'rootDirectory'.
+     */
+    public static File getSnapshotFile(File rootDirectory) {
+        File directory = new File(Evergreen.getPreferenceFilename("workspace-file-lists"));
+        // Collisions don't matter, because we check the root directory when reading.
+        return new File(directory, Integer.toHexString(rootDirectory.toString().hashCode()) + ".files");
+    }
+    
+    /**
+     * Returns the snapshot saved for 'rootDirectory', or null if there isn't a usable one.
+     */
+    public static FileListSnapshot read(File rootDirectory) {
+        File snapshotFile = getSnapshotFile(rootDirectory);
+        if (snapshotFile.exists() == false) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(snapshotFile))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readUTF().equals(rootDirectory.toString()) == false) {
+                    return null;
+                }
+                SortedPathList files = SortedPathList.readFrom(in);
+                SortedPathList directories = SortedPathList.readFrom(in);
+                long[] directoryTimes = new long[in.readInt()];
+                if (directoryTimes.length != directories.size()) {
+                    throw new IOException("corrupt snapshot: " + directories.size() + " directories but " + directoryTimes.length + " times");
+                }
+                for (int i = 0; i < directoryTimes.length; ++i) {
+                    directoryTimes[i] = in.readLong();
+                }
+                return new FileListSnapshot(rootDirectory, files, directories, directoryTimes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.warn("Failed to read file list snapshot \"" + snapshotFile + "\"", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Saves this snapshot, replacing any previous one for the same root directory.
+     */
+    public void write() {
+        File snapshotFile = getSnapshotFile(rootDirectory);
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            snapshotFile.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile))));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(rootDirectory.toString());
+                files.writeTo(out);
+                directories.writeTo(out);
+                out.writeInt(directoryTimes.length);
+                for (long time : directoryTimes) {
+                    out.writeLong(time);
+                }
+            } finally {
+                out.close();
+            }
+            // Readers should see either the old snapshot or the new one, never half of the new one.
+            if (temporaryFile.renameTo(snapshotFile) == false) {
+                throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + snapshotFile + "\"");
+            }
+        } catch (IOException ex) {
+            Log.warn("Failed to write file list snapshot \"" + snapshotFile + "\"", ex);
+            temporaryFile.delete();
+        }
+    }
+    
+    /**
+     * Walks the whole tree under 'rootDirectory'.
+     */
+    public static FileListSnapshot scan(File rootDirectory, FileIgnorer fileIgnorer) {
+        Scanner scanner = new Scanner(rootDirectory, fileIgnorer);
+        scanner.scanDirectory("");
+        SortedPathList directories = SortedPathList.fromPaths(scanner.directoryTimes.keySet());
+        return new FileListSnapshot(rootDirectory, scanner.files.build(), directories, getDirectoryTimes(directories, scanner.directoryTimes, null));
+    }
+    
+    /**
+     * Returns an up-to-date snapshot, re-reading only the directories that have changed since this snapshot was made.
+     * Returns this snapshot if nothing has changed.
+     * The caller should rescan if 'fileIgnorer''s configuration might have changed, because we won't notice.
+     */
+    public FileListSnapshot validate(FileIgnorer fileIgnorer) {
+        Scanner scanner = new Scanner(rootDirectory, fileIgnorer);
+        ArrayList<String> removedFiles = new ArrayList<String>();
+        ArrayList<String> removedDirectories = new ArrayList<String>();
+        // Directories that have gone, so there's no need to look at anything under them.
+        ArrayList<String> finishedSubtrees = new ArrayList<String>();
+        SortedPathList.Cursor directory = directories.cursor();
+        while (directory.next()) {
+            final String path = directory.toString();
+            if (isInAny(path, finishedSubtrees)) {
+                continue;
+            }
+            final Stat stat = new Stat();
+            if (Posix.stat(new File(rootDirectory, path).toString(), stat) != 0 || stat.isDirectory() == false) {
+                removeSubtree(path, removedFiles, removedDirectories);
+                finishedSubtrees.add(path);
+                continue;
+            }
+            if (stat.st_mtime() == directoryTimes[directory.getIndex()]) {
+                continue;
+            }
+            
+            // Something in this directory has been added, removed, or renamed.
+            // Forget what we knew about its immediate contents, and re-read it.
+            for (String file : files.getPathsWithPrefix(path)) {
+                if (file.indexOf('/', path.length()) == -1) {
+                    removedFiles.add(file);
+                }
+            }
+            for (String subdirectory : directories.getPathsWithPrefix(path)) {
+                if (subdirectory.length() > path.length() && subdirectory.indexOf('/', path.length()) == subdirectory.length() - 1) {
+                    // We don't know yet if this subdirectory still exists, so only forget it if it doesn't.
+                    if (new File(rootDirectory, subdirectory).isDirectory() == false) {
+                        removeSubtree(subdirectory, removedFiles, removedDirectories);
+                        finishedSubtrees.add(subdirectory);
+                    }
+                }
+            }
+            scanner.readDirectory(path, stat, directories);
+        }
+        
+        if (removedFiles.isEmpty() && removedDirectories.isEmpty() && scanner.isEmpty()) {
+            return this;
+        }
+        // Files in the directories we re-read that are still there were both removed and re-added, which leaves them present.
+        SortedPathList newFiles = files.withChanges(scanner.files.build(), removedFiles);
+        SortedPathList newDirectories = directories.withChanges(scanner.directoryTimes.keySet(), removedDirectories);
+        return new FileListSnapshot(rootDirectory, newFiles, newDirectories, getDirectoryTimes(newDirectories, scanner.directoryTimes, this));
+    }
+    
+    /**
+     * Returns the times for 'directories', from 'newTimes' if present, or from 'previous'.
+     */
+    private static long[] getDirectoryTimes(SortedPathList directories, Map<String, Long> newTimes, FileListSnapshot previous) {
+        long[] result = new long[directories.size()];
+        SortedPathList.Cursor directory = directories.cursor();
+        while (directory.next()) {
+            Long time = newTimes.get(directory.toString());
+            result[directory.getIndex()] = (time != null) ? time : previous.directoryTimes[previous.directories.indexOf(directory)];
+        }
+        return result;
+    }
+    
+    private void removeSubtree(String path, List<String> removedFiles, List<String> removedDirectories) {
+        removedFiles.addAll(files.getPathsWithPrefix(path));
+        removedDirectories.addAll(directories.getPathsWithPrefix(path));
+    }
+    
+    private static boolean isInAny(String path, List<String> subtrees) {
+        for (String subtree : subtrees) {
+            if (path.startsWith(subtree)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Collects the files and directories found by scanning some part of a tree.
+     */
+    private static class Scanner {
+        private final File rootDirectory;
+        private final FileIgnorer fileIgnorer;
+        private final long scanStartTime = System.currentTimeMillis() / 1000;
+        private final SortedPathList.Builder files = new SortedPathList.Builder();
+        private final HashMap<String, Long> directoryTimes = new HashMap<String, Long>();
+        private boolean foundAnything = false;
+        
+        private Scanner(File rootDirectory, FileIgnorer fileIgnorer) {
+            this.rootDirectory = rootDirectory;
+            this.fileIgnorer = fileIgnorer;
+        }
+        
+        private boolean isEmpty() {
+            return foundAnything == false && directoryTimes.isEmpty();
+        }
+        
+        private void noteDirectory(String path, Stat stat) {
+            directoryTimes.put(path, (stat.st_mtime() >= scanStartTime - 1) ? UNKNOWN_TIME : stat.st_mtime());
+        }
+        
+        private void noteFile(String path) {
+            files.add(path);
+            foundAnything = true;
+        }
+        
+        /**
+         * Walks the whole subtree at 'path', which must be "" or end with '/'.
+         */
+        private void scanDirectory(String path) {
+            final File directory = new File(rootDirectory, path);
+            final Stat rootStat = new Stat();
+            if (Posix.stat(directory.toString(), rootStat) != 0) {
+                return;
+            }
+            noteDirectory(path, rootStat);
+            final int prefixCharsToSkip = rootDirectory.toString().length() + 1;
+            FileFinder.Filter filter = new FileFinder.Filter() {
+                public boolean acceptFile(File file, Stat stat) {
+                    return fileIgnorer.acceptFile(file, stat);
+                }
+                
+                public boolean enterDirectory(File subdirectory, Stat stat) {
+                    if (fileIgnorer.enterDirectory(subdirectory, stat) == false) {
+                        return false;
+                    }
+                    noteDirectory(subdirectory.toString().substring(prefixCharsToSkip) + "/", stat);
+                    return true;
+                }
+            };
+            // Many file systems return files in no particular order, but users of the list can assume it's sorted.
+            // Having the FileFinder sort each directory as it goes means we never have to sort the whole list.
+            for (File file : new FileFinder().inPathOrder(true).filesUnder(directory, filter)) {
+                noteFile(file.toString().substring(prefixCharsToSkip));
+            }
+        }
+        
+        /**
+         * Reads the immediate contents of the directory at 'path', scanning any subdirectories not in 'knownDirectories'.
+         */
+        private void readDirectory(String path, Stat stat, SortedPathList knownDirectories) {
+            noteDirectory(path, stat);
+            File[] children = new File(rootDirectory, path).listFiles();
+            if (children == null) {
+                return;
+            }
+            for (File child : children) {
+                final Stat childStat = new Stat();
+                if (Posix.lstat(child.toString(), childStat) != 0) {
+                    continue;
+                }
+                final String childPath = path + child.getName();
+                if (childStat.isDirectory()) {
+                    if (fileIgnorer.enterDirectory(child, childStat) && knownDirectories.contains(childPath + "/") == false) {
+                        scanDirectory(childPath + "/");
+                    }
+                } else if (fileIgnorer.acceptFile(child, childStat)) {
+                    noteFile(childPath);
+                }
+            }
+        }
+    }
+}
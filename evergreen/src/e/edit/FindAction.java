@@ -104,8 +104,8 @@ public class FindAction extends ETextAction implements MinibufferUser {
     //
     
     public void removeAllMatches() {
-        currentTextWindow.getTextArea().removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME);
-        currentTextWindow.getBirdView().clearMatchingLines();
+        // Searching for nothing also cancels any search still running in the background.
+        currentTextWindow.getTextArea().findAllMatches(null, currentTextWindow.getBirdView());
     }
     
     private void findAllMatches(String regularExpression) {
@@ -100,7 +100,13 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
             this.matchCount = matchCount;
             this.pattern = pattern;
             if (pattern != null) {
-                definitionFinderExecutor.submit(new DefinitionFinder(file, pattern, this));
+                // Ask the workspace's symbol index first, because running ctags(1) on every matching file is slow.
+                Boolean containsDefinition = workspace.getSymbolIndex().definesSymbolMatching(name, pattern);
+                if (containsDefinition != null) {
+                    this.containsDefinition = containsDefinition;
+                } else {
+                    definitionFinderExecutor.submit(new DefinitionFinder(file, pattern, this));
+                }
             }
         }
         
@@ -573,7 +579,7 @@ public class FindInFilesDialog implements WorkspaceFileList.Listener {
     private void initSaveMonitor() {
         // Register for notifications of files saved while our dialog is up, so we can update the matches.
         final SaveMonitor.Listener saveListener = new SaveMonitor.Listener() {
-            public void fileSaved() {
+            public void fileSaved(String filename) {
                 // FIXME: Ideally, we'd be a bit more intelligent about this than re-searching the whole tree.
                 showMatches();
             }
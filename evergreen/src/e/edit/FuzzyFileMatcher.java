@@ -0,0 +1,209 @@
+package e.edit;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Scores how well a workspace-relative path matches what the user typed into Open Quickly.
+ * 
+ * A path matches if the query's characters appear in it in order, ignoring case, though not necessarily adjacent: "wfl" matches "WorkspaceFileList.java".
+ * We prefer matches within the file's basename to matches that straddle directories.
+ * We prefer characters at the start of words, either after punctuation or at camelCase humps.
+ * We prefer runs of consecutive characters, and shorter paths, and characters that match case exactly.
+ * 
+ * We score the best alignment of the query with each path, so "wfl" in "WorkspaceFileList" scores the 'L' of "List" rather than the first 'l'.
+ * That's quadratic, but only for the few paths that match at all; rejecting the rest is a single linear scan.
+ */
+public class FuzzyFileMatcher {
+    public static final int NO_MATCH = Integer.MIN_VALUE;
+    
+    private static final int MATCH_SCORE = 16;
+    private static final int CONSECUTIVE_BONUS = 4;
+    private static final int WORD_START_BONUS = 10;
+    private static final int CAMEL_CASE_BONUS = 10;
+    private static final int BASENAME_START_BONUS = 12;
+    private static final int EXACT_CASE_BONUS = 1;
+    // Starting a gap costs more than extending one.
+    private static final int GAP_START_PENALTY = 3;
+    private static final int MAX_GAP_PENALTY = 8;
+    private static final int BASENAME_BONUS = 30;
+    private static final int WHOLE_BASENAME_BONUS = 50;
+    
+    private final String query;
+    private final char[] lowerCaseQuery;
+    
+    public FuzzyFileMatcher(String query) {
+        this.query = query;
+        // We lower-case each char rather than the whole string, so the indexes still correspond.
+        this.lowerCaseQuery = new char[query.length()];
+        for (int i = 0; i < lowerCaseQuery.length; ++i) {
+            lowerCaseQuery[i] = Character.toLowerCase(query.charAt(i));
+        }
+    }
+    
+    public String getQuery() {
+        return query;
+    }
+    
+    /**
+     * Tests whether every path matching this matcher's query also matches 'other''s.
+     * If so, only 'other''s matches need be scored against this query.
+     */
+    public boolean narrows(FuzzyFileMatcher other) {
+        return new String(lowerCaseQuery).startsWith(new String(other.lowerCaseQuery));
+    }
+    
+    /**
+     * Returns the score for 'path', or NO_MATCH. Higher scores are better matches.
+     */
+    public int score(CharSequence path) {
+        int basenameStart = path.length();
+        while (basenameStart > 0 && path.charAt(basenameStart - 1) != '/') {
+            --basenameStart;
+        }
+        int result = scoreFrom(path, basenameStart, basenameStart);
+        if (result != NO_MATCH) {
+            result += BASENAME_BONUS;
+            if (basenameStartsWithQuery(path, basenameStart)) {
+                // "Foo.java" is probably what someone typing "Foo" or "Foo.java" wants, rather than "FooBar.java".
+                final int end = basenameStart + lowerCaseQuery.length;
+                if (end == path.length() || path.charAt(end) == '.') {
+                    result += WHOLE_BASENAME_BONUS;
+                }
+            }
+        } else {
+            result = scoreFrom(path, 0, basenameStart);
+        }
+        if (result != NO_MATCH) {
+            // All else being equal, prefer shallower, shorter paths.
+            result -= path.length() / 32;
+        }
+        return result;
+    }
+    
+    private boolean basenameStartsWithQuery(CharSequence path, int basenameStart) {
+        if (path.length() - basenameStart < lowerCaseQuery.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseQuery.length; ++i) {
+            if (Character.toLowerCase(path.charAt(basenameStart + i)) != lowerCaseQuery[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int scoreFrom(CharSequence path, int fromIndex, int basenameStart) {
+        final int m = lowerCaseQuery.length;
+        if (m == 0) {
+            return 0;
+        }
+        // Most paths don't match at all, so check that cheaply before doing any real work.
+        final int length = path.length();
+        int q = 0;
+        for (int i = fromIndex; i < length && q < m; ++i) {
+            if (Character.toLowerCase(path.charAt(i)) == lowerCaseQuery[q]) {
+                ++q;
+            }
+        }
+        if (q < m) {
+            return NO_MATCH;
+        }
+        
+        // Find the best alignment, as in Smith-Waterman.
+        // matchScores[j] is the best score for the first j+1 query characters with the last of them matched at the current index.
+        // The gap scores are the best for the same with the last matched before the previous index, less the penalty for the gap to here.
+        // The gap penalty grows with the gap's length, up to MAX_GAP_PENALTY; we track the growing and capped cases separately.
+        int[] previousMatchScores = newScores(m);
+        int[] matchScores = newScores(m);
+        int[] growingGapScores = newScores(m);
+        int[] cappedGapScores = newScores(m);
+        int result = NO_SCORE;
+        for (int i = fromIndex; i < length; ++i) {
+            final char ch = path.charAt(i);
+            final char lowerCaseCh = Character.toLowerCase(ch);
+            final char previousChar = (i > 0) ? path.charAt(i - 1) : '/';
+            // The scores for index i-2 join the gaps ending here.
+            for (int j = 0; j < m; ++j) {
+                growingGapScores[j] = Math.max(growingGapScores[j] - 1, previousMatchScores[j] - GAP_START_PENALTY);
+                cappedGapScores[j] = Math.max(cappedGapScores[j], previousMatchScores[j] - MAX_GAP_PENALTY);
+            }
+            // We no longer need the scores for index i-2, so we can reuse their array.
+            int[] newMatchScores = previousMatchScores;
+            for (int j = 0; j < m; ++j) {
+                int score = NO_SCORE;
+                if (lowerCaseCh == lowerCaseQuery[j]) {
+                    int predecessorScore = 0;
+                    if (j > 0) {
+                        predecessorScore = Math.max(matchScores[j - 1] + CONSECUTIVE_BONUS, Math.max(growingGapScores[j - 1], cappedGapScores[j - 1]));
+                    }
+                    if (predecessorScore > NO_SCORE) {
+                        score = predecessorScore + characterScore(i, ch, previousChar, j, basenameStart);
+                    }
+                }
+                newMatchScores[j] = score;
+            }
+            previousMatchScores = matchScores;
+            matchScores = newMatchScores;
+            result = Math.max(result, matchScores[m - 1]);
+        }
+        return result;
+    }
+    
+    // Low enough to never be mistaken for a real score, but high enough not to overflow when penalized.
+    private static final int NO_SCORE = Integer.MIN_VALUE / 2;
+    
+    private static int[] newScores(int m) {
+        int[] result = new int[m];
+        Arrays.fill(result, NO_SCORE);
+        return result;
+    }
+    
+    private int characterScore(int i, char ch, char previousChar, int j, int basenameStart) {
+        int result = MATCH_SCORE;
+        if (i == basenameStart) {
+            result += BASENAME_START_BONUS;
+        }
+        if ("/_-. ".indexOf(previousChar) != -1) {
+            result += WORD_START_BONUS;
+        } else if (Character.isLowerCase(previousChar) && Character.isUpperCase(ch)) {
+            result += CAMEL_CASE_BONUS;
+        }
+        if (ch == query.charAt(j)) {
+            result += EXACT_CASE_BONUS;
+        }
+        return result;
+    }
+    
+    @Test private static void testMatching() {
+        FuzzyFileMatcher matcher = new FuzzyFileMatcher("wfl");
+        Assert.equals(matcher.score("evergreen/src/e/edit/WorkspaceFileList.java") != NO_MATCH, true);
+        Assert.equals(matcher.score("evergreen/src/e/edit/Workflow.java") != NO_MATCH, true);
+        Assert.equals(matcher.score("evergreen/src/e/edit/Evergreen.java"), NO_MATCH);
+        Assert.equals(new FuzzyFileMatcher("").score("anything") != NO_MATCH, true);
+    }
+    
+    @Test private static void testRanking() {
+        // Camel-case humps beat scattered letters.
+        FuzzyFileMatcher matcher = new FuzzyFileMatcher("wfl");
+        assertBetter(matcher, "src/e/edit/WorkspaceFileList.java", "src/e/edit/Workflow.java");
+        // Basename matches beat matches across directories.
+        assertBetter(matcher, "src/e/edit/WorkspaceFileList.java", "src/w/f/l/Other.java");
+        // The exact basename beats longer names containing it.
+        matcher = new FuzzyFileMatcher("Workspace");
+        assertBetter(matcher, "src/e/edit/Workspace.java", "src/e/edit/WorkspaceFileList.java");
+        // Shorter paths win ties.
+        matcher = new FuzzyFileMatcher("Makefile");
+        assertBetter(matcher, "Makefile", "some/deeply/nested/directory/Makefile");
+    }
+    
+    private static void assertBetter(FuzzyFileMatcher matcher, String better, String worse) {
+        Assert.equals(matcher.score(better) > matcher.score(worse), true);
+    }
+    
+    @Test private static void testNarrowing() {
+        Assert.equals(new FuzzyFileMatcher("WorkF").narrows(new FuzzyFileMatcher("work")), true);
+        Assert.equals(new FuzzyFileMatcher("work").narrows(new FuzzyFileMatcher("workf")), false);
+        Assert.equals(new FuzzyFileMatcher("xwork").narrows(new FuzzyFileMatcher("work")), false);
+    }
+}
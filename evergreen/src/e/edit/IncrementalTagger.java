@@ -0,0 +1,319 @@
+package e.edit;
+
+import e.ptextarea.FileType;
+import java.util.*;
+import java.util.concurrent.*;
+import org.jessies.test.*;
+
+/**
+ * Finds the tags in a file without running ctags, re-examining only the lines affected by each edit.
+ * 
+ * Subclasses scan a line at a time, given the state at the start of the line (whether we're in a comment, which class we're in, and so on).
+ * They report the tags on the line, and return the state at the start of the next line.
+ * We remember the state at the start of every line, so after an edit we can start scanning at the first line that changed.
+ * Once we're past the edit, as soon as a line starts in the same state as it did before the edit, nothing after it can have changed either.
+ * We stop there, and just renumber the tags we already had for the rest of the file.
+ * Typing in a method body usually means scanning a single line.
+ * 
+ * Not thread-safe; TagsUpdater only uses each tagger from its executor thread.
+ */
+abstract class IncrementalTagger<S> {
+    /**
+     * Whoever's waiting for an update, so it can be abandoned if its result is no longer wanted.
+     */
+    public interface Job {
+        public boolean isSuperseded();
+    }
+    
+    /**
+     * A tag, without its line number, so that lines that move can share their tags.
+     */
+    static final class LineTag {
+        private final String identifier;
+        private final char type;
+        private final String context;
+        private final boolean isStatic;
+        
+        LineTag(String identifier, char type, String context, boolean isStatic) {
+            this.identifier = identifier;
+            this.type = type;
+            this.context = context;
+            this.isStatic = isStatic;
+        }
+        
+        private TagReader.Tag toTag(FileType fileType, int lineNumber) {
+            TagReader.Tag tag = TagReader.makeTag(fileType, identifier, lineNumber, type, context);
+            tag.isStatic = tag.isStatic || isStatic;
+            return tag;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o instanceof LineTag == false) {
+                return false;
+            }
+            LineTag other = (LineTag) o;
+            return identifier.equals(other.identifier) && type == other.type && context.equals(other.context) && isStatic == other.isStatic;
+        }
+        
+        @Override public int hashCode() {
+            return identifier.hashCode() ^ context.hashCode() ^ type;
+        }
+    }
+    
+    // How many lines we scan between checks for whether we've been superseded.
+    private static final int LINES_PER_CANCELLATION_CHECK = 256;
+    
+    private final FileType fileType;
+    
+    // The text we last tagged, and what we learned about each of its lines.
+    // The lines' tags are null for the many lines without any.
+    private String text = "";
+    private int[] lineStarts = new int[] { 0 };
+    private Object[] lineStates;
+    private LineTag[][] lineTags = new LineTag[1][];
+    
+    protected IncrementalTagger(FileType fileType) {
+        this.fileType = fileType;
+        this.lineStates = new Object[] { initialState() };
+    }
+    
+    /**
+     * Tests whether we can tag 'fileType' in-process.
+     */
+    public static boolean canTag(FileType fileType) {
+        return fileType == FileType.JAVA || fileType == FileType.C_PLUS_PLUS || fileType == FileType.PYTHON;
+    }
+    
+    /**
+     * Returns a tagger for 'fileType', or null if we can't tag it in-process.
+     */
+    public static IncrementalTagger<?> forFileType(FileType fileType) {
+        if (fileType == FileType.JAVA || fileType == FileType.C_PLUS_PLUS) {
+            return new CFamilyTagger(fileType);
+        } else if (fileType == FileType.PYTHON) {
+            return new PythonTagger();
+        }
+        return null;
+    }
+    
+    public FileType getFileType() {
+        return fileType;
+    }
+    
+    /**
+     * Returns the state at the start of a file.
+     * This is called from our constructor, so mustn't depend on the subclass' fields.
+     */
+    protected abstract S initialState();
+    
+    /**
+     * Scans the line text[start, end), which doesn't include the newline, adding any tags to 'tags'.
+     * Returns the state at the start of the next line, which must be equal to 'state' if nothing changed.
+     */
+    protected abstract S scanLine(String text, int start, int end, S state, List<LineTag> tags);
+    
+    /**
+     * Brings our tags up to date with 'newText', returning true if they've changed.
+     * Throws CancellationException, leaving this tagger as it was, if 'job' is superseded first.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean update(String newText, Job job) {
+        final String oldText = text;
+        final int oldLength = oldText.length();
+        final int newLength = newText.length();
+        
+        // Comparing the texts is much cheaper than scanning them, and means we needn't track individual edits.
+        final int limit = Math.min(oldLength, newLength);
+        int prefixLength = 0;
+        while (prefixLength < limit && oldText.charAt(prefixLength) == newText.charAt(prefixLength)) {
+            ++prefixLength;
+        }
+        if (prefixLength == oldLength && prefixLength == newLength) {
+            return false;
+        }
+        int suffixLength = 0;
+        while (suffixLength < limit - prefixLength && oldText.charAt(oldLength - 1 - suffixLength) == newText.charAt(newLength - 1 - suffixLength)) {
+            ++suffixLength;
+        }
+        final int lengthDelta = newLength - oldLength;
+        final int unchangedSuffixStart = newLength - suffixLength;
+        
+        final int firstLine = lineOfOffset(prefixLength);
+        ArrayList<Integer> scannedStarts = new ArrayList<Integer>();
+        ArrayList<Object> scannedStates = new ArrayList<Object>();
+        ArrayList<LineTag[]> scannedTags = new ArrayList<LineTag[]>();
+        ArrayList<LineTag> tags = new ArrayList<LineTag>();
+        S state = (S) lineStates[firstLine];
+        int offset = lineStarts[firstLine];
+        // The first of the old lines we can keep, or -1 if we scanned to the end.
+        int firstReusedLine = -1;
+        while (true) {
+            if (scannedStarts.size() % LINES_PER_CANCELLATION_CHECK == LINES_PER_CANCELLATION_CHECK - 1 && job.isSuperseded()) {
+                throw new CancellationException();
+            }
+            int lineEnd = newText.indexOf('\n', offset);
+            if (lineEnd == -1) {
+                lineEnd = newLength;
+            }
+            scannedStarts.add(offset);
+            scannedStates.add(state);
+            tags.clear();
+            S nextState = scanLine(newText, offset, lineEnd, state, tags);
+            // Most lines don't change the state, and sharing the previous line's saves a lot of memory.
+            if (nextState.equals(state)) {
+                nextState = state;
+            }
+            scannedTags.add(tags.isEmpty() ? null : tags.toArray(new LineTag[tags.size()]));
+            state = nextState;
+            if (lineEnd == newLength) {
+                break;
+            }
+            offset = lineEnd + 1;
+            if (lineEnd >= unchangedSuffixStart) {
+                // The newline we just passed was in the old text too, so this line started a line there, 'lengthDelta' earlier.
+                final int oldLine = Arrays.binarySearch(lineStarts, offset - lengthDelta);
+                if (state.equals(lineStates[oldLine])) {
+                    firstReusedLine = oldLine;
+                    break;
+                }
+            }
+        }
+        
+        final int oldLineCount = lineStarts.length;
+        final int scannedCount = scannedStarts.size();
+        final int oldScannedCount = ((firstReusedLine == -1) ? oldLineCount : firstReusedLine) - firstLine;
+        final int reusedCount = (firstReusedLine == -1) ? 0 : oldLineCount - firstReusedLine;
+        final int newLineCount = firstLine + scannedCount + reusedCount;
+        
+        boolean changed = haveDifferentTags(scannedTags, firstLine, oldScannedCount);
+        if (changed == false && scannedCount != oldScannedCount && firstReusedLine != -1) {
+            // The lines after the edit have moved, so unless they have no tags, the tags' line numbers have changed.
+            for (int line = firstReusedLine; line < oldLineCount && changed == false; ++line) {
+                changed = (lineTags[line] != null);
+            }
+        }
+        
+        int[] newLineStarts = new int[newLineCount];
+        Object[] newLineStates = new Object[newLineCount];
+        LineTag[][] newLineTags = new LineTag[newLineCount][];
+        System.arraycopy(lineStarts, 0, newLineStarts, 0, firstLine);
+        System.arraycopy(lineStates, 0, newLineStates, 0, firstLine);
+        System.arraycopy(lineTags, 0, newLineTags, 0, firstLine);
+        for (int i = 0; i < scannedCount; ++i) {
+            newLineStarts[firstLine + i] = scannedStarts.get(i);
+            newLineStates[firstLine + i] = scannedStates.get(i);
+            newLineTags[firstLine + i] = scannedTags.get(i);
+        }
+        if (reusedCount > 0) {
+            final int firstNewReusedLine = firstLine + scannedCount;
+            for (int i = 0; i < reusedCount; ++i) {
+                newLineStarts[firstNewReusedLine + i] = lineStarts[firstReusedLine + i] + lengthDelta;
+            }
+            System.arraycopy(lineStates, firstReusedLine, newLineStates, firstNewReusedLine, reusedCount);
+            System.arraycopy(lineTags, firstReusedLine, newLineTags, firstNewReusedLine, reusedCount);
+        }
+        
+        this.text = newText;
+        this.lineStarts = newLineStarts;
+        this.lineStates = newLineStates;
+        this.lineTags = newLineTags;
+        return changed;
+    }
+    
+    /**
+     * Tests whether the tags on the newly-scanned lines differ from those on the 'oldCount' lines they replace.
+     */
+    private boolean haveDifferentTags(List<LineTag[]> scannedTags, int firstLine, int oldCount) {
+        final int commonCount = Math.min(scannedTags.size(), oldCount);
+        for (int i = 0; i < commonCount; ++i) {
+            if (Arrays.equals(scannedTags.get(i), lineTags[firstLine + i]) == false) {
+                return true;
+            }
+        }
+        // Lines beyond what the two have in common must not have any tags.
+        for (int i = commonCount; i < scannedTags.size(); ++i) {
+            if (scannedTags.get(i) != null) {
+                return true;
+            }
+        }
+        for (int i = commonCount; i < oldCount; ++i) {
+            if (lineTags[firstLine + i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private int lineOfOffset(int offset) {
+        int index = Arrays.binarySearch(lineStarts, offset);
+        return (index >= 0) ? index : -index - 2;
+    }
+    
+    /**
+     * Reports all the tags from the last update to 'listener', in line order.
+     */
+    public void reportTags(TagReader.TagListener listener) {
+        for (int line = 0; line < lineTags.length; ++line) {
+            if (lineTags[line] != null) {
+                for (LineTag tag : lineTags[line]) {
+                    listener.tagFound(tag.toTag(fileType, line + 1));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns a description of each of our tags, for tests.
+     */
+    List<String> describeTags() {
+        final ArrayList<String> result = new ArrayList<String>();
+        reportTags(new TagReader.TagListener() {
+            public void tagFound(TagReader.Tag tag) {
+                String containingClass = (tag.containingClass.length() > 0) ? (tag.containingClass + " ") : "";
+                result.add(tag.lineNumber + " " + tag.type.getName() + " " + containingClass + tag.identifier);
+            }
+            
+            public void taggingFailed(Exception ex) {
+            }
+        });
+        return result;
+    }
+    
+    static final Job UNCANCELLABLE = new Job() {
+        public boolean isSuperseded() {
+            return false;
+        }
+    };
+    
+    @Test private static void testIncrementalUpdates() {
+        final String original = "package p;\n\npublic class A {\n    private int x;\n    \n    public void f() {\n        x = 1;\n    }\n    \n    public void g() {\n    }\n}\n";
+        IncrementalTagger<?> tagger = IncrementalTagger.forFileType(FileType.JAVA);
+        Assert.equals(tagger.update(original, UNCANCELLABLE), true);
+        Assert.equals(tagger.update(original, UNCANCELLABLE), false);
+        
+        // Edits inside a method body don't change the tags.
+        Assert.equals(tagger.update(original.replace("x = 1;", "x = 2;"), UNCANCELLABLE), false);
+        // Adding lines moves the tags after them.
+        String edited = original.replace("x = 1;", "x = 1;\n        x = 2;");
+        Assert.equals(tagger.update(edited, UNCANCELLABLE), true);
+        assertSameTagsAsFreshTagger(tagger, edited);
+        // Unbalancing the braces changes everything after the edit, and rebalancing them changes it back.
+        edited = edited.replace("public void f() {", "public void f() {{");
+        Assert.equals(tagger.update(edited, UNCANCELLABLE), true);
+        assertSameTagsAsFreshTagger(tagger, edited);
+        Assert.equals(tagger.update(original, UNCANCELLABLE), true);
+        assertSameTagsAsFreshTagger(tagger, original);
+        // So does commenting out.
+        edited = original.replace("private int x;", "/* private int x;").replace("public void g", "*/ public void g");
+        Assert.equals(tagger.update(edited, UNCANCELLABLE), true);
+        assertSameTagsAsFreshTagger(tagger, edited);
+        Assert.equals(tagger.update("", UNCANCELLABLE), true);
+        Assert.equals(tagger.describeTags().size(), 0);
+    }
+    
+    private static void assertSameTagsAsFreshTagger(IncrementalTagger<?> tagger, String text) {
+        IncrementalTagger<?> freshTagger = IncrementalTagger.forFileType(tagger.getFileType());
+        freshTagger.update(text, UNCANCELLABLE);
+        Assert.equals(tagger.describeTags(), freshTagger.describeTags());
+    }
+}
@@ -0,0 +1,535 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * The parts of the JavaDoc summary (as written by parse-javadoc.rb) that JavaResearcher needs, in a form we can map straight into memory.
+ * 
+ * Reading the summary itself means gunzipping and scanning several megabytes of text at every startup.
+ * Instead we compile it once, and map the compiled form, so opening the index costs next to nothing, and its pages are shared by every Evergreen that maps it.
+ * The compiled form is shipped alongside the summary if someone has run this class, and otherwise compiled at first use and cached in the user's preferences directory.
+ * 
+ * Usage: JavaDocSummaryIndex SUMMARY.txt.gz OUTPUT
+ * 
+ * The compiled form is big-endian: a header of ints, then tables of ints, then a table of strings.
+ * Each string is an int byte count followed by that many bytes of UTF-8, and is referred to by its offset in the string table.
+ * The identifier table is sorted, as is the member table (by name), and the classes have a table of their indexes sorted by name, so all three can be binary searched for a prefix.
+ * The header records the length and CRC32 of the summary the index was compiled from, so we can tell when it's out of date.
+ */
+public class JavaDocSummaryIndex {
+    private static final int MAGIC = 0x4a444958; // "JDIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 14;
+    
+    private static final int CLASS_INTS = 2;
+    private static final int MEMBER_INTS = 4;
+    
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("^[MCFEA]:(\\S+?)(\\(|\t).*$");
+    private static final Pattern MEMBER_PATTERN = Pattern.compile("^[MF]:([^(\t]+)(\\([^\t]+)\t");
+    
+    private final ByteBuffer bytes;
+    private final int sourceCrc;
+    private final int sourceLength;
+    private final int identifierCount;
+    private final int wordCount;
+    private final int classCount;
+    private final int memberCount;
+    private final int identifiersOffset;
+    private final int wordsOffset;
+    private final int classesOffset;
+    private final int classesByNameOffset;
+    private final int membersOffset;
+    private final int stringsOffset;
+    
+    private JavaDocSummaryIndex(ByteBuffer bytes) throws IOException {
+        this.bytes = bytes.order(ByteOrder.BIG_ENDIAN);
+        if (bytes.limit() < 4 * HEADER_INTS || bytes.getInt(0) != MAGIC || bytes.getInt(4) != VERSION) {
+            throw new IOException("not a compiled JavaDoc summary index");
+        }
+        this.sourceCrc = bytes.getInt(8);
+        this.sourceLength = bytes.getInt(12);
+        this.identifierCount = bytes.getInt(16);
+        this.wordCount = bytes.getInt(20);
+        this.classCount = bytes.getInt(24);
+        this.memberCount = bytes.getInt(28);
+        this.identifiersOffset = bytes.getInt(32);
+        this.wordsOffset = bytes.getInt(36);
+        this.classesOffset = bytes.getInt(40);
+        this.classesByNameOffset = bytes.getInt(44);
+        this.membersOffset = bytes.getInt(48);
+        this.stringsOffset = bytes.getInt(52);
+        if (stringsOffset != membersOffset + 4 * MEMBER_INTS * memberCount || stringsOffset > bytes.limit()) {
+            throw new IOException("truncated JavaDoc summary index");
+        }
+    }
+    
+    /**
+     * Maps the compiled index in 'file' into memory.
+     */
+    public static JavaDocSummaryIndex fromFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping remains valid after the channel is closed.
+            return new JavaDocSummaryIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Returns an index of the given summary text, without going via a file.
+     */
+    public static JavaDocSummaryIndex fromText(String summary) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            compile(summary, 0, 0, out);
+            return new JavaDocSummaryIndex(ByteBuffer.wrap(out.toByteArray()));
+        } catch (IOException ex) {
+            // We're only writing to memory.
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Returns the index of the gzipped summary in 'summaryFile'.
+     * We use the first of 'indexFiles' that's up to date; if none is, we compile the summary into the last of them.
+     */
+    public static JavaDocSummaryIndex open(File summaryFile, File... indexFiles) throws IOException {
+        final byte[] compressedSummary = readBytes(summaryFile);
+        final int crc = crc32(compressedSummary);
+        for (File indexFile : indexFiles) {
+            if (indexFile.exists()) {
+                try {
+                    JavaDocSummaryIndex index = fromFile(indexFile);
+                    if (index.sourceCrc == crc && index.sourceLength == compressedSummary.length) {
+                        return index;
+                    }
+                } catch (IOException ex) {
+                    Log.warn("Ignoring unusable JavaDoc summary index \"" + indexFile + "\"", ex);
+                }
+            }
+        }
+        
+        final long startTimeNs = System.nanoTime();
+        File indexFile = indexFiles[indexFiles.length - 1];
+        File temporaryFile = new File(indexFile.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+        try {
+            compile(gunzip(compressedSummary), crc, compressedSummary.length, out);
+        } finally {
+            out.close();
+        }
+        // Other Evergreens may be mapping the old index, so we mustn't write over it in place.
+        if (temporaryFile.renameTo(indexFile) == false) {
+            temporaryFile.delete();
+            throw new IOException("couldn't rename \"" + temporaryFile + "\" to \"" + indexFile + "\"");
+        }
+        Log.warn("Compiled JavaDoc summary index \"" + indexFile + "\" in " + TimeUtilities.nsToString(System.nanoTime() - startTimeNs) + ".");
+        return fromFile(indexFile);
+    }
+    
+    private static byte[] readBytes(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] result = new byte[(int) file.length()];
+            in.readFully(result);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+    
+    private static String gunzip(byte[] compressedBytes) throws IOException {
+        final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressedBytes));
+        try {
+            final byte[] buf = new byte[8192];
+            final ByteArrayOutputStream uncompressedBytes = new ByteArrayOutputStream();
+            int byteCount = 0;
+            while ((byteCount = in.read(buf)) > 0) {
+                uncompressedBytes.write(buf, 0, byteCount);
+            }
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(uncompressedBytes.toByteArray());
+            final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
+            return new String(decoder.getCharArray());
+        } finally {
+            FileUtilities.close(in);
+        }
+    }
+    
+    /**
+     * Writes the compiled index of 'summary' to 'out'.
+     * 'sourceCrc' and 'sourceLength' identify the file the summary came from.
+     */
+    public static void compile(String summary, int sourceCrc, int sourceLength, OutputStream out) throws IOException {
+        final TreeSet<String> identifiers = new TreeSet<String>();
+        final ArrayList<String[]> classes = new ArrayList<String[]>();
+        final ArrayList<Member> members = new ArrayList<Member>();
+        String htmlFile = "";
+        for (String line : summary.split("\n")) {
+            if (line.startsWith("File:")) {
+                htmlFile = line.substring(5);
+            } else if (line.startsWith("Class:")) {
+                String className = line.substring(6);
+                classes.add(new String[] { className, htmlFile });
+                // Some classes don't have accessible constructors, so add
+                // the class name anyway (SwingUtilities is an example).
+                identifiers.add(className.substring(className.lastIndexOf('.') + 1));
+            } else {
+                // Is it a constructor, method or field definition?
+                Matcher matcher = IDENTIFIER_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    identifiers.add(matcher.group(1));
+                }
+                matcher = MEMBER_PATTERN.matcher(line);
+                if (matcher.find() && classes.isEmpty() == false) {
+                    members.add(new Member(matcher.group(1), matcher.group(2), classes.size() - 1, members.size()));
+                }
+            }
+        }
+        Collections.sort(members);
+        
+        final Set<String> words = new TreeSet<String>();
+        Advisor.extractUniqueWords(identifiers, words);
+        
+        Integer[] classesByName = new Integer[classes.size()];
+        for (int i = 0; i < classesByName.length; ++i) {
+            classesByName[i] = i;
+        }
+        Arrays.sort(classesByName, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                return classes.get(lhs)[0].compareTo(classes.get(rhs)[0]);
+            }
+        });
+        
+        StringTable strings = new StringTable();
+        ByteArrayOutputStream tableBytes = new ByteArrayOutputStream();
+        DataOutputStream tables = new DataOutputStream(tableBytes);
+        for (String identifier : identifiers) {
+            tables.writeInt(strings.add(identifier));
+        }
+        final int wordsOffset = 4 * HEADER_INTS + tableBytes.size();
+        for (String word : words) {
+            tables.writeInt(strings.add(word));
+        }
+        final int classesOffset = 4 * HEADER_INTS + tableBytes.size();
+        for (String[] classAndFile : classes) {
+            tables.writeInt(strings.add(classAndFile[0]));
+            tables.writeInt(strings.add(classAndFile[1]));
+        }
+        final int classesByNameOffset = 4 * HEADER_INTS + tableBytes.size();
+        for (int classIndex : classesByName) {
+            tables.writeInt(classIndex);
+        }
+        final int membersOffset = 4 * HEADER_INTS + tableBytes.size();
+        for (Member member : members) {
+            tables.writeInt(strings.add(member.name));
+            tables.writeInt(strings.add(member.anchor));
+            tables.writeInt(member.classIndex);
+            tables.writeInt(member.ordinal);
+        }
+        tables.flush();
+        
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(sourceCrc);
+        dataOut.writeInt(sourceLength);
+        dataOut.writeInt(identifiers.size());
+        dataOut.writeInt(words.size());
+        dataOut.writeInt(classes.size());
+        dataOut.writeInt(members.size());
+        dataOut.writeInt(4 * HEADER_INTS);
+        dataOut.writeInt(wordsOffset);
+        dataOut.writeInt(classesOffset);
+        dataOut.writeInt(classesByNameOffset);
+        dataOut.writeInt(membersOffset);
+        dataOut.writeInt(4 * HEADER_INTS + tableBytes.size());
+        tableBytes.writeTo(dataOut);
+        strings.writeTo(dataOut);
+        dataOut.flush();
+    }
+    
+    private static class Member implements Comparable<Member> {
+        private final String name;
+        private final String anchor;
+        private final int classIndex;
+        private final int ordinal;
+        
+        private Member(String name, String anchor, int classIndex, int ordinal) {
+            this.name = name;
+            this.anchor = anchor;
+            this.classIndex = classIndex;
+            this.ordinal = ordinal;
+        }
+        
+        public int compareTo(Member other) {
+            int result = name.compareTo(other.name);
+            return (result != 0) ? result : (ordinal - other.ordinal);
+        }
+    }
+    
+    /**
+     * Collects the distinct strings to be written, remembering each one's offset.
+     */
+    private static class StringTable {
+        private final HashMap<String, Integer> offsets = new HashMap<String, Integer>();
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        
+        private int add(String s) throws IOException {
+            Integer offset = offsets.get(s);
+            if (offset == null) {
+                offset = bytes.size();
+                offsets.put(s, offset);
+                byte[] utf8 = s.getBytes(UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            return offset;
+        }
+        
+        private void writeTo(OutputStream os) throws IOException {
+            out.flush();
+            bytes.writeTo(os);
+        }
+    }
+    
+    private String getString(int offset) {
+        final int start = stringsOffset + offset + 4;
+        final int length = bytes.getInt(start - 4);
+        // JavaDoc is almost all ASCII, which we can decode without copying.
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            byte b = bytes.get(start + i);
+            if (b < 0) {
+                byte[] utf8 = new byte[length];
+                for (int j = 0; j < length; ++j) {
+                    utf8[j] = bytes.get(start + j);
+                }
+                return new String(utf8, UTF_8);
+            }
+            chars[i] = (char) b;
+        }
+        return new String(chars);
+    }
+    
+    private int getInt(int tableOffset, int i) {
+        return bytes.getInt(tableOffset + 4 * i);
+    }
+    
+    /**
+     * A table sorted by string, which we can search for a prefix.
+     */
+    private abstract class SortedTable {
+        abstract int size();
+        abstract String keyAt(int i);
+        
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (keyAt(mid).compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        
+        /**
+         * Returns the indexes in this table of the keys starting with 'prefix', in order.
+         */
+        int[] findKeysStartingWith(String prefix) {
+            final int start = lowerBound(prefix);
+            final int end = lowerBound(prefix + Character.MAX_VALUE);
+            int[] result = new int[end - start];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = start + i;
+            }
+            return result;
+        }
+    }
+    
+    private final SortedTable identifierTable = new SortedTable() {
+        int size() {
+            return identifierCount;
+        }
+        
+        String keyAt(int i) {
+            return getString(getInt(identifiersOffset, i));
+        }
+    };
+    
+    private final SortedTable classNameTable = new SortedTable() {
+        int size() {
+            return classCount;
+        }
+        
+        String keyAt(int i) {
+            return getClassName(getInt(classesByNameOffset, i));
+        }
+    };
+    
+    private final SortedTable memberTable = new SortedTable() {
+        int size() {
+            return memberCount;
+        }
+        
+        String keyAt(int i) {
+            return getMemberName(i);
+        }
+    };
+    
+    public int getIdentifierCount() {
+        return identifierCount;
+    }
+    
+    public int getClassCount() {
+        return classCount;
+    }
+    
+    /**
+     * Returns the identifiers of classes and their members starting with 'prefix', in order.
+     */
+    public List<String> listIdentifiersStartingWith(String prefix) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i : identifierTable.findKeysStartingWith(prefix)) {
+            result.add(identifierTable.keyAt(i));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the distinct words in the identifiers, for the spelling checker.
+     */
+    public Set<String> getIdentifierWords() {
+        HashSet<String> result = new HashSet<String>();
+        for (int i = 0; i < wordCount; ++i) {
+            result.add(getString(getInt(wordsOffset, i)));
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the indexes of the classes whose fully-qualified names start with 'prefix', in the summary's order.
+     */
+    public int[] findClassesStartingWith(String prefix) {
+        int[] result = classNameTable.findKeysStartingWith(prefix);
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = getInt(classesByNameOffset, result[i]);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+    
+    public String getClassName(int classIndex) {
+        return getString(getInt(classesOffset, CLASS_INTS * classIndex));
+    }
+    
+    public String getClassHtmlFile(int classIndex) {
+        return getString(getInt(classesOffset, CLASS_INTS * classIndex + 1));
+    }
+    
+    /**
+     * Returns the indexes of the methods whose names start with 'prefix', in the summary's order.
+     */
+    public int[] findMembersStartingWith(String prefix) {
+        final int[] sortedIndexes = memberTable.findKeysStartingWith(prefix);
+        Integer[] result = new Integer[sortedIndexes.length];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = sortedIndexes[i];
+        }
+        Arrays.sort(result, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                return getInt(membersOffset, MEMBER_INTS * lhs + 3) - getInt(membersOffset, MEMBER_INTS * rhs + 3);
+            }
+        });
+        for (int i = 0; i < result.length; ++i) {
+            sortedIndexes[i] = result[i];
+        }
+        return sortedIndexes;
+    }
+    
+    public String getMemberName(int memberIndex) {
+        return getString(getInt(membersOffset, MEMBER_INTS * memberIndex));
+    }
+    
+    /**
+     * Returns the parenthesized parameter list JavaDoc uses in the member's anchor.
+     */
+    public String getMemberAnchorParameters(int memberIndex) {
+        return getString(getInt(membersOffset, MEMBER_INTS * memberIndex + 1));
+    }
+    
+    public int getMemberClass(int memberIndex) {
+        return getInt(membersOffset, MEMBER_INTS * memberIndex + 2);
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: JavaDocSummaryIndex SUMMARY.txt.gz OUTPUT");
+            System.exit(1);
+        }
+        final long startTimeNs = System.nanoTime();
+        File indexFile = new File(args[1]).getAbsoluteFile();
+        indexFile.delete();
+        JavaDocSummaryIndex index = open(new File(args[0]), indexFile);
+        System.out.println("Compiled " + StringUtilities.pluralize(index.classCount, "class", "classes") + ", " + StringUtilities.pluralize(index.memberCount, "method", "methods") + " and " + StringUtilities.pluralize(index.identifierCount, "identifier", "identifiers") + " (" + indexFile.length() + " bytes) in " + TimeUtilities.nsToString(System.nanoTime() - startTimeNs) + ".");
+    }
+    
+    @Test private static void testQueries() {
+        JavaDocSummaryIndex index = fromText("File:/api/java/util/ArrayList.html\n" +
+            "Class:java.util.ArrayList\n" +
+            "C:ArrayList(int)\t public ArrayList(int initialCapacity)\n" +
+            "M:add(java.lang.Object)\t public boolean add(E e)\n" +
+            "M:addAll(java.util.Collection)\t public boolean addAll(Collection c)\n" +
+            "F:modCount\t protected int modCount\n" +
+            "\n" +
+            "File:/api/java/util/concurrent/Future.html\n" +
+            "Class:java.util.concurrent.Future\n" +
+            "M:cancel(boolean)\t boolean cancel(boolean mayInterrupt)\n" +
+            "\n" +
+            "File:/api/java/util/AbstractList.html\n" +
+            "Class:java.util.AbstractList\n" +
+            "M:add(int, java.lang.Object)\t public void add(int index, E e)\n" +
+            "E:UNDEFINED\t public static final Order UNDEFINED\n");
+        Assert.equals(index.getClassCount(), 3);
+        Assert.equals(index.listIdentifiersStartingWith("Ab"), Arrays.asList("AbstractList"));
+        Assert.equals(index.listIdentifiersStartingWith("add"), Arrays.asList("add", "addAll"));
+        Assert.equals(index.listIdentifiersStartingWith("z"), Collections.<String>emptyList());
+        Assert.equals(index.getIdentifierCount(), 8);
+        Assert.equals(index.getIdentifierWords().containsAll(Arrays.asList("abstract", "list", "mod", "count", "undefined")), true);
+        
+        int[] classes = index.findClassesStartingWith("java.util.");
+        Assert.equals(classes.length, 3);
+        Assert.equals(index.getClassName(classes[0]), "java.util.ArrayList");
+        Assert.equals(index.getClassHtmlFile(classes[1]), "/api/java/util/concurrent/Future.html");
+        Assert.equals(index.getClassName(classes[2]), "java.util.AbstractList");
+        
+        int[] members = index.findMembersStartingWith("add");
+        Assert.equals(members.length, 3);
+        Assert.equals(index.getMemberName(members[0]) + index.getMemberAnchorParameters(members[0]), "add(java.lang.Object)");
+        Assert.equals(index.getMemberName(members[1]), "addAll");
+        Assert.equals(index.getClassName(index.getMemberClass(members[2])), "java.util.AbstractList");
+        Assert.equals(index.findMembersStartingWith("modCount").length, 0);
+    }
+}
@@ -2,11 +2,9 @@ package e.edit;
 
 import java.io.*;
 import java.lang.reflect.*;
-import java.nio.*;
 import java.util.*;
 import java.util.List;
 import java.util.regex.*;
-import java.util.zip.*;
 import e.ptextarea.*;
 import e.util.*;
 
@@ -15,9 +13,8 @@ public class JavaResearcher implements WorkspaceResearcher {
     private static final String NEWLINE = "<br>" + INDENT;
     private static final String COMMA = ",&nbsp;";
     
-    private static final Set<String> uniqueIdentifiers = new TreeSet<String>();
-    
-    private static String[] javaDocSummary = new String[0];
+    // Never null: if we can't read the summary, it's empty.
+    private static JavaDocSummaryIndex index = JavaDocSummaryIndex.fromText("");
     
     private static final JavaResearcher INSTANCE = new JavaResearcher();
     
@@ -32,72 +29,27 @@ public class JavaResearcher implements WorkspaceResearcher {
     private static void init() {
         final long t0 = System.nanoTime();
         
+        // Use the index shipped with the summary if it's up to date, or our own if not.
         final String filename = Evergreen.getResourceFilename("lib", "data", "javadoc-summary.txt.gz");
-        try {
-            javaDocSummary = gunzipTextFile(filename).split("\n");
-        } catch (IOException ex) {
-            Log.warn("Failed to read JavaDoc summary from \"" + filename + "\"", ex);
-        }
-        Log.warn("Read JavaDoc summary from \"" + filename + "\" in " + TimeUtilities.nsToString(System.nanoTime() - t0));
-        
-        Log.warn("Scanning JavaDoc summary...");
-        Pattern identifierPattern = Pattern.compile("^[MCFEA]:(\\S+?)(\\(|\t).*$");
-        
-        int classCount = 0;
-        for (String line : javaDocSummary) {
-            if (line.startsWith("Class:")) {
-                classCount++;
-                // Some classes don't have accessible constructors, so add
-                // the class name anyway (SwingUtilities is an example).
-                String className = line.substring(line.lastIndexOf('.') + 1);
-                uniqueIdentifiers.add(className);
-            } else {
-                // Is it a constructor, method or field definition?
-                Matcher matcher = identifierPattern.matcher(line);
-                if (matcher.find()) {
-                    uniqueIdentifiers.add(matcher.group(1));
-                }
+        final File summaryFile = FileUtilities.fileFromString(filename);
+        if (summaryFile.exists()) {
+            try {
+                index = JavaDocSummaryIndex.open(summaryFile, FileUtilities.fileFromString(Evergreen.getResourceFilename("lib", "data", "javadoc-summary.index")), FileUtilities.fileFromString(Evergreen.getPreferenceFilename("javadoc-summary.index")));
+            } catch (IOException ex) {
+                Log.warn("Failed to read JavaDoc summary from \"" + filename + "\"", ex);
             }
         }
         
-        // Prime the spelling checker with all the unique words we found.
-        final Set<String> uniqueWords = new TreeSet<String>();
-        Advisor.extractUniqueWords(uniqueIdentifiers, uniqueWords);
+        // Prime the spelling checker with all the unique words in the JDK's identifiers.
+        final Set<String> uniqueWords = index.getIdentifierWords();
         SpellingChecker.getSharedSpellingCheckerInstance().addSpellingExceptionsFor(FileType.JAVA, uniqueWords);
         
         final long t1 = System.nanoTime();
-        Log.warn("Read summarized JavaDoc for " + classCount + " classes (" + javaDocSummary.length + " lines, " + uniqueIdentifiers.size() + " unique identifiers, " + uniqueWords.size() + " unique words) in " + TimeUtilities.nsToString(t1 - t0) + ".");
-    }
-    
-    private static String gunzipTextFile(String filename) throws IOException {
-        final File file = FileUtilities.fileFromString(filename);
-        if (!file.exists()) {
-            return "";
-        }
-        final InputStream in = new GZIPInputStream(new FileInputStream(file));
-        try {
-            final byte[] buf = new byte[8192];
-            final ByteArrayOutputStream uncompressedBytes = new ByteArrayOutputStream();
-            int byteCount = 0;
-            while ((byteCount = in.read(buf)) > 0) {
-                uncompressedBytes.write(buf, 0, byteCount);
-            }
-            final ByteBuffer byteBuffer = ByteBuffer.wrap(uncompressedBytes.toByteArray());
-            final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
-            return new String(decoder.getCharArray());
-        } finally {
-            FileUtilities.close(in);
-        }
+        Log.warn("Read summarized JavaDoc for " + index.getClassCount() + " classes (" + index.getIdentifierCount() + " unique identifiers, " + uniqueWords.size() + " unique words) in " + TimeUtilities.nsToString(t1 - t0) + ".");
     }
     
     public synchronized List<String> listIdentifiersStartingWith(String prefix) {
-        ArrayList<String> result = new ArrayList<String>();
-        for (String identifier : uniqueIdentifiers) {
-            if (identifier.startsWith(prefix)) {
-                result.add(identifier);
-            }
-        }
-        return result;
+        return index.listIdentifiersStartingWith(prefix);
     }
     
     private String makeResult(String wordAtCaretOrSelection) {
@@ -187,17 +139,12 @@ public class JavaResearcher implements WorkspaceResearcher {
      */
     private synchronized String listPackage(String packageName) {
         StringBuilder result = new StringBuilder(packageName + " contains:\n");
-        String searchTerm = "Class:" + packageName + ".";
-        String htmlFile = "";
-        for (String line : javaDocSummary) {
-            if (line.startsWith("File:")) {
-                htmlFile = line.substring(5);
-            } else if (line.startsWith(searchTerm)) {
-                String className = line.substring(searchTerm.length());
-                /* Just check it is actually a class in this package, and not a class in a sub-package. */
-                if (Character.isUpperCase(className.charAt(0))) {
-                    result.append("<br><a href=\"" + urlFromHtmlFile(htmlFile) + "\">" + className + "</a>\n");
-                }
+        String searchTerm = packageName + ".";
+        for (int classIndex : index.findClassesStartingWith(searchTerm)) {
+            String className = index.getClassName(classIndex).substring(searchTerm.length());
+            /* Just check it is actually a class in this package, and not a class in a sub-package. */
+            if (Character.isUpperCase(className.charAt(0))) {
+                result.append("<br><a href=\"" + urlFromHtmlFile(index.getClassHtmlFile(classIndex)) + "\">" + className + "</a>\n");
             }
         }
         return result.toString();
@@ -216,19 +163,11 @@ public class JavaResearcher implements WorkspaceResearcher {
     
     private synchronized String listMethodsOrFields(String name) {
         StringBuilder result = new StringBuilder();
-        Pattern pattern = Pattern.compile("^[MF]:(" + StringUtilities.regularExpressionFromLiteral(name) + "[^(\t]*)(\\([^\t]+)\t");
-        Matcher matcher;
-        String htmlFile = "";
-        String className = "";
-        for (String line : javaDocSummary) {
-            if (line.startsWith("File:")) {
-                htmlFile = line.substring(5);
-            } else if (line.startsWith("Class:")) {
-                className = line.substring(6);
-            } else if ((matcher = pattern.matcher(line)).find()) {
-                String url = urlFromHtmlFile(htmlFile);
-                result.append("<br><a href=\"" + url + "#" + matcher.group(1) + matcher.group(2) + "\">" + matcher.group(1) + "</a> in " + makeClassLink(new ClassAndPackage(className), true, true));
-            }
+        for (int memberIndex : index.findMembersStartingWith(name)) {
+            final int classIndex = index.getMemberClass(memberIndex);
+            final String memberName = index.getMemberName(memberIndex);
+            String url = urlFromHtmlFile(index.getClassHtmlFile(classIndex));
+            result.append("<br><a href=\"" + url + "#" + memberName + index.getMemberAnchorParameters(memberIndex) + "\">" + memberName + "</a> in " + makeClassLink(new ClassAndPackage(index.getClassName(classIndex)), true, true));
         }
         if (result.length() == 0) {
             return "";
@@ -5,6 +5,7 @@ import e.gui.*;
 import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
 import java.util.List;
 import java.util.regex.*;
 import javax.swing.*;
@@ -12,7 +13,9 @@ import org.jdesktop.swingworker.SwingWorker;
 
 /**
  * Improves on Apple Project Builder's "Open Quickly", which just pops up a dialog where you type a name.
- * We have a list -- updated as you type in the filename field -- showing what files match the regular expression you've typed.
+ * We have a list -- updated as you type in the filename field -- showing what files match what you've typed.
+ * Plain text is matched fuzzily, best matches first, so "wfl" finds "WorkspaceFileList.java".
+ * Anything that looks like a regular expression is treated as one, for those who've come to rely on that.
  * You can double-click individual entries to open them, or hit Return to open just the selected one(s).
  */
 public class OpenQuicklyDialog implements WorkspaceFileList.Listener {
@@ -21,6 +24,12 @@ public class OpenQuicklyDialog implements WorkspaceFileList.Listener {
     private ELabel status = new ELabel();
     private JButton rescanButton;
     
+    // There's no point showing more matches than anyone will scroll through.
+    private static final int MAX_SHOWN_MATCH_COUNT = 500;
+    
+    // The last fuzzy search's results, so we can narrow them as the user types. Only touched on the EDT.
+    private WorkspaceFileList.FuzzyMatches previousMatches;
+    
     /** Which workspace is this "Open Quickly" for? */
     private Workspace workspace;
     
@@ -32,34 +41,58 @@ public class OpenQuicklyDialog implements WorkspaceFileList.Listener {
         status.setText(text);
     }
     
+    /**
+     * Tests whether 'query' uses any regular expression metacharacters.
+     * We don't include '.', because it's far more likely to be the start of a file extension.
+     */
+    private static boolean looksLikeRegularExpression(String query) {
+        for (int i = 0; i < query.length(); ++i) {
+            if ("\\^$|?*+()[]{}".indexOf(query.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private class MatchFinder extends SwingWorker<Object, Object> {
-        private String regularExpression;
-        private DefaultListModel model;
+        private String query;
+        private WorkspaceFileList.FuzzyMatches previous;
+        private WorkspaceFileList.FuzzyMatches fuzzyMatches;
+        private List<String> matches;
         private boolean statusGood;
         private String statusText;
         
-        private MatchFinder(String regularExpression) {
-            this.regularExpression = regularExpression;
+        private MatchFinder(String query) {
+            this.query = query;
+            this.previous = previousMatches;
         }
         
         @Override
         protected Object doInBackground() {
-            model = new DefaultListModel();
+            matches = Collections.emptyList();
             statusGood = true;
             try {
                 final long t0 = System.nanoTime();
                 
-                List<String> fileList = workspace.getFileList().getListOfFilesMatching(regularExpression);
-                for (int i = 0; i < fileList.size(); i++) {
-                    model.addElement(fileList.get(i));
+                int matchCount;
+                if (looksLikeRegularExpression(query)) {
+                    matches = workspace.getFileList().getListOfFilesMatching(query);
+                    matchCount = matches.size();
+                } else {
+                    fuzzyMatches = workspace.getFileList().getFilesMatchingFuzzily(query, previous, MAX_SHOWN_MATCH_COUNT);
+                    matches = fuzzyMatches.getBestMatches();
+                    matchCount = fuzzyMatches.getMatchCount();
                 }
                 final int indexedFileCount = workspace.getFileList().getIndexedFileCount();
                 if (indexedFileCount != -1) {
-                    statusText = fileList.size() + " / " + StringUtilities.pluralize(indexedFileCount, "file", "files") + " match.";
+                    statusText = matchCount + " / " + StringUtilities.pluralize(indexedFileCount, "file", "files") + " match.";
+                    if (matchCount > matches.size()) {
+                        statusText += " Showing the best " + matches.size() + ".";
+                    }
                 }
                 
                 final long t1 = System.nanoTime();
-                Log.warn("Search for files matching \"" + regularExpression + "\" took " + TimeUtilities.nsToString(t1 - t0) + ".");
+                Log.warn("Search for files matching \"" + query + "\" took " + TimeUtilities.nsToString(t1 - t0) + ".");
             } catch (PatternSyntaxException ex) {
                 statusGood = false;
                 statusText = ex.getDescription();
@@ -69,8 +102,9 @@ public class OpenQuicklyDialog implements WorkspaceFileList.Listener {
         
         @Override
         public void done() {
+            previousMatches = fuzzyMatches;
             setStatus(statusGood, statusText);
-            matchList.setModel(model);
+            matchList.setModel(new MatchListModel(matches));
             matchList.setEnabled(true);
             // If we don't set the selected index, the user won't be able to cycle the focus into the list with the Tab key.
             // This also means the user can just hit Return if there's only one match.
@@ -78,6 +112,27 @@ public class OpenQuicklyDialog implements WorkspaceFileList.Listener {
         }
     }
     
+    /**
+     * Shows a list of matches without copying it, as DefaultListModel would.
+     * AbstractListModel is only generic from Java 7, so we have to use it raw.
+     */
+    @SuppressWarnings("rawtypes")
+    private static class MatchListModel extends AbstractListModel {
+        private final List<String> matches;
+        
+        private MatchListModel(List<String> matches) {
+            this.matches = matches;
+        }
+        
+        public int getSize() {
+            return matches.size();
+        }
+        
+        public Object getElementAt(int index) {
+            return matches.get(index);
+        }
+    }
+    
     public synchronized void showMatches() {
         // Only bother if the user can see the results, and we're not currently rescanning the index.
         if (matchList.isShowing() && workspace.getFileList().getIndexedFileCount() != -1) {
@@ -0,0 +1,246 @@
+package e.edit;
+
+import e.ptextarea.FileType;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * Tags Python in-process, for the tags panel.
+ * 
+ * Python's blocks are delimited by indentation, so we keep a stack of the classes and functions containing the current line, and the indentation of each.
+ * We tag classes, functions and methods, and variables assigned at module or class level.
+ * We don't tag functions nested in functions; they're local, like variables.
+ */
+class PythonTagger extends IncrementalTagger<PythonTagger.State> {
+    private static final State INITIAL_STATE = new State((char) 0, 0, false, null);
+    
+    private static final Pattern CLASS_PATTERN = Pattern.compile("class\\s+([A-Za-z_]\\w*)");
+    private static final Pattern DEF_PATTERN = Pattern.compile("(?:async\\s+)?def\\s+([A-Za-z_]\\w*)");
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("([A-Za-z_]\\w*)\\s*(?::[^=]*)?=(?!=)");
+    // Keywords that can be followed by a colon, which would otherwise look like the start of an annotated assignment, as in "else: x = 1".
+    private static final Set<String> BLOCK_KEYWORDS = new HashSet<String>(Arrays.asList("else", "finally", "try"));
+    
+    public PythonTagger() {
+        super(FileType.PYTHON);
+    }
+    
+    /**
+     * A class or function, and the indentation of the line that introduced it.
+     */
+    private static final class Block {
+        private final int indentation;
+        private final boolean isClass;
+        // The qualified name of a class; null for a function.
+        private final String className;
+        private final Block parent;
+        
+        private Block(int indentation, boolean isClass, String className, Block parent) {
+            this.indentation = indentation;
+            this.isClass = isClass;
+            this.className = className;
+            this.parent = parent;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof Block == false) {
+                return false;
+            }
+            Block other = (Block) o;
+            return indentation == other.indentation && isClass == other.isClass && (className == null ? other.className == null : className.equals(other.className)) && (parent == null ? other.parent == null : parent.equals(other.parent));
+        }
+        
+        @Override public int hashCode() {
+            return indentation;
+        }
+    }
+    
+    static final class State {
+        // The quote character of the triple-quoted string we're in, or 0.
+        private final char tripleQuote;
+        // Lines inside brackets, or after a backslash, continue the previous line, so their indentation means nothing.
+        private final int bracketDepth;
+        private final boolean continued;
+        private final Block block;
+        
+        private State(char tripleQuote, int bracketDepth, boolean continued, Block block) {
+            this.tripleQuote = tripleQuote;
+            this.bracketDepth = bracketDepth;
+            this.continued = continued;
+            this.block = block;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (o instanceof State == false) {
+                return false;
+            }
+            State other = (State) o;
+            return tripleQuote == other.tripleQuote && bracketDepth == other.bracketDepth && continued == other.continued && (block == null ? other.block == null : block.equals(other.block));
+        }
+        
+        @Override public int hashCode() {
+            return tripleQuote ^ bracketDepth ^ ((block != null) ? block.hashCode() : 0);
+        }
+    }
+    
+    @Override protected State initialState() {
+        return INITIAL_STATE;
+    }
+    
+    @Override protected State scanLine(String text, int start, int end, State state, List<LineTag> tags) {
+        char tripleQuote = state.tripleQuote;
+        int bracketDepth = state.bracketDepth;
+        Block block = state.block;
+        
+        int i = start;
+        if (tripleQuote == 0 && bracketDepth == 0 && state.continued == false) {
+            // The start of a logical line.
+            int indentation = 0;
+            while (i < end && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) {
+                indentation = (text.charAt(i) == '\t') ? (indentation + 8) & ~7 : indentation + 1;
+                ++i;
+            }
+            if (i < end && text.charAt(i) != '#') {
+                // Any line indented no more than a block's first line ends that block.
+                while (block != null && block.indentation >= indentation) {
+                    block = block.parent;
+                }
+                block = tagLine(text, i, end, indentation, block, tags);
+            }
+        }
+        
+        boolean continued = false;
+        while (i < end) {
+            char ch = text.charAt(i);
+            if (tripleQuote != 0) {
+                int close = indexOf(text, tripleQuote == '"' ? "\"\"\"" : "'''", i, end);
+                if (close == -1) {
+                    i = end;
+                    break;
+                }
+                tripleQuote = 0;
+                i = close + 3;
+            } else if (ch == '#') {
+                break;
+            } else if (ch == '"' || ch == '\'') {
+                if (text.startsWith(ch == '"' ? "\"\"\"" : "'''", i)) {
+                    tripleQuote = ch;
+                    i += 3;
+                } else {
+                    i = skipString(text, i, end);
+                }
+            } else if (ch == '(' || ch == '[' || ch == '{') {
+                ++bracketDepth;
+                ++i;
+            } else if (ch == ')' || ch == ']' || ch == '}') {
+                bracketDepth = Math.max(0, bracketDepth - 1);
+                ++i;
+            } else {
+                continued = (ch == '\\' && i == end - 1);
+                ++i;
+            }
+        }
+        
+        State result = new State(tripleQuote, bracketDepth, continued, block);
+        return result.equals(state) ? state : result;
+    }
+    
+    /**
+     * Tags the statement starting at text[i], returning the innermost block for the lines that follow.
+     */
+    private Block tagLine(String text, int i, int end, int indentation, Block block, List<LineTag> tags) {
+        final boolean inFunction = (block != null && block.isClass == false);
+        final String className = (block != null && block.isClass) ? block.className : null;
+        final String context = (className != null) ? ("class:" + className) : "";
+        
+        Matcher matcher = CLASS_PATTERN.matcher(text).region(i, end);
+        if (matcher.lookingAt()) {
+            String name = matcher.group(1);
+            if (inFunction == false) {
+                tags.add(new LineTag(name, 'c', context, false));
+            }
+            return new Block(indentation, inFunction == false, (className != null) ? (className + "." + name) : name, block);
+        }
+        matcher = DEF_PATTERN.matcher(text).region(i, end);
+        if (matcher.lookingAt()) {
+            if (inFunction == false) {
+                tags.add(new LineTag(matcher.group(1), 'm', context, false));
+            }
+            return new Block(indentation, false, null, block);
+        }
+        matcher = VARIABLE_PATTERN.matcher(text).region(i, end);
+        if (inFunction == false && matcher.lookingAt() && BLOCK_KEYWORDS.contains(matcher.group(1)) == false) {
+            tags.add(new LineTag(matcher.group(1), 'v', context, false));
+        }
+        return block;
+    }
+    
+    /**
+     * Like String.indexOf, but without looking past 'end', so that a long docstring doesn't mean searching to its end from each of its lines.
+     */
+    private static int indexOf(String text, String s, int i, int end) {
+        for (end -= s.length(); i <= end; ++i) {
+            if (text.startsWith(s, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int skipString(String text, int i, int end) {
+        final char quote = text.charAt(i);
+        for (++i; i < end; ++i) {
+            char ch = text.charAt(i);
+            if (ch == '\\') {
+                ++i;
+            } else if (ch == quote) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+    
+    @Test private static void testTagging() {
+        String text = "import os\n" +
+            "LIMIT = 10\n" +
+            "\n" +
+            "class Outer(object):\n" +
+            "    \"\"\"Docs with\n" +
+            "def fake():\n" +
+            "    \"\"\"\n" +
+            "    count = 0\n" +
+            "    def method(self, a,\n" +
+            "def not_a_function(): pass\n" +
+            "               b):\n" +
+            "        def local():\n" +
+            "            pass\n" +
+            "        x = 1\n" +
+            "    class Inner:\n" +
+            "        async def run(self):\n" +
+            "            pass\n" +
+            "# A comment at column 0 doesn't end a block.\n" +
+            "    if count == 1:\n" +
+            "        pass\n" +
+            "    else: y = 2\n" +
+            "        pass\n" +
+            "def function():\n" +
+            "    return LIMIT\n";
+        IncrementalTagger<?> tagger = new PythonTagger();
+        tagger.update(text, IncrementalTagger.UNCANCELLABLE);
+        List<String> expected = Arrays.asList(
+            "2 variable LIMIT",
+            "4 class Outer",
+            "8 variable Outer count",
+            "9 method Outer method",
+            "15 class Outer Inner",
+            "16 method Outer.Inner run",
+            "23 method function");
+        Assert.equals(tagger.describeTags(), expected);
+    }
+}
@@ -15,6 +15,6 @@ public class SaveAction extends ETextAction {
         if (window == null) {
             return;
         }
-        window.save();
+        window.saveInBackground();
     }
 }
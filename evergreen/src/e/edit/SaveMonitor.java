@@ -4,7 +4,7 @@ import java.util.*;
 
 /**
  * Used by the FindInFilesDialog to know when results are potentially out of
- * date.
+ * date, and by each WorkspaceSymbolIndex to know what to re-tag.
  */
 public class SaveMonitor {
     private static final SaveMonitor INSTANCE = new SaveMonitor();
@@ -32,17 +32,17 @@ public class SaveMonitor {
     /**
      * Informs all listeners that a file has been saved.
      */
-    public synchronized void fireSaveListeners() {
+    public synchronized void fireSaveListeners(String filename) {
         for (int i = saveListeners.size() - 1; i >= 0; --i) {
             SaveMonitor.Listener listener = saveListeners.get(i);
-            listener.fileSaved();
+            listener.fileSaved(filename);
         }
     }
     
     public interface Listener {
         /**
-         * Invoked when a file is saved.
+         * Invoked when the file 'filename' is saved.
          */
-        public void fileSaved();
+        public void fileSaved(String filename);
     }
 }
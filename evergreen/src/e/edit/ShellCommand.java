@@ -136,6 +136,7 @@ public class ShellCommand {
     }
     
     // We use SwingWorker to batch up groups of lines rather than process each one individually.
+    // The errors window does its own batching, and wants to parse its output off the EDT, so we hand it each line directly.
     private class StreamMonitor extends SwingWorker<Void, String> {
         private final BufferedReader stream;
         private final boolean isStdErr;
@@ -149,7 +150,11 @@ public class ShellCommand {
             streamOpened();
             String line;
             while ((line = stream.readLine()) != null) {
-                publish(line);
+                if (outputDisposition == ToolOutputDisposition.ERRORS_WINDOW) {
+                    errorsWindow.appendLines(isStdErr, Collections.singletonList(line));
+                } else {
+                    publish(line);
+                }
             }
             return null;
         }
@@ -180,7 +185,7 @@ public class ShellCommand {
         case DISCARD:
             break;
         case ERRORS_WINDOW:
-            errorsWindow.appendLines(isStdErr, lines);
+            // StreamMonitor gives these lines straight to the errors window.
             break;
         case CLIPBOARD:
         case DIALOG:
@@ -33,7 +33,7 @@ public class TagReader {
         }
     }
     
-    private String chooseCtagsBinary() {
+    static String chooseCtagsBinary() {
         // We don't cache this to give the user a chance to fix things while we're running.
         for (String candidateCtags : Arrays.asList("ctags-exuberant", "exuberant-ctags", "ectags")) {
             if (FileUtilities.findOnPath(candidateCtags) != null) {
@@ -166,6 +166,18 @@ public class TagReader {
             return;
         }
         
+        TagReader.Tag tag = makeTag(fileType, identifier, lineNumber, type, context);
+        tag.isStatic = ((lineNumber == staticTagLineNumber) || tag.isStatic);
+        staticTagLineNumber = 0;
+        
+        listener.tagFound(tag);
+    }
+    
+    /**
+     * Returns a new tag of the appropriate class for 'fileType', given the fields from a ctags line.
+     * The in-process taggers use this too, so their tags behave exactly like ctags'.
+     */
+    static Tag makeTag(FileType fileType, String identifier, int lineNumber, char type, String context) {
         final Matcher classMatcher = CLASS_PATTERN.matcher(context);
         String containingClassKind = "";
         String containingClass = "";
@@ -189,11 +201,7 @@ public class TagReader {
         } else {
             tag = new TagReader.Tag(identifier, lineNumber, type, context, containingClass);
         }
-        
-        tag.isStatic = ((lineNumber == staticTagLineNumber) || tag.isStatic);
-        staticTagLineNumber = 0;
-        
-        listener.tagFound(tag);
+        return tag;
     }
     
     public static class Tag {
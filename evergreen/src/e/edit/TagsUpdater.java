@@ -8,7 +8,6 @@ import java.io.*;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.regex.*;
 import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.tree.*;
@@ -18,10 +17,18 @@ public class TagsUpdater {
     private static final ExecutorService executorService = ThreadUtilities.newSingleThreadExecutor("Tags Updater");
     private static final Stopwatch tagsUpdaterStopwatch = Stopwatch.get("TagsUpdater");
     private static final Comparator<String> TAG_COMPARATOR = new SmartStringComparator();
+    // How long to wait after a change before re-tagging, so we don't re-tag on every keystroke while the user's typing.
+    private static final int UPDATE_DELAY_MS = 150;
 
     private final ETextWindow textWindow;
 
-    private static int latestSerialNumber = 0;
+    // Written on the EDT, but read on the executor's thread to notice when a builder has been superseded.
+    private static volatile int latestSerialNumber = 0;
+
+    // Only used on the executor's thread.
+    private IncrementalTagger<?> incrementalTagger;
+
+    private final Timer updateTimer;
 
     private ETree tree;
     private JScrollPane uiPanel;
@@ -32,13 +39,19 @@ public class TagsUpdater {
 
     public TagsUpdater(ETextWindow textWindow) {
         this.textWindow = textWindow;
+        this.updateTimer = new Timer(UPDATE_DELAY_MS, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateTags();
+            }
+        });
+        updateTimer.setRepeats(false);
         installListeners();
     }
 
     private void installListeners() {
         final PTextArea text = getTextArea();
-        // Rebuild tags when the document line count changes.
-        text.getTextBuffer().addTextListener(new PTextListener() {
+        // Rebuild tags when the document changes.
+        text.getTextBuffer().addTextListener(new PBatchTextListener() {
             private int lastLineCount;
 
             public void textCompletelyReplaced(PTextEvent e) {
@@ -53,15 +66,21 @@ public class TagsUpdater {
                 update();
             }
 
+            public void textChangedInBatch(PBatchTextEvent e) {
+                update();
+            }
+
             public void update() {
+                // Running ctags is expensive, so we only do it when the line count changes.
+                // Our own taggers are cheap enough to run after any change.
                 // FIXME: shouldn't this be testing whether e.getCharacters()
                 // contains a '\n' instead of counting lines?
                 int newLineCount = text.getLineCount();
-                if (lastLineCount == newLineCount) {
+                if (lastLineCount == newLineCount && IncrementalTagger.canTag(getTextWindow().getFileType()) == false) {
                     return;
                 }
                 lastLineCount = newLineCount;
-                updateTags();
+                updateTimer.restart();
             }
         });
         // Select the corresponding tag in the tree when the focus is gained or the caret moves.
@@ -147,6 +166,7 @@ public class TagsUpdater {
             // No point updating tags if we've never been shown yet.
             return;
         }
+        updateTimer.stop();
         int serialNumber = ++latestSerialNumber;
         executorService.execute(new TreeModelBuilder(serialNumber));
     }
@@ -204,10 +224,14 @@ public class TagsUpdater {
         }
     }
 
-    public class TreeModelBuilder extends SwingWorker<TreeModel, TagReader.Tag> implements TagReader.TagListener {
+    public class TreeModelBuilder extends SwingWorker<TreeModel, TagReader.Tag> implements TagReader.TagListener, IncrementalTagger.Job {
         private int serialNumber;
         private MessageDigest md5;
         private boolean successful = true;
+        // The file type, and for the file types we can tag ourselves, a copy of the text, both taken on the EDT.
+        private final FileType fileType;
+        private final String content;
+        private boolean usedIncrementalTagger = false;
         private Stopwatch.Timer stopwatchTimer;
         private Timer progressTimer;
 
@@ -217,6 +241,8 @@ public class TagsUpdater {
 
         public TreeModelBuilder(int serialNumber) {
             this.serialNumber = serialNumber;
+            this.fileType = getTextWindow().getFileType();
+            this.content = IncrementalTagger.canTag(fileType) ? getTextArea().getTextBuffer().toString() : null;
             try {
                 this.md5 = MessageDigest.getInstance("MD5");
             } catch (Exception ex) {
@@ -244,10 +270,42 @@ public class TagsUpdater {
             });
             progressTimer.setRepeats(false);
             progressTimer.start();
-            scanTags();
+            if (content != null) {
+                scanTagsInProcess();
+            } else {
+                scanTags();
+            }
             return treeModel;
         }
 
+        public boolean isSuperseded() {
+            return serialNumber != latestSerialNumber;
+        }
+
+        /**
+         * Tags the file with one of our own taggers, which only re-examines what's changed since last time.
+         */
+        private void scanTagsInProcess() {
+            boolean isNewTagger = false;
+            if (incrementalTagger == null || incrementalTagger.getFileType() != fileType) {
+                incrementalTagger = IncrementalTagger.forFileType(fileType);
+                isNewTagger = true;
+            }
+            try {
+                if (incrementalTagger.update(content, this) == false && isNewTagger == false) {
+                    // Nothing has changed, so there's no need to rebuild the tree.
+                    treeModel = null;
+                    return;
+                }
+            } catch (CancellationException ex) {
+                // There's a newer builder queued behind us.
+                successful = false;
+                return;
+            }
+            usedIncrementalTagger = true;
+            incrementalTagger.reportTags(this);
+        }
+
         public void tagFound(TagReader.Tag tag) {
             DefaultMutableTreeNode leaf = new DefaultMutableTreeNode(tag);
 
@@ -309,20 +367,11 @@ public class TagsUpdater {
                     return;
                 }
 
-                if (textWindow.isDirty() || hasGTests()) {
+                if (textWindow.isDirty()) {
                     temporaryFile = File.createTempFile("e.edit.TagsUpdater-", "");
                     temporaryFile.deleteOnExit();
-                    if (hasGTests()) {
-                        // Rewrite gtests in a way that ctags can understand, corresponding to
-                        // the actual symbols the macros expand to.
-                        String content = getTextArea().getTextBuffer().toString();
-                        content = content.replaceAll("TEST_F\\((.*),\\s*(.*)\\)", "void $1::$2()");
-                        content = content.replaceAll("TEST\\((.*),\\s*(.*)\\)", "void $1_$2_Test()");
-                        StringUtilities.writeFile(temporaryFile, content);
-                    } else {
                     getTextArea().getTextBuffer().writeToFile(temporaryFile);
                 }
-                }
                 String charsetName = (String) getTextArea().getTextBuffer().getProperty(PTextBuffer.CHARSET_PROPERTY);
                 final File inputFile = (temporaryFile != null) ? temporaryFile : FileUtilities.fileFromString(textWindow.getFilename());
                 TagReader tagReader = new TagReader(inputFile, fileType, charsetName, this);
@@ -342,11 +391,13 @@ public class TagsUpdater {
             if (progressTimer != null) {
                 progressTimer.stop();
             }
-            if (successful) {
+            if (successful && treeModel != null) {
                 showTags();
                 byte[] newDigest = md5.digest();
                 boolean tagsHaveChanged = !MessageDigest.isEqual(newDigest, tagsDigest);
-                if (tagsHaveChanged && serialNumber == latestSerialNumber) {
+                // Our incremental tagger only reports changes once, so we mustn't drop its results even if we've been superseded.
+                // The executor runs builders in order, so these can't overwrite a newer builder's results.
+                if (tagsHaveChanged && (serialNumber == latestSerialNumber || usedIncrementalTagger)) {
                     setTreeModel(treeModel);
                     tagsDigest = newDigest;
                 }
@@ -355,14 +406,6 @@ public class TagsUpdater {
                 stopwatchTimer.stop();
             }
         }
-
-        private boolean hasGTests() {
-            if (getTextWindow().getFileType() != FileType.C_PLUS_PLUS) {
-                return false;
-            }
-            // Match TEST(a, b) or TEST_F(a, b), but only at the start of a line.
-            return Pattern.matches("(?ms).*^TEST(_F)?\\(.*", getTextArea().getTextBuffer());
-        }
     }
 
     private static class BranchNode extends DefaultMutableTreeNode {
@@ -14,7 +14,7 @@ public class Workspace extends JPanel {
     private EColumn leftColumn = new EColumn();
     
     private ArrayList<EErrorsWindow> errorsWindows = new ArrayList<EErrorsWindow>();
-
+    
     private String workspaceName;
     private String rootDirectory;
     private String canonicalRootDirectory;
@@ -26,6 +26,8 @@ public class Workspace extends JPanel {
     private EFileDialog openDialog;
     
     private WorkspaceFileList fileList;
+    private WorkspaceSymbolIndex symbolIndex;
+    private SaveMonitor.Listener saveListener;
     
     private ETextWindow rememberedTextWindow;
     
@@ -56,19 +58,36 @@ public class Workspace extends JPanel {
     
     private void initFileList() {
         this.fileList = new WorkspaceFileList(this);
+        this.symbolIndex = new WorkspaceSymbolIndex(this);
         fileList.addFileListListener(new WorkspaceFileList.Listener() {
             public void fileListStateChanged(boolean newState) {
                 updateTabForWorkspace();
+                SortedPathList files = fileList.getIndexedFiles();
+                if (newState && files != null) {
+                    symbolIndex.updateFileList(files);
+                }
             }
         });
+        this.saveListener = new SaveMonitor.Listener() {
+            public void fileSaved(String filename) {
+                symbolIndex.fileSaved(filename);
+            }
+        };
+        SaveMonitor.getInstance().addSaveListener(saveListener);
     }
     
     public WorkspaceFileList getFileList() {
         return fileList;
     }
     
+    public WorkspaceSymbolIndex getSymbolIndex() {
+        return symbolIndex;
+    }
+    
     public void dispose() {
         fileList.dispose();
+        SaveMonitor.getInstance().removeSaveListener(saveListener);
+        symbolIndex.dispose();
     }
     
     public String getWorkspaceName() {
@@ -193,6 +212,7 @@ public class Workspace extends JPanel {
                 int prefixCharsToSkip = getRootDirectory().length();
                 String pathWithinWorkspace = filename.substring(prefixCharsToSkip);
                 fileList.ensureInFileList(pathWithinWorkspace);
+                fileList.noteFileOpened(pathWithinWorkspace);
             }
         } catch (Exception ex) {
             Log.warn("Exception while opening file", ex);
@@ -308,7 +328,7 @@ public class Workspace extends JPanel {
             Evergreen.getInstance().openFile(name);
         }
     }
-
+    
     public void takeWindow(EWindow window) {
         window.removeFromColumn();
         leftColumn.addComponent(window, -1);
@@ -23,14 +23,31 @@ public class WorkspaceFileList {
     
     private static final ExecutorService fileListUpdateExecutorService = ThreadUtilities.newFixedThreadPool(chooseThreadCount(), "File List Updater");
     
+    // Holds back the validation of saved file lists, and scans of workspaces without one, until we've finished starting up.
+    // Waiting here rather than on the updater pool (which may only have one thread) means every workspace's saved list is published before any workspace is validated or scanned.
+    private static final ExecutorService afterInitializationExecutor = ThreadUtilities.newSingleThreadExecutor("File List Startup Scheduler");
+    
+    // Scoring a huge workspace's files against a query is split between this many threads.
+    private static final int FILE_MATCHER_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService fileMatcherExecutorService = ThreadUtilities.newFixedThreadPool(FILE_MATCHER_THREAD_COUNT, "File Matcher");
+    // Below this many candidates, it's not worth the overhead of splitting the work.
+    private static final int MIN_CANDIDATES_PER_THREAD = 20000;
+    
+    // We remember the most recently opened files, so Open Quickly can suggest them first.
+    private static final int MAX_RECENT_FILE_COUNT = 32;
+    
     private final Workspace workspace;
     private final ArrayList<Listener> listeners = new ArrayList<Listener>();
     
     private FileIgnorer fileIgnorer;
-    private ArrayList<String> fileList;
+    // Sorted, and only ever replaced, never modified, so it can be read without locking.
+    private volatile SortedPathList fileList;
     
     private FileAlterationMonitor fileAlterationMonitor;
     
+    // The most recently opened file is last.
+    private final LinkedHashSet<String> recentFiles = new LinkedHashSet<String>();
+    
     public WorkspaceFileList(Workspace workspace) {
         this.workspace = workspace;
     }
@@ -55,10 +72,17 @@ public class WorkspaceFileList {
      * Returns the number of indexed files for this workspace, or -1 if no list is currently available.
      */
     public int getIndexedFileCount() {
-        List<String> list = fileList;
+        SortedPathList list = fileList;
         return (list != null) ? list.size() : -1;
     }
     
+    /**
+     * Returns the sorted list of indexed files for this workspace, or null if no list is currently available.
+     */
+    public SortedPathList getIndexedFiles() {
+        return fileList;
+    }
+    
     public synchronized FileIgnorer getFileIgnorer() {
         if (fileIgnorer == null) {
             updateFileIgnorer();
@@ -71,15 +95,45 @@ public class WorkspaceFileList {
     }
     
     public void ensureInFileList(String pathWithinWorkspace) {
-        List<String> list = fileList;
+        SortedPathList list = fileList;
         if (list != null && list.contains(pathWithinWorkspace) == false) {
-            updateFileList();
+            // There's no need to rescan the whole workspace for one new file.
+            addToFileList(list, pathWithinWorkspace);
+        }
+    }
+    
+    private void addToFileList(SortedPathList list, String pathWithinWorkspace) {
+        replaceFileList(list, list.withChanges(Collections.singletonList(pathWithinWorkspace), Collections.<String>emptyList()));
+    }
+    
+    /**
+     * Replaces the file list with 'newList', unless it's no longer 'oldList'.
+     * We mustn't overwrite the result of a rescan that finished, or started, since the caller looked.
+     */
+    private synchronized boolean replaceFileList(SortedPathList oldList, SortedPathList newList) {
+        if (fileList != oldList) {
+            return false;
+        }
+        fileList = newList;
+        return true;
+    }
+    
+    /**
+     * Notes that the given file has been opened, so it'll rank higher in getFilesMatchingFuzzily's results.
+     */
+    public void noteFileOpened(String pathWithinWorkspace) {
+        synchronized (recentFiles) {
+            recentFiles.remove(pathWithinWorkspace);
+            recentFiles.add(pathWithinWorkspace);
+            if (recentFiles.size() > MAX_RECENT_FILE_COUNT) {
+                recentFiles.remove(recentFiles.iterator().next());
+            }
         }
     }
     
     public void rootDidChange() {
         initFileAlterationMonitorForRoot(workspace.getRootDirectory());
-        updateFileList();
+        fileListUpdateExecutorService.execute(new FileListLoader());
     }
     
     /**
@@ -97,20 +151,198 @@ public class WorkspaceFileList {
      */
     public List<String> getListOfFilesMatching(String regularExpression) {
         Pattern pattern = PatternUtilities.smartCaseCompile(regularExpression);
-        ArrayList<String> result = new ArrayList<String>();
-        List<String> allFiles = fileList;
+        SortedPathList allFiles = fileList;
+        if (allFiles == null) {
+            return new ArrayList<String>();
+        }
+        return allFiles.getPathsMatching(pattern);
+    }
+    
+    /**
+     * The result of getFilesMatchingFuzzily.
+     */
+    public static class FuzzyMatches {
+        private final FuzzyFileMatcher matcher;
+        private final SortedPathList fileList;
+        // The indexes in 'fileList' of all the matches, in ascending order.
+        private final int[] matchIndexes;
+        private final List<String> bestMatches;
+        
+        private FuzzyMatches(FuzzyFileMatcher matcher, SortedPathList fileList, int[] matchIndexes, List<String> bestMatches) {
+            this.matcher = matcher;
+            this.fileList = fileList;
+            this.matchIndexes = matchIndexes;
+            this.bestMatches = bestMatches;
+        }
+        
+        public int getMatchCount() {
+            return matchIndexes.length;
+        }
+        
+        /**
+         * Returns the best matches, best first.
+         */
+        public List<String> getBestMatches() {
+            return bestMatches;
+        }
+    }
+    
+    /**
+     * Returns the (at most) 'maxResultCount' files that best match 'query', in the sense of FuzzyFileMatcher.
+     * Recently opened files get a bonus.
+     * 
+     * If 'previous' is the result of a query this one extends, and the file list hasn't changed since, we only need to look at its matches.
+     * That's the common case when the user's typing, and the list of matches shrinks quickly.
+     * Otherwise we score every file, in parallel if there are a lot of them.
+     * Only the best matches are sorted and returned; we keep the indexes of the others for next time.
+     */
+    public FuzzyMatches getFilesMatchingFuzzily(String query, FuzzyMatches previous, final int maxResultCount) {
+        final FuzzyFileMatcher matcher = new FuzzyFileMatcher(query);
+        final SortedPathList allFiles = fileList;
         if (allFiles == null) {
-            return result;
+            return new FuzzyMatches(matcher, null, new int[0], Collections.<String>emptyList());
         }
-        for (String candidate : allFiles) {
-            Matcher matcher = pattern.matcher(candidate);
-            if (matcher.find()) {
-                result.add(candidate);
+        final int[] candidates = (previous != null && previous.fileList == allFiles && matcher.narrows(previous.matcher)) ? previous.matchIndexes : null;
+        final int candidateCount = (candidates != null) ? candidates.length : allFiles.size();
+        final Map<Integer, Integer> recencyBonuses = getRecencyBonuses(allFiles);
+        
+        // Split the candidates into contiguous chunks, so the chunks' matches can simply be concatenated.
+        final int chunkCount = Math.max(1, Math.min(FILE_MATCHER_THREAD_COUNT, candidateCount / MIN_CANDIDATES_PER_THREAD));
+        ArrayList<Future<FuzzyChunk>> futures = new ArrayList<Future<FuzzyChunk>>();
+        for (int chunk = 0; chunk < chunkCount; ++chunk) {
+            final int start = (int) ((long) candidateCount * chunk / chunkCount);
+            final int end = (int) ((long) candidateCount * (chunk + 1) / chunkCount);
+            Callable<FuzzyChunk> task = new Callable<FuzzyChunk>() {
+                public FuzzyChunk call() {
+                    return new FuzzyChunk(matcher, allFiles, candidates, start, end, recencyBonuses, maxResultCount);
+                }
+            };
+            if (chunkCount == 1) {
+                // Don't bother with another thread for small jobs.
+                FutureTask<FuzzyChunk> future = new FutureTask<FuzzyChunk>(task);
+                future.run();
+                futures.add(future);
+            } else {
+                futures.add(fileMatcherExecutorService.submit(task));
+            }
+        }
+        
+        int matchCount = 0;
+        ArrayList<FuzzyChunk> chunks = new ArrayList<FuzzyChunk>();
+        PriorityQueue<ScoredFile> best = new PriorityQueue<ScoredFile>();
+        for (Future<FuzzyChunk> future : futures) {
+            FuzzyChunk chunk;
+            try {
+                chunk = future.get();
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            chunks.add(chunk);
+            matchCount += chunk.matchCount;
+            for (ScoredFile scoredFile : chunk.best) {
+                offer(best, scoredFile, maxResultCount);
+            }
+        }
+        int[] matchIndexes = new int[matchCount];
+        int i = 0;
+        for (FuzzyChunk chunk : chunks) {
+            System.arraycopy(chunk.matchIndexes, 0, matchIndexes, i, chunk.matchCount);
+            i += chunk.matchCount;
+        }
+        
+        ArrayList<ScoredFile> sortedBest = new ArrayList<ScoredFile>(best);
+        Collections.sort(sortedBest, Collections.reverseOrder());
+        ArrayList<String> bestMatches = new ArrayList<String>(sortedBest.size());
+        for (ScoredFile scoredFile : sortedBest) {
+            bestMatches.add(scoredFile.path);
+        }
+        return new FuzzyMatches(matcher, allFiles, matchIndexes, bestMatches);
+    }
+    
+    /**
+     * Returns a map from the indexes in 'allFiles' of recently opened files to their bonus scores.
+     */
+    private Map<Integer, Integer> getRecencyBonuses(SortedPathList allFiles) {
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        synchronized (recentFiles) {
+            // The most recent file gets the biggest bonus; enough to beat a slightly better match, but not a much better one.
+            int bonus = 32 - recentFiles.size();
+            for (String path : recentFiles) {
+                ++bonus;
+                final int index = allFiles.indexOf(path);
+                if (index != -1) {
+                    result.put(index, bonus);
+                }
             }
         }
         return result;
     }
     
+    private static void offer(PriorityQueue<ScoredFile> best, ScoredFile scoredFile, int maxResultCount) {
+        if (best.size() < maxResultCount) {
+            best.add(scoredFile);
+        } else if (maxResultCount > 0 && scoredFile.compareTo(best.peek()) > 0) {
+            best.poll();
+            best.add(scoredFile);
+        }
+    }
+    
+    /**
+     * Scores candidates [start, end) from either 'candidates' or, if that's null, 'allFiles'.
+     */
+    private static class FuzzyChunk {
+        private int[] matchIndexes;
+        private int matchCount = 0;
+        // The worst of the best is at the head.
+        private final PriorityQueue<ScoredFile> best = new PriorityQueue<ScoredFile>();
+        
+        private FuzzyChunk(FuzzyFileMatcher matcher, SortedPathList allFiles, int[] candidates, int start, int end, Map<Integer, Integer> recencyBonuses, int maxResultCount) {
+            this.matchIndexes = new int[Math.min(end - start, 1024)];
+            // The candidates are in ascending order, so the cursor only moves forwards, and only the paths that make the cut become Strings.
+            SortedPathList.Cursor path = allFiles.cursor();
+            for (int i = start; i < end; ++i) {
+                final int index = (candidates != null) ? candidates[i] : i;
+                path.seek(index);
+                int score = matcher.score(path);
+                if (score == FuzzyFileMatcher.NO_MATCH) {
+                    continue;
+                }
+                if (matchCount == matchIndexes.length) {
+                    matchIndexes = Arrays.copyOf(matchIndexes, Math.min(end - start, 2 * matchCount));
+                }
+                matchIndexes[matchCount++] = index;
+                Integer recencyBonus = recencyBonuses.get(index);
+                if (recencyBonus != null) {
+                    score += recencyBonus;
+                }
+                // Don't allocate a ScoredFile unless it's going to make the cut.
+                if (best.size() < maxResultCount || (maxResultCount > 0 && score >= best.peek().score)) {
+                    offer(best, new ScoredFile(path.toString(), score), maxResultCount);
+                }
+            }
+        }
+    }
+    
+    private static class ScoredFile implements Comparable<ScoredFile> {
+        private final String path;
+        private final int score;
+        
+        private ScoredFile(String path, int score) {
+            this.path = path;
+            this.score = score;
+        }
+        
+        /**
+         * Orders by score and then, for equal scores, by reverse alphabetical order, so the greatest is the best.
+         */
+        public int compareTo(ScoredFile other) {
+            if (score != other.score) {
+                return (score < other.score) ? -1 : 1;
+            }
+            return String.CASE_INSENSITIVE_ORDER.compare(other.path, path);
+        }
+    }
+    
     private void initFileAlterationMonitorForRoot(String rootDirectory) {
         // Get rid of any existing file alteration monitor.
         if (fileAlterationMonitor != null) {
@@ -129,51 +361,112 @@ public class WorkspaceFileList {
         fileAlterationMonitor.addPathname(rootDirectory);
     }
     
-    private class FileListUpdater extends SwingWorker<ArrayList<String>, Object> {
+    /**
+     * Makes the file list available as soon as possible after startup, or after the root changes.
+     * If we saved a snapshot of the list last time, we use it straight away, and arrange for a FileListValidator to bring it up to date once we've finished starting up.
+     * Otherwise, we scan the workspace.
+     */
+    private class FileListLoader implements Runnable {
+        public void run() {
+            final File workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
+            final FileListSnapshot snapshot = FileListSnapshot.read(workspaceRoot);
+            if (snapshot == null) {
+                runAfterInitialization(new Runnable() {
+                    public void run() {
+                        updateFileList();
+                    }
+                });
+                return;
+            }
+            synchronized (WorkspaceFileList.this) {
+                fileList = snapshot.getFiles();
+            }
+            fireListeners(true);
+            
+            final FileListValidator validator = new FileListValidator(snapshot);
+            runAfterInitialization(new Runnable() {
+                public void run() {
+                    fileListUpdateExecutorService.execute(validator);
+                }
+            });
+        }
+    }
+    
+    private static void runAfterInitialization(final Runnable runnable) {
+        afterInitializationExecutor.execute(new Runnable() {
+            public void run() {
+                // Don't hog the CPU while we're still getting started.
+                Evergreen.getInstance().awaitInitialization();
+                runnable.run();
+            }
+        });
+    }
+    
+    /**
+     * Brings a saved snapshot of the file list up to date, re-reading only the directories that have changed since it was saved.
+     */
+    private class FileListValidator implements Runnable {
+        private final FileListSnapshot snapshot;
+        
+        private FileListValidator(FileListSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+        
+        public void run() {
+            final long t0 = System.nanoTime();
+            updateFileIgnorer();
+            FileListSnapshot newSnapshot = snapshot.validate(fileIgnorer);
+            final long t1 = System.nanoTime();
+            Log.warn("Validation of saved file list for workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + "; " + ((newSnapshot == snapshot) ? "no changes." : "now " + newSnapshot.getFiles().size() + " files (was " + snapshot.getFiles().size() + ")."));
+            if (newSnapshot != snapshot && replaceFileList(snapshot.getFiles(), newSnapshot.getFiles())) {
+                fireListeners(true);
+                newSnapshot.write();
+            }
+        }
+    }
+    
+    private class FileListUpdater extends SwingWorker<SortedPathList, Object> {
         private final File workspaceRoot;
-        private final int prefixCharsToSkip;
         
         public FileListUpdater() {
             this.workspaceRoot = FileUtilities.fileFromString(workspace.getRootDirectory());
-            // All children of the root will start with a '/', which we don't want to be part of the name.
-            this.prefixCharsToSkip = workspaceRoot.toString().length() + 1;
             fireListeners(false);
-            fileList = null;
+            synchronized (WorkspaceFileList.this) {
+                fileList = null;
+            }
         }
         
         @Override
-        protected ArrayList<String> doInBackground() {
+        protected SortedPathList doInBackground() {
             // Don't hog the CPU while we're still getting started.
             Evergreen.getInstance().awaitInitialization();
             
-            ArrayList<String> newFileList = scanWorkspaceForFiles();
-            // Many file systems will have returned the files not in alphabetical order, so we sort them ourselves here.
-            // Users of the list can then assume it's in order.
-            Collections.sort(newFileList, String.CASE_INSENSITIVE_ORDER);
-            fileList = newFileList;
-            return fileList;
+            FileListSnapshot snapshot = scanWorkspaceForFiles();
+            synchronized (WorkspaceFileList.this) {
+                fileList = snapshot.getFiles();
+            }
+            // Save the list, so next time we start we can use it straight away.
+            snapshot.write();
+            return snapshot.getFiles();
         }
         
         /**
          * Builds a list of files for Open Quickly.
          */
-        private ArrayList<String> scanWorkspaceForFiles() {
+        private FileListSnapshot scanWorkspaceForFiles() {
             final long t0 = System.nanoTime();
             
             // We should reload the file ignorer's configuration when we rescan.
             updateFileIgnorer();
             
-            List<File> files = new FileFinder().filesUnder(workspaceRoot, fileIgnorer);
-            ArrayList<String> result = new ArrayList<String>(files.size());
-            for (File file : files) {
-                result.add(file.toString().substring(prefixCharsToSkip));
-            }
+            FileListSnapshot snapshot = FileListSnapshot.scan(workspaceRoot, fileIgnorer);
+            SortedPathList result = snapshot.getFiles();
             
             Evergreen.getInstance().showStatus("Scan of workspace \"" + workspace.getWorkspaceName() + "\" complete (" + result.size() + " files)");
             
             final long t1 = System.nanoTime();
-            Log.warn("Scan of workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + "; found " + result.size() + " files.");
-            return result;
+            Log.warn("Scan of workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + "; found " + result.size() + " files (" + result.getSizeInBytes() / 1024 + " KiB).");
+            return snapshot;
         }
         
         @Override
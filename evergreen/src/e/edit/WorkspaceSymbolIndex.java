@@ -0,0 +1,355 @@
+package e.edit;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+/**
+ * Knows where each identifier in a workspace is defined, so Go to Tag and Find in Files don't need to run ctags(1) for every query.
+ * 
+ * We build the index in the background, by running ctags(1) over the workspace's indexed files a batch at a time, and keep it in memory.
+ * When the workspace's file list changes, we only re-tag files that are new or have been modified since we last tagged them.
+ * When a file is saved, we re-tag just that file.
+ * Queries are answered from memory, and return null rather than block if the index doesn't (yet) cover what was asked about.
+ */
+public class WorkspaceSymbolIndex {
+    // One ctags(1) at a time is plenty; this is background work.
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Symbol Indexer");
+    
+    // How many files we give each ctags(1) invocation.
+    private static final int FILES_PER_BATCH = 1000;
+    
+    private static final Pattern TAG_LINE_PATTERN = Pattern.compile("([^\t]+)\t([^\t]+)\t(\\d+);\"\t(\\w).*");
+    
+    private final Workspace workspace;
+    
+    // Incremented to cancel any indexing in progress.
+    private final AtomicInteger generation = new AtomicInteger(0);
+    
+    // Guarded by 'this'.
+    private final HashMap<String, FileSymbols> symbolsByFile = new HashMap<String, FileSymbols>();
+    // Each identifier maps to either the FileSymbols for the one file that defines it, or a List of them.
+    // Most identifiers are only defined in one file, and this saves a list for each of those.
+    // It's sorted so that completion can find the identifiers starting with a prefix.
+    private final TreeMap<String, Object> filesByIdentifier = new TreeMap<String, Object>();
+    private boolean isComplete = false;
+    
+    /**
+     * The definitions in one file, sorted by identifier.
+     */
+    private static class FileSymbols {
+        private final String path;
+        private final long lastModified;
+        private final String[] identifiers;
+        private final int[] lineNumbers;
+        
+        private FileSymbols(String path, long lastModified, String[] identifiers, int[] lineNumbers) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.identifiers = identifiers;
+            this.lineNumbers = lineNumbers;
+        }
+    }
+    
+    public WorkspaceSymbolIndex(Workspace workspace) {
+        this.workspace = workspace;
+    }
+    
+    /**
+     * Brings the index up to date with 'files', the workspace's current list of indexed files, in the background.
+     * Any update already in progress is abandoned.
+     */
+    public void updateFileList(final SortedPathList files) {
+        final int expectedGeneration = generation.incrementAndGet();
+        executor.execute(new Runnable() {
+            public void run() {
+                Evergreen.getInstance().awaitInitialization();
+                updateFileList(files, expectedGeneration);
+            }
+        });
+    }
+    
+    /**
+     * Re-tags 'filename' in the background, if it's one of this workspace's indexed files.
+     */
+    public void fileSaved(String filename) {
+        final String rootDirectory = workspace.getRootDirectory();
+        if (filename.startsWith(rootDirectory) == false) {
+            return;
+        }
+        final String path = filename.substring(rootDirectory.length());
+        SortedPathList files = workspace.getFileList().getIndexedFiles();
+        if (files == null || files.contains(path) == false) {
+            return;
+        }
+        final int expectedGeneration = generation.get();
+        executor.execute(new Runnable() {
+            public void run() {
+                tagFiles(Collections.singletonList(path), expectedGeneration);
+            }
+        });
+    }
+    
+    /**
+     * Stops any indexing in progress, and discards the index.
+     */
+    public synchronized void dispose() {
+        generation.incrementAndGet();
+        symbolsByFile.clear();
+        filesByIdentifier.clear();
+        isComplete = false;
+    }
+    
+    /**
+     * Returns the locations of the definitions of 'identifier', as "path:line:" addresses relative to the workspace root, in order.
+     * Returns null if the index isn't complete, in which case the caller should find the definitions some other way.
+     */
+    public synchronized List<String> findDefinitions(String identifier) {
+        if (isComplete == false) {
+            return null;
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        for (FileSymbols fileSymbols : getFilesDefining(identifier)) {
+            int i = Arrays.binarySearch(fileSymbols.identifiers, identifier);
+            // There may be several definitions in the same file; binarySearch finds any one of them.
+            while (i > 0 && fileSymbols.identifiers[i - 1].equals(identifier)) {
+                --i;
+            }
+            for (; i >= 0 && i < fileSymbols.identifiers.length && fileSymbols.identifiers[i].equals(identifier); ++i) {
+                result.add(fileSymbols.path + ":" + fileSymbols.lineNumbers[i] + ":");
+            }
+        }
+        Collections.sort(result, String.CASE_INSENSITIVE_ORDER);
+        return result;
+    }
+    
+    /**
+     * Tests whether the file at 'path' (relative to the workspace root) defines anything whose name contains a match for 'pattern'.
+     * Returns null if we haven't indexed that file.
+     */
+    public synchronized Boolean definesSymbolMatching(String path, Pattern pattern) {
+        FileSymbols fileSymbols = symbolsByFile.get(path);
+        if (fileSymbols == null) {
+            return null;
+        }
+        Matcher matcher = pattern.matcher("");
+        String previousIdentifier = null;
+        for (String identifier : fileSymbols.identifiers) {
+            // Overloads are common, and there's no point matching the same name twice.
+            if (identifier != previousIdentifier && matcher.reset(identifier).find()) {
+                return Boolean.TRUE;
+            }
+            previousIdentifier = identifier;
+        }
+        return Boolean.FALSE;
+    }
+    
+    /**
+     * Returns each identifier defined in the workspace that starts with 'prefix', mapped to the number of files defining it.
+     * Unlike the other queries, this answers from whatever we've indexed so far: partial completions are better than none.
+     */
+    public synchronized Map<String, Integer> getIdentifiersStartingWith(String prefix) {
+        TreeMap<String, Integer> result = new TreeMap<String, Integer>();
+        for (Map.Entry<String, Object> entry : filesByIdentifier.subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            Object files = entry.getValue();
+            result.put(entry.getKey(), (files instanceof FileSymbols) ? 1 : ((List<?>) files).size());
+        }
+        return result;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<FileSymbols> getFilesDefining(String identifier) {
+        Object files = filesByIdentifier.get(identifier);
+        if (files == null) {
+            return Collections.emptyList();
+        } else if (files instanceof FileSymbols) {
+            return Collections.singletonList((FileSymbols) files);
+        } else {
+            return (List<FileSymbols>) files;
+        }
+    }
+    
+    private void updateFileList(SortedPathList files, int expectedGeneration) {
+        final long t0 = System.nanoTime();
+        final File rootDirectory = FileUtilities.fileFromString(workspace.getRootDirectory());
+        
+        // Work out what's changed. Checking modification times is far cheaper than re-tagging.
+        // We don't hold the lock while we touch the disk, so queries aren't held up.
+        ArrayList<String> stalePaths = new ArrayList<String>();
+        ArrayList<String> removedPaths = new ArrayList<String>();
+        for (String path : files) {
+            if (generation.get() != expectedGeneration) {
+                return;
+            }
+            final long lastModified = new File(rootDirectory, path).lastModified();
+            synchronized (this) {
+                FileSymbols fileSymbols = symbolsByFile.get(path);
+                if (fileSymbols == null || fileSymbols.lastModified != lastModified) {
+                    stalePaths.add(path);
+                }
+            }
+        }
+        synchronized (this) {
+            for (String path : symbolsByFile.keySet()) {
+                if (files.contains(path) == false) {
+                    removedPaths.add(path);
+                }
+            }
+            for (String path : removedPaths) {
+                remove(symbolsByFile.remove(path));
+            }
+        }
+        
+        for (int i = 0; i < stalePaths.size(); i += FILES_PER_BATCH) {
+            if (tagFiles(stalePaths.subList(i, Math.min(i + FILES_PER_BATCH, stalePaths.size())), expectedGeneration) == false) {
+                return;
+            }
+        }
+        synchronized (this) {
+            if (generation.get() == expectedGeneration) {
+                isComplete = true;
+            }
+        }
+        
+        final long t1 = System.nanoTime();
+        Log.warn("Symbol index for workspace \"" + workspace.getWorkspaceName() + "\" took " + TimeUtilities.nsToString(t1 - t0) + " to tag " + StringUtilities.pluralize(stalePaths.size(), "file", "files") + " and forget " + removedPaths.size() + ".");
+    }
+    
+    /**
+     * Runs ctags(1) on 'paths', replacing whatever we knew about them.
+     * Returns false if we were cancelled.
+     */
+    private boolean tagFiles(List<String> paths, int expectedGeneration) {
+        if (generation.get() != expectedGeneration) {
+            return false;
+        }
+        final File rootDirectory = FileUtilities.fileFromString(workspace.getRootDirectory());
+        File fileListFile = null;
+        try {
+            // Give ctags(1) the list of files in a file, because there may be too many for the command line.
+            fileListFile = File.createTempFile("e.edit.WorkspaceSymbolIndex-files-", ".txt");
+            // Note the modification times before tagging, so a change made while we're tagging will be noticed next time.
+            final HashMap<String, Long> lastModifiedTimes = new HashMap<String, Long>();
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(fileListFile), "UTF-8"));
+            try {
+                for (String path : paths) {
+                    lastModifiedTimes.put(path, new File(rootDirectory, path).lastModified());
+                    out.println(path);
+                }
+            } finally {
+                out.close();
+            }
+            
+            final HashMap<String, ArrayList<String[]>> tagsByPath = new HashMap<String, ArrayList<String[]>>();
+            String[] command = new String[] { TagReader.chooseCtagsBinary(), "-n", "-u", "-f", "-", "-L", fileListFile.getAbsolutePath() };
+            ArrayList<String> errors = new ArrayList<String>();
+            ProcessUtilities.backQuote(rootDirectory, command, "", new ProcessUtilities.LineListener() {
+                public void processLine(String line) {
+                    Matcher matcher = TAG_LINE_PATTERN.matcher(line);
+                    // Java packages and C++ prototypes aren't definitions.
+                    if (matcher.matches() == false || matcher.group(4).equals("p")) {
+                        return;
+                    }
+                    ArrayList<String[]> tags = tagsByPath.get(matcher.group(2));
+                    if (tags == null) {
+                        tags = new ArrayList<String[]>();
+                        tagsByPath.put(matcher.group(2), tags);
+                    }
+                    tags.add(new String[] { matcher.group(1), matcher.group(3) });
+                }
+            }, new ProcessUtilities.ArrayListLineListener(errors));
+            for (String error : errors) {
+                Log.warn("ctags: " + error);
+            }
+            
+            synchronized (this) {
+                if (generation.get() != expectedGeneration) {
+                    return false;
+                }
+                for (String path : paths) {
+                    remove(symbolsByFile.remove(path));
+                    // We record files with no definitions too, so we don't keep re-tagging them.
+                    add(makeFileSymbols(path, lastModifiedTimes.get(path), tagsByPath.get(path)));
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            Log.warn("Failed to tag files in workspace \"" + workspace.getWorkspaceName() + "\"", ex);
+            return false;
+        } finally {
+            if (fileListFile != null) {
+                fileListFile.delete();
+            }
+        }
+    }
+    
+    private FileSymbols makeFileSymbols(String path, long lastModified, ArrayList<String[]> tags) {
+        if (tags == null) {
+            return new FileSymbols(path, lastModified, new String[0], new int[0]);
+        }
+        Collections.sort(tags, new Comparator<String[]>() {
+            public int compare(String[] lhs, String[] rhs) {
+                return lhs[0].compareTo(rhs[0]);
+            }
+        });
+        String[] identifiers = new String[tags.size()];
+        int[] lineNumbers = new int[tags.size()];
+        for (int i = 0; i < identifiers.length; ++i) {
+            identifiers[i] = tags.get(i)[0];
+            lineNumbers[i] = Integer.parseInt(tags.get(i)[1]);
+        }
+        return new FileSymbols(path, lastModified, identifiers, lineNumbers);
+    }
+    
+    // Callers must hold the lock.
+    private void add(FileSymbols fileSymbols) {
+        symbolsByFile.put(fileSymbols.path, fileSymbols);
+        String[] identifiers = fileSymbols.identifiers;
+        for (int i = 0; i < identifiers.length; ++i) {
+            if (i > 0 && identifiers[i].equals(identifiers[i - 1])) {
+                // Share the String, and don't list the file twice.
+                identifiers[i] = identifiers[i - 1];
+                continue;
+            }
+            Object files = filesByIdentifier.get(identifiers[i]);
+            if (files == null) {
+                filesByIdentifier.put(identifiers[i], fileSymbols);
+            } else if (files instanceof FileSymbols) {
+                ArrayList<FileSymbols> list = new ArrayList<FileSymbols>(2);
+                list.add((FileSymbols) files);
+                list.add(fileSymbols);
+                filesByIdentifier.put(identifiers[i], list);
+            } else {
+                @SuppressWarnings("unchecked") List<FileSymbols> list = (List<FileSymbols>) files;
+                list.add(fileSymbols);
+            }
+        }
+    }
+    
+    // Callers must hold the lock.
+    private void remove(FileSymbols fileSymbols) {
+        if (fileSymbols == null) {
+            return;
+        }
+        String previousIdentifier = null;
+        for (String identifier : fileSymbols.identifiers) {
+            if (identifier == previousIdentifier) {
+                continue;
+            }
+            previousIdentifier = identifier;
+            Object files = filesByIdentifier.get(identifier);
+            if (files == fileSymbols) {
+                filesByIdentifier.remove(identifier);
+            } else if (files instanceof List) {
+                List<?> list = (List<?>) files;
+                list.remove(fileSymbols);
+                if (list.size() == 1) {
+                    filesByIdentifier.put(identifier, list.get(0));
+                }
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@
 #include <fcntl.h>
 #include <pwd.h>
 #include <signal.h>
+#include <stdexcept>
 #include <stdlib.h>
 #include <sys/stat.h>
 #include <sys/types.h>
@@ -470,3 +471,27 @@ jint org_jessies_os_PosixJNI::read(jint fd, jbyteArray buffer, jint bufferOffset
 jint org_jessies_os_PosixJNI::pread(jint fd, jbyteArray buffer, jint bufferOffset, jint byteCount, jlong fileOffset) {
     return doRead(m_env, fd, buffer, bufferOffset, byteCount, fileOffset, true);
 }
+
+// The direct ByteBuffer variants read and write straight to and from the buffer's native memory, avoiding both the std::vector and the copy into or out of the Java heap.
+static jbyte* directBufferAddress(JNIEnv* env, jobject buffer, jint bufferOffset) {
+    jbyte* address = reinterpret_cast<jbyte*>(env->GetDirectBufferAddress(buffer));
+    if (address == 0) {
+        throw std::runtime_error("buffer is not a direct ByteBuffer");
+    }
+    return address + bufferOffset;
+}
+
+jint org_jessies_os_PosixJNI::read(jint fd, jobject buffer, jint bufferOffset, jint byteCount) {
+    if (byteCount == 0) {
+        return 0;
+    }
+    return resultOrMinusErrno(::read(fd, directBufferAddress(m_env, buffer, bufferOffset), byteCount));
+}
+
+jint org_jessies_os_PosixJNI::write(jint fd, jobject buffer, jint bufferOffset, jint byteCount) {
+    // See doWrite for why we never attempt a zero-byte write.
+    if (byteCount == 0) {
+        return 0;
+    }
+    return resultOrMinusErrno(::write(fd, directBufferAddress(m_env, buffer, bufferOffset), byteCount));
+}
@@ -11,11 +11,11 @@ import javax.swing.*;
  * A basic find dialog suitable for use with PTextArea or JTextPane or whatever text component you happen to have.
  */
 public abstract class AbstractFindDialog {
+    private final ELabel findStatus = new ELabel();
+    
     public void showFindDialog(Component parent, final JTextField findField) {
         Frame frame = (Frame) SwingUtilities.getAncestorOfClass(Frame.class, parent);
         
-        final ELabel findStatus = new ELabel();
-        
         FormBuilder form = new FormBuilder(frame, "Find");
         form.setStatusBar(findStatus);
         FormPanel formPanel = form.getFormPanel();
@@ -24,8 +24,7 @@ public abstract class AbstractFindDialog {
             public void actionPerformed(ActionEvent e) {
                 try {
                     findField.setForeground(UIManager.getColor("TextField.foreground"));
-                    int matchCount = updateFindResults(findField.getText());
-                    findStatus.setText("Matches: " + matchCount);
+                    showMatchCount(updateFindResults(findField.getText()));
                 } catch (java.util.regex.PatternSyntaxException ex) {
                     findField.setForeground(Color.RED);
                     findStatus.setText(ex.getDescription());
@@ -44,6 +43,14 @@ public abstract class AbstractFindDialog {
         findStatus.setText("");
     }
     
+    /**
+     * Updates the match count shown in the dialog's status bar.
+     * Use this if the matches for the current regular expression change after updateFindResults returns.
+     */
+    public void showMatchCount(int matchCount) {
+        findStatus.setText("Matches: " + matchCount);
+    }
+    
     /**
      * Override this to highlight all the matches for the given regular expression.
      * Return the number of matches.
@@ -0,0 +1,57 @@
+package e.ptextarea;
+
+import java.util.*;
+
+/**
+ * Styles runs of characters that can be recognized one character at a time, such as tabs.
+ * This is much cheaper than using a regular expression, which matters because these applicators see every segment of every line we render.
+ */
+abstract class CharacterRunStyleApplicator implements StyleApplicator {
+    protected final PTextArea textArea;
+    
+    CharacterRunStyleApplicator(PTextArea textArea) {
+        this.textArea = textArea;
+    }
+    
+    /**
+     * Returns true if 'ch' belongs in one of the runs we style.
+     */
+    protected abstract boolean isRunCharacter(char ch);
+    
+    /**
+     * Returns the segment representing the run [start, end), in buffer offsets.
+     */
+    protected abstract PLineSegment makeRunSegment(int start, int end);
+    
+    public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
+        final CharSequence chars = segment.getCharSequence();
+        final int length = chars.length();
+        ArrayList<PLineSegment> result = null;
+        int otherStart = 0;
+        for (int i = 0; i < length; ++i) {
+            if (isRunCharacter(chars.charAt(i))) {
+                int runEnd = i + 1;
+                while (runEnd < length && isRunCharacter(chars.charAt(runEnd))) {
+                    ++runEnd;
+                }
+                if (result == null) {
+                    result = new ArrayList<PLineSegment>();
+                }
+                if (i > otherStart) {
+                    result.add(segment.subSegment(otherStart, i));
+                }
+                result.add(makeRunSegment(segment.getOffset() + i, segment.getOffset() + runEnd));
+                otherStart = runEnd;
+                i = runEnd;
+            }
+        }
+        if (result == null) {
+            // The common case: nothing to do, and nothing to allocate.
+            return Collections.singletonList(segment);
+        }
+        if (length > otherStart) {
+            result.add(segment.subSegment(otherStart));
+        }
+        return result;
+    }
+}
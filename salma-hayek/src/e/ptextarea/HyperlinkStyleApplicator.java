@@ -3,6 +3,7 @@ package e.ptextarea;
 import e.gui.WebLinkAction;
 import e.util.GuiUtilities;
 import e.util.PatternUtilities;
+import e.util.StringUtilities;
 import java.util.regex.Matcher;
 
 /**
@@ -20,6 +21,11 @@ class HyperlinkStyleApplicator extends RegularExpressionStyleApplicator {
         return (style == PStyle.NORMAL || style == PStyle.COMMENT);
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence chars) {
+        return StringUtilities.indexOf(chars, "://", 0) != -1;
+    }
+    
     @Override
     protected void configureSegment(PTextSegment segment, Matcher matcher) {
         String url = matcher.group(1);
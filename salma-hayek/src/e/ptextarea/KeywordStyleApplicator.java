@@ -2,20 +2,167 @@ package e.ptextarea;
 
 import java.util.*;
 import java.util.regex.*;
+import org.jessies.test.*;
 
 /**
  * Recognizes keywords within NORMAL text segments and styles them KEYWORD.
+ * 
+ * Most languages' keywords are just words, and we see every NORMAL segment of every line we render, so for the default "\b(\w+)\b" we scan for words by hand.
+ * Most words aren't keywords, so we also reject words that are the wrong length or start with the wrong character before creating a String to look up.
+ * Other regular expressions go through RegularExpressionStyleApplicator as usual.
  */
 public class KeywordStyleApplicator extends RegularExpressionStyleApplicator {
-    private Set<String> keywords;
+    static final String WORD_REGULAR_EXPRESSION = "\\b(\\w+)\\b";
+    
+    private final Set<String> keywords;
+    private final boolean canScanForWords;
+    private int minKeywordLength = Integer.MAX_VALUE;
+    private int maxKeywordLength = 0;
+    private final BitSet keywordInitials = new BitSet();
     
     public KeywordStyleApplicator(PTextArea textArea, Set<String> keywords, String keywordRegularExpression) {
         super(textArea, keywordRegularExpression, PStyle.KEYWORD);
         this.keywords = keywords;
+        this.canScanForWords = keywordRegularExpression.equals(WORD_REGULAR_EXPRESSION);
+        for (String keyword : keywords) {
+            minKeywordLength = Math.min(minKeywordLength, keyword.length());
+            maxKeywordLength = Math.max(maxKeywordLength, keyword.length());
+            if (keyword.length() > 0) {
+                // The set may be case-insensitive, so we accept either case.
+                keywordInitials.set(Character.toLowerCase(keyword.charAt(0)));
+                keywordInitials.set(Character.toUpperCase(keyword.charAt(0)));
+            }
+        }
     }
     
     @Override
     public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
         return keywords.contains(matcher.group(1));
     }
+    
+    /**
+     * Returns true if we find keywords by scanning for words by hand, so PAbstractLanguageStyler can do the same as it styles a line.
+     */
+    boolean canScanForWords() {
+        return canScanForWords;
+    }
+    
+    @Override
+    public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
+        if (canScanForWords == false) {
+            return super.applyStylingTo(line, segment);
+        }
+        final CharSequence chars = segment.getCharSequence();
+        final int offset = segment.getOffset();
+        ArrayList<PLineSegment> result = null;
+        int normalStart = 0;
+        int[] bounds = new int[2];
+        while (findNextKeyword(chars, normalStart, bounds)) {
+            if (result == null) {
+                result = new ArrayList<PLineSegment>();
+            }
+            if (bounds[0] > normalStart) {
+                result.add(segment.subSegment(normalStart, bounds[0]));
+            }
+            result.add(new PTextSegment(textArea, offset + bounds[0], offset + bounds[1], PStyle.KEYWORD));
+            normalStart = bounds[1];
+        }
+        if (result == null) {
+            return Collections.singletonList(segment);
+        }
+        if (chars.length() > normalStart) {
+            result.add(segment.subSegment(normalStart));
+        }
+        return result;
+    }
+    
+    /**
+     * Finds the first keyword in 'chars' at or after 'fromIndex', equivalent to searching for WORD_REGULAR_EXPRESSION and checking group 1 is a keyword.
+     * On success, stores the keyword's start and end in 'bounds' and returns true.
+     */
+    boolean findNextKeyword(CharSequence chars, int fromIndex, int[] bounds) {
+        final int length = chars.length();
+        int i = fromIndex;
+        while (i < length) {
+            if (isWordCharacter(chars.charAt(i)) == false) {
+                ++i;
+                continue;
+            }
+            final int wordStart = i;
+            while (i < length && isWordCharacter(chars.charAt(i))) {
+                ++i;
+            }
+            if (isKeywordAt(chars, 0, wordStart, i, length)) {
+                bounds[0] = wordStart;
+                bounds[1] = i;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns true if the whole word chars[wordStart, wordEnd) is a keyword, in a segment made of chars[segmentStart, segmentEnd).
+     */
+    boolean isKeywordAt(CharSequence chars, int segmentStart, int wordStart, int wordEnd, int segmentEnd) {
+        // Older versions of java.util.regex consider all Unicode letters and digits for \b, but \w is only ASCII, so "\b(\w+)\b" doesn't match ASCII words touching non-ASCII letters.
+        // We're consistent with that regardless of version, on the grounds that "for" in "\u00e9for" isn't the keyword.
+        if ((wordStart > segmentStart && isOtherLetter(chars.charAt(wordStart - 1))) || (wordEnd < segmentEnd && isOtherLetter(chars.charAt(wordEnd)))) {
+            return false;
+        }
+        return isKeyword(chars, wordStart, wordEnd);
+    }
+    
+    private boolean isKeyword(CharSequence chars, int start, int end) {
+        final int length = end - start;
+        if (length < minKeywordLength || length > maxKeywordLength || keywordInitials.get(chars.charAt(start)) == false) {
+            return false;
+        }
+        return keywords.contains(chars.subSequence(start, end).toString());
+    }
+    
+    static boolean isWordCharacter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+    
+    private static boolean isOtherLetter(char ch) {
+        return ch >= 0x80 && Character.isLetterOrDigit(ch);
+    }
+    
+    @Test private static void testFindNextKeyword() {
+        Set<String> keywords = new HashSet<String>(Arrays.asList("for", "int", "if", "while"));
+        KeywordStyleApplicator applicator = new KeywordStyleApplicator(null, keywords, WORD_REGULAR_EXPRESSION);
+        Assert.equals(findAllKeywords(applicator, "for (int i = 0; i < n; ++i) {"), Arrays.asList("for", "int"));
+        Assert.equals(findAllKeywords(applicator, "fork(); _if if_ if2 if"), Arrays.asList("if"));
+        Assert.equals(findAllKeywords(applicator, "while(x)if(y)"), Arrays.asList("while", "if"));
+        Assert.equals(findAllKeywords(applicator, "nothing to see here"), Collections.<String>emptyList());
+        Assert.equals(findAllKeywords(applicator, ""), Collections.<String>emptyList());
+    }
+    
+    @Test private static void testFindNextKeywordCaseInsensitively() {
+        Set<String> keywords = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        keywords.addAll(Arrays.asList("begin", "end"));
+        KeywordStyleApplicator applicator = new KeywordStyleApplicator(null, keywords, WORD_REGULAR_EXPRESSION);
+        Assert.equals(findAllKeywords(applicator, "BEGIN x := 1; End;"), Arrays.asList("BEGIN", "End"));
+    }
+    
+    private static List<String> findAllKeywords(KeywordStyleApplicator applicator, String line) {
+        // Check we agree with the regular expression we're standing in for.
+        ArrayList<String> expected = new ArrayList<String>();
+        Matcher matcher = Pattern.compile(WORD_REGULAR_EXPRESSION).matcher(line);
+        while (matcher.find()) {
+            if (applicator.keywords.contains(matcher.group(1))) {
+                expected.add(matcher.group(1));
+            }
+        }
+        ArrayList<String> result = new ArrayList<String>();
+        int[] bounds = new int[2];
+        int fromIndex = 0;
+        while (applicator.findNextKeyword(line, fromIndex, bounds)) {
+            result.add(line.substring(bounds[0], bounds[1]));
+            fromIndex = bounds[1];
+        }
+        Assert.equals(result, expected);
+        return result;
+    }
 }
@@ -14,6 +14,11 @@ import e.util.*;
  * or backquote. It also understands how to find keywords in what's left over,
  * given a fixed set of keywords.
  * 
+ * When the text area has no style applicators other than the standard ones
+ * (and those we added ourselves), we apply them as we go, so each line is
+ * styled in a single pass rather than by handing a list of segments down the
+ * chain of applicators. See getFinishedSegments.
+ * 
  * FIXME: Perl and Ruby have various multiline quoting mechanisms that we don't support.
  * 
  * @author Phil Norman
@@ -22,6 +27,11 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     private int lastGoodLine;
     private BitSet commentCache;
     
+    // The keyword applicator we added to the text area, if any.
+    private KeywordStyleApplicator keywordStyleApplicator;
+    // Whether a NORMAL segment containing '#' might contain a preprocessor directive.
+    private boolean checkForPreprocessorDirectives;
+    
     public PAbstractLanguageStyler(PTextArea textArea) {
         super(textArea);
         if (textArea != null) {
@@ -93,13 +103,93 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
             keywords = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
         }
         keywords.addAll(Arrays.asList(getKeywords()));
+        keywordStyleApplicator = null;
         if (keywords.size() > 0) {
-            textArea.addStyleApplicator(new KeywordStyleApplicator(textArea, keywords, getKeywordRegularExpression()));
+            keywordStyleApplicator = new KeywordStyleApplicator(textArea, keywords, getKeywordRegularExpression());
+            textArea.addStyleApplicator(keywordStyleApplicator);
+        }
+    }
+    
+    /**
+     * Returns true if getFinishedSegments can do the work of 'styleApplicators', because they're only the ones every text area has, and the ones we added ourselves.
+     * Anything else, such as a bug database highlighter, means using the applicators themselves.
+     */
+    boolean canFinishSegmentsFor(List<StyleApplicator> styleApplicators) {
+        boolean sawPreprocessorStyleApplicator = false;
+        for (StyleApplicator styleApplicator : styleApplicators) {
+            final Class<?> c = styleApplicator.getClass();
+            if (c == PreprocessorStyleApplicator.class) {
+                sawPreprocessorStyleApplicator = true;
+            } else if (c != UnprintableCharacterStyleApplicator.class && c != HyperlinkStyleApplicator.class && (styleApplicator != keywordStyleApplicator || keywordStyleApplicator.canScanForWords() == false)) {
+                return false;
+            }
+        }
+        checkForPreprocessorDirectives = sawPreprocessorStyleApplicator;
+        return true;
+    }
+    
+    /**
+     * Returns the given line's segments as the text area's style applicators would leave them, which is only valid if canFinishSegmentsFor returned true.
+     */
+    List<PLineSegment> getFinishedSegments(int lineIndex) {
+        String line = textArea.getLineContents(lineIndex).toString();
+        TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex), line);
+        addMainSegments(builder, lineIndex, line);
+        return builder.getSegmentList();
+    }
+    
+    /**
+     * Adds the segments the style applicators and the text area's tab applicator would make of line[start, end) in the given style.
+     * Most segments only have keywords and tabs in them, and we find those in a single scan.
+     * Anything rarer, such as a hyperlink or a preprocessor directive, we leave to the applicators themselves.
+     */
+    private void addFinishedSegments(List<PLineSegment> list, String line, int lineStartOffset, int start, int end, PStyle style) {
+        final boolean isNormal = (style == PStyle.NORMAL);
+        final boolean mightHaveHyperlinks = (isNormal || style == PStyle.COMMENT);
+        final int firstSegmentIndex = list.size();
+        int otherStart = start;
+        for (int i = start; i < end; ) {
+            final char ch = line.charAt(i);
+            if (ch == '\t') {
+                int runEnd = i + 1;
+                while (runEnd < end && line.charAt(runEnd) == '\t') {
+                    ++runEnd;
+                }
+                if (i > otherStart) {
+                    list.add(new PTextSegment(textArea, lineStartOffset + otherStart, lineStartOffset + i, style));
+                }
+                list.add(new PTabSegment(textArea, lineStartOffset + i, lineStartOffset + runEnd));
+                otherStart = runEnd;
+                i = runEnd;
+            } else if ((mightHaveHyperlinks && ch == ':' && i + 3 <= end && line.startsWith("//", i + 1)) || (isNormal && ((ch == '#' && checkForPreprocessorDirectives) || ch < ' ' || ch == '\u007f'))) {
+                // Throw away what we've done, and let the applicators deal with this one.
+                list.subList(firstSegmentIndex, list.size()).clear();
+                textArea.applyStyleApplicators(line, new PTextSegment(textArea, lineStartOffset + start, lineStartOffset + end, style), list);
+                return;
+            } else if (isNormal && keywordStyleApplicator != null && KeywordStyleApplicator.isWordCharacter(ch)) {
+                int wordEnd = i + 1;
+                while (wordEnd < end && KeywordStyleApplicator.isWordCharacter(line.charAt(wordEnd))) {
+                    ++wordEnd;
+                }
+                if (keywordStyleApplicator.isKeywordAt(line, start, i, wordEnd, end)) {
+                    if (i > otherStart) {
+                        list.add(new PTextSegment(textArea, lineStartOffset + otherStart, lineStartOffset + i, style));
+                    }
+                    list.add(new PTextSegment(textArea, lineStartOffset + i, lineStartOffset + wordEnd, PStyle.KEYWORD));
+                    otherStart = wordEnd;
+                }
+                i = wordEnd;
+            } else {
+                ++i;
+            }
+        }
+        if (end > otherStart || list.size() == firstSegmentIndex) {
+            list.add(new PTextSegment(textArea, lineStartOffset + otherStart, lineStartOffset + end, style));
         }
     }
     
     private void initTextListener() {
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
+        textArea.getTextBuffer().addTextListener(new PBatchTextListener() {
             public void textCompletelyReplaced(PTextEvent event) {
                 initCommentCache();
             }
@@ -111,6 +201,13 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
             public void textRemoved(PTextEvent event) {
                 dirtyFromOffset(event);
             }
+            
+            public void textChangedInBatch(PBatchTextEvent event) {
+                // We don't know which of the changes added or removed newlines or comment markers, so we assume they all might have.
+                if (textArea.isLineWrappingInvalid() == false) {
+                    dirtyFromLine(textArea.getLineList().getLineIndex(event.getOffset()));
+                }
+            }
         });
     }
     
@@ -121,11 +218,12 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
     
     public List<PLineSegment> getTextSegments(int lineIndex) {
         String line = textArea.getLineContents(lineIndex).toString();
-        return getMainSegments(lineIndex, line);
+        TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
+        addMainSegments(builder, lineIndex, line);
+        return builder.getSegmentList();
     }
     
-    private List<PLineSegment> getMainSegments(int lineIndex, String line) {
-        TextSegmentListBuilder builder = new TextSegmentListBuilder(textArea.getLineStartOffset(lineIndex));
+    private void addMainSegments(TextSegmentListBuilder builder, int lineIndex, String line) {
         boolean comment = startsCommented(lineIndex);
         int lastStart = 0;
         for (int i = 0; i < line.length(); ) {
@@ -191,7 +289,6 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         if (lastStart < line.length()) {
             builder.addStyledSegment(line.length(), comment ? PStyle.COMMENT : PStyle.NORMAL);
         }
-        return builder.getSegmentList();
     }
     
     private int getBackslashBeforeCount(String string, int index) {
@@ -206,7 +303,7 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         return result;
     }
     
-    private boolean startsCommented(int lineIndex) {
+    boolean startsCommented(int lineIndex) {
         if (lastGoodLine < lineIndex) {
             PLineList lineList = textArea.getLineList();
             for (int i = lastGoodLine; i < lineIndex; i++) {
@@ -291,11 +388,15 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         }
         
         if (hasNewline(event.getCharacters()) || startsOrEndsMultiLineComment) {
-            lastGoodLine = Math.min(lastGoodLine, textArea.getLineList().getLineIndex(event.getOffset()));
-            textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
+            dirtyFromLine(textArea.getLineList().getLineIndex(event.getOffset()));
         }
     }
     
+    private void dirtyFromLine(int lineIndex) {
+        lastGoodLine = Math.min(lastGoodLine, lineIndex);
+        textArea.repaintFromLine(textArea.getSplitLineIndex(lastGoodLine));
+    }
+    
     private boolean hasNewline(CharSequence text) {
         return StringUtilities.contains(text, '\n');
     }
@@ -308,13 +409,24 @@ public abstract class PAbstractLanguageStyler extends PAbstractTextStyler {
         private ArrayList<PLineSegment> list = new ArrayList<PLineSegment>();
         private int lineStartOffset;
         private int start = 0;
+        // The line, if we're to finish the segments as we add them.
+        private final String line;
         
         public TextSegmentListBuilder(int lineStartOffset) {
+            this(lineStartOffset, null);
+        }
+        
+        private TextSegmentListBuilder(int lineStartOffset, String line) {
             this.lineStartOffset = lineStartOffset;
+            this.line = line;
         }
         
         public void addStyledSegment(int end, PStyle style) {
-            list.add(new PTextSegment(textArea, lineStartOffset + start, lineStartOffset + end, style));
+            if (line != null) {
+                addFinishedSegments(list, line, lineStartOffset, start, end, style);
+            } else {
+                list.add(new PTextSegment(textArea, lineStartOffset + start, lineStartOffset + end, style));
+            }
             start = end;
         }
         
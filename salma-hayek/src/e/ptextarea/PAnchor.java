@@ -13,7 +13,17 @@ package e.ptextarea;
  */
 
 public abstract class PAnchor implements Comparable<PAnchor> {
-    private int index;
+    // While this anchor belongs to a PAnchorSet, it's also a node in that set's tree, and these fields belong to the set.
+    // In particular, 'index' is then only correct relative to the shifts pending in this anchor's ancestors; see PAnchorSet.
+    // Otherwise 'index' is simply this anchor's index.
+    int index;
+    PAnchorSet owner;
+    PAnchor left;
+    PAnchor right;
+    PAnchor parent;
+    int priority;
+    int size;
+    int pendingShift;
     
     public PAnchor(int index) {
         this.index = index;
@@ -21,12 +31,18 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     
     /** Returns the current index at which this anchor is anchored. */
     public int getIndex() {
-        return index;
+        PAnchorSet anchorSet = owner;
+        return (anchorSet != null) ? anchorSet.getIndex(this) : index;
     }
     
     /** Changes the index at which this anchor is anchored. */
     public void setIndex(int index) {
-        this.index = index;
+        PAnchorSet anchorSet = owner;
+        if (anchorSet != null) {
+            anchorSet.move(this, index);
+        } else {
+            this.index = index;
+        }
     }
     
     /**
@@ -40,24 +56,24 @@ public abstract class PAnchor implements Comparable<PAnchor> {
     public int hashCode() {
         // FIXME: because this class is mutable, instances MUST NOT be stored long-term in hashes.
         // FIXME: instances are hashed, so we (a) don't want to return a constant here because we want O(1) lookup, and (b) should investigate the performance of this implementation.
-        return index;
+        return getIndex();
     }
     
     @Override
     public final boolean equals(Object obj) {
         if (obj instanceof PAnchor) {
-            return (index == ((PAnchor) obj).index);
+            return (getIndex() == ((PAnchor) obj).getIndex());
         }
         return false;
     }
     
     @Override
     public final int compareTo(PAnchor other) {
-        return (index - other.index);
+        return (getIndex() - other.getIndex());
     }
     
     @Override
     public String toString() {
-        return "PAnchor[index=" + index + "]";
+        return "PAnchor[index=" + getIndex() + "]";
     }
 }
@@ -2,18 +2,36 @@ package e.ptextarea;
 
 import e.util.*;
 import java.util.*;
+import org.jessies.test.*;
 
 /**
  * Contains all the PAnchor instances related to a given text buffer.
  * Responsible for ensuring that their offsets are updated when the text changes.
+ * 
+ * The anchors are kept in a treap ordered by index, with the anchors themselves as the nodes.
+ * Rather than rewrite the index of every anchor after an edit, we split off the subtree of anchors that need to move and record the shift at its root, to be pushed down lazily next time we pass that way.
+ * An edit therefore touches O(log n) anchors, even when a "find all" has left hundreds of thousands of them after the edit point.
+ * The price is that an anchor's true index is its stored index plus the shifts pending in all its ancestors, so PAnchor.getIndex walks up the tree.
+ * 
+ * We never call out while holding our lock: anchorDestroyed is only called once we've let go.
+ * PHighlightManager compares highlights by anchor index while holding its own lock, and a destroyed PHighlight anchor removes its highlight from the manager, so calling anchorDestroyed with our lock held would take the two locks in the opposite order.
  */
 class PAnchorSet implements PTextListener {
-    // This list is sorted so we can binarySearch it.
-    private ArrayList<PAnchor> anchors = new ArrayList<PAnchor>();
+    private final Random random = new Random();
+    private PAnchor root;
     
     synchronized void add(PAnchor anchor) {
-        int index = getFirstAnchorIndex(anchor.getIndex());
-        anchors.add(index, anchor);
+        if (anchor.owner != null) {
+            throw new IllegalStateException("anchor " + anchor + " already belongs to an anchor set");
+        }
+        anchor.owner = this;
+        anchor.priority = random.nextInt();
+        anchor.pendingShift = 0;
+        anchor.left = anchor.right = anchor.parent = null;
+        update(anchor);
+        // As with the sorted list we used to use, a new anchor goes before any existing anchors with the same index.
+        PAnchor[] lowerAndRest = split(root, anchor.index);
+        setRoot(merge(merge(lowerAndRest[0], anchor), lowerAndRest[1]));
     }
     
     /**
@@ -21,55 +39,231 @@ class PAnchorSet implements PTextListener {
      * Assumes you're trying to remove "most" of the anchors, perhaps when canceling a find.
      */
     synchronized void removeAll(IdentityHashMap<PAnchor, Object> deadAnchors) {
-        // Sun 6529800: as of Java 7, this is significantly quicker than ArrayList.removeAll.
-        // Sun's fix for that bug could perform even better than simple work-around, so if you're reading this in 2009 or later, think about removing this code.
         // Note that *identity* is important here.
-        // PAnchor.equals only checks the offset, but we could have multiple PAnchor instances in anchors with the same offset.
-        for (int i = anchors.size() - 1; i >= 0; --i) {
-            if (deadAnchors.containsKey(anchors.get(i))) {
-                anchors.remove(i);
+        // PAnchor.equals only checks the offset, but we could have multiple PAnchor instances with the same offset.
+        ArrayList<PAnchor> survivors = new ArrayList<PAnchor>();
+        ArrayList<PAnchor> all = new ArrayList<PAnchor>();
+        detachAll(root, all);
+        for (PAnchor anchor : all) {
+            if (deadAnchors.containsKey(anchor) == false) {
+                survivors.add(anchor);
             }
         }
+        setRoot(buildFromSorted(survivors));
     }
     
     synchronized void remove(PAnchor anchor) {
-        int start = getFirstAnchorIndex(anchor.getIndex());
-        for (int i = start; i < anchors.size(); i++) {
-            if (anchor == anchors.get(i)) {
-                anchors.remove(i);
-                return;
-            }
-            if (get(i).getIndex() > anchor.getIndex()) {
-                break;
-            }
+        if (anchor.owner != this) {
+            // Already removed, perhaps because the text it anchored was deleted.
+            return;
         }
+        final int index = getIndex(anchor);
+        PAnchor[] lowerAndRest = splitByRank(root, rankOf(anchor));
+        PAnchor[] selfAndHigher = splitByRank(lowerAndRest[1], 1);
+        setRoot(merge(lowerAndRest[0], selfAndHigher[1]));
+        detach(anchor, index);
     }
     
     /**
-     * Used as an argument to binarySearch.
+     * Moves 'anchor' to 'index', keeping the set in order.
+     * Used by PAnchor.setIndex.
      */
-    private static class UnownedAnchor extends PAnchor {
-        public UnownedAnchor(int index) {
-            super(index);
+    synchronized void move(PAnchor anchor, int index) {
+        remove(anchor);
+        anchor.index = index;
+        add(anchor);
+    }
+    
+    /**
+     * Returns the true index of 'anchor', taking into account any shifts still pending in its ancestors.
+     * Used by PAnchor.getIndex.
+     */
+    synchronized int getIndex(PAnchor anchor) {
+        if (anchor.owner != this) {
+            return anchor.index;
         }
-        
-        // We don't add this to the anchor set, so it's never removed, so no-one needs to be notified of anything.
-        @Override
-        public void anchorDestroyed() {
+        int result = anchor.index;
+        for (PAnchor ancestor = anchor.parent; ancestor != null; ancestor = ancestor.parent) {
+            result += ancestor.pendingShift;
+        }
+        return result;
+    }
+    
+    private static int sizeOf(PAnchor anchor) {
+        return (anchor == null) ? 0 : anchor.size;
+    }
+    
+    // Returns the number of anchors before 'anchor' in the set.
+    private static int rankOf(PAnchor anchor) {
+        int result = sizeOf(anchor.left);
+        for (PAnchor node = anchor; node.parent != null; node = node.parent) {
+            if (node.parent.right == node) {
+                result += sizeOf(node.parent.left) + 1;
+            }
+        }
+        return result;
+    }
+    
+    private void setRoot(PAnchor newRoot) {
+        root = newRoot;
+        if (root != null) {
+            root.parent = null;
+        }
+    }
+    
+    // Applies any shift pending at 'anchor' to its children.
+    private static void pushDown(PAnchor anchor) {
+        final int shift = anchor.pendingShift;
+        if (shift != 0) {
+            shift(anchor.left, shift);
+            shift(anchor.right, shift);
+            anchor.pendingShift = 0;
+        }
+    }
+    
+    // Moves every anchor in the subtree rooted at 'anchor' by 'delta', lazily.
+    private static void shift(PAnchor anchor, int delta) {
+        if (anchor != null) {
+            anchor.index += delta;
+            anchor.pendingShift += delta;
+        }
+    }
+    
+    private static void update(PAnchor anchor) {
+        anchor.size = 1 + sizeOf(anchor.left) + sizeOf(anchor.right);
+        if (anchor.left != null) {
+            anchor.left.parent = anchor;
+        }
+        if (anchor.right != null) {
+            anchor.right.parent = anchor;
+        }
+    }
+    
+    // Returns the roots of two trees: the anchors before 'index', and everything else.
+    private static PAnchor[] split(PAnchor anchor, int index) {
+        if (anchor == null) {
+            return new PAnchor[] { null, null };
+        }
+        pushDown(anchor);
+        if (anchor.index < index) {
+            PAnchor[] parts = split(anchor.right, index);
+            anchor.right = parts[0];
+            update(anchor);
+            parts[0] = anchor;
+            return parts;
+        } else {
+            PAnchor[] parts = split(anchor.left, index);
+            anchor.left = parts[1];
+            update(anchor);
+            parts[1] = anchor;
+            return parts;
+        }
+    }
+    
+    // Returns the roots of two trees: the first 'count' anchors, and everything else.
+    private static PAnchor[] splitByRank(PAnchor anchor, int count) {
+        if (anchor == null) {
+            return new PAnchor[] { null, null };
+        }
+        pushDown(anchor);
+        final int leftSize = sizeOf(anchor.left);
+        if (leftSize < count) {
+            PAnchor[] parts = splitByRank(anchor.right, count - leftSize - 1);
+            anchor.right = parts[0];
+            update(anchor);
+            parts[0] = anchor;
+            return parts;
+        } else {
+            PAnchor[] parts = splitByRank(anchor.left, count);
+            anchor.left = parts[1];
+            update(anchor);
+            parts[1] = anchor;
+            return parts;
+        }
+    }
+    
+    // Joins two trees, where everything in 'lhs' comes before everything in 'rhs'.
+    private static PAnchor merge(PAnchor lhs, PAnchor rhs) {
+        if (lhs == null) {
+            return rhs;
+        }
+        if (rhs == null) {
+            return lhs;
         }
+        if (lhs.priority > rhs.priority) {
+            pushDown(lhs);
+            lhs.right = merge(lhs.right, rhs);
+            update(lhs);
+            return lhs;
+        } else {
+            pushDown(rhs);
+            rhs.left = merge(lhs, rhs.left);
+            update(rhs);
+            return rhs;
+        }
+    }
+    
+    // Builds a treap from anchors already in index order in O(n), by keeping a stack of the right-hand spine.
+    private static PAnchor buildFromSorted(List<PAnchor> sorted) {
+        ArrayDeque<PAnchor> spine = new ArrayDeque<PAnchor>();
+        for (PAnchor anchor : sorted) {
+            anchor.left = anchor.right = anchor.parent = null;
+            anchor.pendingShift = 0;
+            PAnchor lastPopped = null;
+            while (spine.isEmpty() == false && spine.peek().priority < anchor.priority) {
+                lastPopped = spine.pop();
+            }
+            anchor.left = lastPopped;
+            if (spine.isEmpty() == false) {
+                spine.peek().right = anchor;
+            }
+            spine.push(anchor);
+        }
+        PAnchor result = spine.peekLast();
+        updateAll(result);
+        return result;
+    }
+    
+    private static void updateAll(PAnchor anchor) {
+        if (anchor != null) {
+            updateAll(anchor.left);
+            updateAll(anchor.right);
+            update(anchor);
+        }
+    }
+    
+    private void detach(PAnchor anchor, int index) {
+        anchor.index = index;
+        anchor.owner = null;
+        anchor.left = anchor.right = anchor.parent = null;
+        anchor.pendingShift = 0;
+        anchor.size = 1;
+    }
+    
+    // Detaches every anchor in the subtree rooted at 'anchor' (whose own index must be correct), appending them to 'result' in order with their true indexes.
+    private void detachAll(PAnchor anchor, List<PAnchor> result) {
+        if (anchor == null) {
+            return;
+        }
+        pushDown(anchor);
+        PAnchor left = anchor.left;
+        PAnchor right = anchor.right;
+        detachAll(left, result);
+        detach(anchor, anchor.index);
+        result.add(anchor);
+        detachAll(right, result);
     }
     
-    // Returns the first position where an anchor for the textIndex could be inserted
-    // without violating the ordering.
-    private int getFirstAnchorIndex(int textIndex) {
-        // checkLinearity();    // Comment this out to improve speed, but remove warnings when our state goes wrong.
-        return CollectionUtilities.lowerBound(anchors, new UnownedAnchor(textIndex), CollectionUtilities.naturalOrder());
+    synchronized int size() {
+        return sizeOf(root);
     }
     
     private void checkLinearity() {
+        List<PAnchor> anchors = new ArrayList<PAnchor>();
+        collectAll(root, anchors);
         int lastIndex = -1;
         for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
+            PAnchor anchor = anchors.get(i);
             if (anchor.getIndex() < lastIndex) {
                 dumpAnchorIndices();
                 throw new IllegalStateException("Linearity out of order at index " + i);
@@ -78,71 +272,150 @@ class PAnchorSet implements PTextListener {
         }
     }
     
-    private PAnchor get(int index) {
-        return anchors.get(index);
+    private static void collectAll(PAnchor anchor, List<PAnchor> result) {
+        if (anchor != null) {
+            collectAll(anchor.left, result);
+            result.add(anchor);
+            collectAll(anchor.right, result);
+        }
     }
     
     public synchronized void textInserted(PTextEvent event) {
-        int start = getFirstAnchorIndex(event.getOffset());
-        int insertionLength = event.getLength();
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() + insertionLength);
-        }
+        PAnchor[] lowerAndRest = split(root, event.getOffset());
+        shift(lowerAndRest[1], event.getLength());
+        setRoot(merge(lowerAndRest[0], lowerAndRest[1]));
     }
     
     private synchronized void dumpAnchorIndices() {
         Log.warn("Dumping anchor indices:");
+        List<PAnchor> anchors = new ArrayList<PAnchor>();
+        collectAll(root, anchors);
         for (int i = 0; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            Log.warn("  Anchor " + i + ": " + anchor);
+            Log.warn("  Anchor " + i + ": " + anchors.get(i));
         }
     }
     
-    private int countAnchorsInRegion(int firstAnchorIndex, int offset, int length) {
-        int result = 0;
-        int endOffset = offset + length;
-        for (int i = firstAnchorIndex; i < anchors.size(); i++) {
-            if (get(i).getIndex() < endOffset) {
-                result++;
-            } else {
-                break;
-            }
+    public void textRemoved(PTextEvent event) {
+        final int offset = event.getOffset();
+        final int deletionLength = event.getLength();
+        List<PAnchor> anchorsToRemove = new ArrayList<PAnchor>();
+        synchronized (this) {
+            // Take the anchors in the deleted region out of the tree, and detach them.
+            PAnchor[] lowerAndRest = split(root, offset);
+            PAnchor[] deadAndHigher = split(lowerAndRest[1], offset + deletionLength);
+            detachAll(deadAndHigher[0], anchorsToRemove);
+            // Move the anchors after the deleted region back before anyone hears about the dead ones, so their highlights see the indexes that match the text.
+            shift(deadAndHigher[1], -deletionLength);
+            setRoot(merge(lowerAndRest[0], deadAndHigher[1]));
         }
-        return result;
-    }
-    
-    public synchronized void textRemoved(PTextEvent event) {
-        int deletionLength = event.getLength();
-        int firstAnchorIndex = getFirstAnchorIndex(event.getOffset());
-        int removeCount = countAnchorsInRegion(firstAnchorIndex, event.getOffset(), deletionLength);
-        // Copy the to-be-removed PAnchor instances to safety, then remove them from "anchors".
-        List<PAnchor> unsafeAnchorsToRemove = anchors.subList(firstAnchorIndex, firstAnchorIndex + removeCount);
-        List<PAnchor> anchorsToRemove = new ArrayList<PAnchor>(unsafeAnchorsToRemove);
-        unsafeAnchorsToRemove.clear();
         // Note that the sub-class of PAnchor in PHighlight relies upon this delete
         // call in order to properly destroy itself when one of its extremes is
         // removed.  If you delete this code, some highlights (notably 'find'
         // highlights) will turn into phantom highlights if you kill one end, such
         // that one extreme of the highlight will drift when changes are made to
         // the preceding text, and the other will be stably attached.
-        for (PAnchor anchor : anchorsToRemove) {
+        // A highlight destroyed this way removes its other anchor from us, which is why we mustn't hold our lock here.
+        destroyAnchors(anchorsToRemove);
+    }
+    
+    public void textCompletelyReplaced(PTextEvent event) {
+        List<PAnchor> oldAnchors = new ArrayList<PAnchor>();
+        synchronized (this) {
+            detachAll(root, oldAnchors);
+            setRoot(null);
+        }
+        destroyAnchors(oldAnchors);
+    }
+    
+    private static void destroyAnchors(List<PAnchor> deadAnchors) {
+        for (PAnchor anchor : deadAnchors) {
             anchor.anchorDestroyed();
         }
-        // We must recalculate the first anchor index, because the one we calculated
-        // before could be wrong if an anchor's deletion caused the deletion of another.
-        int start = getFirstAnchorIndex(event.getOffset());
-        for (int i = start; i < anchors.size(); i++) {
-            PAnchor anchor = get(i);
-            anchor.setIndex(anchor.getIndex() - deletionLength);
+    }
+    
+    private static class TestAnchor extends PAnchor {
+        private boolean destroyed = false;
+        
+        private TestAnchor(int index) {
+            super(index);
+        }
+        
+        @Override
+        public void anchorDestroyed() {
+            destroyed = true;
+        }
+    }
+    
+    private static PTextEvent makeTestEvent(int eventType, int offset, int length) {
+        return new PTextEvent(null, eventType, offset, StringUtilities.nCopies(length, 'x'));
+    }
+    
+    @Test private static void testInsertAndRemove() {
+        PAnchorSet anchorSet = new PAnchorSet();
+        List<TestAnchor> anchors = new ArrayList<TestAnchor>();
+        for (int i = 0; i < 1000; ++i) {
+            TestAnchor anchor = new TestAnchor(i * 10);
+            anchors.add(anchor);
+            anchorSet.add(anchor);
         }
+        anchorSet.textInserted(makeTestEvent(PTextEvent.INSERT, 15, 5));
+        Assert.equals(anchors.get(1).getIndex(), 10);
+        Assert.equals(anchors.get(2).getIndex(), 25);
+        Assert.equals(anchors.get(999).getIndex(), 9995);
+        // Removing [25, 45) should destroy the anchors at 25 and 35, and move the rest back.
+        anchorSet.textRemoved(makeTestEvent(PTextEvent.REMOVE, 25, 20));
+        Assert.equals(anchors.get(2).destroyed, true);
+        Assert.equals(anchors.get(3).destroyed, true);
+        Assert.equals(anchors.get(4).destroyed, false);
+        Assert.equals(anchors.get(2).getIndex(), 25);
+        Assert.equals(anchors.get(4).getIndex(), 25);
+        Assert.equals(anchors.get(999).getIndex(), 9975);
+        Assert.equals(anchorSet.size(), 998);
+        anchorSet.checkLinearity();
     }
     
-    public synchronized void textCompletelyReplaced(PTextEvent event) {
-        ArrayList<PAnchor> oldAnchors = anchors;
-        anchors = new ArrayList<PAnchor>();
-        for (PAnchor anchor : oldAnchors) {
-            anchor.anchorDestroyed();
+    @Test private static void testRemoveAndMove() {
+        PAnchorSet anchorSet = new PAnchorSet();
+        List<TestAnchor> anchors = new ArrayList<TestAnchor>();
+        for (int i = 0; i < 100; ++i) {
+            TestAnchor anchor = new TestAnchor(i);
+            anchors.add(anchor);
+            anchorSet.add(anchor);
+        }
+        anchorSet.textInserted(makeTestEvent(PTextEvent.INSERT, 50, 100));
+        anchorSet.remove(anchors.get(60));
+        Assert.equals(anchors.get(60).getIndex(), 160);
+        Assert.equals(anchorSet.size(), 99);
+        anchors.get(70).setIndex(5);
+        Assert.equals(anchors.get(70).getIndex(), 5);
+        anchorSet.checkLinearity();
+        IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
+        for (int i = 0; i < 50; ++i) {
+            deadAnchors.put(anchors.get(i), null);
         }
+        anchorSet.removeAll(deadAnchors);
+        Assert.equals(anchorSet.size(), 49);
+        Assert.equals(anchors.get(99).getIndex(), 199);
+        anchorSet.checkLinearity();
+    }
+    
+    @Test private static void testDestroyedAnchorCanRemoveAnother() {
+        final PAnchorSet anchorSet = new PAnchorSet();
+        final TestAnchor end = new TestAnchor(20);
+        final PAnchor start = new PAnchor(5) {
+            @Override
+            public void anchorDestroyed() {
+                // Like a PHighlight's anchor, we take the other end with us, which mustn't happen with the set's lock held.
+                Assert.equals(Thread.holdsLock(anchorSet), false);
+                anchorSet.remove(end);
+            }
+        };
+        anchorSet.add(start);
+        anchorSet.add(end);
+        anchorSet.add(new TestAnchor(30));
+        anchorSet.textRemoved(makeTestEvent(PTextEvent.REMOVE, 0, 10));
+        Assert.equals(anchorSet.size(), 1);
+        Assert.equals(end.getIndex(), 10);
+        anchorSet.checkLinearity();
     }
 }
@@ -0,0 +1,55 @@
+package e.ptextarea;
+
+/**
+ * Describes a batch of changes to a PTextBuffer as if it were a single replacement.
+ * The removedLength characters that were at 'offset' before the batch are now the insertedLength characters at 'offset'.
+ * This range covers all the changes in the batch, so it can include unchanged text between them.
+ */
+public class PBatchTextEvent {
+    private final PTextBuffer textBuffer;
+    private final int offset;
+    private final int removedLength;
+    private final int insertedLength;
+    private final int lineCountDelta;
+    private final int changeCount;
+    
+    public PBatchTextEvent(PTextBuffer textBuffer, int offset, int removedLength, int insertedLength, int lineCountDelta, int changeCount) {
+        this.textBuffer = textBuffer;
+        this.offset = offset;
+        this.removedLength = removedLength;
+        this.insertedLength = insertedLength;
+        this.lineCountDelta = lineCountDelta;
+        this.changeCount = changeCount;
+    }
+    
+    public PTextBuffer getTextBuffer() {
+        return textBuffer;
+    }
+    
+    public int getOffset() {
+        return offset;
+    }
+    
+    public int getRemovedLength() {
+        return removedLength;
+    }
+    
+    public int getInsertedLength() {
+        return insertedLength;
+    }
+    
+    /**
+     * Returns how many more lines the text has than it had before the batch (a negative number if it has fewer).
+     */
+    public int getLineCountDelta() {
+        return lineCountDelta;
+    }
+    
+    /**
+     * Returns the number of insertions and removals in the batch.
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+}
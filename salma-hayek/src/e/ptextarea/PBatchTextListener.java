@@ -0,0 +1,14 @@
+package e.ptextarea;
+
+/**
+ * A PBatchTextListener is a PTextListener that would rather hear about a batch of changes all at once.
+ * Between PTextBuffer.startBatch and PTextBuffer.finishBatch, it isn't told about individual insertions and removals.
+ * When the outermost batch finishes, it gets a single textChangedInBatch covering them all.
+ * 
+ * This suits listeners whose response to a change costs much the same however small the change: repainting, restarting a timer, restarting a search.
+ * A listener that has to keep exact track of offsets as each change happens (as PLineList and PAnchorSet do) should stay a plain PTextListener.
+ */
+public interface PBatchTextListener extends PTextListener {
+    /** Notification that a batch of changes has finished. */
+    public void textChangedInBatch(PBatchTextEvent event);
+}
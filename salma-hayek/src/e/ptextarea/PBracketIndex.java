@@ -0,0 +1,634 @@
+package e.ptextarea;
+
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * Finds matching round, square, and curly brackets without walking every character between them.
+ * 
+ * We summarize each line's brackets (ignoring those in comments, strings, and anything else not in the normal style) by cancelling matched pairs.
+ * What's left is the close brackets whose partners come before the line, then the open brackets whose partners come after it.
+ * Summaries combine the same way, so we keep them in a segment tree over the lines, and can step over any run of lines whose summary we can consume whole.
+ * A lookup only looks at the characters of the line it starts on and the line the match is on, and O(log n) summaries in between.
+ * 
+ * A close bracket that meets an open bracket of a different kind makes a summary useless for skipping, because where the search fails depends on where it started.
+ * We just look inside such summaries, which leads us to the offending line, so a mismatch somewhere in the file costs O(log n) more lines.
+ * 
+ * When the text changes, we re-summarize the lines that changed.
+ * A line's styling also depends on whether it starts in a multi-line comment, so we keep going until we reach an unchanged line that starts in the same state as before.
+ * When lines are added or removed, the leaves after them move, so we rebuild the tree from there on, reusing the lines' existing summaries.
+ * The tree has room for twice as many lines as it was built for, so it only needs reallocating when the line count doubles or shrinks a lot.
+ * 
+ * Everything we need to know about the text comes through getLineCount, getLineStartOffset, getBracketChars, and startsCommented, so the tests can index plain lines without a text area.
+ */
+class PBracketIndex implements PLineListener {
+    /** Returned by findMatchingBracket if the index can't answer, and the caller should search the text itself. */
+    static final int UNKNOWN = -2;
+    
+    private static final int NO_MATCH = -1;
+    // Internal to the search: the match isn't in the range searched so far.
+    private static final int CONTINUE = -3;
+    
+    // Summaries with more unmatched brackets than this aren't worth combining; we look inside them instead.
+    private static final int MAX_UNMATCHED_BRACKETS = 256;
+    
+    private final PTextArea textArea;
+    private PTextStyler textStyler;
+    
+    // Guarded by 'this', as is everything below.
+    private final ArrayList<Line> lines = new ArrayList<Line>();
+    // The lines that have changed since we last summarized them. We find them from here rather than by walking all the lines, which would make every edit linear.
+    private BitSet dirtyLines = new BitSet();
+    // The segment tree: node 1 is the root, and node i's children are 2i and 2i+1. The lines are the leaves, from treeSize.
+    private Summary[] tree;
+    private int treeSize;
+    // How many leaves the tree had when it was last brought up to date.
+    private int leafCount;
+    // The first leaf that may not hold its line's summary any more, because lines were added or removed before it.
+    private int firstStaleLeaf;
+    
+    private static class Line {
+        private Summary summary;
+        private boolean startsCommented;
+    }
+    
+    /**
+     * The brackets left in a range of text after cancelling matched pairs.
+     */
+    private static final class Summary {
+        private static final Summary EMPTY = new Summary("", "");
+        // A range with mismatched or too many brackets, which we can't step over without looking inside.
+        private static final Summary OPAQUE = new Summary("", "");
+        
+        // The unmatched close brackets, in order.
+        private final String closes;
+        // The unmatched open brackets, in order.
+        private final String opens;
+        
+        private Summary(String closes, String opens) {
+            this.closes = closes;
+            this.opens = opens;
+        }
+        
+        private static Summary make(CharSequence closes, CharSequence opens) {
+            if (closes.length() + opens.length() > MAX_UNMATCHED_BRACKETS) {
+                return OPAQUE;
+            }
+            return (closes.length() == 0 && opens.length() == 0) ? EMPTY : new Summary(closes.toString(), opens.toString());
+        }
+        
+        private static Summary combine(Summary left, Summary right) {
+            if (left == OPAQUE || right == OPAQUE) {
+                return OPAQUE;
+            }
+            if (right == EMPTY) {
+                return left;
+            }
+            if (left == EMPTY) {
+                return right;
+            }
+            // The left's unmatched opens meet the right's unmatched closes, innermost first.
+            final int pairCount = Math.min(left.opens.length(), right.closes.length());
+            for (int i = 0; i < pairCount; ++i) {
+                if (PBracketUtilities.getPartnerForBracket(left.opens.charAt(left.opens.length() - 1 - i)) != right.closes.charAt(i)) {
+                    return OPAQUE;
+                }
+            }
+            String closes = left.closes + right.closes.substring(pairCount);
+            String opens = left.opens.substring(0, left.opens.length() - pairCount) + right.opens;
+            return make(closes, opens);
+        }
+    }
+    
+    PBracketIndex(PTextArea textArea) {
+        this.textArea = textArea;
+        if (textArea != null) {
+            linesCompletelyReplaced(null);
+        }
+    }
+    
+    /**
+     * Returns the offset of the bracket matching the one at 'offset', NO_MATCH, or UNKNOWN if the index can't say.
+     * This is PBracketUtilities.findMatchingBracketInSameStyle's search for round, square, and curly brackets in the normal style.
+     */
+    int findMatchingBracket(int offset) {
+        textArea.getLock().getReadLock();
+        try {
+            synchronized (this) {
+                PTextStyler styler = textArea.getTextStyler();
+                if (styler instanceof PAbstractLanguageStyler == false) {
+                    return UNKNOWN;
+                }
+                if (styler != textStyler) {
+                    // Different styling means different brackets.
+                    textStyler = styler;
+                    linesCompletelyReplaced(null);
+                }
+                if ("([{}])".indexOf(textArea.getTextBuffer().charAt(offset)) == -1) {
+                    return UNKNOWN;
+                }
+                final int lineIndex = textArea.getLineOfOffset(offset);
+                return findMatchingBracket(lineIndex, offset - getLineStartOffset(lineIndex));
+            }
+        } finally {
+            textArea.getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Returns the offset of the bracket matching the one 'offsetInLine' characters into the given line, NO_MATCH, or UNKNOWN.
+     * Callers must hold the text area's read lock, and synchronize on this index.
+     */
+    int findMatchingBracket(int lineIndex, int offsetInLine) {
+        final int lineStart = getLineStartOffset(lineIndex);
+        final char[] chars = getBracketChars(lineIndex);
+        final char bracket = chars[offsetInLine];
+        if ("([{}])".indexOf(bracket) == -1) {
+            // The bracket's in a comment or string, so it can only match brackets in comments or strings.
+            return UNKNOWN;
+        }
+        ensureUpToDate();
+        
+        final boolean isForward = PBracketUtilities.isOpenBracket(bracket);
+        StringBuilder stack = new StringBuilder();
+        stack.append(bracket);
+        int result = isForward ? scan(chars, lineStart, offsetInLine + 1, chars.length, stack, true) : scan(chars, lineStart, 0, offsetInLine, stack, false);
+        if (result == CONTINUE) {
+            result = isForward ? searchForward(1, 0, treeSize, lineIndex + 1, stack) : searchBackward(1, 0, treeSize, lineIndex, stack);
+        }
+        return (result == CONTINUE) ? NO_MATCH : result;
+    }
+    
+    /**
+     * Searches lines from 'fromLine' onwards within the given node.
+     */
+    private int searchForward(int node, int nodeStart, int nodeEnd, int fromLine, StringBuilder stack) {
+        if (nodeEnd <= fromLine || nodeStart >= lines.size()) {
+            return CONTINUE;
+        }
+        if (nodeStart >= fromLine) {
+            Summary summary = tree[node];
+            if (summary != Summary.OPAQUE) {
+                // The summary's close brackets meet our unmatched open brackets, innermost first.
+                final int stackSize = stack.length();
+                final int pairCount = Math.min(summary.closes.length(), stackSize);
+                for (int i = 0; i < pairCount; ++i) {
+                    if (PBracketUtilities.getPartnerForBracket(stack.charAt(stackSize - 1 - i)) != summary.closes.charAt(i)) {
+                        return NO_MATCH;
+                    }
+                }
+                if (summary.closes.length() < stackSize) {
+                    // The match isn't in this range, so we can step over it.
+                    stack.setLength(stackSize - summary.closes.length());
+                    stack.append(summary.opens);
+                    return CONTINUE;
+                }
+            }
+        }
+        if (nodeEnd - nodeStart == 1) {
+            return scanLine(nodeStart, stack, true);
+        }
+        final int mid = (nodeStart + nodeEnd) >>> 1;
+        int result = searchForward(2 * node, nodeStart, mid, fromLine, stack);
+        return (result != CONTINUE) ? result : searchForward(2 * node + 1, mid, nodeEnd, fromLine, stack);
+    }
+    
+    /**
+     * Searches lines before 'toLine' within the given node, last line first.
+     */
+    private int searchBackward(int node, int nodeStart, int nodeEnd, int toLine, StringBuilder stack) {
+        if (nodeStart >= toLine) {
+            return CONTINUE;
+        }
+        if (nodeEnd <= toLine) {
+            Summary summary = tree[node];
+            if (summary != Summary.OPAQUE) {
+                // Going backwards, the summary's open brackets meet our unmatched close brackets, innermost first.
+                final int stackSize = stack.length();
+                final int openCount = summary.opens.length();
+                final int pairCount = Math.min(openCount, stackSize);
+                for (int i = 0; i < pairCount; ++i) {
+                    if (PBracketUtilities.getPartnerForBracket(stack.charAt(stackSize - 1 - i)) != summary.opens.charAt(openCount - 1 - i)) {
+                        return NO_MATCH;
+                    }
+                }
+                if (openCount < stackSize) {
+                    stack.setLength(stackSize - openCount);
+                    stack.append(new StringBuilder(summary.closes).reverse());
+                    return CONTINUE;
+                }
+            }
+        }
+        if (nodeEnd - nodeStart == 1) {
+            return scanLine(nodeStart, stack, false);
+        }
+        final int mid = (nodeStart + nodeEnd) >>> 1;
+        int result = searchBackward(2 * node + 1, mid, nodeEnd, toLine, stack);
+        return (result != CONTINUE) ? result : searchBackward(2 * node, nodeStart, mid, toLine, stack);
+    }
+    
+    private int scanLine(int lineIndex, StringBuilder stack, boolean isForward) {
+        char[] chars = getBracketChars(lineIndex);
+        return scan(chars, getLineStartOffset(lineIndex), 0, chars.length, stack, isForward);
+    }
+    
+    /**
+     * Scans chars[start, end) in the given direction, pushing brackets going our way onto 'stack' and popping those coming back.
+     * Returns the offset at which the stack empties, NO_MATCH if a bracket meets one of the wrong kind, or CONTINUE.
+     */
+    private static int scan(char[] chars, int lineStart, int start, int end, StringBuilder stack, boolean isForward) {
+        for (int n = start; n < end; ++n) {
+            final int i = isForward ? n : (start + end - 1 - n);
+            final char ch = chars[i];
+            if (ch == ' ' || "([{}])".indexOf(ch) == -1) {
+                continue;
+            }
+            if (PBracketUtilities.isOpenBracket(ch) == isForward) {
+                stack.append(ch);
+            } else {
+                final int top = stack.length() - 1;
+                if (PBracketUtilities.getPartnerForBracket(stack.charAt(top)) != ch) {
+                    return NO_MATCH;
+                }
+                stack.setLength(top);
+                if (top == 0) {
+                    return lineStart + i;
+                }
+            }
+        }
+        return CONTINUE;
+    }
+    
+    int getLineCount() {
+        return textArea.getLineCount();
+    }
+    
+    int getLineStartOffset(int lineIndex) {
+        return textArea.getLineStartOffset(lineIndex);
+    }
+    
+    /**
+     * Returns whether the given line starts in a multi-line comment, which affects which of its brackets are in the normal style.
+     */
+    boolean startsCommented(int lineIndex) {
+        return ((PAbstractLanguageStyler) textStyler).startsCommented(lineIndex);
+    }
+    
+    /**
+     * Returns the characters of the given line, with everything not in the normal style replaced by spaces.
+     */
+    char[] getBracketChars(int lineIndex) {
+        final int lineStart = textArea.getLineStartOffset(lineIndex);
+        final char[] result = new char[textArea.getLineContents(lineIndex).length()];
+        Arrays.fill(result, ' ');
+        for (PLineSegment segment : textArea.getLineSegments(lineIndex)) {
+            if (segment.getStyle() == PStyle.NORMAL) {
+                CharSequence chars = segment.getCharSequence();
+                final int segmentStart = segment.getOffset() - lineStart;
+                for (int i = 0; i < chars.length() && segmentStart + i < result.length; ++i) {
+                    result[segmentStart + i] = chars.charAt(i);
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Re-summarizes the given line, returning the new summary.
+     */
+    private Summary summarizeLine(int lineIndex) {
+        Line line = lines.get(lineIndex);
+        line.startsCommented = startsCommented(lineIndex);
+        line.summary = computeSummary(lineIndex);
+        dirtyLines.clear(lineIndex);
+        return line.summary;
+    }
+    
+    private Summary computeSummary(int lineIndex) {
+        StringBuilder closes = new StringBuilder();
+        StringBuilder opens = new StringBuilder();
+        for (char ch : getBracketChars(lineIndex)) {
+            if (ch == ' ' || "([{}])".indexOf(ch) == -1) {
+                continue;
+            }
+            if (PBracketUtilities.isOpenBracket(ch)) {
+                opens.append(ch);
+            } else if (opens.length() == 0) {
+                closes.append(ch);
+            } else if (PBracketUtilities.getPartnerForBracket(opens.charAt(opens.length() - 1)) == ch) {
+                opens.setLength(opens.length() - 1);
+            } else {
+                return Summary.OPAQUE;
+            }
+        }
+        return Summary.make(closes, opens);
+    }
+    
+    /**
+     * Re-summarizes any lines that have changed, and brings the tree up to date.
+     */
+    private void ensureUpToDate() {
+        final int lineCount = lines.size();
+        if (tree == null || treeSize < lineCount || treeSize > 4 * lineCount + 2) {
+            treeSize = Integer.highestOneBit(Math.max(1, 2 * lineCount - 1)) << 1;
+            tree = new Summary[2 * treeSize];
+            Arrays.fill(tree, Summary.EMPTY);
+            leafCount = 0;
+            firstStaleLeaf = 0;
+        }
+        for (int i = dirtyLines.nextSetBit(0); i != -1 && i < lineCount; i = dirtyLines.nextSetBit(i)) {
+            // Each changed line may change whether the lines after it start in a comment, so carry on until we reach one that's no different.
+            for (; i < lineCount && (dirtyLines.get(i) || lines.get(i).startsCommented != startsCommented(i)); ++i) {
+                Summary summary = summarizeLine(i);
+                if (i < firstStaleLeaf) {
+                    setLeaf(i, summary);
+                }
+            }
+        }
+        dirtyLines.clear();
+        if (firstStaleLeaf < Math.max(lineCount, leafCount)) {
+            rebuildFrom(firstStaleLeaf, Math.max(lineCount, leafCount));
+        }
+        leafCount = lineCount;
+        firstStaleLeaf = Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Refills leaves [firstLine, endLine) from the lines' summaries, and recombines the nodes above them.
+     * Leaves past the last line are emptied.
+     */
+    private void rebuildFrom(int firstLine, int endLine) {
+        for (int i = firstLine; i < endLine; ++i) {
+            tree[treeSize + i] = (i < lines.size()) ? lines.get(i).summary : Summary.EMPTY;
+        }
+        for (int first = (treeSize + firstLine) / 2, last = (treeSize + endLine - 1) / 2; first > 0; first /= 2, last /= 2) {
+            for (int node = first; node <= last; ++node) {
+                tree[node] = Summary.combine(tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+    }
+    
+    private void setLeaf(int lineIndex, Summary summary) {
+        int node = treeSize + lineIndex;
+        tree[node] = summary;
+        for (node /= 2; node > 0; node /= 2) {
+            tree[node] = Summary.combine(tree[2 * node], tree[2 * node + 1]);
+        }
+    }
+    
+    public synchronized void linesAdded(PLineEvent event) {
+        final int index = event.getLineIndex();
+        final int count = event.getLength();
+        BitSet newDirtyLines = new BitSet();
+        for (int i = dirtyLines.nextSetBit(0); i != -1; i = dirtyLines.nextSetBit(i + 1)) {
+            newDirtyLines.set((i < index) ? i : i + count);
+        }
+        newDirtyLines.set(index, index + count);
+        dirtyLines = newDirtyLines;
+        lines.addAll(index, newLines(count));
+        // The leaves from here on have moved.
+        firstStaleLeaf = Math.min(firstStaleLeaf, index);
+    }
+    
+    public synchronized void linesRemoved(PLineEvent event) {
+        final int index = event.getLineIndex();
+        final int count = event.getLength();
+        BitSet newDirtyLines = new BitSet();
+        for (int i = dirtyLines.nextSetBit(0); i != -1; i = dirtyLines.nextSetBit(i + 1)) {
+            if (i < index) {
+                newDirtyLines.set(i);
+            } else if (i >= index + count) {
+                newDirtyLines.set(i - count);
+            }
+        }
+        dirtyLines = newDirtyLines;
+        lines.subList(index, index + count).clear();
+        firstStaleLeaf = Math.min(firstStaleLeaf, index);
+    }
+    
+    public synchronized void linesChanged(PLineEvent event) {
+        dirtyLines.set(event.getLineIndex(), event.getLineIndex() + event.getLength());
+    }
+    
+    public synchronized void linesCompletelyReplaced(PLineEvent event) {
+        lines.clear();
+        lines.addAll(newLines(getLineCount()));
+        dirtyLines = new BitSet();
+        dirtyLines.set(0, lines.size());
+        tree = null;
+    }
+    
+    private static List<Line> newLines(int count) {
+        List<Line> result = new ArrayList<Line>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new Line());
+        }
+        return result;
+    }
+    
+    /**
+     * Indexes plain lines, in which only multi-line comments (between "/*" and "*\/") aren't in the normal style.
+     * Changes are reported the way PLineList reports them.
+     */
+    private static class TestIndex extends PBracketIndex {
+        private final ArrayList<String> text = new ArrayList<String>();
+        private int bracketCharsCallCount;
+        
+        private TestIndex(String... lines) {
+            super(null);
+            text.addAll(Arrays.asList(lines));
+            linesCompletelyReplaced(null);
+        }
+        
+        @Override int getLineCount() {
+            return text.size();
+        }
+        
+        @Override int getLineStartOffset(int lineIndex) {
+            int result = 0;
+            for (int i = 0; i < lineIndex; ++i) {
+                result += text.get(i).length() + 1;
+            }
+            return result;
+        }
+        
+        @Override boolean startsCommented(int lineIndex) {
+            boolean comment = false;
+            for (int i = 0; i < lineIndex; ++i) {
+                comment = getCommentedChars(text.get(i), comment)[text.get(i).length()];
+            }
+            return comment;
+        }
+        
+        @Override char[] getBracketChars(int lineIndex) {
+            ++bracketCharsCallCount;
+            final char[] result = text.get(lineIndex).toCharArray();
+            final boolean[] commented = getCommentedChars(text.get(lineIndex), startsCommented(lineIndex));
+            for (int i = 0; i < result.length; ++i) {
+                if (commented[i]) {
+                    result[i] = ' ';
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * Returns which of the line's characters are in a comment, followed by whether the next line starts in one.
+         */
+        private static boolean[] getCommentedChars(String line, boolean comment) {
+            boolean[] result = new boolean[line.length() + 1];
+            int i = 0;
+            while (i < line.length()) {
+                if (comment || line.startsWith("/*", i)) {
+                    final int end = line.indexOf("*/", comment ? i : i + 2);
+                    final int stop = (end == -1) ? line.length() : end + 2;
+                    Arrays.fill(result, i, stop, true);
+                    comment = (end == -1);
+                    i = stop;
+                } else {
+                    ++i;
+                }
+            }
+            result[line.length()] = comment;
+            return result;
+        }
+        
+        private int find(int lineIndex, int offsetInLine) {
+            return findMatchingBracket(lineIndex, offsetInLine);
+        }
+        
+        private int offsetOf(int lineIndex, int offsetInLine) {
+            return getLineStartOffset(lineIndex) + offsetInLine;
+        }
+        
+        private void changeLine(int lineIndex, String line) {
+            text.set(lineIndex, line);
+            linesChanged(new PLineEvent(null, PLineEvent.CHANGED, lineIndex, 1));
+        }
+        
+        // Inserting whole lines at the start of a line changes that line, and adds lines after it.
+        private void insertLines(int lineIndex, String... lines) {
+            text.addAll(lineIndex, Arrays.asList(lines));
+            linesChanged(new PLineEvent(null, PLineEvent.CHANGED, lineIndex, 1));
+            linesAdded(new PLineEvent(null, PLineEvent.ADDED, lineIndex + 1, lines.length));
+        }
+        
+        // Removing whole lines changes the first of them, and removes those after it.
+        private void removeLines(int lineIndex, int count) {
+            text.subList(lineIndex, lineIndex + count).clear();
+            linesChanged(new PLineEvent(null, PLineEvent.CHANGED, lineIndex, 1));
+            linesRemoved(new PLineEvent(null, PLineEvent.REMOVED, lineIndex + 1, count));
+        }
+    }
+    
+    @Test private static void testNestedBrackets() {
+        TestIndex index = new TestIndex(
+            "void f() {",
+            "    if (a[i] == b) {",
+            "        g(x, (y));",
+            "    }",
+            "}");
+        Assert.equals(index.find(0, 9), index.offsetOf(4, 0));
+        Assert.equals(index.find(4, 0), index.offsetOf(0, 9));
+        Assert.equals(index.find(0, 6), index.offsetOf(0, 7));
+        Assert.equals(index.find(1, 7), index.offsetOf(1, 17));
+        Assert.equals(index.find(1, 9), index.offsetOf(1, 11));
+        Assert.equals(index.find(1, 19), index.offsetOf(3, 4));
+        Assert.equals(index.find(3, 4), index.offsetOf(1, 19));
+        Assert.equals(index.find(2, 9), index.offsetOf(2, 16));
+        Assert.equals(index.find(2, 15), index.offsetOf(2, 13));
+        // Not a bracket.
+        Assert.equals(index.find(2, 8), UNKNOWN);
+    }
+    
+    @Test private static void testUnbalancedBrackets() {
+        TestIndex index = new TestIndex(
+            "a(b[c)",
+            "{",
+            "x]",
+            "}",
+            "(",
+            "{ [",
+            "] }");
+        Assert.equals(index.find(0, 1), NO_MATCH);
+        Assert.equals(index.find(0, 3), NO_MATCH);
+        Assert.equals(index.find(1, 0), NO_MATCH);
+        Assert.equals(index.find(3, 0), NO_MATCH);
+        // Nothing after it closes it.
+        Assert.equals(index.find(4, 0), NO_MATCH);
+        // A mismatch elsewhere in the file doesn't stop a balanced pair matching, in either direction.
+        Assert.equals(index.find(5, 0), index.offsetOf(6, 2));
+        Assert.equals(index.find(6, 2), index.offsetOf(5, 0));
+        Assert.equals(index.find(6, 0), index.offsetOf(5, 2));
+    }
+    
+    @Test private static void testComments() {
+        TestIndex index = new TestIndex(
+            "f(/* ) */ x,",
+            "  /* (",
+            "  ) */ y)");
+        Assert.equals(index.find(0, 1), index.offsetOf(2, 8));
+        Assert.equals(index.find(2, 8), index.offsetOf(0, 1));
+        // Brackets in comments are for the caller to match.
+        Assert.equals(index.find(0, 5), UNKNOWN);
+        Assert.equals(index.find(1, 5), UNKNOWN);
+        Assert.equals(index.find(2, 2), UNKNOWN);
+        
+        // Removing the start of a comment brings back the brackets after it, although only one line changed.
+        index = new TestIndex(
+            "(",
+            "/*",
+            "x",
+            ")");
+        Assert.equals(index.find(0, 0), NO_MATCH);
+        index.changeLine(1, "");
+        Assert.equals(index.find(0, 0), index.offsetOf(3, 0));
+    }
+    
+    @Test private static void testLineInsertionAndRemoval() {
+        final int lineCount = 1000;
+        String[] lines = new String[lineCount];
+        Arrays.fill(lines, "x(y);");
+        lines[0] = "{";
+        lines[lineCount - 1] = "}";
+        TestIndex index = new TestIndex(lines);
+        Assert.equals(index.find(0, 0), index.offsetOf(lineCount - 1, 0));
+        
+        // Only the new lines are looked at, not every line after them.
+        index.bracketCharsCallCount = 0;
+        index.insertLines(500, "(", "[");
+        Assert.equals(index.find(0, 0), NO_MATCH);
+        Assert.equals(index.bracketCharsCallCount < 20, true);
+        
+        index.removeLines(500, 2);
+        Assert.equals(index.find(0, 0), index.offsetOf(lineCount - 1, 0));
+        Assert.equals(index.find(lineCount - 1, 0), 0);
+        
+        // Opening a comment changes the lines after it, until it's closed.
+        index.insertLines(10, "/*");
+        Assert.equals(index.find(0, 0), NO_MATCH);
+        Assert.equals(index.find(lineCount, 0), UNKNOWN);
+        index.changeLine(10, "/* */ {");
+        Assert.equals(index.find(0, 0), NO_MATCH);
+        Assert.equals(index.find(10, 6), index.offsetOf(lineCount, 0));
+        index.removeLines(10, 1);
+        Assert.equals(index.find(0, 0), index.offsetOf(lineCount - 1, 0));
+        index.insertLines(10, "/*", "x", "*/");
+        Assert.equals(index.find(lineCount + 2, 0), 0);
+        // Removing the end of a comment leaves it running to the end of the file; removing its start ends it.
+        index.removeLines(11, 2);
+        Assert.equals(index.find(0, 0), NO_MATCH);
+        Assert.equals(index.find(lineCount, 0), UNKNOWN);
+        index.removeLines(10, 1);
+        Assert.equals(index.find(0, 0), index.offsetOf(lineCount - 1, 0));
+        
+        // Enough new lines that the tree has to grow, and then shrink again.
+        String[] moreLines = new String[3 * lineCount];
+        Arrays.fill(moreLines, "[]");
+        index.insertLines(1, moreLines);
+        Assert.equals(index.find(0, 0), index.offsetOf(4 * lineCount - 1, 0));
+        index.removeLines(1, 3 * lineCount + lineCount / 2);
+        Assert.equals(index.find(0, 0), index.offsetOf(lineCount / 2 - 1, 0));
+        Assert.equals(index.find(lineCount / 2 - 1, 0), 0);
+    }
+}
@@ -67,6 +67,18 @@ public class PBracketUtilities {
      * closing bracket. An exception is thrown if we're not next to a bracket.
      */
     public static int findMatchingBracketInSameStyle(PTextArea textArea, int offset) {
+        if (afterOpenBracket(textArea.getTextBuffer(), offset) || beforeCloseBracket(textArea.getTextBuffer(), offset)) {
+            // Most brackets are code, where the index saves us walking everything in between.
+            int bracketOffset = afterOpenBracket(textArea.getTextBuffer(), offset) ? offset - 1 : offset;
+            int result = textArea.getBracketIndex().findMatchingBracket(bracketOffset);
+            if (result != PBracketIndex.UNKNOWN) {
+                return result;
+            }
+        }
+        return findMatchingBracketByScanning(textArea, offset);
+    }
+    
+    private static int findMatchingBracketByScanning(PTextArea textArea, int offset) {
         if (afterOpenBracket(textArea.getTextBuffer(), offset)) {
             Iterator<PLineSegment> segments = textArea.getLogicalSegmentIterator(offset - 1);
             segments = new PSameStyleSegmentIterator(segments);
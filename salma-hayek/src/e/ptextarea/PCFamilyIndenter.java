@@ -2,6 +2,7 @@ package e.ptextarea;
 
 import e.util.*;
 import java.util.*;
+import java.util.regex.*;
 
 /**
  * Implements indentation for members of the C family, parameterized to cater for their differences.
@@ -15,6 +16,15 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     private static final String SWITCH_LABEL_OUTDENT = "switchLabelOutdent";
     private static final String ACCESS_SPECIFIER_OUTDENT = "accessSpecifierOutdent";
 
+    private static final Pattern SWITCH_LABEL_PATTERN = Pattern.compile("(case\\b.*|default\\s*):.*");
+
+    // While fixing a range of lines, the effective part of the lines that won't change before we're done, since we look back over the same lines for each line we fix.
+    private HashMap<Integer, String> effectiveLines;
+    // While fixing a range of lines, where the search back for previous statements ends, given the line it's reached and its state there.
+    private HashMap<String, Integer> statementStarts;
+    // While fixing a range of lines, the state after the previous statements of the last line we fixed.
+    private IndentState carriedState;
+
     public PCFamilyIndenter(PTextArea textArea) {
         super(textArea);
     }
@@ -68,7 +78,7 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     }
 
     public boolean isSwitchLabel(String activePartOfLine) {
-        return activePartOfLine.matches("(case\\b.*|default\\s*):.*");
+        return SWITCH_LABEL_PATTERN.matcher(activePartOfLine).matches();
     }
 
     /*
@@ -80,6 +90,29 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
      * will be returned as an empty string.
      */
     private String extractEffectivePartOfLine(int lineIndex) {
+        String result = (effectiveLines != null) ? effectiveLines.get(lineIndex) : null;
+        if (result == null) {
+            result = calculateEffectivePartOfLine(lineIndex);
+            if (effectiveLines != null && isAlreadyFixed(lineIndex)) {
+                effectiveLines.put(lineIndex, result);
+            }
+        }
+        return result;
+    }
+
+    @Override protected void willFixLines() {
+        effectiveLines = new HashMap<Integer, String>();
+        statementStarts = new HashMap<String, Integer>();
+        carriedState = null;
+    }
+
+    @Override protected void didFixLines() {
+        effectiveLines = null;
+        statementStarts = null;
+        carriedState = null;
+    }
+
+    private String calculateEffectivePartOfLine(int lineIndex) {
         List<PLineSegment> segments = textArea.getLineSegments(lineIndex);
         StringBuilder result = new StringBuilder(256);  // Initialize with some sensible capacity.
         for (PLineSegment segment: segments) {
@@ -109,20 +142,46 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
                 result.append(segment.getCharSequence());
             }
         }
-        return StringUtilities.trimTrailingWhitespace(result.toString());
+        return withReplacementIndentation(lineIndex, StringUtilities.trimTrailingWhitespace(result.toString()));
     }
 
     public LinkedList<String> extractPreviousStatements(int lineIndex) {
         LinkedList<String> result = new LinkedList<String>();
-        Stack<Character> brackets = new Stack<Character>();
-        boolean terminate = false;
+        for (int i = findStartOfPreviousStatements(lineIndex); i < lineIndex; i++) {
+            String line = extractEffectivePartOfLine(i);
+            if (!line.isEmpty()) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the index of the first line of the statements before the indexed line, or 'lineIndex' itself if there are none.
+     */
+    private int findStartOfPreviousStatements(int lineIndex) {
+        StringBuilder brackets = new StringBuilder();
         int semicolonsSeen = 0;
-        for (int i = lineIndex - 1; i >= 0 && !terminate; i--) {
+        int result = lineIndex;
+        // While fixing a range of lines, the search for one line usually reaches a line in the same state as the search for the line before it,
+        // and from there it must end in the same place.
+        ArrayList<String> visitedStates = (statementStarts != null) ? new ArrayList<String>() : null;
+        for (int i = lineIndex - 1; i >= 0; i--) {
             String line = extractEffectivePartOfLine(i);
             // Ignore any lines which only contain comments and/or whitespace.
             if (line.isEmpty()) {
                 continue;
             }
+            if (visitedStates != null) {
+                String state = i + " " + semicolonsSeen + " " + brackets;
+                Integer knownResult = statementStarts.get(state);
+                if (knownResult != null) {
+                    result = knownResult;
+                    break;
+                }
+                visitedStates.add(state);
+            }
+            boolean terminate = false;
             for (int j = line.length() - 1; j >= 0; j--) {
                 char ch = line.charAt(j);
                 // For now, ignore < and > characters as, although they may affect indentation in C++ templates and
@@ -133,29 +192,29 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
                 if (PBracketUtilities.isCloseBracket(ch)) {
                     // If this close bracket has nothing but whitespace to its left, we assume it's already indented at the
                     // correct level.
-                    if (line.substring(0, j).matches("^ *$")) {
+                    if (isAllSpaces(line, j)) {
                         terminate = true;
                     }
-                    brackets.push(PBracketUtilities.getPartnerForBracket(ch));
+                    brackets.append(PBracketUtilities.getPartnerForBracket(ch));
                 } else if (PBracketUtilities.isOpenBracket(ch)) {
-                    if (brackets.empty()) {
+                    if (brackets.length() == 0) {
                         // TODO: think.
                     } else {
-                        if (brackets.peek() == ch) {
-                            brackets.pop();
+                        if (brackets.charAt(brackets.length() - 1) == ch) {
+                            brackets.setLength(brackets.length() - 1);
                         } else {
                             // If the open bracket doesn't match a later closed bracket, we assume that the code we're
                             // writing is part-way through a statement of some kind.  If the open bracket is the first thing
                             // on the line, we're going to assume its indentation is definitive, so we'll include it and nothing
                             // before it in the result.
-                            if (line.substring(0, j).matches("^ *$")) {
+                            if (isAllSpaces(line, j)) {
                                 terminate = true;
                             }
                         }
                     }
                 }
             }
-            result.addFirst(line);
+            result = i;
             // If there are no unmatched close brackets left, we count how many lines we've seen which end in a
             // semicolon.  We need to be careful of for loops, which in the worst case can look like this:
             //  for (
@@ -164,17 +223,33 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
             //     ++x)
             // So if we count 3 lines ending in semicolons, and there are no unmatched close brackets, we can't be
             // returning something which starts in the middle of a for loop.
-            if (brackets.empty() && line.endsWith(";")) {
+            if (brackets.length() == 0 && line.endsWith(";")) {
                 semicolonsSeen++;
                 if (semicolonsSeen >= 3) {
                     terminate = true;
                 }
             }
-
+            if (terminate) {
+                break;
+            }
+        }
+        if (visitedStates != null) {
+            for (String state : visitedStates) {
+                statementStarts.put(state, result);
+            }
         }
         return result;
     }
 
+    private static boolean isAllSpaces(String line, int end) {
+        for (int i = 0; i < end; i++) {
+            if (line.charAt(i) != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static class Indent {
         // The 'openBracket' variable is either going to be:
         // '{' or '(' - an actual open bracket.
@@ -216,12 +291,34 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
     }
 
     String calculateNewIndentation(LinkedList<String> previousStatements, String trimmedCurrentLine) {
-        if (previousStatements.isEmpty()) {
-            return "";
-        }
-        Stack<Indent> indentLevels = new Stack<Indent>();
-        String defaultIndentation = PIndenter.indentationOf(previousStatements.getFirst());
+        IndentState state = new IndentState(0);
         for (String line: previousStatements) {
+            state.addLine(line);
+        }
+        return state.calculateIndentation(trimmedCurrentLine);
+    }
+
+    /**
+     * The indentation implied by a run of previous statements, built up a line at a time.
+     * While fixing a range of lines, consecutive lines usually share their previous statements, so we carry on from the last line's state rather than starting again.
+     */
+    private class IndentState {
+        private final Stack<Indent> indentLevels = new Stack<Indent>();
+        // The indentation of the last definitive line, or null if we haven't seen any lines.
+        private String defaultIndentation;
+        // The first line of the run, and the line after the last one we've looked at.
+        private final int firstLine;
+        private int nextLine;
+
+        private IndentState(int firstLine) {
+            this.firstLine = firstLine;
+            this.nextLine = firstLine;
+        }
+
+        private void addLine(String line) {
+            if (defaultIndentation == null) {
+                defaultIndentation = PIndenter.indentationOf(line);
+            }
             // We assume that each line in previousStatements is indented correctly, so we just record in our
             // stack the level of indentation applicable to each bracket.
             String indentation = PIndenter.indentationOf(line);
@@ -290,24 +387,36 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
                 indentLevels.push(new Indent(';', defaultIndentation, getOpenBracketIndent(';')));
             }
         }
-        // If the current line is some kind of case or default label, or if it starts with a close parenthesis, remove
-        // any case or default indentation levels, as we need to indent from the base of the switch statement block
-        // in all these cases, to avoid double-indent.
-        if (isSwitchLabel(trimmedCurrentLine) || trimmedCurrentLine.startsWith("}")) {
-            Indent baseLevel = dropTrailingCaseOrDefaultOrContinuationIndent(indentLevels);
-            if (baseLevel != null) {
-                defaultIndentation = baseLevel.getIndentation();
+
+        /**
+         * Returns the indentation for a line following the lines added so far, leaving this state unchanged.
+         */
+        private String calculateIndentation(String trimmedCurrentLine) {
+            if (defaultIndentation == null) {
+                return "";
+            }
+            Stack<Indent> indentLevels = new Stack<Indent>();
+            indentLevels.addAll(this.indentLevels);
+            String defaultIndentation = this.defaultIndentation;
+            // If the current line is some kind of case or default label, or if it starts with a close parenthesis, remove
+            // any case or default indentation levels, as we need to indent from the base of the switch statement block
+            // in all these cases, to avoid double-indent.
+            if (isSwitchLabel(trimmedCurrentLine) || trimmedCurrentLine.startsWith("}")) {
+                Indent baseLevel = dropTrailingCaseOrDefaultOrContinuationIndent(indentLevels);
+                if (baseLevel != null) {
+                    defaultIndentation = baseLevel.getIndentation();
+                }
+            }
+            // If there's nothing left in the stack, we fall back to using the same indentation level as
+            // the last definitive line.
+            if (indentLevels.empty()) {
+                return defaultIndentation;
+            } else {
+                // If we still have stuff on the stack, then the last element of these is the open bracket
+                // we should derive our new indentation from.
+                Indent indent = indentLevels.pop();
+                return indent.getIndentation() + indent.getSubIndent();
             }
-        }
-        // If there's nothing left in the stack, we fall back to using the same indentation level as
-        // the last definitive line.
-        if (indentLevels.empty()) {
-            return defaultIndentation;
-        } else {
-            // If we still have stuff on the stack, then the last element of these is the open bracket
-            // we should derive our new indentation from.
-            Indent indent = indentLevels.pop();
-            return indent.getIndentation() + indent.getSubIndent();
         }
     }
 
@@ -427,7 +536,7 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
             if (lineIndex == 0) {
                 return "";
             }
-            String previousLine = textArea.getLineText(lineIndex - 1);
+            String previousLine = getLineText(lineIndex - 1);
             int previousOperatorOutIndex = previousLine.indexOf("<<");
             if (previousOperatorOutIndex != -1) {
                 return StringUtilities.nCopies(previousOperatorOutIndex, ' ');
@@ -436,17 +545,21 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
 
         // TODO: First, check if this line is within a multi-line comment, and if so, apply some comment-specific logic.
         // Then, fall back to the code case:
-        LinkedList<String> previousStatements = extractPreviousStatements(lineIndex);
-        debug("=======================");
-        debug("Line " + (lineIndex + 1) + " has " + previousStatements.size() + " lines of previous statement:");
-        for (String line: previousStatements) {
-            debug(line);
-        }
-        debug(textArea.getLineContents(lineIndex));
-        debug("=======================");
-
         String trimmedLine = StringUtilities.trimLeadingWhitespace(textArea.getLineContents(lineIndex).toString());
-        String newIndentation = calculateNewIndentation(previousStatements, trimmedLine);
+        String newIndentation;
+        if (statementStarts != null) {
+            newIndentation = getStateOfPreviousStatements(lineIndex).calculateIndentation(trimmedLine);
+        } else {
+            LinkedList<String> previousStatements = extractPreviousStatements(lineIndex);
+            debug("=======================");
+            debug("Line " + (lineIndex + 1) + " has " + previousStatements.size() + " lines of previous statement:");
+            for (String line: previousStatements) {
+                debug(line);
+            }
+            debug(textArea.getLineContents(lineIndex));
+            debug("=======================");
+            newIndentation = calculateNewIndentation(previousStatements, trimmedLine);
+        }
         debug("Calculated new indentation:");
         debug(newIndentation + trimmedLine);
         String effectiveLine = extractEffectivePartOfLine(lineIndex);
@@ -454,5 +567,23 @@ public abstract class PCFamilyIndenter extends PSimpleIndenter {
         return adjustedIndentationForCurrentLine(newIndentation, StringUtilities.trimLeadingWhitespace(effectiveLine));
     }
 
+    /**
+     * Returns the state after the previous statements of the indexed line, while fixing a range of lines.
+     * If they start where the last line's did, we only need to add the lines since then.
+     */
+    private IndentState getStateOfPreviousStatements(int lineIndex) {
+        final int firstLine = findStartOfPreviousStatements(lineIndex);
+        if (carriedState == null || carriedState.firstLine != firstLine || carriedState.nextLine > lineIndex) {
+            carriedState = new IndentState(firstLine);
+        }
+        for (; carriedState.nextLine < lineIndex; carriedState.nextLine++) {
+            String line = extractEffectivePartOfLine(carriedState.nextLine);
+            if (!line.isEmpty()) {
+                carriedState.addLine(line);
+            }
+        }
+        return carriedState;
+    }
+
     protected abstract boolean isLabel(String activePartOfLine);
 }
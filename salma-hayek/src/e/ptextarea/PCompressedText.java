@@ -0,0 +1,160 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.util.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * Holds a large block of text deflated, for the undo buffer.
+ * 
+ * Replacing all the text of a large file leaves a copy of the whole file in the undo buffer, at two bytes per character.
+ * Source code compresses well, so we keep such copies deflated, and only inflate them when they're undone or redone.
+ * 
+ * This is a CharSequence so it can stand in for the uncompressed text, but every method other than length inflates the whole text.
+ * Callers that care should use 'expand' once rather than calling charAt in a loop.
+ */
+class PCompressedText implements CharSequence {
+    // Deflating a small edit isn't worth the time, and won't save much space.
+    private static final int MIN_COMPRESSIBLE_LENGTH = 16 * 1024;
+    
+    private final byte[] bytes;
+    private final int length;
+    
+    private PCompressedText(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
+    }
+    
+    /**
+     * Returns a compressed copy of 'chars', or 'chars' itself if it's too short to be worth compressing or doesn't compress well.
+     */
+    static CharSequence compress(CharSequence chars) {
+        if (chars == null || chars instanceof PCompressedText || chars.length() < MIN_COMPRESSIBLE_LENGTH) {
+            return chars;
+        }
+        // We store UTF-16 rather than encoding to UTF-8, because a CharSequence may contain unpaired surrogates that must survive undo.
+        final int length = chars.length();
+        byte[] input = new byte[2 * length];
+        for (int i = 0; i < length; ++i) {
+            final char ch = chars.charAt(i);
+            input[2 * i] = (byte) (ch >> 8);
+            input[2 * i + 1] = (byte) ch;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            // If we can't halve the size, it's not worth the time it'll take to inflate.
+            byte[] output = new byte[length];
+            int outputLength = 0;
+            while (deflater.finished() == false && outputLength < output.length) {
+                outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+            }
+            if (deflater.finished() == false) {
+                return chars;
+            }
+            return new PCompressedText(Arrays.copyOf(output, outputLength), length);
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Recreates text from the result of 'getCompressedBytes', for PUndoHistoryLog.
+     */
+    static PCompressedText fromCompressedBytes(byte[] bytes, int length) {
+        return new PCompressedText(bytes, length);
+    }
+    
+    /**
+     * Returns the deflated UTF-16BE text. The caller mustn't modify the array.
+     */
+    byte[] getCompressedBytes() {
+        return bytes;
+    }
+    
+    /**
+     * Returns the number of bytes this text occupies while compressed.
+     */
+    int getCompressedSize() {
+        return bytes.length;
+    }
+    
+    /**
+     * Returns the uncompressed text.
+     */
+    CharArrayCharSequence expand() {
+        byte[] output = new byte[2 * length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            int outputLength = 0;
+            while (outputLength < output.length) {
+                int byteCount = inflater.inflate(output, outputLength, output.length - outputLength);
+                if (byteCount == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("compressed text truncated after " + outputLength + " of " + output.length + " bytes");
+                }
+                outputLength += byteCount;
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("compressed text corrupted", ex);
+        } finally {
+            inflater.end();
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; ++i) {
+            chars[i] = (char) (((output[2 * i] & 0xff) << 8) | (output[2 * i + 1] & 0xff));
+        }
+        return new CharArrayCharSequence(chars);
+    }
+    
+    /**
+     * Returns 'chars', inflated if it's a PCompressedText.
+     */
+    static CharSequence expand(CharSequence chars) {
+        return (chars instanceof PCompressedText) ? ((PCompressedText) chars).expand() : chars;
+    }
+    
+    public int length() {
+        return length;
+    }
+    
+    public char charAt(int index) {
+        return expand().charAt(index);
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        return expand().subSequence(start, end);
+    }
+    
+    @Override public String toString() {
+        return expand().toString();
+    }
+    
+    @Test private static void testCompress() {
+        Assert.equals(compress(null), null);
+        Assert.equals(compress("short"), "short");
+        
+        StringBuilder source = new StringBuilder();
+        while (source.length() < 4 * MIN_COMPRESSIBLE_LENGTH) {
+            source.append("    public static void main(String[] args) {\n        System.out.println(\"hello, \u00e9\u4e16\ud800\");\n    }\n");
+        }
+        CharSequence compressed = compress(source);
+        Assert.equals(compressed instanceof PCompressedText, true);
+        Assert.equals(((PCompressedText) compressed).getCompressedSize() < source.length(), true);
+        Assert.equals(compressed.length(), source.length());
+        Assert.equals(expand(compressed).toString(), source.toString());
+        Assert.equals(compressed.charAt(1), ' ');
+    }
+    
+    @Test private static void testIncompressible() {
+        Random random = new Random(0);
+        char[] noise = new char[2 * MIN_COMPRESSIBLE_LENGTH];
+        for (int i = 0; i < noise.length; ++i) {
+            noise[i] = (char) random.nextInt(0x10000);
+        }
+        CharSequence chars = new CharArrayCharSequence(noise);
+        Assert.equals(compress(chars) == chars, true);
+    }
+}
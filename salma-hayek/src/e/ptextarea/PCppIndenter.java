@@ -1,6 +1,10 @@
 package e.ptextarea;
 
+import java.util.regex.*;
+
 public class PCppIndenter extends PCFamilyIndenter {
+    private static final Pattern TEMPLATE_PATTERN = Pattern.compile("template\\s*<.*>");
+    
     public PCppIndenter(PTextArea textArea) {
         super(textArea);
     }
@@ -22,7 +26,8 @@ public class PCppIndenter extends PCFamilyIndenter {
     
     @Override
     protected boolean isTemplate(String activePartOfLine) {
-        return activePartOfLine.matches("template\\s*<.*>");
+        // This is called for every line of context, so we don't want to compile the pattern every time.
+        return TEMPLATE_PATTERN.matcher(activePartOfLine).matches();
     }
     
     private static boolean isCppAccessSpecifier(String activePartOfLine) {
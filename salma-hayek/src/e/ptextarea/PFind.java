@@ -33,6 +33,19 @@ public class PFind {
     public static class FindAction extends PTextAction {
         private JTextField findField = new JTextField(40);
         private PTextArea textArea;
+        private AbstractFindDialog findDialog;
+        
+        // Keeps the dialog's match count up to date while the text area searches in the background.
+        private PFindListener findResultsListener = new PFindListener() {
+            public void aboutToFind() {
+            }
+            
+            public void findResultsChanged() {
+                if (findDialog != null) {
+                    findDialog.showMatchCount(textArea.getFindMatchCount());
+                }
+            }
+        };
         
         private List<PTextAction> actions = new ArrayList<PTextAction>();
         
@@ -54,7 +67,11 @@ public class PFind {
         }
         
         public void performOn(PTextArea textArea) {
+            if (this.textArea != null) {
+                this.textArea.removeFindListener(findResultsListener);
+            }
             this.textArea = textArea;
+            textArea.addFindListener(findResultsListener);
             initFindField();
             rebindActions();
             showFindDialog();
@@ -68,13 +85,14 @@ public class PFind {
         }
         
         private void showFindDialog() {
-            AbstractFindDialog findDialog = new AbstractFindDialog() {
+            findDialog = new AbstractFindDialog() {
                 public int updateFindResults(String regularExpression) {
                     return textArea.findAllMatches(regularExpression, null);
                 }
                 
                 public void clearFindResults() {
-                    textArea.removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME);
+                    // Searching for nothing also cancels any search still running in the background.
+                    textArea.findAllMatches(null, null);
                 }
             };
             findDialog.showFindDialog(textArea, findField);
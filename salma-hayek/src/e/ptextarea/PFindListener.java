@@ -6,4 +6,11 @@ public interface PFindListener {
      * This allows listeners to ensure their find results are kept up to date just in time.
      */
     public void aboutToFind();
+    
+    /**
+     * Invoked on the event dispatch thread when the matches highlighted by PTextArea.findAllMatches change other than as a direct result of calling it.
+     * This happens as a background search finds more matches, or when a change to the text causes the search to start again.
+     * Use PTextArea.getFindMatchCount to get the new count.
+     */
+    public void findResultsChanged();
 }
@@ -1,6 +1,7 @@
 package e.ptextarea;
 
 import java.util.*;
+import org.jessies.test.*;
 
 public class PHighlightManager {
     private final Map<String, HighlightSet> highlighterSets = new LinkedHashMap<String, HighlightSet>();
@@ -10,28 +11,69 @@ public class PHighlightManager {
         return (set != null) ? set.size() : 0;
     }
     
+    private HighlightSet getOrCreateSet(String highlighterName) {
+        HighlightSet set = highlighterSets.get(highlighterName);
+        if (set == null) {
+            set = new HighlightSet();
+            highlighterSets.put(highlighterName, set);
+        }
+        return set;
+    }
+    
     public synchronized void add(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName) == false) {
-            highlighterSets.put(highlighterName, new HighlightSet());
+        getOrCreateSet(highlight.getHighlighterName()).add(highlight);
+    }
+    
+    /**
+     * Bulk add.
+     * Much quicker than repeated calls to add when installing thousands of highlights, as "find all" does.
+     */
+    public synchronized void addAll(Collection<? extends PHighlight> newHighlights) {
+        for (Map.Entry<String, List<PHighlight>> entry : groupByHighlighterName(newHighlights).entrySet()) {
+            getOrCreateSet(entry.getKey()).addAll(entry.getValue());
         }
-        highlighterSets.get(highlighterName).add(highlight);
     }
     
     public synchronized void remove(PHighlight highlight) {
-        String highlighterName = highlight.getHighlighterName();
-        if (highlighterSets.containsKey(highlighterName)) {
-            highlighterSets.get(highlighterName).remove(highlight);
+        HighlightSet set = highlighterSets.get(highlight.getHighlighterName());
+        if (set != null) {
+            set.remove(highlight);
         }
     }
     
+    /**
+     * Bulk remove.
+     * Much quicker than repeated calls to remove when dropping thousands of highlights, as canceling a find does.
+     */
+    public synchronized void removeAll(Collection<? extends PHighlight> deadHighlights) {
+        for (Map.Entry<String, List<PHighlight>> entry : groupByHighlighterName(deadHighlights).entrySet()) {
+            HighlightSet set = highlighterSets.get(entry.getKey());
+            if (set != null) {
+                set.removeAll(entry.getValue());
+            }
+        }
+    }
+    
+    private static Map<String, List<PHighlight>> groupByHighlighterName(Collection<? extends PHighlight> highlights) {
+        Map<String, List<PHighlight>> result = new HashMap<String, List<PHighlight>>();
+        for (PHighlight highlight : highlights) {
+            List<PHighlight> group = result.get(highlight.getHighlighterName());
+            if (group == null) {
+                group = new ArrayList<PHighlight>();
+                result.put(highlight.getHighlighterName(), group);
+            }
+            group.add(highlight);
+        }
+        return result;
+    }
+    
     /**
      * Returns all highlighters overlapping the range [beginOffset, endOffset).
      */
     public synchronized List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
         List<PHighlight> result = new ArrayList<PHighlight>();
         for (HighlightSet set : highlighterSets.values()) {
-            result.addAll(set.getHighlightsOverlapping(beginOffset, endOffset));
+            set.collectHighlightsOverlapping(beginOffset, endOffset, result);
         }
         return result;
     }
@@ -42,7 +84,9 @@ public class PHighlightManager {
     public synchronized List<PHighlight> getNamedHighlightsOverlapping(String highlighterName, int beginOffset, int endOffset) {
         HighlightSet set = highlighterSets.get(highlighterName);
         if (set != null) {
-            return set.getHighlightsOverlapping(beginOffset, endOffset);
+            List<PHighlight> result = new ArrayList<PHighlight>();
+            set.collectHighlightsOverlapping(beginOffset, endOffset, result);
+            return result;
         } else {
             return Collections.emptyList();
         }
@@ -56,68 +100,326 @@ public class PHighlightManager {
         return next ? set.getHighlightAfter(offset) : set.getHighlightBefore(offset);
     }
     
+    /**
+     * An interval tree of the highlights belonging to one highlighter.
+     * 
+     * This is a treap ordered by start index, where each node also knows which highlight in its subtree ends last.
+     * That lets an overlap query skip whole subtrees that end before the range of interest, so painting a screen costs O(log n + k) rather than depending on how many highlights there are in total.
+     * 
+     * We store highlights rather than offsets because a highlight's anchors move as the text is edited.
+     * An edit never changes the relative order of any two anchors (an anchor whose character is deleted takes its highlight with it), so the tree's order and its "ends last" annotations stay valid without our having to touch the tree.
+     * 
+     * As with the TreeSet this replaces, only one highlight per start index is kept.
+     */
     private static class HighlightSet {
-        private TreeSet<PHighlight> highlights = new TreeSet<PHighlight>();
+        private static final class Node {
+            private final PHighlight highlight;
+            private final int priority;
+            private Node left;
+            private Node right;
+            private int size;
+            // The highlight with the greatest end index in the subtree rooted here.
+            private PHighlight lastEnding;
+            
+            private Node(PHighlight highlight, int priority) {
+                this.highlight = highlight;
+                this.priority = priority;
+                update();
+            }
+            
+            private void update() {
+                size = 1 + sizeOf(left) + sizeOf(right);
+                lastEnding = highlight;
+                if (left != null && left.lastEnding.getEndIndex() > lastEnding.getEndIndex()) {
+                    lastEnding = left.lastEnding;
+                }
+                if (right != null && right.lastEnding.getEndIndex() > lastEnding.getEndIndex()) {
+                    lastEnding = right.lastEnding;
+                }
+            }
+        }
+        
+        private final Random random = new Random();
+        private Node root;
+        
+        private static int sizeOf(Node node) {
+            return (node == null) ? 0 : node.size;
+        }
+        
+        private int size() {
+            return sizeOf(root);
+        }
+        
+        // Returns the roots of two trees: everything starting before 'startIndex', and everything else.
+        private static Node[] split(Node node, int startIndex) {
+            if (node == null) {
+                return new Node[] { null, null };
+            }
+            if (node.highlight.getStartIndex() < startIndex) {
+                Node[] parts = split(node.right, startIndex);
+                node.right = parts[0];
+                node.update();
+                parts[0] = node;
+                return parts;
+            } else {
+                Node[] parts = split(node.left, startIndex);
+                node.left = parts[1];
+                node.update();
+                parts[1] = node;
+                return parts;
+            }
+        }
+        
+        // Joins two trees, where everything in 'lhs' starts before everything in 'rhs'.
+        private static Node merge(Node lhs, Node rhs) {
+            if (lhs == null) {
+                return rhs;
+            }
+            if (rhs == null) {
+                return lhs;
+            }
+            if (lhs.priority > rhs.priority) {
+                lhs.right = merge(lhs.right, rhs);
+                lhs.update();
+                return lhs;
+            } else {
+                rhs.left = merge(lhs, rhs.left);
+                rhs.update();
+                return rhs;
+            }
+        }
         
         private void add(PHighlight highlight) {
-            highlights.add(highlight);
+            final int startIndex = highlight.getStartIndex();
+            Node[] lowerAndRest = split(root, startIndex);
+            Node[] sameAndHigher = split(lowerAndRest[1], startIndex + 1);
+            if (sameAndHigher[0] == null) {
+                sameAndHigher[0] = new Node(highlight, random.nextInt());
+            }
+            root = merge(merge(lowerAndRest[0], sameAndHigher[0]), sameAndHigher[1]);
         }
         
         private void remove(PHighlight highlight) {
-            highlights.remove(highlight);
+            final int startIndex = highlight.getStartIndex();
+            Node[] lowerAndRest = split(root, startIndex);
+            Node[] sameAndHigher = split(lowerAndRest[1], startIndex + 1);
+            if (sameAndHigher[0] != null && sameAndHigher[0].highlight != highlight) {
+                // Some other highlight starts here; leave it alone.
+                lowerAndRest[0] = merge(lowerAndRest[0], sameAndHigher[0]);
+            }
+            root = merge(lowerAndRest[0], sameAndHigher[1]);
         }
         
-        private int size() {
-            return highlights.size();
+        private void addAll(List<PHighlight> newHighlights) {
+            if (newHighlights.size() * 8 < size()) {
+                // It's cheaper to insert a few highlights individually than to rebuild.
+                for (PHighlight highlight : newHighlights) {
+                    add(highlight);
+                }
+                return;
+            }
+            List<PHighlight> sortedAdditions = new ArrayList<PHighlight>(newHighlights);
+            Collections.sort(sortedAdditions);
+            List<PHighlight> existing = toList();
+            // Merge the two sorted lists, keeping the existing highlight when two start at the same index.
+            List<PHighlight> all = new ArrayList<PHighlight>(existing.size() + sortedAdditions.size());
+            int i = 0;
+            int j = 0;
+            while (i < existing.size() || j < sortedAdditions.size()) {
+                PHighlight candidate;
+                if (j == sortedAdditions.size() || (i < existing.size() && existing.get(i).getStartIndex() <= sortedAdditions.get(j).getStartIndex())) {
+                    candidate = existing.get(i++);
+                } else {
+                    candidate = sortedAdditions.get(j++);
+                }
+                if (all.isEmpty() || all.get(all.size() - 1).getStartIndex() != candidate.getStartIndex()) {
+                    all.add(candidate);
+                }
+            }
+            root = buildFromSorted(all);
+        }
+        
+        private void removeAll(List<PHighlight> deadHighlights) {
+            if (deadHighlights.size() * 8 < size()) {
+                for (PHighlight highlight : deadHighlights) {
+                    remove(highlight);
+                }
+                return;
+            }
+            // Note that *identity* is important here, because PHighlight.equals only compares start indexes.
+            IdentityHashMap<PHighlight, Object> dead = new IdentityHashMap<PHighlight, Object>();
+            for (PHighlight highlight : deadHighlights) {
+                dead.put(highlight, null);
+            }
+            List<PHighlight> survivors = new ArrayList<PHighlight>();
+            for (PHighlight highlight : toList()) {
+                if (dead.containsKey(highlight) == false) {
+                    survivors.add(highlight);
+                }
+            }
+            root = buildFromSorted(survivors);
+        }
+        
+        private List<PHighlight> toList() {
+            List<PHighlight> result = new ArrayList<PHighlight>(size());
+            collectAll(root, result);
+            return result;
+        }
+        
+        private static void collectAll(Node node, List<PHighlight> result) {
+            if (node != null) {
+                collectAll(node.left, result);
+                result.add(node.highlight);
+                collectAll(node.right, result);
+            }
+        }
+        
+        // Builds a treap from highlights sorted by start index in O(n), by keeping a stack of the right-hand spine.
+        private Node buildFromSorted(List<PHighlight> sorted) {
+            ArrayDeque<Node> spine = new ArrayDeque<Node>();
+            for (PHighlight highlight : sorted) {
+                Node node = new Node(highlight, random.nextInt());
+                Node lastPopped = null;
+                while (spine.isEmpty() == false && spine.peek().priority < node.priority) {
+                    lastPopped = spine.pop();
+                }
+                node.left = lastPopped;
+                if (spine.isEmpty() == false) {
+                    spine.peek().right = node;
+                }
+                spine.push(node);
+            }
+            Node result = spine.peekLast();
+            updateAll(result);
+            return result;
         }
         
+        private static void updateAll(Node node) {
+            if (node != null) {
+                updateAll(node.left);
+                updateAll(node.right);
+                node.update();
+            }
+        }
+        
+        /**
+         * Adds to 'result', in order, the highlights starting before 'endOffset' that either end after 'beginOffset' or start at or after it.
+         * (The latter condition catches empty highlights at 'beginOffset'.)
+         */
+        private void collectHighlightsOverlapping(int beginOffset, int endOffset, List<PHighlight> result) {
+            collectHighlightsOverlapping(root, beginOffset, endOffset, result);
+        }
+        
+        private static void collectHighlightsOverlapping(Node node, int beginOffset, int endOffset, List<PHighlight> result) {
+            // Nothing in a subtree that ends before beginOffset can overlap.
+            if (node == null || node.lastEnding.getEndIndex() < beginOffset) {
+                return;
+            }
+            collectHighlightsOverlapping(node.left, beginOffset, endOffset, result);
+            final int startIndex = node.highlight.getStartIndex();
+            if (startIndex >= endOffset) {
+                // Neither this node nor anything to its right can overlap.
+                return;
+            }
+            if (node.highlight.getEndIndex() > beginOffset || startIndex >= beginOffset) {
+                result.add(node.highlight);
+            }
+            collectHighlightsOverlapping(node.right, beginOffset, endOffset, result);
+        }
+        
+        // Returns the first highlight starting at or after 'offset'.
         private PHighlight getHighlightAfter(int offset) {
-            SortedSet<PHighlight> after = highlights.tailSet(new ProbeHighlight(offset));
-            return (after.size() == 0) ? null : after.first();
+            PHighlight result = null;
+            for (Node node = root; node != null; ) {
+                if (node.highlight.getStartIndex() >= offset) {
+                    result = node.highlight;
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+            return result;
         }
         
+        // Returns the last highlight starting before 'offset'.
         private PHighlight getHighlightBefore(int offset) {
-            SortedSet<PHighlight> before = highlights.headSet(new ProbeHighlight(offset));
-            return (before.size() == 0) ? null : before.last();
-        }
-        
-        private List<PHighlight> getHighlightsOverlapping(int beginOffset, int endOffset) {
-            // The 'firstItem' is to be the lowest-indexed highlight wrapper which *overlaps* the range.
-            // We must check highlights which start <= beginOffset to determine if they end > beginOffset.
-            PHighlight firstItem = new ProbeHighlight(beginOffset);
-            SortedSet<PHighlight> highlightsBeforeStart = highlights.headSet(firstItem, true);
-            if (highlightsBeforeStart.size() > 0) {
-                PHighlight lastBefore = highlightsBeforeStart.last();
-                if (lastBefore.getEndIndex() > beginOffset) {
-                    firstItem = lastBefore;
+            PHighlight result = null;
+            for (Node node = root; node != null; ) {
+                if (node.highlight.getStartIndex() < offset) {
+                    result = node.highlight;
+                    node = node.right;
+                } else {
+                    node = node.left;
                 }
             }
-            
-            // Now we have the start, and the end too, so we can simply grab the subset between these two extremes (inclusive of firstItem) and return as a list.
-            SortedSet<PHighlight> highlightsInRange = highlights.subSet(firstItem, new ProbeHighlight(endOffset));
-            List<PHighlight> result = new ArrayList<PHighlight>(highlightsInRange);
             return result;
         }
     }
     
-    private static final class ProbeHighlight extends PHighlight {
-        private final int fixedOffset;
+    private static final class TestHighlight extends PHighlight {
+        private final int startIndex;
+        private final int endIndex;
         
-        private ProbeHighlight(int fixedOffset) {
+        private TestHighlight(int startIndex, int endIndex) {
             super();
-            this.fixedOffset = fixedOffset;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
         }
         
         @Override public int getStartIndex() {
-            return fixedOffset;
+            return startIndex;
+        }
+        
+        @Override public int getEndIndex() {
+            return endIndex;
         }
         
         public String getHighlighterName() {
-            throw new UnsupportedOperationException();
+            return "test";
         }
         
         protected void paintHighlight(java.awt.Graphics2D g, PCoordinates start, PCoordinates end, java.awt.Insets insets, int lineHeight, int firstLineIndex, int lastLineIndex) {
             throw new UnsupportedOperationException();
         }
+        
+        @Override public String toString() {
+            return "[" + startIndex + "," + endIndex + ")";
+        }
+    }
+    
+    @Test private static void testOverlapping() {
+        PHighlightManager manager = new PHighlightManager();
+        PHighlight a = new TestHighlight(0, 10);
+        PHighlight b = new TestHighlight(2, 100);
+        PHighlight c = new TestHighlight(20, 30);
+        PHighlight d = new TestHighlight(40, 40);
+        manager.add(c);
+        manager.addAll(Arrays.asList(d, a, b));
+        Assert.equals(manager.countHighlightsOfType("test"), 4);
+        Assert.equals(manager.getHighlightsOverlapping(0, 1), Arrays.asList(a));
+        Assert.equals(manager.getHighlightsOverlapping(10, 20), Arrays.asList(b));
+        Assert.equals(manager.getHighlightsOverlapping(15, 41), Arrays.asList(b, c, d));
+        Assert.equals(manager.getHighlightsOverlapping(40, 40), Arrays.asList(b));
+        Assert.equals(manager.getHighlightsOverlapping(100, 200), Collections.<PHighlight>emptyList());
+        manager.removeAll(Arrays.asList(b, d));
+        Assert.equals(manager.getHighlightsOverlapping(0, 1000), Arrays.asList(a, c));
+        manager.remove(a);
+        Assert.equals(manager.getHighlightsOverlapping(0, 1000), Arrays.asList(c));
+    }
+    
+    @Test private static void testNextAndPrevious() {
+        PHighlightManager manager = new PHighlightManager();
+        List<PHighlight> highlights = new ArrayList<PHighlight>();
+        for (int i = 0; i < 1000; ++i) {
+            highlights.add(new TestHighlight(i * 10, i * 10 + 5));
+        }
+        manager.addAll(highlights);
+        Assert.equals(manager.countHighlightsOfType("test"), 1000);
+        Assert.equals(manager.getNextOrPreviousHighlight("test", true, 15), highlights.get(2));
+        Assert.equals(manager.getNextOrPreviousHighlight("test", true, 20), highlights.get(2));
+        Assert.equals(manager.getNextOrPreviousHighlight("test", false, 20), highlights.get(1));
+        Assert.equals(manager.getNextOrPreviousHighlight("test", false, 0), null);
+        Assert.equals(manager.getNextOrPreviousHighlight("test", true, 10000), null);
+        Assert.equals(manager.getHighlightsOverlapping(4994, 5006), highlights.subList(499, 501));
     }
 }
@@ -87,7 +87,14 @@ public abstract class PIndenter {
      * because they end in (a single character of) whitespace.
      */
     public final String getCurrentIndentationOfLine(int lineNumber) {
-        return indentationOf(textArea.getLineText(lineNumber));
+        return indentationOf(getLineText(lineNumber));
+    }
+    
+    /**
+     * Returns the text of the given line, as an indenter part-way through fixing a range of lines should see it.
+     */
+    protected String getLineText(int lineNumber) {
+        return textArea.getLineText(lineNumber);
     }
     
     public static final String indentationOf(String line) {
@@ -113,6 +120,18 @@ public abstract class PIndenter {
         final int startLine = textArea.getLineOfOffset(startOffset);
         // I've thought about (and experimented with) the +-1 issue here.
         final int finishLine = textArea.getLineOfOffset(endOffset);
+        if (startLine == finishLine) {
+            fixIndentationOnLine(startLine);
+        } else {
+            fixIndentationOfLines(startLine, finishLine);
+        }
+    }
+    
+    /**
+     * Corrects the indentation of the lines from startLine to finishLine inclusive.
+     * This fixes each line in turn; override it if you can do better than that.
+     */
+    protected void fixIndentationOfLines(int startLine, int finishLine) {
         for (int lineIndex = startLine; lineIndex <= finishLine; ++lineIndex) {
             fixIndentationOnLine(lineIndex);
         }
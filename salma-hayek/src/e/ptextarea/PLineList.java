@@ -218,7 +218,7 @@ public class PLineList implements PTextListener {
     }
     
     private void generateLines() {
-        lines = new ArrayList<Line>();
+        lines = new ArrayList<Line>(text.getLoadedLineCount());
         int lastLineStart = 0;
         int nextNewline;
         while ((nextNewline = text.indexOf('\n', lastLineStart)) != -1) {
@@ -31,7 +31,7 @@ public class PLineNumberPanel extends JComponent {
         });
         updatePreferredWidth();
         
-        textArea.getTextBuffer().addTextListener(new PTextListener() {
+        textArea.getTextBuffer().addTextListener(new PBatchTextListener() {
             public void textInserted(PTextEvent e) {
                 textChanged();
             }
@@ -44,6 +44,10 @@ public class PLineNumberPanel extends JComponent {
                 textChanged();
             }
             
+            public void textChangedInBatch(PBatchTextEvent e) {
+                textChanged();
+            }
+            
             private void textChanged() {
                 repaint();
             }
@@ -0,0 +1,284 @@
+package e.ptextarea;
+
+import e.gui.*;
+import e.util.*;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Finds all the matches of a regular expression in a PTextArea, on behalf of PTextArea.findAllMatches.
+ * 
+ * We used to find every match on the event dispatch thread with the write lock held, which froze the editor for seconds in a large file.
+ * Now we search the visible lines first, synchronously, so the first screenful of matches appears immediately.
+ * We then search from the end of the visible lines to the end of the text, and from the start of the text to the start of the visible lines, on a background thread.
+ * That last part of the search is allowed to run past the start of the visible lines, so we find matches that start above the visible lines and end in them.
+ * The background search works in chunks, holding the read lock only for the duration of a chunk.
+ * Each chunk searches a limited window of the text, so that a pattern that rarely matches can't hold the read lock while one find scans the rest of a large file.
+ * Each chunk's matches are published on the event dispatch thread as they're found, and the text area's find listeners are told the count has changed.
+ * 
+ * Any change to the text stops the search, because the offsets we've found are no longer valid.
+ * The matches already highlighted move with the text, as they always have, and it's up to the caller to search again once the user has stopped typing (as Evergreen's ETextWindow does).
+ * We don't start a new search ourselves, because doing it on every keystroke would mean removing and re-adding every match's highlight each time.
+ * (Edits happen with the write lock held, so an edit can't happen while we're searching a chunk, and we can tell whether one happened before we publish.
+ * A batch of edits holds the write lock from PTextBuffer.startBatch until we've been told about it, so we never search text that's changed under us.)
+ */
+class PMatchFinder implements PBatchTextListener {
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Find All Matches");
+    
+    // We give up the read lock after this many matches or this much time, whichever comes first.
+    private static final int MAX_MATCHES_PER_CHUNK = 2000;
+    private static final long MAX_CHUNK_DURATION_NS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Each chunk searches at most this much text.
+    private static final int MAX_CHARS_PER_CHUNK = 256 * 1024;
+    // When a search fails at the end of a chunk's window, a match might have started near the end and not fit, so the next window starts this far back.
+    // A failed search only reads this far past the start of a match that doesn't fit if the match is at least this long, which a find-all search never is in practice.
+    private static final int CHUNK_OVERLAP = 16 * 1024;
+    
+    private final PTextArea textArea;
+    private final String regularExpression;
+    private final Pattern pattern;
+    private final BirdView birdView;
+    
+    private volatile boolean cancelled = false;
+    
+    // The range of the text we've yet to search, in the order we'll search it.
+    // These are only touched by the background thread once it's been started.
+    private int visibleStart;
+    private int searchIndex;
+    private boolean searchingBeforeVisibleLines = false;
+    private Matcher matcher;
+    // How much text the next chunk searches. This only grows past MAX_CHARS_PER_CHUNK if a single match doesn't fit in a chunk.
+    private int charsPerChunk = MAX_CHARS_PER_CHUNK;
+    // The start of the first match at or after visibleStart, which a match before visibleStart mustn't overlap.
+    private int firstLaterMatchStart = Integer.MAX_VALUE;
+    
+    /**
+     * Throws PatternSyntaxException if 'regularExpression' is invalid.
+     */
+    PMatchFinder(PTextArea textArea, String regularExpression, BirdView birdView) {
+        this.textArea = textArea;
+        this.regularExpression = regularExpression;
+        this.pattern = PatternUtilities.smartCaseCompile(regularExpression);
+        this.birdView = birdView;
+    }
+    
+    /**
+     * Highlights the matches in the visible lines, and starts the background search of the rest of the text.
+     * Must be called on the event dispatch thread, with the write lock held.
+     * Returns the number of matches found so far.
+     */
+    int start() {
+        final int[] visibleRange = textArea.getVisibleTextRange();
+        // Start from the beginning of the first visible line, even if it's only partly visible.
+        this.visibleStart = textArea.getLineStartOffset(textArea.getLineOfOffset(visibleRange[0]));
+        this.searchIndex = visibleStart;
+        
+        // Matches near the end of the visible range might be different (or longer) if we searched further, so we only accept matches that the region's end didn't affect.
+        // The background search picks up from the end of the last match we accept.
+        Matcher visibleMatcher = pattern.matcher(textArea.getTextBuffer());
+        visibleMatcher.region(visibleStart, visibleRange[1]);
+        visibleMatcher.useTransparentBounds(true);
+        visibleMatcher.useAnchoringBounds(false);
+        ArrayList<Integer> matchBounds = new ArrayList<Integer>();
+        while (visibleMatcher.find() && visibleMatcher.hitEnd() == false) {
+            firstLaterMatchStart = Math.min(firstLaterMatchStart, visibleMatcher.start());
+            matchBounds.add(visibleMatcher.start());
+            matchBounds.add(visibleMatcher.end());
+            searchIndex = (visibleMatcher.end() > visibleMatcher.start()) ? visibleMatcher.end() : visibleMatcher.end() + 1;
+        }
+        publish(matchBounds);
+        
+        textArea.getTextBuffer().addTextListener(this);
+        executor.execute(new Runnable() {
+            public void run() {
+                searchInBackground();
+            }
+        });
+        return textArea.getFindMatchCount();
+    }
+    
+    /**
+     * Stops the search.
+     * Must be called on the event dispatch thread.
+     */
+    void cancel() {
+        cancelled = true;
+        textArea.getTextBuffer().removeTextListener(this);
+    }
+    
+    private void searchInBackground() {
+        boolean finished = false;
+        while (cancelled == false && finished == false) {
+            ArrayList<Integer> matchBounds = new ArrayList<Integer>();
+            textArea.getLock().getReadLock();
+            try {
+                if (cancelled) {
+                    return;
+                }
+                finished = searchChunk(matchBounds);
+            } finally {
+                textArea.getLock().relinquishReadLock();
+            }
+            // Waiting for each chunk to be published keeps us from queuing up more than the event dispatch thread can handle.
+            // It also gives the event dispatch thread a chance to take the write lock between chunks, because PLock doesn't favor writers.
+            final ArrayList<Integer> chunkMatchBounds = matchBounds;
+            final boolean searchFinished = finished;
+            try {
+                EventQueue.invokeAndWait(new Runnable() {
+                    public void run() {
+                        textArea.getLock().getWriteLock();
+                        try {
+                            // If the text has changed since we searched, our offsets are useless.
+                            if (cancelled == false) {
+                                publish(chunkMatchBounds);
+                                if (searchFinished) {
+                                    textArea.getTextBuffer().removeTextListener(PMatchFinder.this);
+                                }
+                            }
+                        } finally {
+                            textArea.getLock().relinquishWriteLock();
+                        }
+                    }
+                });
+            } catch (Exception ex) {
+                Log.warn("Problem publishing matches for \"" + regularExpression + "\"", ex);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Appends the start and end of each match in the next chunk of text to 'matchBounds'.
+     * Returns true if there's nothing more to search.
+     * Must be called with the read lock held.
+     */
+    private boolean searchChunk(List<Integer> matchBounds) {
+        final int textLength = textArea.getTextBuffer().length();
+        if (matcher == null) {
+            // The text can't have changed since the last chunk (or we'd have been cancelled), so the matcher remains valid between chunks.
+            matcher = pattern.matcher(textArea.getTextBuffer());
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+        }
+        if (searchingBeforeVisibleLines && searchIndex >= visibleStart) {
+            // We've already searched from here on.
+            return true;
+        }
+        // Searching before the visible lines, we still search past their start, so that a match starting before the visible lines can run into them.
+        final int chunkStart = Math.min(searchIndex, textLength);
+        final int chunkEnd = (int) Math.min(textLength, (long) chunkStart + charsPerChunk);
+        final boolean isLastChunk = (chunkEnd == textLength);
+        matcher.region(chunkStart, chunkEnd);
+        final long startTimeNs = System.nanoTime();
+        while (matchBounds.size() < 2 * MAX_MATCHES_PER_CHUNK && System.nanoTime() - startTimeNs < MAX_CHUNK_DURATION_NS) {
+            if (matcher.find() == false) {
+                charsPerChunk = MAX_CHARS_PER_CHUNK;
+                if (isLastChunk) {
+                    return finishPass();
+                }
+                // If the search reached the end of the window, a match might start near there and not fit, so we look there again.
+                searchIndex = Math.max(searchIndex, matcher.hitEnd() ? chunkEnd - CHUNK_OVERLAP : chunkEnd);
+                return false;
+            }
+            if (matcher.hitEnd() && isLastChunk == false) {
+                // The match might be longer, or an earlier one might have been found, if the window were bigger, so the next chunk searches from here again.
+                if (searchIndex <= chunkStart) {
+                    // We've not made any progress, so the next chunk needs a bigger window.
+                    charsPerChunk *= 2;
+                }
+                return false;
+            }
+            // Searching before the visible lines, we stop at the first match that starts in them, because we've already found it.
+            if (searchingBeforeVisibleLines && matcher.start() >= visibleStart) {
+                return true;
+            }
+            searchIndex = (matcher.end() > matcher.start()) ? matcher.end() : matcher.end() + 1;
+            charsPerChunk = MAX_CHARS_PER_CHUNK;
+            if (searchingBeforeVisibleLines == false) {
+                firstLaterMatchStart = Math.min(firstLaterMatchStart, matcher.start());
+            } else if (matcher.end() > firstLaterMatchStart) {
+                // This match runs into one we've already highlighted, so we keep that one instead.
+                continue;
+            }
+            matchBounds.add(matcher.start());
+            matchBounds.add(matcher.end());
+        }
+        return false;
+    }
+    
+    /**
+     * Called when we've searched to the end of the text.
+     * Wraps around to search the text before the visible lines, unless we've already done that.
+     * Returns true if there's nothing more to search.
+     */
+    private boolean finishPass() {
+        if (searchingBeforeVisibleLines || visibleStart == 0) {
+            return true;
+        }
+        searchingBeforeVisibleLines = true;
+        searchIndex = 0;
+        return false;
+    }
+    
+    /**
+     * Adds highlights for the given matches, updates the BirdView, and notifies the find listeners.
+     * Must be called on the event dispatch thread, with the write lock held.
+     */
+    private void publish(List<Integer> matchBounds) {
+        if (matchBounds.isEmpty()) {
+            return;
+        }
+        ArrayList<PHighlight> matches = new ArrayList<PHighlight>(matchBounds.size() / 2);
+        if (birdView != null) {
+            birdView.setValueIsAdjusting(true);
+        }
+        try {
+            for (int i = 0; i < matchBounds.size(); i += 2) {
+                final int start = matchBounds.get(i);
+                final int end = matchBounds.get(i + 1);
+                if (birdView != null) {
+                    birdView.addMatchingLine(textArea.getLineOfOffset(end));
+                }
+                matches.add(new PFind.MatchHighlight(textArea, start, end));
+            }
+        } finally {
+            if (birdView != null) {
+                birdView.setValueIsAdjusting(false);
+            }
+        }
+        textArea.addHighlights(matches);
+        textArea.fireFindResultsChangedEvent();
+    }
+    
+    public void textInserted(PTextEvent event) {
+        stop();
+    }
+    
+    public void textRemoved(PTextEvent event) {
+        stop();
+    }
+    
+    public void textCompletelyReplaced(PTextEvent event) {
+        stop();
+    }
+    
+    public void textChangedInBatch(PBatchTextEvent event) {
+        stop();
+    }
+    
+    private void stop() {
+        if (cancelled) {
+            return;
+        }
+        // We're called with the write lock held, in the middle of notifying the text listeners, so we can't stop listening until they've all been told.
+        cancelled = true;
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                textArea.getTextBuffer().removeTextListener(PMatchFinder.this);
+            }
+        });
+    }
+}
@@ -51,7 +51,7 @@ public class PNewCppIndenter extends PSimpleIndenter {
     @Override
     protected String calculateNewIndentation(int lineNumber) {
         // Preprocessor directives live in column 0.
-        final String currentLine = textArea.getLineText(lineNumber);
+        final String currentLine = getLineText(lineNumber);
         final String activePartOfCurrent = getActivePartOfLine(lineNumber);
         if (activePartOfCurrent.startsWith("#")) {
             return "";
@@ -69,7 +69,7 @@ public class PNewCppIndenter extends PSimpleIndenter {
         String indentation = getCurrentIndentationOfLine(previousLineNumber);
         
         // Get the previous line, and the non-comment part of the previous line.
-        final String previousLine = textArea.getLineText(previousLineNumber);
+        final String previousLine = getLineText(previousLineNumber);
         final String activePartOfPrevious = getActivePartOfLine(previousLineNumber);
         
         //System.err.println("'" + activePartOfPrevious + "'; indentation '" + indentation + "'");
@@ -7,29 +7,138 @@ import java.util.*;
  * Implements the core functionality of any real indenter, which is to look at the line in question, split it into indentation and content, work out the new 
  */
 public abstract class PSimpleIndenter extends PIndenter {
+    // While we're fixing a range of lines, the replacements for those we've already done, which we don't apply until we've done them all.
+    private String[] replacementLines;
+    private int firstReplacementLine;
+    
     public PSimpleIndenter(PTextArea textArea) {
         super(textArea);
     }
     
     public final void fixIndentationOnLine(int lineIndex) {
-        String originalIndentation = getCurrentIndentationOfLine(lineIndex);
-        String replacementIndentation = calculateNewIndentation(lineIndex);
         String originalLine = textArea.getLineText(lineIndex);
-        String replacementLine = replacementIndentation + StringUtilities.trimTrailingWhitespace(originalLine.substring(originalIndentation.length()));
-        //Log.warn("originalIndentation=@" + originalIndentation + "@; replacementIndentation=@" + replacementIndentation + "@");
+        String replacementLine = calculateReplacementLine(lineIndex, originalLine);
         if (replacementLine.equals(originalLine)) {
             return;
         }
+        int[] selection = new int[] { textArea.getSelectionStart(), textArea.getSelectionEnd() };
+        replaceLine(lineIndex, originalLine, replacementLine, selection);
+        textArea.select(selection[0], selection[1]);
+    }
+    
+    /**
+     * Works out all the lines' indentation in one forward pass, with each line seeing the lines before it as they'll be once fixed.
+     * Changing the text after each line would mean restyling and notifying every listener for every line, and repeatedly moving the selection.
+     * The changes are made afterwards as one compound edit and one batch, from the bottom up so that no line's start offset needs recalculating.
+     */
+    @Override protected final void fixIndentationOfLines(int startLine, int finishLine) {
+        final String[] originalLines = new String[finishLine - startLine + 1];
+        final String[] newLines = new String[originalLines.length];
+        replacementLines = newLines;
+        firstReplacementLine = startLine;
+        willFixLines();
+        try {
+            for (int lineIndex = startLine; lineIndex <= finishLine; ++lineIndex) {
+                originalLines[lineIndex - startLine] = textArea.getLineText(lineIndex);
+                newLines[lineIndex - startLine] = calculateReplacementLine(lineIndex, originalLines[lineIndex - startLine]);
+            }
+        } finally {
+            replacementLines = null;
+            didFixLines();
+        }
+        
+        int[] selection = new int[] { textArea.getSelectionStart(), textArea.getSelectionEnd() };
+        boolean changed = false;
+        textArea.getTextBuffer().getUndoBuffer().startCompoundEdit();
+        textArea.getTextBuffer().startBatch();
+        try {
+            for (int lineIndex = finishLine; lineIndex >= startLine; --lineIndex) {
+                String originalLine = originalLines[lineIndex - startLine];
+                String replacementLine = newLines[lineIndex - startLine];
+                if (replacementLine.equals(originalLine) == false) {
+                    replaceLine(lineIndex, originalLine, replacementLine, selection);
+                    changed = true;
+                }
+            }
+        } finally {
+            textArea.getTextBuffer().finishBatch();
+            textArea.getTextBuffer().getUndoBuffer().finishCompoundEdit();
+        }
+        if (changed) {
+            textArea.select(selection[0], selection[1]);
+        }
+    }
+    
+    private String calculateReplacementLine(int lineIndex, String originalLine) {
+        String originalIndentation = indentationOf(originalLine);
+        String replacementIndentation = calculateNewIndentation(lineIndex);
+        //Log.warn("originalIndentation=@" + originalIndentation + "@; replacementIndentation=@" + replacementIndentation + "@");
+        return replacementIndentation + StringUtilities.trimTrailingWhitespace(originalLine.substring(originalIndentation.length()));
+    }
+    
+    /**
+     * Replaces the given line, adjusting the selection offsets in 'selection' to match.
+     */
+    private void replaceLine(int lineIndex, String originalLine, String replacementLine, int[] selection) {
+        String originalIndentation = indentationOf(originalLine);
+        String replacementIndentation = indentationOf(replacementLine);
         int lineStartOffset = textArea.getLineStartOffset(lineIndex);
         int charsInserted = replacementIndentation.length() - originalIndentation.length();
-        int desiredStartOffset = adjustOffsetAfterInsertion(textArea.getSelectionStart(), lineStartOffset, originalIndentation, replacementIndentation);
-        int desiredEndOffset = adjustOffsetAfterInsertion(textArea.getSelectionEnd(), lineStartOffset, originalIndentation, replacementIndentation);
+        int desiredStartOffset = adjustOffsetAfterInsertion(selection[0], lineStartOffset, originalIndentation, replacementIndentation);
+        int desiredEndOffset = adjustOffsetAfterInsertion(selection[1], lineStartOffset, originalIndentation, replacementIndentation);
         int trimOffset = lineStartOffset + replacementLine.length();
         int charsTrimmed = originalLine.length() - (replacementLine.length() - charsInserted);
-        desiredStartOffset = adjustOffsetAfterDeletion(desiredStartOffset, trimOffset, charsTrimmed);
-        desiredEndOffset = adjustOffsetAfterDeletion(desiredEndOffset, trimOffset, charsTrimmed);
+        selection[0] = adjustOffsetAfterDeletion(desiredStartOffset, trimOffset, charsTrimmed);
+        selection[1] = adjustOffsetAfterDeletion(desiredEndOffset, trimOffset, charsTrimmed);
         textArea.replaceRange(replacementLine, lineStartOffset, lineStartOffset + originalLine.length());
-        textArea.select(desiredStartOffset, desiredEndOffset);
+    }
+    
+    /**
+     * Called before fixIndentationOfLines starts working out the new indentation.
+     * Subclasses can use this to start remembering things about lines for which isAlreadyFixed returns true, until didFixLines.
+     */
+    protected void willFixLines() {
+    }
+    
+    /**
+     * Called after fixIndentationOfLines has worked out the new indentation, before it changes the text.
+     */
+    protected void didFixLines() {
+    }
+    
+    /**
+     * Returns true if we're part-way through fixing a range of lines, and the given line won't change before we finish.
+     * That's any line before the range, and any line in the range whose replacement we've already worked out.
+     */
+    protected final boolean isAlreadyFixed(int lineNumber) {
+        if (replacementLines == null) {
+            return false;
+        }
+        final int i = lineNumber - firstReplacementLine;
+        return (i < 0) || (i < replacementLines.length && replacementLines[i] != null);
+    }
+    
+    @Override protected final String getLineText(int lineNumber) {
+        final int i = lineNumber - firstReplacementLine;
+        if (replacementLines != null && i >= 0 && i < replacementLines.length && replacementLines[i] != null) {
+            return replacementLines[i];
+        }
+        return super.getLineText(lineNumber);
+    }
+    
+    /**
+     * Returns 'text', which corresponds character for character to the given line, with the line's indentation replaced by any we've worked out for it but not yet applied.
+     */
+    protected final String withReplacementIndentation(int lineNumber, String text) {
+        final int i = lineNumber - firstReplacementLine;
+        if (replacementLines == null || i < 0 || i >= replacementLines.length || replacementLines[i] == null) {
+            return text;
+        }
+        final int originalIndentationLength = indentationOf(textArea.getLineText(lineNumber)).length();
+        if (text.length() <= originalIndentationLength) {
+            return text;
+        }
+        return indentationOf(replacementLines[i]) + text.substring(originalIndentationLength);
     }
     
     /**
@@ -73,7 +182,7 @@ public abstract class PSimpleIndenter extends PIndenter {
     
     protected final int getPreviousNonBlankLineNumber(int startLineNumber) {
         for (int lineNumber = startLineNumber - 1; lineNumber >= 0; --lineNumber) {
-            if (textArea.getLineText(lineNumber).trim().length() != 0) {
+            if (getLineText(lineNumber).trim().length() != 0) {
                 return lineNumber;
             }
         }
@@ -110,7 +219,7 @@ public abstract class PSimpleIndenter extends PIndenter {
         previousLineCommentText = previousLineCommentText.trim();
         
         // Extract this line's text. I think we can safely infer whether or not it's comment (see below).
-        String currentLineText = textArea.getLineText(lineIndex).trim();
+        String currentLineText = getLineText(lineIndex).trim();
         
         // NewlineInserter treats /** and /* the same way, so we should too.
         if (previousLineCommentText.startsWith("/*") || previousLineCommentText.startsWith("*")) {
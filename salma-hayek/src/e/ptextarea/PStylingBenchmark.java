@@ -0,0 +1,57 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+
+/**
+ * Measures how fast PTextArea.getLineSegments styles real source files.
+ * 
+ * Usage: PStylingBenchmark FILE...
+ * Each file's type is guessed from its name and content, as in Evergreen, so pass a mix of Java, C++, and Perl to compare the stylers.
+ * To compare implementations, run this before and after a change; it needs a display, because PTextArea does.
+ */
+public class PStylingBenchmark {
+    private static final int ITERATIONS = 20;
+    
+    private PStylingBenchmark() {
+    }
+    
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("usage: PStylingBenchmark FILE...");
+            System.exit(1);
+        }
+        for (String filename : args) {
+            benchmark(new File(filename));
+        }
+    }
+    
+    private static void benchmark(File file) {
+        final String content = StringUtilities.readFile(file);
+        final FileType fileType = FileType.guessFileType(file.getName(), content);
+        PTextArea textArea = new PTextArea();
+        fileType.configureTextArea(textArea);
+        textArea.setText(content);
+        
+        // The first pass warms up the JIT, and the styler's multi-line comment cache.
+        styleAllLines(textArea);
+        
+        long segmentCount = 0;
+        final long startTimeNs = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            segmentCount += styleAllLines(textArea);
+        }
+        final long durationNs = System.nanoTime() - startTimeNs;
+        final long segmentsPerSecond = (durationNs > 0) ? (segmentCount * 1000000000L / durationNs) : 0;
+        System.out.println(fileType.getName() + " " + file + ": " + segmentCount + " segments from " + StringUtilities.pluralize(ITERATIONS * textArea.getLineCount(), "line", "lines") + " in " + TimeUtilities.nsToString(durationNs) + " (" + segmentsPerSecond + " segments/s)");
+    }
+    
+    private static int styleAllLines(PTextArea textArea) {
+        textArea.clearSegmentCache();
+        int segmentCount = 0;
+        for (int lineIndex = 0; lineIndex < textArea.getLineCount(); ++lineIndex) {
+            segmentCount += textArea.getLineSegments(lineIndex).size();
+        }
+        return segmentCount;
+    }
+}
@@ -7,6 +7,7 @@ import java.util.*;
 import java.util.List;
 import java.util.regex.*;
 import javax.swing.*;
+import javax.swing.Timer;
 import e.gui.*;
 import e.util.*;
 
@@ -18,6 +19,11 @@ import e.util.*;
 public class PTextArea extends JComponent implements PLineListener, Scrollable, ClipboardOwner {
     private static final int MIN_WIDTH = 50;
     
+    // When we rewrap everything, only the logical lines within this distance of the visible lines or the caret are wrapped exactly.
+    private static final int MIN_EXACT_WRAPPING_RADIUS = 100;
+    // The longest we spend on the event dispatch thread per tick of the wrapping refiner.
+    private static final long MAX_REFINEMENT_DURATION_NS = 10 * 1000 * 1000;
+    
     public static final int NO_MARGIN = -1;
     
     private SelectionHighlight selection;
@@ -27,14 +33,23 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     // TODO: experiment with java.util.ArrayDeque in Java 6.
     // But ArrayDeque wouldn't help bulk operations in the middle.
     private List<SplitLine> splitLines;
+    // Replaces estimated SplitLines with exact ones, a little at a time; see generateLineWrappings.
+    private Timer wrappingRefiner;
+    private int nextSplitIndexToRefine;
+    // The logical line at the top of the visible area when we last threw away the wrapping.
+    private int topVisibleLineIndexHint = 0;
     
     // We cache the FontMetrics for readability rather than performance.
     private final FontMetrics[] metrics = new FontMetrics[3];
+    // The plain font's advance widths for the ASCII characters (other than tab, which depends on where it is).
+    private final int[] asciiCharWidths = new int[128];
     private final PTabSegment SINGLE_TAB = new PTabSegment(this, 0, 1);
     
     private PHighlightManager highlights = new PHighlightManager();
     private PTextStyler textStyler = new PPlainTextStyler(this);
     private List<StyleApplicator> styleApplicators;
+    // Whether our text styler can apply styleApplicators itself, or null if we need to ask it again.
+    private volatile Boolean canFinishSegmentsInStyler;
     private TabStyleApplicator tabStyleApplicator = new TabStyleApplicator(this);
     
     private boolean canShowRightHandMargin = false;
@@ -42,7 +57,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     private ArrayList<PCaretListener> caretListeners = new ArrayList<PCaretListener>();
     private ArrayList<PFindListener> findListeners = new ArrayList<PFindListener>();
+    private PMatchFinder matchFinder;
     private TreeMap<Integer, List<PLineSegment>> segmentCache = new TreeMap<Integer, List<PLineSegment>>();
+    private PBracketIndex bracketIndex;
     
     private UnaryFunctor<String, String> pastedTextReformatter = new UnaryFunctor<String, String>() {
         public String evaluate(String s) {
@@ -113,6 +130,17 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         return getTextBuffer().getLock();
     }
     
+    /**
+     * Returns the index used to match brackets, creating it the first time it's needed.
+     */
+    PBracketIndex getBracketIndex() {
+        if (bracketIndex == null) {
+            bracketIndex = new PBracketIndex(this);
+            lines.addLineListener(bracketIndex);
+        }
+        return bracketIndex;
+    }
+    
     private void runWithoutMovingTheVisibleArea(Runnable runnable) {
         if (selection == null || isLineWrappingInvalid()) {
             runnable.run();
@@ -175,10 +203,24 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     
     public void addStyleApplicator(StyleApplicator styleApplicator) {
         styleApplicators.add(styleApplicator);
+        canFinishSegmentsInStyler = null;
     }
     
     public void addStyleApplicatorFirst(StyleApplicator styleApplicator) {
         styleApplicators.add(0, styleApplicator);
+        canFinishSegmentsInStyler = null;
+    }
+    
+    /**
+     * Returns true if the text styler can apply our style applicators itself, as it styles each line.
+     */
+    private boolean canFinishSegmentsInStyler() {
+        Boolean result = canFinishSegmentsInStyler;
+        if (result == null) {
+            result = (textStyler instanceof PAbstractLanguageStyler) && ((PAbstractLanguageStyler) textStyler).canFinishSegmentsFor(styleApplicators);
+            canFinishSegmentsInStyler = result;
+        }
+        return result;
     }
     
     // Selection methods.
@@ -443,6 +485,22 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    /**
+     * Deletes 'charCount' characters from 'startFrom'. This is meant for
+     * programmatic use, and so doesn't move the selection or scroll: the
+     * selection moves with the text around it, as it would for anyone
+     * else's edit.
+     */
+    public void deletePreservingSelection(int startFrom, int charCount) {
+        getLock().getWriteLock();
+        try {
+            SelectionSetter noChange = new SelectionSetter(SelectionSetter.DO_NOT_CHANGE);
+            getTextBuffer().replace(noChange, startFrom, charCount, "", noChange);
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
     private class SelectionSetter implements PTextBuffer.SelectionSetter {
         private static final int DO_NOT_CHANGE = -1;
         
@@ -616,6 +674,15 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         metrics[Font.PLAIN] = getFontMetrics(getFont());
         metrics[Font.BOLD] = getFontMetrics(getFont().deriveFont(Font.BOLD));
         metrics[Font.ITALIC] = getFontMetrics(getFont().deriveFont(Font.ITALIC));
+        for (char ch = 0; ch < asciiCharWidths.length; ++ch) {
+            if (ch < ' ' || ch == '\u007f') {
+                StringBuilder chars = new StringBuilder(6);
+                StringUtilities.appendUnicodeEscape(chars, ch);
+                asciiCharWidths[ch] = metrics[Font.PLAIN].stringWidth(chars.toString());
+            } else {
+                asciiCharWidths[ch] = metrics[Font.PLAIN].charWidth(ch);
+            }
+        }
     }
     
     public void addHighlight(PHighlight highlight) {
@@ -628,6 +695,23 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    /**
+     * Adds many highlights at once, with a single repaint.
+     */
+    public void addHighlights(Collection<? extends PHighlight> newHighlights) {
+        getLock().getWriteLock();
+        try {
+            highlights.addAll(newHighlights);
+            if (newHighlights.size() == 1) {
+                repaintHighlight(newHighlights.iterator().next());
+            } else if (newHighlights.size() > 1) {
+                repaint();
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
     public List<PHighlight> getNamedHighlights(String highlighterName) {
         return getNamedHighlightsOverlapping(highlighterName, 0, getTextBuffer().length() + 1);
     }
@@ -671,8 +755,8 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             IdentityHashMap<PAnchor, Object> deadAnchors = new IdentityHashMap<PAnchor, Object>();
             for (PHighlight highlight : removeList) {
                 highlight.collectAnchors(deadAnchors);
-                highlights.remove(highlight);
             }
+            highlights.removeAll(removeList);
             getTextBuffer().getAnchorSet().removeAll(deadAnchors);
             if (removeList.size() == 1) {
                 repaintHighlight(removeList.get(0));
@@ -826,17 +910,22 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
                 }
             }
             
-            // Let the styler have the first go.
-            List<PLineSegment> segments = textStyler.getTextSegments(lineIndex);
-            
-            // Then let the style applicators add their finishing touches.
-            String line = getLineContents(lineIndex).toString();
-            for (StyleApplicator styleApplicator : styleApplicators) {
-                segments = applyStyleApplicator(styleApplicator, line, segments);
+            List<PLineSegment> segments;
+            if (canFinishSegmentsInStyler()) {
+                // The styler can do everything in a single pass over the line.
+                segments = ((PAbstractLanguageStyler) textStyler).getFinishedSegments(lineIndex);
+            } else {
+                // Let the styler have the first go.
+                List<PLineSegment> styledSegments = textStyler.getTextSegments(lineIndex);
+                
+                // Then let the style applicators add their finishing touches, and finally deal with tabs.
+                // We take each of the styler's segments through all the applicators in turn, rather than running each applicator over the whole line, so we only build one list.
+                String line = getLineContents(lineIndex).toString();
+                segments = new ArrayList<PLineSegment>(styledSegments.size() * 2);
+                for (PLineSegment segment : styledSegments) {
+                    applyStyleApplicators(0, line, segment, segments);
+                }
             }
-            
-            // Finally, deal with tabs.
-            segments = applyStyleApplicator(tabStyleApplicator, line, segments);
             synchronized (segmentCache) {
                 segmentCache.put(lineIndex, segments);
             }
@@ -860,22 +949,42 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
-    private void clearSegmentCache() {
+    void clearSegmentCache() {
         synchronized (segmentCache) {
             segmentCache.clear();
         }
     }
     
-    private List<PLineSegment> applyStyleApplicator(StyleApplicator styleApplicator, String line, List<PLineSegment> inputSegments) {
-        List<PLineSegment> result = new ArrayList<PLineSegment>();
-        for (PLineSegment segment : inputSegments) {
+    /**
+     * Applies all the style applicators (with the tab applicator last) to 'segment', adding the resulting segments to 'result'.
+     */
+    void applyStyleApplicators(String line, PLineSegment segment, List<PLineSegment> result) {
+        applyStyleApplicators(0, line, segment, result);
+    }
+    
+    /**
+     * Applies the style applicators from 'applicatorIndex' onwards (with the tab applicator last) to 'segment', adding the resulting segments to 'result'.
+     */
+    private void applyStyleApplicators(int applicatorIndex, String line, PLineSegment segment, List<PLineSegment> result) {
+        for (; applicatorIndex < styleApplicators.size(); ++applicatorIndex) {
+            StyleApplicator styleApplicator = styleApplicators.get(applicatorIndex);
             if (styleApplicator.canApplyStylingTo(segment.getStyle())) {
-                result.addAll(styleApplicator.applyStylingTo(line, segment));
-            } else {
-                result.add(segment);
+                List<PLineSegment> appliedSegments = styleApplicator.applyStylingTo(line, segment);
+                if (appliedSegments.size() == 1 && appliedSegments.get(0) == segment) {
+                    // Nothing changed, so carry on with the same segment.
+                    continue;
+                }
+                for (PLineSegment appliedSegment : appliedSegments) {
+                    applyStyleApplicators(applicatorIndex + 1, line, appliedSegment, result);
+                }
+                return;
             }
         }
-        return result;
+        if (tabStyleApplicator.canApplyStylingTo(segment.getStyle())) {
+            result.addAll(tabStyleApplicator.applyStylingTo(line, segment));
+        } else {
+            result.add(segment);
+        }
     }
     
     private void addTabbedSegments(PLineSegment segment, ArrayList<PLineSegment> target) {
@@ -1008,6 +1117,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         if (isLineWrappingInvalid()) {
             return;
         }
+        restartWrappingRefinement();
         int lineIndex = event.getLineIndex();
         clearSegmentCacheFrom(lineIndex);
         int splitIndex = getSplitLineIndex(lineIndex);
@@ -1024,6 +1134,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         if (isLineWrappingInvalid()) {
             return;
         }
+        restartWrappingRefinement();
         clearSegmentCacheFrom(event.getLineIndex());
         int beginSplitIndex = getSplitLineIndex(event.getLineIndex());
         int endSplitIndex = getSplitLineIndex(event.getLineIndex() + event.getLength());
@@ -1050,6 +1161,7 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         if (isLineWrappingInvalid()) {
             return;
         }
+        restartWrappingRefinement();
         int lineCountChange = 0;
         int minLine = Integer.MAX_VALUE;
         int visibleLineCount = 0;
@@ -1094,6 +1206,11 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     private void revalidateLineWrappings() {
         getLock().getWriteLock();
         try {
+            if (splitLines != null && splitLines.isEmpty() == false) {
+                // Remember where we were, so generateLineWrappings knows which lines to get right first.
+                final int topSplitIndex = (getVisibleRect().y - getInsets().top) / getLineHeight();
+                topVisibleLineIndexHint = getSplitLine(Math.max(0, Math.min(splitLines.size() - 1, topSplitIndex))).getLineIndex();
+            }
             splitLines = null;
             generateLineWrappings();
         } finally {
@@ -1127,21 +1244,133 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         generateLineWrappings();
     }
     
+    /**
+     * Wrapping a large file exactly means measuring every character of every line that doesn't fit, which takes too long to do on every resize.
+     * So we only wrap the lines near the visible area and the caret exactly, and estimate the wrapping of the rest from their widths.
+     * The estimates are then replaced with exact wrapping in the background (see refineEstimatedWrapping).
+     * Lines that fit don't need to be measured again, so they're always exact.
+     */
     private void generateLineWrappings() {
         getLock().getWriteLock();
         try {
             if (isLineWrappingInvalid() && isShowing()) {
-                splitLines = new ArrayList<SplitLine>();
+                splitLines = new ArrayList<SplitLine>(lines.size());
+                final int exactRadius = Math.max(MIN_EXACT_WRAPPING_RADIUS, 2 * getVisibleRect().height / getLineHeight());
+                final int caretLineIndex = (selection != null) ? getLineOfOffset(getSelectionStart()) : 0;
+                boolean estimated = false;
                 for (int i = 0; i < lines.size(); ++i) {
-                    addSplitLines(i, splitLines.size());
+                    if (Math.abs(i - topVisibleLineIndexHint) <= exactRadius || Math.abs(i - caretLineIndex) <= exactRadius) {
+                        addSplitLines(i, splitLines.size());
+                    } else {
+                        estimated |= addEstimatedSplitLines(i, splitLines.size());
+                    }
+                }
+                updateHeight();
+                if (estimated) {
+                    startWrappingRefinement();
+                }
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    private void startWrappingRefinement() {
+        if (wrappingRefiner == null) {
+            wrappingRefiner = new Timer(0, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    refineEstimatedWrapping();
+                }
+            });
+        }
+        nextSplitIndexToRefine = 0;
+        wrappingRefiner.start();
+    }
+    
+    /**
+     * Ensures that the wrapping refiner rescans from the start, because edits can move estimated lines behind it.
+     */
+    private void restartWrappingRefinement() {
+        if (wrappingRefiner != null && wrappingRefiner.isRunning()) {
+            nextSplitIndexToRefine = 0;
+        }
+    }
+    
+    /**
+     * Replaces estimated SplitLines with exact ones, visible lines first, for up to MAX_REFINEMENT_DURATION_NS.
+     * Keeps the visible text where it is, even if the number of SplitLines above it changes.
+     */
+    private void refineEstimatedWrapping() {
+        getLock().getWriteLock();
+        try {
+            if (isLineWrappingInvalid()) {
+                wrappingRefiner.stop();
+                return;
+            }
+            final long startTimeNs = System.nanoTime();
+            Rectangle visible = getVisibleRect();
+            int firstVisibleSplitIndex = Math.max(0, (visible.y - getInsets().top) / getLineHeight());
+            final int visibleSplitLineCount = visible.height / getLineHeight() + 1;
+            int splitLineCountChange = 0;
+            int splitLineCountChangeAboveVisible = 0;
+            
+            // Anything estimated that's visible gets fixed first, because people can see it's wrong.
+            for (int i = firstVisibleSplitIndex; i < Math.min(splitLines.size(), firstVisibleSplitIndex + visibleSplitLineCount); ++i) {
+                if (getSplitLine(i).isEstimate()) {
+                    final int splitIndex = backtrackToLineStart(i);
+                    final int change = rewrapExactly(splitIndex);
+                    splitLineCountChange += change;
+                    if (splitIndex < firstVisibleSplitIndex) {
+                        splitLineCountChangeAboveVisible += change;
+                        firstVisibleSplitIndex += change;
+                    }
+                }
+            }
+            
+            // Then we work through the rest from the top.
+            while (System.nanoTime() - startTimeNs < MAX_REFINEMENT_DURATION_NS) {
+                if (nextSplitIndexToRefine >= splitLines.size()) {
+                    wrappingRefiner.stop();
+                    break;
+                }
+                if (getSplitLine(nextSplitIndexToRefine).isEstimate() == false) {
+                    ++nextSplitIndexToRefine;
+                    continue;
                 }
+                final int splitIndex = backtrackToLineStart(nextSplitIndexToRefine);
+                final int change = rewrapExactly(splitIndex);
+                splitLineCountChange += change;
+                if (splitIndex < firstVisibleSplitIndex) {
+                    splitLineCountChangeAboveVisible += change;
+                    firstVisibleSplitIndex += change;
+                }
+                nextSplitIndexToRefine = getSplitLineIndex(getSplitLine(splitIndex).getLineIndex() + 1);
+            }
+            
+            if (splitLineCountChange != 0) {
                 updateHeight();
+                if (splitLineCountChangeAboveVisible != 0) {
+                    visible.y += splitLineCountChangeAboveVisible * getLineHeight();
+                    scrollRectToVisible(visible);
+                }
+                repaint();
             }
         } finally {
             getLock().relinquishWriteLock();
         }
     }
     
+    /**
+     * Replaces the SplitLines for the logical line whose first SplitLine is at 'splitIndex' with exact ones.
+     * Returns the change in the number of SplitLines.
+     */
+    private int rewrapExactly(int splitIndex) {
+        final int lineIndex = getSplitLine(splitIndex).getLineIndex();
+        final int removedCount = removeSplitLines(splitIndex, getSplitLineIndex(lineIndex + 1));
+        final int addedCount = addSplitLines(lineIndex, splitIndex);
+        return addedCount - removedCount;
+    }
+    
     private void updateHeight() {
         Dimension size = getSize();
         Insets insets = getInsets();
@@ -1207,17 +1436,46 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         return splitLines.get(index);
     }
     
-    private int addSplitLines(int lineIndex, int index) {
-        final int initialSplitLineCount = splitLines.size();
-        if (lines.isWidthValid(lineIndex) == false) {
-            setLineWidth(lineIndex);
-        }
+    /**
+     * Returns the width available for a SplitLine.
+     */
+    private int getWrappingWidth() {
         Insets insets = getInsets();
         int width = getWidth() - insets.left - insets.right;
         if (width <= 0) {
             width = Integer.MAX_VALUE;  // Don't wrap if we don't have any size.
         }
-        width = Math.max(width, MIN_WIDTH);  // Ensure we're at least a sensible width.
+        return Math.max(width, MIN_WIDTH);  // Ensure we're at least a sensible width.
+    }
+    
+    /**
+     * Like addSplitLines, but if the line doesn't fit, splits it into however many equal-length pieces its width suggests rather than measuring each character.
+     * Returns true if the SplitLines added were estimates.
+     */
+    private boolean addEstimatedSplitLines(int lineIndex, int index) {
+        if (lines.isWidthValid(lineIndex) == false) {
+            setLineWidth(lineIndex);
+        }
+        final int width = getWrappingWidth();
+        final int lineWidth = lines.getWidth(lineIndex);
+        if (lineWidth <= width) {
+            addSplitLines(lineIndex, index);
+            return false;
+        }
+        final int length = lines.getLineContents(lineIndex).length();
+        final int charsPerSplitLine = (int) Math.max(1, ((long) length * (width - getMinimumWrapMarkWidth())) / lineWidth);
+        for (int offset = 0; offset < length; offset += charsPerSplitLine) {
+            splitLines.add(index++, new SplitLine(lineIndex, offset, Math.min(charsPerSplitLine, length - offset), true));
+        }
+        return true;
+    }
+    
+    private int addSplitLines(int lineIndex, int index) {
+        final int initialSplitLineCount = splitLines.size();
+        if (lines.isWidthValid(lineIndex) == false) {
+            setLineWidth(lineIndex);
+        }
+        final int width = getWrappingWidth();
         if (lines.getWidth(lineIndex) <= width) {
             // The whole line fits.
             splitLines.add(index, new SplitLine(lineIndex, 0, lines.getLineContents(lineIndex).length()));
@@ -1268,11 +1526,9 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         // FIXME: this is a hack, and doesn't generalize to arbitrary PTextSegments for which getViewText and getCharSequence (that is, the model text) return different strings. I tried to rewrite the wrapping code to use getLineSegments. setLineWidth is easy, but addSplitLines is pretty difficult because you need to keep track of the two strings and the correspondence between offsets in them, or rewrite it completely to work on the text segments itself. This code has been known broken since at least 2005-06, so another special case is better than nothing.
         if (ch == '\t') {
             return x + SINGLE_TAB.getDisplayWidth(x);
-        } else if (ch < ' ' || ch == '\u007f') {
-            // FIXME: we could cache these, since there are so few.
-            StringBuilder chars = new StringBuilder(6);
-            StringUtilities.appendUnicodeEscape(chars, ch);
-            return x + metrics[Font.PLAIN].stringWidth(chars.toString());
+        } else if (ch < asciiCharWidths.length) {
+            // This includes the control characters, which we show as escapes.
+            return x + asciiCharWidths[ch];
         } else {
             return x + metrics[Font.PLAIN].charWidth(ch);
         }
@@ -1452,6 +1708,11 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     /**
      * Highlights all matches of the given regular expression.
      * The given BirdView (which can be null) will be updated to correspond to the new matches.
+     * 
+     * Only the visible lines are searched before we return, and the number of matches found there is returned.
+     * The rest of the text is searched in the background, and the find listeners are notified as more matches are highlighted.
+     * A change to the text stops the background search, so callers that want to keep the matches up to date should call this again after the text changes.
+     * Passing a null or empty regular expression cancels any search in progress and removes the existing matches.
      */
     public int findAllMatches(String regularExpression, BirdView birdView) {
         getLock().getWriteLock();
@@ -1463,6 +1724,10 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
     }
     
     private int findAllMatchesWithWriteLockAlreadyHeld(String regularExpression, BirdView birdView) {
+        if (matchFinder != null) {
+            matchFinder.cancel();
+            matchFinder = null;
+        }
         removeHighlights(PFind.MatchHighlight.HIGHLIGHTER_NAME);
         if (birdView != null) {
             birdView.clearMatchingLines();
@@ -1473,25 +1738,29 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
             return 0;
         }
         
-        // Find all the matches.
-        if (birdView != null) {
-            birdView.setValueIsAdjusting(true);
-        }
+        matchFinder = new PMatchFinder(this, regularExpression, birdView);
+        return matchFinder.start();
+    }
+    
+    /**
+     * Returns the start and end indexes of the lines currently visible.
+     * If we're not showing, we return an empty range at the start of the caret's line, so that searches at least start near the caret.
+     */
+    int[] getVisibleTextRange() {
+        getLock().getReadLock();
         try {
-            int matchCount = 0;
-            Matcher matcher = PatternUtilities.smartCaseCompile(regularExpression).matcher(getTextBuffer());
-            while (matcher.find()) {
-                if (birdView != null) {
-                    birdView.addMatchingLine(getLineOfOffset(matcher.end()));
-                }
-                addHighlight(new PFind.MatchHighlight(this, matcher.start(), matcher.end()));
-                ++matchCount;
+            if (weAreTooBrokenToWaitUntilWeAreAbleToCarryThisOut()) {
+                final int caretLineStart = getLineStartOffset(getLineOfOffset(getSelectionStart()));
+                return new int[] { caretLineStart, caretLineStart };
             }
-            return matchCount;
+            Rectangle visible = getVisibleRect();
+            final int startLine = getLineOfOffset(getTextIndex(getNearestCoordinates(new Point(0, visible.y))));
+            final int endLine = getLineOfOffset(getTextIndex(getNearestCoordinates(new Point(visible.width, visible.y + visible.height))));
+            final int start = getLineStartOffset(startLine);
+            final int end = (endLine + 1 < getLineCount()) ? getLineStartOffset(endLine + 1) : getTextBuffer().length();
+            return new int[] { start, end };
         } finally {
-            if (birdView != null) {
-                birdView.setValueIsAdjusting(false);
-            }
+            getLock().relinquishReadLock();
         }
     }
     
@@ -1521,6 +1790,12 @@ public class PTextArea extends JComponent implements PLineListener, Scrollable,
         }
     }
     
+    void fireFindResultsChangedEvent() {
+        for (PFindListener findListener : findListeners) {
+            findListener.findResultsChanged();
+        }
+    }
+    
     public void addFindListener(PFindListener findListener) {
         findListeners.add(findListener);
     }
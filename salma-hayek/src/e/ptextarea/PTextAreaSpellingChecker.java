@@ -4,15 +4,30 @@ import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import javax.swing.*;
 import e.gui.*;
 import e.util.*;
 
-public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider {
+public class PTextAreaSpellingChecker implements PBatchTextListener, MenuItemProvider {
     private static final String HIGHLIGHTER_NAME = "PTextAreaSpellingChecker";
     
+    // Checking spelling can block on ispell, so we do it on a single thread shared by all text areas, as there's only one ispell.
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Spelling Checker");
+    
+    // We check at most this many characters at a time.
+    private static final int MAX_CHUNK_LENGTH = 32 * 1024;
+    
     private PTextArea component;
     
+    // The ranges of text we've yet to check, and the one we're checking now, if any.
+    // These are touched only with the write lock held, so they can be adjusted to account for each change to the text before anyone else sees it.
+    private ArrayList<int[]> pendingRanges = new ArrayList<int[]>();
+    private int[] rangeBeingChecked;
+    
+    // Incremented on every change to the text, so we can tell whether the text changed while we were checking it.
+    private volatile int modificationCount = 0;
+    
     public PTextAreaSpellingChecker(PTextArea component) {
         this.component = component;
         initPopUpMenu();
@@ -127,17 +142,70 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
     
     /** Notification that some text has been inserted into the PText. */
     public void textInserted(PTextEvent event) {
+        adjustRangesForInsertion(event.getOffset(), event.getLength());
         checkSpelling(event);
     }
     
     /** Notification that some text has been removed from the PText. */
     public void textRemoved(PTextEvent event) {
+        adjustRangesForRemoval(event.getOffset(), event.getLength());
         checkSpelling(event);
     }
     
     /** Notification that all of the text held within the PText object has been completely replaced. */
     public void textCompletelyReplaced(PTextEvent event) {
-        checkSpelling(event);
+        ++modificationCount;
+        pendingRanges.clear();
+        if (rangeBeingChecked != null) {
+            rangeBeingChecked[0] = rangeBeingChecked[1] = 0;
+        }
+        checkSpelling();
+    }
+    
+    /** Notification that a batch of changes to the PText has finished. */
+    public void textChangedInBatch(PBatchTextEvent event) {
+        adjustRangesForRemoval(event.getOffset(), event.getRemovedLength());
+        adjustRangesForInsertion(event.getOffset(), event.getInsertedLength());
+        checkSpellingLater(event.getOffset(), event.getOffset() + event.getInsertedLength());
+    }
+    
+    private void adjustRangesForInsertion(int offset, int length) {
+        ++modificationCount;
+        for (int[] range : pendingRanges) {
+            adjustRangeForInsertion(range, offset, length);
+        }
+        if (rangeBeingChecked != null) {
+            adjustRangeForInsertion(rangeBeingChecked, offset, length);
+        }
+    }
+    
+    private static void adjustRangeForInsertion(int[] range, int offset, int length) {
+        if (range[0] >= offset) {
+            range[0] += length;
+        }
+        if (range[1] >= offset) {
+            range[1] += length;
+        }
+    }
+    
+    private void adjustRangesForRemoval(int offset, int length) {
+        ++modificationCount;
+        for (int[] range : pendingRanges) {
+            adjustRangeForRemoval(range, offset, length);
+        }
+        if (rangeBeingChecked != null) {
+            adjustRangeForRemoval(rangeBeingChecked, offset, length);
+        }
+    }
+    
+    private static void adjustRangeForRemoval(int[] range, int offset, int length) {
+        for (int i = 0; i < range.length; ++i) {
+            if (range[i] >= offset + length) {
+                range[i] -= length;
+            } else if (range[i] > offset) {
+                range[i] = offset;
+            }
+        }
     }
     
     /**
@@ -145,46 +213,174 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
      * the given DocumentEvent.
      */
     private void checkSpelling(PTextEvent e) {
-        final PTextBuffer buffer = e.getTextBuffer();
         final int offset = e.getOffset();
-        final int documentLength = buffer.length();
-        
-        // Find a plausible place to start before the offset.
-        int fromIndex = Math.max(0, offset - 1);
-        while (fromIndex > 0 && Character.isWhitespace(buffer.charAt(fromIndex - 1)) == false) {
-            fromIndex--;
+        // We'll widen this to whole words when we come to check it.
+        final int toIndex = e.isRemove() ? offset : offset + e.getLength();
+        checkSpellingLater(offset, toIndex);
+    }
+    
+    /**
+     * Checks the spelling of all the text.
+     * The check happens in the background, because it can take a second or more for a large file.
+     */
+    public void checkSpelling() {
+        checkSpellingLater(0, component.getTextBuffer().length());
+    }
+    
+    /**
+     * Queues the range [fromIndex, toIndex) for checking, and starts checking if we're not already.
+     * 
+     * We used to check the spelling of each edit synchronously, which meant opening a large file blocked the event dispatch thread on thousands of round trips to ispell.
+     * Now the ranges that need checking are queued, and checked a chunk at a time in the background, visible text first.
+     * The queued ranges are adjusted as the text changes, so the offsets stay valid until we get to them.
+     */
+    private void checkSpellingLater(int fromIndex, int toIndex) {
+        component.getLock().getWriteLock();
+        try {
+            int[] newRange = new int[] { fromIndex, toIndex };
+            // Merge any ranges that overlap or touch, so retyping the same word doesn't queue it over and over.
+            for (Iterator<int[]> it = pendingRanges.iterator(); it.hasNext(); ) {
+                int[] range = it.next();
+                if (range[0] <= newRange[1] && newRange[0] <= range[1]) {
+                    newRange[0] = Math.min(newRange[0], range[0]);
+                    newRange[1] = Math.max(newRange[1], range[1]);
+                    it.remove();
+                }
+            }
+            pendingRanges.add(newRange);
+        } finally {
+            component.getLock().relinquishWriteLock();
         }
-        
-        // Find a plausible place to finish after the end of the range affected by this event.
-        int toIndex = e.isRemove() ? offset : offset + e.getLength() + 1;
-        toIndex = Math.min(toIndex, documentLength);  // Not past the end.
-        toIndex = Math.max(toIndex, fromIndex);  // Not before the start.
-        while (toIndex < documentLength && Character.isWhitespace(buffer.charAt(toIndex)) == false) {
-            toIndex++;
+        // Text can be changed on other threads, but we need to know what's visible.
+        if (EventQueue.isDispatchThread()) {
+            checkNextRange();
+        } else {
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    checkNextRange();
+                }
+            });
         }
-        
-        //System.err.println("offset: " + offset + " fromIndex: " + fromIndex + " toIndex: " + toIndex + " length: " + documentLength);
-        checkSpelling(buffer, fromIndex, toIndex);
     }
     
     /**
-     * Checks the spelling of all the text. Runs in a new thread, because
-     * it can take a second or more for a large file.
+     * Starts checking the most deserving pending range, unless we're already checking one.
+     * Must be called on the event dispatch thread.
      */
-    public void checkSpelling() {
-        new Thread(new Runnable() {
+    private void checkNextRange() {
+        component.getLock().getWriteLock();
+        try {
+            if (rangeBeingChecked == null && pendingRanges.isEmpty() == false) {
+                startCheckingNextRange();
+            }
+        } finally {
+            component.getLock().relinquishWriteLock();
+        }
+    }
+    
+    private void startCheckingNextRange() {
+        // Prefer a range that overlaps the visible text, starting from the top of the visible text.
+        final int[] visibleRange = component.getVisibleTextRange();
+        int[] range = pendingRanges.get(0);
+        for (int[] candidate : pendingRanges) {
+            if (candidate[0] < visibleRange[1] && visibleRange[0] < candidate[1]) {
+                range = candidate;
+                break;
+            }
+        }
+        pendingRanges.remove(range);
+        if (range[0] < visibleRange[0] && visibleRange[0] < range[1]) {
+            pendingRanges.add(new int[] { range[0], visibleRange[0] });
+            range[0] = visibleRange[0];
+        }
+        
+        // Don't hold up other text areas' checking too long.
+        if (range[1] - range[0] > MAX_CHUNK_LENGTH) {
+            pendingRanges.add(new int[] { range[0] + MAX_CHUNK_LENGTH, range[1] });
+            range[1] = range[0] + MAX_CHUNK_LENGTH;
+        }
+        
+        // Empty ranges are left behind by removals, but they still need checking, to remove highlights and check the newly-adjacent words.
+        rangeBeingChecked = range;
+        final int fromIndex = range[0];
+        final int toIndex = range[1];
+        executor.execute(new Runnable() {
             public void run() {
-                PTextBuffer buffer = component.getTextBuffer();
-                checkSpelling(buffer, 0, buffer.length());
+                checkSpellingInBackground(fromIndex, toIndex);
+            }
+        });
+    }
+    
+    private void checkSpellingInBackground(int fromIndex, int toIndex) {
+        // Find the words while holding the read lock, and then check them without it, so we don't hold up typing while we wait for ispell.
+        final ArrayList<Word> words = new ArrayList<Word>();
+        final int[] checkedRange = new int[2];
+        final int checkedModificationCount;
+        PTextBuffer buffer = component.getTextBuffer();
+        component.getLock().getReadLock();
+        try {
+            checkedModificationCount = modificationCount;
+            final int documentLength = buffer.length();
+            fromIndex = Math.min(fromIndex, documentLength);
+            toIndex = Math.max(fromIndex, Math.min(toIndex, documentLength));
+            // Widen the range to whole words, or we'd highlight the fragments either side of an edit.
+            while (fromIndex > 0 && Character.isWhitespace(buffer.charAt(fromIndex - 1)) == false) {
+                fromIndex--;
+            }
+            while (toIndex < documentLength && Character.isWhitespace(buffer.charAt(toIndex)) == false) {
+                toIndex++;
+            }
+            checkedRange[0] = fromIndex;
+            checkedRange[1] = toIndex;
+            findWords(buffer, fromIndex, toIndex, words);
+        } finally {
+            component.getLock().relinquishReadLock();
+        }
+        
+        ArrayList<String> wordStrings = new ArrayList<String>(words.size());
+        for (Word word : words) {
+            wordStrings.add(word.word);
+        }
+        final Set<String> misspellings = SpellingChecker.getSharedSpellingCheckerInstance().findMisspelledWords(wordStrings, component.getFileType());
+        
+        EventQueue.invokeLater(new Runnable() {
+            public void run() {
+                component.getLock().getWriteLock();
+                try {
+                    if (modificationCount == checkedModificationCount) {
+                        highlightMisspellings(checkedRange[0], checkedRange[1], words, misspellings);
+                    } else {
+                        // The text changed while we were checking, so our offsets are no good; check the same text again, wherever it is now.
+                        // The edit itself will have been queued separately.
+                        pendingRanges.add(rangeBeingChecked);
+                    }
+                    rangeBeingChecked = null;
+                } finally {
+                    component.getLock().relinquishWriteLock();
+                }
+                checkNextRange();
+            }
+        });
+    }
+    
+    private void highlightMisspellings(int fromIndex, int toIndex, List<Word> words, Set<String> misspellings) {
+        removeExistingHighlightsForRange(fromIndex, toIndex);
+        ArrayList<PHighlight> highlights = new ArrayList<PHighlight>();
+        for (Word word : words) {
+            if (misspellings.contains(word.word)) {
+                highlights.add(new UnderlineHighlight(component, word.start, word.end));
             }
-        }, "Spell-Checker Thread").start();
+        }
+        if (highlights.isEmpty() == false) {
+            component.addHighlights(highlights);
+        }
     }
     
     /** Ensures that there are no spelling-related highlights in the given range. */
     private void removeExistingHighlightsForRange(int fromIndex, int toIndex) {
         component.removeHighlights(HIGHLIGHTER_NAME, fromIndex, toIndex);
     }
-
+    
     public Collection<String> listMisspellings() {
         TreeSet<String> result = new TreeSet<String>();
         for (PHighlight highlight : component.getNamedHighlights(HIGHLIGHTER_NAME)) {
@@ -226,14 +422,26 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
         return Character.isLetter(c) || c == '\'';
     }
     
-    private void checkSpelling(PTextBuffer buffer, int fromIndex, int toIndex) {
-        int checkCount = 0;
-        int misspellingCount = 0;
-        
-        SpellingChecker spellingChecker = SpellingChecker.getSharedSpellingCheckerInstance();
-        
-        removeExistingHighlightsForRange(fromIndex, toIndex);
+    /**
+     * A word to be checked, and where it is in the text.
+     */
+    private static class Word {
+        private final String word;
+        private final int start;
+        private final int end;
         
+        private Word(String word, int start, int end) {
+            this.word = word;
+            this.start = start;
+            this.end = end;
+        }
+    }
+    
+    /**
+     * Appends the words in the given range that should be checked to 'words'.
+     * Must be called with the read lock held.
+     */
+    private void findWords(PTextBuffer buffer, int fromIndex, int toIndex, List<Word> words) {
         // Breaks the given range up into words, where a changeOfCase or the presence_of_underscores constitutes a word boundary.
         int start = fromIndex;
         int rememberedCase = UNKNOWN_CASE;
@@ -307,14 +515,7 @@ public class PTextAreaSpellingChecker implements PTextListener, MenuItemProvider
                 word = word.substring(0, word.length() - 2);
             }
             
-            //System.err.println(">>" + word + " " + wordLength);
-            checkCount++;
-            if (spellingChecker.isMisspelledWord(word, component.getFileType())) {
-                misspellingCount++;
-                //System.err.println("Misspelled word \"" + word + "\"");
-                component.addHighlight(new UnderlineHighlight(component, start, finish));
-            }
-            
+            words.add(new Word(word, start, finish));
             start = finish;
         }
     }
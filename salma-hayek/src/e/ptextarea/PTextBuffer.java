@@ -2,11 +2,11 @@ package e.ptextarea;
 
 import e.util.*;
 import java.io.*;
-import java.nio.*;
 import java.nio.charset.*;
 import java.util.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
+import org.jessies.test.*;
 
 /**
  * The PTextArea's model. It can be used as a CharSequence, for efficient
@@ -36,6 +36,7 @@ import javax.swing.event.ChangeListener;
  * A file written to disk with 'writeToFile' will use the current
  * CHARSET_PROPERTY, which will have been initialized to correspond to the
  * encoding the file had when read from disk, or UTF-8 if this is a new file.
+ * Use 'makeFileWriter' instead to write from another thread.
  * 
  * @author Elliott Hughes
  * @author Phil Norman
@@ -56,6 +57,16 @@ public class PTextBuffer implements CharSequence {
     private Undoer undoBuffer = new Undoer();
     private HashMap<String, Object> properties = new HashMap<String, Object>();
     private PLock lock = new PLock();
+    private int loadedLineCount = 1;
+    private long fileChecksum;
+    
+    // The batch of changes the PBatchTextListeners haven't heard about yet, as a single replacement of [batchStart, batchEnd - batchLengthDelta) in the old text by [batchStart, batchEnd) in the new.
+    private int batchDepth;
+    private int batchChangeCount;
+    private int batchStart;
+    private int batchEnd;
+    private int batchLengthDelta;
+    private int batchLineCountDelta;
     
     public PTextBuffer() {
         // Our anchorSet *must* be the first listener.  It needs to update the anchor locations
@@ -127,9 +138,18 @@ public class PTextBuffer implements CharSequence {
         // forwards through the listener list until someone comes up with a really good
         // reason why backwards is better (at which point I'll add an extra 'internalListeners'
         // list).
+        final boolean batched = (batchDepth > 0 && event.isCompleteReplacement() == false);
+        if (batched) {
+            addToBatch(event);
+        } else if (event.isCompleteReplacement()) {
+            // Everyone's about to hear that everything changed, so there's nothing left to tell them.
+            batchChangeCount = 0;
+        }
         synchronized (textListeners) {
             for (PTextListener listener : textListeners) {
-                if (event.isInsert()) {
+                if (batched && listener instanceof PBatchTextListener) {
+                    continue;
+                } else if (event.isInsert()) {
                     listener.textInserted(event);
                 } else if (event.isRemove()) {
                     listener.textRemoved(event);
@@ -140,28 +160,87 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    /**
+     * Starts a batch of changes, which must be followed by a call to finishBatch, typically in a 'finally' block.
+     * Until the outermost batch finishes, PBatchTextListeners don't hear about individual insertions and removals.
+     * Other listeners still hear about each change as it happens, so offsets and line numbers stay valid throughout the batch.
+     * Use this around operations that make many changes, so that listeners that respond the same way to any change only respond once.
+     * 
+     * The write lock is held until the batch finishes, not just for each change.
+     * A PBatchTextListener (such as a background search) can't know the text has changed until then, so no other thread may read the text in the meantime.
+     */
+    public void startBatch() {
+        getLock().getWriteLock();
+        ++batchDepth;
+    }
+    
+    /**
+     * Finishes a batch of changes started by startBatch, and gives up the write lock it took.
+     * If this was the outermost batch, the PBatchTextListeners hear about all its changes at once.
+     */
+    public void finishBatch() {
+        getLock().getWriteLock();
+        try {
+            if (batchDepth == 0) {
+                throw new IllegalStateException("can't finish a batch when there isn't one active");
+            }
+            // Our caller's had the write lock since startBatch; we give it up along with our own.
+            getLock().relinquishWriteLock();
+            if (--batchDepth > 0 || batchChangeCount == 0) {
+                return;
+            }
+            PBatchTextEvent event = new PBatchTextEvent(this, batchStart, batchEnd - batchStart - batchLengthDelta, batchEnd - batchStart, batchLineCountDelta, batchChangeCount);
+            batchChangeCount = 0;
+            synchronized (textListeners) {
+                for (PTextListener listener : textListeners) {
+                    if (listener instanceof PBatchTextListener) {
+                        ((PBatchTextListener) listener).textChangedInBatch(event);
+                    }
+                }
+            }
+        } finally {
+            getLock().relinquishWriteLock();
+        }
+    }
+    
+    private void addToBatch(PTextEvent event) {
+        final int offset = event.getOffset();
+        final int length = event.getLength();
+        final int newlineCount = StringUtilities.count(event.getCharacters(), '\n');
+        if (batchChangeCount == 0) {
+            batchStart = batchEnd = offset;
+            batchLengthDelta = batchLineCountDelta = 0;
+        }
+        batchStart = Math.min(batchStart, offset);
+        if (event.isInsert()) {
+            // Text inserted before the end of the range moves the end along; text inserted after the end extends the range to cover it.
+            batchEnd = (offset <= batchEnd) ? batchEnd + length : offset + length;
+            batchLengthDelta += length;
+            batchLineCountDelta += newlineCount;
+        } else {
+            // Text removed before the end of the range moves the end back; if the removal reaches or passes the end, the range now ends where the removal was.
+            batchEnd = (batchEnd >= offset + length) ? batchEnd - length : offset;
+            batchLengthDelta -= length;
+            batchLineCountDelta -= newlineCount;
+        }
+        ++batchChangeCount;
+    }
+    
     /**
      * Replaces the contents of this buffer with the entire contents of 'file'.
      */
     public void readFromFile(File file) {
         getLock().getWriteLock();
         try {
-            // Read all the bytes in.
-            final ByteBuffer byteBuffer = ByteBufferUtilities.readFile(file);
-            
-            // Decode the raw bytes into characters.
-            final ByteBufferDecoder decoder = new ByteBufferDecoder(byteBuffer, byteBuffer.capacity());
-            final String encoding = decoder.getEncodingName();
-            char[] chars = decoder.getCharArray();
-            if (decoder.sawCarriageReturns()) {
-                chars = fixLineEndings(chars);
-            } else {
-                putProperty(LINE_ENDING_PROPERTY, "\n");
-            }
+            // Decode the file straight into the array we'll use as our text.
+            final PTextFileDecoder decoder = new PTextFileDecoder(file);
             
-            // Use the characters and the inferred encoding.
-            putProperty(CHARSET_PROPERTY, encoding);
-            setText(chars);
+            // Use the characters, the inferred encoding, and the original line ending.
+            putProperty(CHARSET_PROPERTY, decoder.getEncodingName());
+            putProperty(LINE_ENDING_PROPERTY, decoder.getLineEnding());
+            loadedLineCount = decoder.getLineCount();
+            fileChecksum = decoder.getChecksum();
+            setText(decoder.getCharArray(), decoder.getLength());
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         } finally {
@@ -169,13 +248,6 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
-    private char[] fixLineEndings(char[] chars) {
-        final String s = new String(chars);
-        final String lineEnding = s.contains("\r\n") ? "\r\n" : "\r";
-        putProperty(LINE_ENDING_PROPERTY, lineEnding);
-        return s.replaceAll(lineEnding, "\n").toCharArray();
-    }
-    
     /**
      * Writes the contents of this buffer into the given file, replacing
      * whatever's already there.
@@ -229,26 +301,10 @@ public class PTextBuffer implements CharSequence {
         try {
             Writer writer = new BufferedWriter(outputStreamWriter);
             
+            // Write out the two halves, converting newlines as we go.
             String lineEnding = (String) getProperty(LINE_ENDING_PROPERTY);
-            if (lineEnding.equals("\n")) {
-                // Just write out the two halves as they are.
-                if (gapPosition != 0) {
-                    writer.write(text, 0, gapPosition);
-                }
-                final int gapEnd = gapPosition + gapLength;
-                if (gapEnd < text.length) {
-                    writer.write(text, gapEnd, text.length - gapEnd);
-                }
-            } else {
-                // Split our internal content into lines, and write them
-                // out individually. Expensive, but why aren't you using
-                // Unix line-endings, crazy person?
-                String[] lines = toString().split("\n");
-                for (String line : lines) {
-                    writer.write(line);
-                    writer.write(lineEnding);
-                }
-            }
+            writeWithLineEnding(writer, 0, gapPosition, lineEnding);
+            writeWithLineEnding(writer, gapPosition + gapLength, text.length, lineEnding);
             writer.flush();
         } catch (IOException ex) {
             throw new RuntimeException(ex);
@@ -257,17 +313,66 @@ public class PTextBuffer implements CharSequence {
         }
     }
     
+    private void writeWithLineEnding(Writer writer, int start, int end, String lineEnding) throws IOException {
+        if (lineEnding.equals("\n") == false) {
+            for (int i = start; i < end; ++i) {
+                if (text[i] == '\n') {
+                    writer.write(text, start, i - start);
+                    writer.write(lineEnding);
+                    start = i + 1;
+                }
+            }
+        }
+        writer.write(text, start, end - start);
+    }
+    
     /**
-     * Sets the text, replacing anything that was here before.
-     * Note that this method does not copy the given char[].
+     * Returns a snapshot of the text that can be written to a file on another
+     * thread while editing continues. See PTextFileWriter.
      */
-    private void setText(char[] text) {
+    public PTextFileWriter makeFileWriter() {
+        getLock().getReadLock();
+        try {
+            return new PTextFileWriter(copyCharArray(0, length()), (String) getProperty(CHARSET_PROPERTY), (String) getProperty(LINE_ENDING_PROPERTY));
+        } finally {
+            getLock().relinquishReadLock();
+        }
+    }
+    
+    /**
+     * Returns the CRC-32 checksum of the bytes read by the last readFromFile,
+     * or written by the last save, so callers can cheaply tell whether the
+     * file has changed since.
+     */
+    public long getFileChecksum() {
+        return fileChecksum;
+    }
+    
+    /**
+     * Records the CRC-32 checksum of the bytes just written to the file. Call
+     * this before marking the undo buffer clean, because the undo history log
+     * uses it to recognize the saved text.
+     */
+    public void setFileChecksum(long fileChecksum) {
+        this.fileChecksum = fileChecksum;
+    }
+    
+    /**
+     * Sets the text to the first 'length' chars of 'text', replacing anything
+     * that was here before. Note that this method does not copy the given
+     * char[]: any space after the text becomes our gap.
+     */
+    private void setText(char[] text, int length) {
         getLock().getWriteLock();
         try {
+            if (text.length - length > Math.max(MAX_GAP_SIZE, length / 4)) {
+                // Decoding mostly multi-byte UTF-8 leaves a lot of spare space, which isn't worth keeping.
+                text = Arrays.copyOf(text, length + MIN_BUFFER_EXTENSION);
+            }
             this.text = text;
-            gapPosition = 0;
-            gapLength = 0;
-            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text)));
+            gapPosition = length;
+            gapLength = text.length - length;
+            fireTextEvent(new PTextEvent(this, PTextEvent.COMPLETE_REPLACEMENT, 0, new CharArrayCharSequence(text, 0, length)));
         } finally {
             getLock().relinquishWriteLock();
         }
@@ -431,6 +536,15 @@ public class PTextBuffer implements CharSequence {
         return -1;
     }
     
+    /**
+     * Returns the number of lines readFromFile counted while reading the file,
+     * so that PLineList can size its list of lines without counting them again.
+     * This is only a hint: it isn't updated as the text changes.
+     */
+    int getLoadedLineCount() {
+        return loadedLineCount;
+    }
+    
     /** Returns the number of characters in the text area.  Part of the CharSequence interface. */
     public int length() {
         return text.length - gapLength;
@@ -496,6 +610,12 @@ public class PTextBuffer implements CharSequence {
     }
     
     public class Undoer implements PUndoBuffer {
+        // By default, we let the undo history of each buffer occupy this much memory before we start forgetting the oldest edits.
+        private static final long DEFAULT_MEMORY_LIMIT = 32 * 1024 * 1024;
+        
+        // We coalesce runs of typing or deleting, but not indefinitely, so you can still undo part of a long run.
+        private static final int MAX_COALESCED_LENGTH = 200;
+        
         private ArrayList<Doable> undoList;
         private int undoPosition;
         
@@ -513,8 +633,15 @@ public class PTextBuffer implements CharSequence {
         // edit easily recognizable.
         private static final int NOT_COMPOUND = -1;
         
+        // An estimate of how much memory the Doables in undoList occupy.
+        private long undoListSizeInBytes;
+        private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+        
         private ArrayList<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
         
+        // Where we record our history so it can be restored next time the file's opened, if anywhere.
+        private PUndoHistoryLog historyLog;
+        
         public Undoer() {
             resetUndoBuffer();
         }
@@ -524,20 +651,137 @@ public class PTextBuffer implements CharSequence {
             this.undoPosition = 0;
             this.compoundingDepth = 0;
             this.compoundId = 0;
+            this.undoListSizeInBytes = 0;
+            if (historyLog != null) {
+                historyLog.recordReset();
+            }
             fireChangeListeners();
         }
         
+        void setHistoryLog(PUndoHistoryLog historyLog) {
+            this.historyLog = historyLog;
+        }
+        
+        /**
+         * Replaces the (empty) history with one restored by 'historyLog'.
+         */
+        void restoreHistory(List<Doable> doables, int newUndoPosition, int newCleanPosition) {
+            this.undoList = new ArrayList<Doable>(doables);
+            this.undoPosition = newUndoPosition;
+            this.cleanPosition = newCleanPosition;
+            this.undoListSizeInBytes = 0;
+            for (Doable doable : undoList) {
+                undoListSizeInBytes += doable.getSizeInBytes();
+                compoundId = Math.max(compoundId, doable.getCompoundId() + 1);
+            }
+            discardOldestEdits();
+            fireChangeListeners();
+        }
+        
+        List<Doable> getDoables() {
+            return Collections.unmodifiableList(undoList);
+        }
+        
+        int getUndoPosition() {
+            return undoPosition;
+        }
+        
+        int getCleanPosition() {
+            return cleanPosition;
+        }
+        
+        long getSizeInBytes() {
+            return undoListSizeInBytes;
+        }
+        
+        public void setMemoryLimit(long bytes) {
+            this.memoryLimit = bytes;
+            discardOldestEdits();
+        }
+        
         private void addAndDo(SelectionSetter beforeCaret, int position, CharSequence removeChars, CharSequence insertChars, SelectionSetter afterCaret) {
-            // FIXME: use ArrayList.removeRange.
-            while (undoList.size() > undoPosition) {
+            if (undoList.size() > undoPosition) {
                 cleanPosition = -1;  // We can never be clean again until we save.
-                undoList.remove(undoPosition);
+                List<Doable> redoList = undoList.subList(undoPosition, undoList.size());
+                for (Doable doable : redoList) {
+                    undoListSizeInBytes -= doable.getSizeInBytes();
+                }
+                redoList.clear();
             }
             
             int id = (compoundingDepth == 0) ? NOT_COMPOUND : compoundId;
             Doable newEdit = new Doable(id, beforeCaret, position, removeChars, insertChars, afterCaret);
+            Doable previousEdit = undoList.isEmpty() ? null : undoList.get(undoList.size() - 1);
+            if (previousEdit != null && cleanPosition != undoPosition && previousEdit.canCoalesceWith(newEdit)) {
+                // Rather than add a new Doable for every keystroke, we extend the last one.
+                getLock().getWriteLock();
+                try {
+                    newEdit.redo();
+                } finally {
+                    getLock().relinquishWriteLock();
+                }
+                undoListSizeInBytes -= previousEdit.getSizeInBytes();
+                previousEdit.coalesceWith(newEdit);
+                undoListSizeInBytes += previousEdit.getSizeInBytes();
+                if (historyLog != null) {
+                    historyLog.recordCoalesce(newEdit);
+                }
+                fireChangeListeners();
+                return;
+            }
             undoList.add(newEdit);
-            redo();
+            getLock().getWriteLock();
+            try {
+                ++undoPosition;
+                newEdit.redo();
+            } finally {
+                getLock().relinquishWriteLock();
+            }
+            // The text has been used to make the change, so we can now keep it in whatever form is smallest.
+            newEdit.compact();
+            undoListSizeInBytes += newEdit.getSizeInBytes();
+            if (historyLog != null) {
+                historyLog.recordAdd(newEdit);
+            }
+            fireChangeListeners();
+            discardOldestEdits();
+        }
+        
+        /**
+         * Forgets the oldest edits until the undo list fits within the memory limit.
+         * We never discard the most recent edit, or part of a compound edit, or anything that could be redone.
+         */
+        private void discardOldestEdits() {
+            int discardCount = 0;
+            while (undoListSizeInBytes > memoryLimit) {
+                int end = discardCount + 1;
+                while (end < undoPosition && compoundContinuesAt(undoList.get(end - 1), end)) {
+                    ++end;
+                }
+                if (end >= undoPosition) {
+                    break;
+                }
+                for (int i = discardCount; i < end; ++i) {
+                    undoListSizeInBytes -= undoList.get(i).getSizeInBytes();
+                }
+                discardCount = end;
+            }
+            if (discardCount == 0) {
+                return;
+            }
+            undoList.subList(0, discardCount).clear();
+            undoPosition -= discardCount;
+            if (cleanPosition != -1) {
+                cleanPosition -= discardCount;
+                if (cleanPosition < 0) {
+                    // The clean state was one of the ones we just forgot, so we can't get back to it.
+                    cleanPosition = -1;
+                }
+            }
+            if (historyLog != null) {
+                historyLog.recordDiscard(discardCount);
+            }
+            fireChangeListeners();
         }
         
         public void startCompoundEdit() {
@@ -563,6 +807,9 @@ public class PTextBuffer implements CharSequence {
         
         public void setCurrentStateClean() {
             cleanPosition = undoPosition;
+            if (historyLog != null) {
+                historyLog.recordClean();
+            }
         }
         
         public boolean isClean() {
@@ -595,6 +842,7 @@ public class PTextBuffer implements CharSequence {
         public void undo() {
             if (canUndo()) {
                 getLock().getWriteLock();
+                startBatch();
                 try {
                     Doable doable;
                     do {
@@ -603,8 +851,12 @@ public class PTextBuffer implements CharSequence {
                         doable.undo();
                     } while (compoundContinuesAt(doable, undoPosition - 1));
                 } finally {
+                    finishBatch();
                     getLock().relinquishWriteLock();
                 }
+                if (historyLog != null) {
+                    historyLog.recordUndoPosition(undoPosition);
+                }
                 fireChangeListeners();
             }
         }
@@ -612,6 +864,7 @@ public class PTextBuffer implements CharSequence {
         public void redo() {
             if (canRedo()) {
                 getLock().getWriteLock();
+                startBatch();
                 try {
                     Doable doable;
                     do {
@@ -620,8 +873,12 @@ public class PTextBuffer implements CharSequence {
                         doable.redo();
                     } while (compoundContinuesAt(doable, undoPosition));
                 } finally {
+                    finishBatch();
                     getLock().relinquishWriteLock();
                 }
+                if (historyLog != null) {
+                    historyLog.recordUndoPosition(undoPosition);
+                }
                 fireChangeListeners();
             }
         }
@@ -641,7 +898,17 @@ public class PTextBuffer implements CharSequence {
         public void modifySelection();
     }
     
-    private class Doable {
+    /**
+     * Returns a new edit for 'historyLog' to restore, which hasn't been done.
+     */
+    Doable makeDoable(int compoundId, SelectionSetter beforeCaret, int position, CharSequence removeChars, CharSequence insertChars, SelectionSetter afterCaret) {
+        return new Doable(compoundId, beforeCaret, position, removeChars, insertChars, afterCaret);
+    }
+    
+    class Doable {
+        // A rough allowance for the Doable itself, and its SelectionSetters.
+        private static final int OVERHEAD_IN_BYTES = 96;
+        
         private int compoundId;
         private SelectionSetter beforeCaret;
         private int position;
@@ -666,6 +933,81 @@ public class PTextBuffer implements CharSequence {
             return compoundId;
         }
         
+        public int getPosition() {
+            return position;
+        }
+        
+        public CharSequence getRemoveChars() {
+            return removeChars;
+        }
+        
+        public CharSequence getInsertChars() {
+            return insertChars;
+        }
+        
+        /**
+         * Tests whether 'next' is typing or deleting that continues this edit, and could be undone along with it.
+         */
+        public boolean canCoalesceWith(Doable next) {
+            if (isNotCompound() == false || next.isNotCompound() == false) {
+                return false;
+            }
+            if (isSingleCharacterInsertion(next)) {
+                // Typing continues from where we left off, and a newline starts a new edit.
+                return (removeChars == null && insertChars != null && insertChars.length() < Undoer.MAX_COALESCED_LENGTH && next.position == position + insertChars.length() && next.insertChars.charAt(0) != '\n');
+            }
+            if (isSingleCharacterRemoval(next) && insertChars == null && removeChars != null && removeChars.length() < Undoer.MAX_COALESCED_LENGTH) {
+                // Backspace removes the character before us, and delete removes the character at our position.
+                return (next.position == position - 1 || next.position == position);
+            }
+            return false;
+        }
+        
+        private boolean isSingleCharacterInsertion(Doable doable) {
+            return (doable.removeChars == null && doable.insertChars != null && doable.insertChars.length() == 1);
+        }
+        
+        private boolean isSingleCharacterRemoval(Doable doable) {
+            return (doable.insertChars == null && doable.removeChars != null && doable.removeChars.length() == 1);
+        }
+        
+        /**
+         * Extends this edit to include 'next', which has already been done, and which canCoalesceWith accepted.
+         */
+        public void coalesceWith(Doable next) {
+            if (next.insertChars != null) {
+                insertChars = insertChars.toString() + next.insertChars;
+            } else if (next.position < position) {
+                removeChars = next.removeChars.toString() + removeChars;
+                position = next.position;
+            } else {
+                removeChars = removeChars.toString() + next.removeChars;
+            }
+            afterCaret = next.afterCaret;
+        }
+        
+        /**
+         * Compresses any large blocks of text we're holding on to.
+         */
+        public void compact() {
+            removeChars = PCompressedText.compress(removeChars);
+            insertChars = PCompressedText.compress(insertChars);
+        }
+        
+        public long getSizeInBytes() {
+            return OVERHEAD_IN_BYTES + sizeInBytesOf(removeChars) + sizeInBytesOf(insertChars);
+        }
+        
+        private long sizeInBytesOf(CharSequence chars) {
+            if (chars == null) {
+                return 0;
+            }
+            if (chars instanceof PCompressedText) {
+                return ((PCompressedText) chars).getCompressedSize();
+            }
+            return 2L * chars.length();
+        }
+        
         public String toString() {
             return "Doable[compoundId=" + compoundId + ",position=" + position + ",removeChars=\"" + removeChars + "\",insertChars=\"" + insertChars + "\"]";
         }
@@ -682,11 +1024,160 @@ public class PTextBuffer implements CharSequence {
         
         private void removeAndInsert(CharSequence remove, CharSequence insert) {
             if (remove != null) {
-                removeWithoutUndo(position, remove);
+                removeWithoutUndo(position, PCompressedText.expand(remove));
             }
             if (insert != null) {
-                insertWithoutUndo(position, insert);
+                insertWithoutUndo(position, PCompressedText.expand(insert));
             }
         }
     }
+    
+    private static final SelectionSetter NO_SELECTION_CHANGE = new SelectionSetter() {
+        public void modifySelection() {
+        }
+    };
+    
+    private void type(int position, String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            replace(NO_SELECTION_CHANGE, position + i, 0, s.substring(i, i + 1), NO_SELECTION_CHANGE);
+        }
+    }
+    
+    @Test private static void testUndoCoalescesTyping() {
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.type(0, "hello\nworld");
+        Assert.equals(buffer.toString(), "hello\nworld");
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.toString(), "hello");
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.toString(), "");
+        Assert.equals(buffer.getUndoBuffer().canUndo(), false);
+        buffer.getUndoBuffer().redo();
+        buffer.getUndoBuffer().redo();
+        Assert.equals(buffer.toString(), "hello\nworld");
+        
+        // Backspacing and deleting coalesce too.
+        buffer.replace(NO_SELECTION_CHANGE, 4, 1, null, NO_SELECTION_CHANGE);
+        buffer.replace(NO_SELECTION_CHANGE, 3, 1, null, NO_SELECTION_CHANGE);
+        buffer.replace(NO_SELECTION_CHANGE, 3, 1, null, NO_SELECTION_CHANGE);
+        Assert.equals(buffer.toString(), "helworld");
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.toString(), "hello\nworld");
+    }
+    
+    @Test private static void testUndoDoesNotCoalesceAcrossCleanState() {
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.type(0, "ab");
+        buffer.getUndoBuffer().setCurrentStateClean();
+        buffer.type(2, "cd");
+        Assert.equals(buffer.getUndoBuffer().isClean(), false);
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.toString(), "ab");
+        Assert.equals(buffer.getUndoBuffer().isClean(), true);
+    }
+    
+    @Test private static void testUndoMemoryLimit() {
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.getUndoBuffer().setMemoryLimit(1024);
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            line.append('x');
+        }
+        for (int i = 0; i < 20; ++i) {
+            buffer.replace(NO_SELECTION_CHANGE, 0, 0, line + "\n", NO_SELECTION_CHANGE);
+        }
+        int undoCount = 0;
+        while (buffer.getUndoBuffer().canUndo()) {
+            buffer.getUndoBuffer().undo();
+            ++undoCount;
+        }
+        Assert.equals(undoCount > 0 && undoCount < 20, true);
+        Assert.equals(buffer.length(), (20 - undoCount) * 101);
+        
+        // Even an edit larger than the limit can be undone.
+        buffer.replace(NO_SELECTION_CHANGE, 0, buffer.length(), null, NO_SELECTION_CHANGE);
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.length(), (20 - undoCount) * 101);
+    }
+    
+    @Test private static void testBatchedChanges() {
+        PTextBuffer buffer = new PTextBuffer();
+        buffer.type(0, "one\ntwo\nthree\n");
+        final ArrayList<PTextEvent> events = new ArrayList<PTextEvent>();
+        final ArrayList<PBatchTextEvent> batchEvents = new ArrayList<PBatchTextEvent>();
+        buffer.addTextListener(new PBatchTextListener() {
+            public void textInserted(PTextEvent e) {
+                events.add(e);
+            }
+            
+            public void textRemoved(PTextEvent e) {
+                events.add(e);
+            }
+            
+            public void textCompletelyReplaced(PTextEvent e) {
+                events.add(e);
+            }
+            
+            public void textChangedInBatch(PBatchTextEvent e) {
+                batchEvents.add(e);
+            }
+        });
+        
+        buffer.startBatch();
+        buffer.startBatch();
+        buffer.replace(NO_SELECTION_CHANGE, 8, 6, "3", NO_SELECTION_CHANGE);
+        buffer.replace(NO_SELECTION_CHANGE, 0, 4, null, NO_SELECTION_CHANGE);
+        buffer.finishBatch();
+        buffer.replace(NO_SELECTION_CHANGE, 0, 0, "zero\n", NO_SELECTION_CHANGE);
+        Assert.equals(batchEvents.size(), 0);
+        buffer.finishBatch();
+        Assert.equals(buffer.toString(), "zero\ntwo\n3");
+        Assert.equals(events.size(), 0);
+        // As if "one\ntwo\nthree\n" had been replaced by "zero\ntwo\n3".
+        Assert.equals(batchEvents.size(), 1);
+        PBatchTextEvent batch = batchEvents.get(0);
+        Assert.equals(batch.getOffset(), 0);
+        Assert.equals(batch.getRemovedLength(), 14);
+        Assert.equals(batch.getInsertedLength(), 10);
+        Assert.equals(batch.getLineCountDelta(), -1);
+        Assert.equals(batch.getChangeCount(), 4);
+        
+        // Outside a batch, or when there were no changes, nothing changes.
+        buffer.startBatch();
+        buffer.finishBatch();
+        buffer.replace(NO_SELECTION_CHANGE, 0, 0, "-", NO_SELECTION_CHANGE);
+        Assert.equals(batchEvents.size(), 1);
+        Assert.equals(events.size(), 1);
+        
+        // Undoing a compound edit is a batch.
+        buffer.getUndoBuffer().startCompoundEdit();
+        buffer.replace(NO_SELECTION_CHANGE, 1, 0, "x", NO_SELECTION_CHANGE);
+        buffer.replace(NO_SELECTION_CHANGE, 11, 0, "y", NO_SELECTION_CHANGE);
+        buffer.getUndoBuffer().finishCompoundEdit();
+        buffer.getUndoBuffer().undo();
+        Assert.equals(buffer.toString(), "-zero\ntwo\n3");
+        Assert.equals(events.size(), 3);
+        Assert.equals(batchEvents.size(), 2);
+        Assert.equals(batchEvents.get(1).getOffset(), 1);
+        Assert.equals(batchEvents.get(1).getRemovedLength(), 11);
+        Assert.equals(batchEvents.get(1).getInsertedLength(), 9);
+    }
+    
+    @Test private static void testBatchHoldsWriteLock() throws InterruptedException {
+        final PTextBuffer buffer = new PTextBuffer();
+        buffer.type(0, "one\n");
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                buffer.toString();
+            }
+        });
+        // No other thread can read the text between the changes of a batch, because the batch listeners haven't heard about them yet.
+        buffer.startBatch();
+        buffer.replace(NO_SELECTION_CHANGE, 0, 4, null, NO_SELECTION_CHANGE);
+        reader.start();
+        reader.join(100);
+        Assert.equals(reader.isAlive(), true);
+        buffer.finishBatch();
+        reader.join();
+    }
 }
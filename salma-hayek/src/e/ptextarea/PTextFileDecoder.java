@@ -0,0 +1,285 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * Reads a file into a char[] for PTextBuffer, in a single pass over the file.
+ * 
+ * The file is read a chunk at a time, and each chunk is decoded straight into
+ * the char[] we'll hand over, so the whole file is never held in memory twice.
+ * Line endings are converted to '\n' and newlines are counted as we go.
+ * 
+ * The encoding is chosen from the first two bytes: a UTF-16 byte-order mark
+ * means UTF-16, and anything else means UTF-8. If the file turns out not to be
+ * UTF-8 after all, we start again with ISO-8859-1.
+ * 
+ * A file containing "\r\n" has each "\r\n" converted to '\n'. A file
+ * containing no "\r\n" but some lone '\r's has those converted instead.
+ */
+final class PTextFileDecoder {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private final int chunkSize;
+    
+    private String encoding;
+    private char[] chars;
+    // The number of chars at the start of 'chars' that have had their line endings converted.
+    private int length;
+    private int newlineCount;
+    private int carriageReturnCount;
+    private boolean sawCarriageReturnNewline;
+    private long checksum;
+    
+    PTextFileDecoder(File file) throws IOException {
+        this(file, CHUNK_SIZE);
+    }
+    
+    /**
+     * Reads 'file' 'chunkSize' bytes at a time. The chunk size must be at
+     * least 4, so that a chunk can always hold a whole character.
+     */
+    PTextFileDecoder(File file, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        FileInputStream fileInputStream = null;
+        try {
+            fileInputStream = new FileInputStream(file);
+            final FileChannel channel = fileInputStream.getChannel();
+            try {
+                decode(channel, guessCharsetName(channel));
+            } catch (CharacterCodingException ex) {
+                // Try again with the most popular parochial format (see ByteBufferDecoder).
+                // Any byte sequence is valid ISO-8859-1, so this can't fail.
+                decode(channel, "ISO-8859-1");
+            }
+        } finally {
+            FileUtilities.close(fileInputStream);
+        }
+        if (sawCarriageReturnNewline == false && carriageReturnCount > 0) {
+            for (int i = 0; i < length; ++i) {
+                if (chars[i] == '\r') {
+                    chars[i] = '\n';
+                }
+            }
+            newlineCount += carriageReturnCount;
+        }
+    }
+    
+    /**
+     * Returns the chars decoded from the file. Only the first getLength() are
+     * meaningful; any others are spare space the caller can use.
+     */
+    public char[] getCharArray() {
+        return chars;
+    }
+    
+    public int getLength() {
+        return length;
+    }
+    
+    /**
+     * Returns the number of lines, counting any text after the last newline
+     * (even if there isn't any) as a line, the way PLineList does.
+     */
+    public int getLineCount() {
+        return newlineCount + 1;
+    }
+    
+    /**
+     * Returns the CRC-32 checksum of the file's bytes.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+    
+    public String getEncodingName() {
+        return encoding;
+    }
+    
+    /**
+     * Returns the line ending the file used, which has been converted to '\n'.
+     */
+    public String getLineEnding() {
+        if (sawCarriageReturnNewline) {
+            return "\r\n";
+        }
+        return (carriageReturnCount > 0) ? "\r" : "\n";
+    }
+    
+    private static String guessCharsetName(FileChannel channel) throws IOException {
+        // Assume UTF-8, but check for a UTF-16 BOM.
+        final ByteBuffer prefix = ByteBuffer.allocate(2);
+        channel.read(prefix, 0);
+        if (prefix.hasRemaining() == false) {
+            int possibleBom = prefix.getShort(0) & 0xffff;
+            if (possibleBom == 0xfeff) {
+                return "UTF-16BE";
+            } else if (possibleBom == 0xfffe) {
+                return "UTF-16LE";
+            }
+        }
+        return "UTF-8";
+    }
+    
+    private void decode(FileChannel channel, String charsetName) throws IOException {
+        // CharsetDecoder is reporting by default.
+        final CharsetDecoder decoder = Charset.forName(charsetName).newDecoder();
+        length = 0;
+        newlineCount = 0;
+        carriageReturnCount = 0;
+        sawCarriageReturnNewline = false;
+        
+        // Our encodings never decode to more chars than this, so usually we won't have to grow the array.
+        chars = new char[(int) (channel.size() * decoder.averageCharsPerByte())];
+        CharBuffer out = CharBuffer.wrap(chars);
+        final ByteBuffer in = ByteBuffer.allocate(chunkSize);
+        final CRC32 crc = new CRC32();
+        channel.position(0);
+        boolean endOfInput = false;
+        while (endOfInput == false) {
+            final int start = in.position();
+            endOfInput = (channel.read(in) == -1);
+            crc.update(in.array(), start, in.position() - start);
+            in.flip();
+            CoderResult result;
+            while ((result = decoder.decode(in, out, endOfInput)).isOverflow()) {
+                out = grow(out);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            in.compact();
+            convertLineEndings(out, false);
+        }
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        convertLineEndings(out, true);
+        encoding = charsetName;
+        checksum = crc.getValue();
+    }
+    
+    private CharBuffer grow(CharBuffer out) {
+        chars = Arrays.copyOf(chars, chars.length + Math.max(chars.length / 2, chunkSize));
+        CharBuffer result = CharBuffer.wrap(chars);
+        result.position(out.position());
+        return result;
+    }
+    
+    /**
+     * Converts line endings in the chars decoded since we were last called,
+     * moving the converted chars down to follow the ones we've already
+     * converted, and leaving 'out' positioned so the decoder appends after them.
+     * A '\r' at the end might be the first half of a "\r\n" split between
+     * chunks, so unless this is the end of the input, we leave it for next time.
+     */
+    private void convertLineEndings(CharBuffer out, boolean endOfInput) {
+        final int end = out.position();
+        int to = length;
+        int from = length;
+        for (; from < end; ++from) {
+            final char ch = chars[from];
+            if (ch == '\r') {
+                if (from + 1 == end && endOfInput == false) {
+                    break;
+                }
+                if (from + 1 < end && chars[from + 1] == '\n') {
+                    // Drop the '\r' and keep the '\n'.
+                    sawCarriageReturnNewline = true;
+                    continue;
+                }
+                ++carriageReturnCount;
+            } else if (ch == '\n') {
+                ++newlineCount;
+            }
+            chars[to++] = ch;
+        }
+        length = to;
+        if (from < end) {
+            chars[to++] = '\r';
+        }
+        out.position(to);
+    }
+    
+    private static PTextFileDecoder decodeBytes(int chunkSize, byte... bytes) {
+        final File file = FileUtilities.createTemporaryFile("PTextFileDecoder", ".tmp", "test file", null);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(bytes);
+            out.close();
+            out = null;
+            return new PTextFileDecoder(file, chunkSize);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            FileUtilities.close(out);
+            file.delete();
+        }
+    }
+    
+    private static PTextFileDecoder decodeString(int chunkSize, String s, String charsetName) {
+        try {
+            return decodeBytes(chunkSize, s.getBytes(charsetName));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static String text(PTextFileDecoder decoder) {
+        return new String(decoder.getCharArray(), 0, decoder.getLength());
+    }
+    
+    @Test private static void testLineEndings() {
+        // A chunk size of 4 splits some of the "\r\n"s between chunks.
+        PTextFileDecoder decoder = decodeString(4, "one\r\ntwo\r\n\r\nfour", "US-ASCII");
+        Assert.equals(text(decoder), "one\ntwo\n\nfour");
+        Assert.equals(decoder.getLineEnding(), "\r\n");
+        Assert.equals(decoder.getLineCount(), 4);
+        
+        decoder = decodeString(4, "one\rtwo\r", "US-ASCII");
+        Assert.equals(text(decoder), "one\ntwo\n");
+        Assert.equals(decoder.getLineEnding(), "\r");
+        Assert.equals(decoder.getLineCount(), 3);
+        
+        // Once we've seen a "\r\n", a lone '\r' is just a character.
+        decoder = decodeString(4, "a\rb\r\nc\r", "US-ASCII");
+        Assert.equals(text(decoder), "a\rb\nc\r");
+        Assert.equals(decoder.getLineEnding(), "\r\n");
+        Assert.equals(decoder.getLineCount(), 2);
+        
+        decoder = decodeString(CHUNK_SIZE, "", "US-ASCII");
+        Assert.equals(text(decoder), "");
+        Assert.equals(decoder.getLineEnding(), "\n");
+        Assert.equals(decoder.getLineCount(), 1);
+    }
+    
+    @Test private static void testEncodings() {
+        // A chunk size of 4 splits the multi-byte characters between chunks.
+        PTextFileDecoder decoder = decodeString(4, "caf\u00e9 \u20ac1\r\n", "UTF-8");
+        Assert.equals(text(decoder), "caf\u00e9 \u20ac1\n");
+        Assert.equals(decoder.getEncodingName(), "UTF-8");
+        
+        decoder = decodeBytes(4, (byte) 'n', (byte) 0xe9, (byte) '\n');
+        Assert.equals(text(decoder), "n\u00e9\n");
+        Assert.equals(decoder.getEncodingName(), "ISO-8859-1");
+        // Starting again mustn't count the bytes we'd already read twice.
+        final CRC32 crc = new CRC32();
+        crc.update(new byte[] { 'n', (byte) 0xe9, '\n' });
+        Assert.equals(decoder.getChecksum(), crc.getValue());
+        
+        decoder = decodeString(4, "\ufeffcaf\u00e9\r\n", "UTF-16LE");
+        Assert.equals(text(decoder), "\ufeffcaf\u00e9\n");
+        Assert.equals(decoder.getEncodingName(), "UTF-16LE");
+        
+        decoder = decodeString(CHUNK_SIZE, "\ufeffcaf\u00e9\n", "UTF-16BE");
+        Assert.equals(text(decoder), "\ufeffcaf\u00e9\n");
+        Assert.equals(decoder.getEncodingName(), "UTF-16BE");
+    }
+}
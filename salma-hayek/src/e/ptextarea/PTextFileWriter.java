@@ -0,0 +1,145 @@
+package e.ptextarea;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+import org.jessies.test.*;
+
+/**
+ * Writes a snapshot of a PTextBuffer's text in the buffer's encoding and with
+ * the buffer's line ending. See PTextBuffer.makeFileWriter.
+ * 
+ * Because the text is a snapshot, it can be written on another thread while
+ * editing continues. The text is encoded once, a chunk at a time, converting
+ * '\n' to the line ending as we go. Unlike PTextBuffer.writeToFile, we report
+ * characters the encoding can't represent rather than silently replacing
+ * them, so there's no need to check with PTextBuffer.attemptEncoding first.
+ */
+public final class PTextFileWriter {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private final char[] chars;
+    private final String charsetName;
+    private final String lineEnding;
+    
+    // Written on the writing thread, but read by whoever's showing progress.
+    private volatile int charsWritten;
+    private long checksum;
+    
+    PTextFileWriter(char[] chars, String charsetName, String lineEnding) {
+        this.chars = chars;
+        this.charsetName = charsetName;
+        this.lineEnding = lineEnding;
+    }
+    
+    public String getCharsetName() {
+        return charsetName;
+    }
+    
+    /**
+     * Returns how much of the text writeTo has written, as a percentage.
+     * Safe to call from any thread.
+     */
+    public int getPercentageWritten() {
+        return (chars.length == 0) ? 100 : (int) (100L * charsWritten / chars.length);
+    }
+    
+    /**
+     * Returns the CRC-32 checksum of the bytes written by the last call to writeTo.
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+    
+    /**
+     * Encodes the text to 'out', which isn't closed. Throws a
+     * CharacterCodingException if the encoding can't represent the text.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        // CharsetEncoder is reporting by default.
+        final CharsetEncoder encoder = Charset.forName(charsetName).newEncoder();
+        final CRC32 crc = new CRC32();
+        final char[] chunk = new char[CHUNK_SIZE];
+        final CharBuffer in = CharBuffer.wrap(chunk);
+        final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+        final boolean convertNewlines = (lineEnding.equals("\n") == false);
+        final int chunkLimit = chunk.length - lineEnding.length();
+        int next = 0;
+        charsWritten = 0;
+        boolean endOfInput = false;
+        while (endOfInput == false) {
+            // Fill the chunk with the next part of the text, after anything the encoder left last time.
+            int count = in.position();
+            while (next < chars.length && count <= chunkLimit) {
+                final char ch = chars[next++];
+                if (ch == '\n' && convertNewlines) {
+                    for (int i = 0; i < lineEnding.length(); ++i) {
+                        chunk[count++] = lineEnding.charAt(i);
+                    }
+                } else {
+                    chunk[count++] = ch;
+                }
+            }
+            endOfInput = (next == chars.length);
+            in.position(count);
+            in.flip();
+            CoderResult result;
+            while ((result = encoder.encode(in, bytes, endOfInput)).isOverflow()) {
+                writeBytes(bytes, out, crc);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            in.compact();
+            charsWritten = next;
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            writeBytes(bytes, out, crc);
+        }
+        writeBytes(bytes, out, crc);
+        checksum = crc.getValue();
+    }
+    
+    private static void writeBytes(ByteBuffer bytes, OutputStream out, CRC32 crc) throws IOException {
+        out.write(bytes.array(), 0, bytes.position());
+        crc.update(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+    
+    private static String write(String text, String charsetName, String lineEnding) throws IOException {
+        final PTextFileWriter writer = new PTextFileWriter(text.toCharArray(), charsetName, lineEnding);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        final CRC32 crc = new CRC32();
+        crc.update(out.toByteArray());
+        Assert.equals(writer.getChecksum(), crc.getValue());
+        Assert.equals(writer.getPercentageWritten(), 100);
+        return out.toString(charsetName);
+    }
+    
+    @Test private static void testLineEndings() throws IOException {
+        Assert.equals(write("one\ntwo\n\n", "UTF-8", "\n"), "one\ntwo\n\n");
+        Assert.equals(write("one\ntwo\n\n", "UTF-8", "\r\n"), "one\r\ntwo\r\n\r\n");
+        Assert.equals(write("one\ntwo", "UTF-8", "\r"), "one\rtwo");
+        Assert.equals(write("", "UTF-8", "\r\n"), "");
+        
+        // Enough text to need several chunks.
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < CHUNK_SIZE; ++i) {
+            text.append("\u20ac\n");
+            expected.append("\u20ac\r\n");
+        }
+        Assert.equals(write(text.toString(), "UTF-8", "\r\n"), expected.toString());
+    }
+    
+    @Test private static void testUnencodableText() throws IOException {
+        Assert.equals(write("caf\u00e9\n", "ISO-8859-1", "\n"), "caf\u00e9\n");
+        try {
+            write("\u20ac\n", "ISO-8859-1", "\n");
+            Assert.failure("expected an exception");
+        } catch (CharacterCodingException ex) {
+        }
+    }
+}
@@ -25,7 +25,7 @@ public interface PUndoBuffer {
      * Returns whether we're in the clean state.
      */
     public boolean isClean();
-
+    
     /**
      * Tests whether "undo" will actually do anything. Useful for disabling
      * menu items.
@@ -56,6 +56,13 @@ public interface PUndoBuffer {
      */
     public void resetUndoBuffer();
     
+    /**
+     * Sets roughly how many bytes the undo history may occupy. When it grows
+     * beyond this, the oldest edits are forgotten. The most recent edit is
+     * always kept, however large.
+     */
+    public void setMemoryLimit(long bytes);
+    
     /**
      * Adds a change listener, which will be notified when the undo buffer
      * changes. This is probably most useful for calling "canUndo" to determine
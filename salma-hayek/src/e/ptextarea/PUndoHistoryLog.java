@@ -0,0 +1,464 @@
+package e.ptextarea;
+
+import e.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps a PTextArea's undo history in a file, so it survives the file being closed, or the editor being restarted.
+ * 
+ * Each file's history lives in its own binary log in a directory of the caller's choosing, named after a hash of the file's path.
+ * The log starts with a snapshot of the history, and every change to the history is appended as it happens.
+ * The records are encoded on the event dispatch thread, but written on a background thread, so recording never waits for the disk.
+ * Records that haven't been written when the editor exits are lost, along with the most recent history, but the rest of the log is still usable.
+ * When the log grows much larger than the history it describes, we replace it with a new snapshot.
+ * 
+ * Whenever the text is saved, we log the checksum of the bytes written, which the text buffer already has, because it's computed as the file's written, off the event dispatch thread.
+ * When the file is next opened, we only restore the history if the checksum of the bytes read matches that of the last save, and we restore it to the state it was in at that save.
+ * Any changes that weren't saved can be redone.
+ * If the file has been changed by anyone else, the checksum won't match, and we throw the history away.
+ * If the history is restored, we carry on appending to the log we restored it from, rather than writing a new snapshot.
+ */
+public class PUndoHistoryLog {
+    private static final int MAGIC = 0x50554e44; // "PUND"
+    private static final int VERSION = 2;
+    
+    // Records.
+    private static final byte ADD = 1;
+    private static final byte COALESCE = 2;
+    private static final byte UNDO_POSITION = 3;
+    private static final byte DISCARD = 4;
+    private static final byte RESET = 5;
+    private static final byte CLEAN = 6;
+    
+    // How text is stored.
+    private static final byte NO_TEXT = 0;
+    private static final byte PLAIN_TEXT = 1;
+    private static final byte DEFLATED_TEXT = 2;
+    
+    // We rewrite the log once it's grown this much larger than the history it describes.
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    private static final int COMPACTION_RATIO = 4;
+    
+    // Logs for files we haven't opened for this long are deleted.
+    private static final long MAX_LOG_AGE_MS = TimeUnit.DAYS.toMillis(30);
+    
+    private static final ExecutorService executor = ThreadUtilities.newSingleThreadExecutor("Undo History Writer");
+    private static final AtomicBoolean haveDeletedOldLogs = new AtomicBoolean(false);
+    
+    private final PTextArea textArea;
+    private final String path;
+    private final File logFile;
+    
+    // Touched only on the event dispatch thread.
+    private long logSizeInBytes;
+    private long cleanContentHash;
+    
+    // Touched only on the writer thread.
+    private boolean hadWriteFailure = false;
+    
+    private PUndoHistoryLog(PTextArea textArea, String path, File logFile) {
+        this.textArea = textArea;
+        this.path = path;
+        this.logFile = logFile;
+    }
+    
+    /**
+     * Restores the history logged in 'directory' for the file 'path', if it's still valid for the current text, and logs all future changes to the history.
+     * This should be called with the file freshly loaded into 'textArea', and the undo buffer empty and clean.
+     */
+    public static PUndoHistoryLog attach(PTextArea textArea, String path, File directory) {
+        prepareDirectory(directory);
+        File logFile = new File(directory, Long.toHexString(hashOf(path)) + ".undo");
+        PUndoHistoryLog historyLog = new PUndoHistoryLog(textArea, path, logFile);
+        textArea.getLock().getWriteLock();
+        try {
+            historyLog.cleanContentHash = textArea.getTextBuffer().getFileChecksum();
+            final boolean logIsUsable = historyLog.restore();
+            historyLog.getUndoer().setHistoryLog(historyLog);
+            if (logIsUsable == false) {
+                historyLog.writeSnapshot();
+            }
+        } finally {
+            textArea.getLock().relinquishWriteLock();
+        }
+        return historyLog;
+    }
+    
+    /**
+     * Stops logging changes to the history, and leaves the log as it is, ready for the next time the file's opened.
+     */
+    public void detach() {
+        getUndoer().setHistoryLog(null);
+    }
+    
+    private PTextBuffer.Undoer getUndoer() {
+        return (PTextBuffer.Undoer) textArea.getTextBuffer().getUndoBuffer();
+    }
+    
+    /**
+     * Restores the logged history, if it applies to the current text.
+     * Returns true if the log can be appended to as it is, and false if it needs replacing with a snapshot.
+     */
+    private boolean restore() {
+        if (logFile.exists() == false) {
+            return false;
+        }
+        final long startTimeNs = System.nanoTime();
+        Replay replay = new Replay();
+        boolean readWholeLog = false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readUTF().equals(path) == false) {
+                    // It's not ours, or it's from an incompatible version, or two paths' hashes collided.
+                    return false;
+                }
+                replay.readRecordsFrom(in);
+                readWholeLog = true;
+            } finally {
+                in.close();
+            }
+        } catch (EOFException ex) {
+            // We were probably killed while appending a record; everything before that is fine.
+        } catch (Exception ex) {
+            Log.warn("Problem reading undo history for \"" + path + "\" from \"" + logFile + "\"", ex);
+            return false;
+        }
+        if (replay.cleanPosition == -1 || replay.cleanContentHash != cleanContentHash) {
+            // The file's not in any state we saved it in, so the history doesn't apply.
+            return false;
+        }
+        getUndoer().restoreHistory(replay.doables, replay.cleanPosition, replay.cleanPosition);
+        Log.warn("Restored " + StringUtilities.pluralize(replay.doables.size(), "edit", "edits") + " of undo history for \"" + path + "\" in " + TimeUtilities.nsToString(System.nanoTime() - startTimeNs) + ".");
+        
+        // We can't append to a partial record, and we mustn't append to a log that might be deleted as old before we write to it.
+        if (readWholeLog == false || logFile.lastModified() < System.currentTimeMillis() - MAX_LOG_AGE_MS / 2) {
+            return false;
+        }
+        logSizeInBytes = logFile.length();
+        if (replay.undoPosition != replay.cleanPosition) {
+            // The log ends with unsaved changes applied, but we've restored the saved state.
+            recordUndoPosition(replay.cleanPosition);
+        }
+        return true;
+    }
+    
+    /**
+     * Rebuilds the undo list by following the log's records.
+     * This mirrors what PTextBuffer.Undoer did to its list when it wrote them.
+     */
+    private class Replay {
+        private ArrayList<PTextBuffer.Doable> doables = new ArrayList<PTextBuffer.Doable>();
+        private int undoPosition = 0;
+        private int cleanPosition = -1;
+        private long cleanContentHash;
+        
+        private void readRecordsFrom(DataInputStream in) throws IOException {
+            int record;
+            while ((record = in.read()) != -1) {
+                if (record == ADD) {
+                    PTextBuffer.Doable doable = readDoable(in);
+                    if (doables.size() > undoPosition) {
+                        cleanPosition = -1;
+                        doables.subList(undoPosition, doables.size()).clear();
+                    }
+                    doables.add(doable);
+                    ++undoPosition;
+                } else if (record == COALESCE) {
+                    PTextBuffer.Doable doable = readDoable(in);
+                    checkPosition(1, doables.size());
+                    doables.get(doables.size() - 1).coalesceWith(doable);
+                } else if (record == UNDO_POSITION) {
+                    undoPosition = checkPosition(in.readInt(), doables.size());
+                } else if (record == DISCARD) {
+                    final int discardCount = checkPosition(in.readInt(), undoPosition);
+                    doables.subList(0, discardCount).clear();
+                    undoPosition -= discardCount;
+                    if (cleanPosition != -1) {
+                        cleanPosition = (cleanPosition >= discardCount) ? cleanPosition - discardCount : -1;
+                    }
+                } else if (record == RESET) {
+                    doables.clear();
+                    undoPosition = 0;
+                    cleanPosition = -1;
+                } else if (record == CLEAN) {
+                    cleanPosition = undoPosition;
+                    cleanContentHash = in.readLong();
+                } else {
+                    throw new IOException("unknown record " + record);
+                }
+            }
+        }
+        
+        private int checkPosition(int position, int max) throws IOException {
+            if (position < 0 || position > max) {
+                throw new IOException("position " + position + " out of range [0, " + max + "]");
+            }
+            return position;
+        }
+        
+        private PTextBuffer.Doable readDoable(DataInputStream in) throws IOException {
+            final int compoundId = in.readInt();
+            final int position = in.readInt();
+            final CharSequence removeChars = readText(in);
+            final CharSequence insertChars = readText(in);
+            // We don't know what was selected before and after the edit, so we select the text the edit affected.
+            final int removeLength = (removeChars != null) ? removeChars.length() : 0;
+            final int insertLength = (insertChars != null) ? insertChars.length() : 0;
+            return textArea.getTextBuffer().makeDoable(compoundId, new RestoredSelection(position, position + removeLength), position, removeChars, insertChars, new RestoredSelection(position + insertLength, position + insertLength));
+        }
+        
+        private CharSequence readText(DataInputStream in) throws IOException {
+            final int encoding = in.read();
+            if (encoding == NO_TEXT) {
+                return null;
+            } else if (encoding == PLAIN_TEXT) {
+                char[] chars = new char[in.readInt()];
+                for (int i = 0; i < chars.length; ++i) {
+                    chars[i] = in.readChar();
+                }
+                return new String(chars);
+            } else if (encoding == DEFLATED_TEXT) {
+                final int length = in.readInt();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return PCompressedText.fromCompressedBytes(bytes, length);
+            } else if (encoding == -1) {
+                throw new EOFException();
+            } else {
+                throw new IOException("unknown text encoding " + encoding);
+            }
+        }
+    }
+    
+    private class RestoredSelection implements PTextBuffer.SelectionSetter {
+        private final int start;
+        private final int end;
+        
+        private RestoredSelection(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+        
+        public void modifySelection() {
+            final int length = textArea.getTextBuffer().length();
+            textArea.select(Math.min(start, length), Math.min(end, length));
+        }
+    }
+    
+    void recordAdd(PTextBuffer.Doable doable) {
+        append(ADD, doable);
+    }
+    
+    void recordCoalesce(PTextBuffer.Doable doable) {
+        append(COALESCE, doable);
+    }
+    
+    void recordUndoPosition(int undoPosition) {
+        append(UNDO_POSITION, undoPosition);
+    }
+    
+    void recordDiscard(int discardCount) {
+        append(DISCARD, discardCount);
+    }
+    
+    void recordReset() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(RESET);
+        append(bytes);
+    }
+    
+    void recordClean() {
+        cleanContentHash = textArea.getTextBuffer().getFileChecksum();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeClean(out);
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        append(bytes);
+    }
+    
+    private void append(byte record, int value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(record);
+            out.writeInt(value);
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        append(bytes);
+    }
+    
+    private void append(byte record, PTextBuffer.Doable doable) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeDoable(out, record, doable);
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        append(bytes);
+    }
+    
+    private void append(ByteArrayOutputStream bytes) {
+        final long historySize = getUndoer().getSizeInBytes();
+        if (logSizeInBytes > Math.max(MIN_COMPACTION_SIZE, COMPACTION_RATIO * historySize)) {
+            // The snapshot includes the change we were asked to record.
+            writeSnapshot();
+            return;
+        }
+        final byte[] record = bytes.toByteArray();
+        logSizeInBytes += record.length;
+        executor.execute(new Runnable() {
+            public void run() {
+                write(record, true);
+            }
+        });
+    }
+    
+    /**
+     * Replaces the log with a snapshot of the current history.
+     */
+    private void writeSnapshot() {
+        PTextBuffer.Undoer undoer = getUndoer();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(path);
+            for (PTextBuffer.Doable doable : undoer.getDoables()) {
+                writeDoable(out, ADD, doable);
+            }
+            // We only know the hash of the clean state, so we have to visit it on the way to the current state.
+            if (undoer.getCleanPosition() != -1) {
+                out.writeByte(UNDO_POSITION);
+                out.writeInt(undoer.getCleanPosition());
+                writeClean(out);
+            }
+            out.writeByte(UNDO_POSITION);
+            out.writeInt(undoer.getUndoPosition());
+            out.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        final byte[] snapshot = bytes.toByteArray();
+        logSizeInBytes = snapshot.length;
+        executor.execute(new Runnable() {
+            public void run() {
+                write(snapshot, false);
+            }
+        });
+    }
+    
+    private void writeClean(DataOutputStream out) throws IOException {
+        out.writeByte(CLEAN);
+        out.writeLong(cleanContentHash);
+    }
+    
+    private static void writeDoable(DataOutputStream out, byte record, PTextBuffer.Doable doable) throws IOException {
+        out.writeByte(record);
+        out.writeInt(doable.getCompoundId());
+        out.writeInt(doable.getPosition());
+        writeText(out, doable.getRemoveChars());
+        writeText(out, doable.getInsertChars());
+    }
+    
+    private static void writeText(DataOutputStream out, CharSequence chars) throws IOException {
+        if (chars == null) {
+            out.writeByte(NO_TEXT);
+        } else if (chars instanceof PCompressedText) {
+            byte[] bytes = ((PCompressedText) chars).getCompressedBytes();
+            out.writeByte(DEFLATED_TEXT);
+            out.writeInt(chars.length());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else {
+            out.writeByte(PLAIN_TEXT);
+            out.writeInt(chars.length());
+            for (int i = 0; i < chars.length(); ++i) {
+                out.writeChar(chars.charAt(i));
+            }
+        }
+    }
+    
+    /**
+     * Appends 'bytes' to the log, or replaces the log with them.
+     * Runs on the writer thread.
+     */
+    private void write(byte[] bytes, boolean append) {
+        if (hadWriteFailure && append) {
+            // There's no point appending to a log that's missing records; we'll try again with the next snapshot.
+            return;
+        }
+        // We write a new snapshot beside the log, and rename it, so there's always a usable log on disk.
+        File file = append ? logFile : new File(logFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(file, append);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (append == false && file.renameTo(logFile) == false) {
+                throw new IOException("couldn't rename \"" + file + "\" to \"" + logFile + "\"");
+            }
+            hadWriteFailure = false;
+        } catch (IOException ex) {
+            if (hadWriteFailure == false) {
+                Log.warn("Problem writing undo history for \"" + path + "\" to \"" + logFile + "\"", ex);
+            }
+            hadWriteFailure = true;
+        }
+    }
+    
+    /**
+     * Makes sure 'directory' exists before we write any logs to it, and deletes old logs from it the first time we're called.
+     * The work's done on the writer thread, so it's out of the way of opening files.
+     */
+    private static void prepareDirectory(final File directory) {
+        final boolean shouldDeleteOldLogs = (haveDeletedOldLogs.getAndSet(true) == false);
+        executor.execute(new Runnable() {
+            public void run() {
+                directory.mkdirs();
+                if (shouldDeleteOldLogs) {
+                    deleteOldLogsIn(directory);
+                }
+            }
+        });
+    }
+    
+    private static void deleteOldLogsIn(File directory) {
+        File[] logFiles = directory.listFiles();
+        if (logFiles == null) {
+            return;
+        }
+        final long oldestAllowed = System.currentTimeMillis() - MAX_LOG_AGE_MS;
+        for (File logFile : logFiles) {
+            if (logFile.getName().endsWith(".undo") && logFile.lastModified() < oldestAllowed) {
+                logFile.delete();
+            }
+        }
+    }
+    
+    /**
+     * Returns a 64-bit FNV-1a hash of 'chars'.
+     */
+    static long hashOf(CharSequence chars) {
+        long hash = 0xcbf29ce484222325L;
+        final int length = chars.length();
+        for (int i = 0; i < length; ++i) {
+            hash = (hash ^ chars.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
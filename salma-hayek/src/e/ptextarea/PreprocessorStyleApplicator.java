@@ -1,5 +1,6 @@
 package e.ptextarea;
 
+import e.util.*;
 import java.util.regex.*;
 
 /**
@@ -19,6 +20,11 @@ public class PreprocessorStyleApplicator extends RegularExpressionStyleApplicato
         this.isObjectiveC = isObjectiveC;
     }
     
+    @Override
+    protected boolean mightMatch(CharSequence chars) {
+        return StringUtilities.contains(chars, '#');
+    }
+    
     @Override
     public boolean isAcceptableMatch(CharSequence line, Matcher matcher) {
         // FIXME:
@@ -24,8 +24,12 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
     }
     
     public List<PLineSegment> applyStylingTo(String line, PLineSegment segment) {
-        ArrayList<PLineSegment> result = new ArrayList<PLineSegment>();
-        Matcher matcher = pattern.matcher(segment.getCharSequence());
+        final CharSequence chars = segment.getCharSequence();
+        if (mightMatch(chars) == false) {
+            return Collections.singletonList(segment);
+        }
+        ArrayList<PLineSegment> result = null;
+        Matcher matcher = pattern.matcher(chars);
         int normalStart = 0;
         int offset = segment.getOffset();
         while (matcher.find()) {
@@ -36,6 +40,9 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
                 }
                 final int matchStart = matcher.start(1);
                 final int matchEnd = matcher.end(1);
+                if (result == null) {
+                    result = new ArrayList<PLineSegment>();
+                }
                 if (matchStart > normalStart) {
                     result.add(segment.subSegment(normalStart, matchStart));
                 }
@@ -43,12 +50,23 @@ public class RegularExpressionStyleApplicator implements StyleApplicator {
                 normalStart = matchEnd;
             }
         }
+        if (result == null) {
+            // Most segments don't match, so it's worth not allocating anything.
+            return Collections.singletonList(segment);
+        }
         if (segment.getModelTextLength() > normalStart) {
             result.add(segment.subSegment(normalStart));
         }
         return result;
     }
     
+    /**
+     * Override this to cheaply reject text that can't possibly match, before we go to the expense of running the regular expression.
+     */
+    protected boolean mightMatch(CharSequence chars) {
+        return true;
+    }
+    
     protected PLineSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
         PTextSegment result = new PTextSegment(textArea, start, end, style);
         if (style == PStyle.HYPERLINK) {
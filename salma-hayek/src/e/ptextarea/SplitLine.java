@@ -9,6 +9,9 @@ package e.ptextarea;
  * Every 'lineIndex' is the SplitLine's index in PTextArea.splitLines.
  * Every 'offset' is 0.
  * Every 'length' is the line length - 1 (because SplitLine's length doesn't include '\n's for some reason).
+ * 
+ * A SplitLine may be an estimate, made by dividing a long line into equal-length pieces rather than measuring it.
+ * PTextArea replaces estimates with exact SplitLines in the background.
  */
 final class SplitLine {
     // This run's line number in the PLineList.
@@ -17,11 +20,18 @@ final class SplitLine {
     private final int offset;
     // This run's number of characters of the PLineList's line.
     private final int length;
+    // Whether 'offset' and 'length' are only an approximation of where the line should wrap.
+    private final boolean isEstimate;
     
     public SplitLine(int lineIndex, int offset, int length) {
+        this(lineIndex, offset, length, false);
+    }
+    
+    public SplitLine(int lineIndex, int offset, int length, boolean isEstimate) {
         this.lineIndex = lineIndex;
         this.offset = offset;
         this.length = length;
+        this.isEstimate = isEstimate;
     }
     
     public int getLineIndex() {
@@ -36,6 +46,10 @@ final class SplitLine {
         return length;
     }
     
+    public boolean isEstimate() {
+        return isEstimate;
+    }
+    
     public void setLineIndex(int lineIndex) {
         this.lineIndex = lineIndex;
     }
@@ -59,6 +73,6 @@ final class SplitLine {
     }
     
     @Override public String toString() {
-        return "SplitLine[lineIndex=" + lineIndex + ",offset=" + offset + ",length=" + length + "]";
+        return "SplitLine[lineIndex=" + lineIndex + ",offset=" + offset + ",length=" + length + (isEstimate ? ",estimate" : "") + "]";
     }
 }
@@ -1,19 +1,24 @@
 package e.ptextarea;
 
-import java.util.regex.*;
-
 /**
- * Recognizes unprintable characters.
+ * Recognizes unprintable characters: the ASCII control characters other than tab, and DEL.
  */
-public class UnprintableCharacterStyleApplicator extends RegularExpressionStyleApplicator {
-    private static final Pattern UNPRINTABLE_CHARACTER_PATTERN = Pattern.compile("([\\u0000-\\u0008\\u000a-\\u001f\\u007f]+)");
-    
+public class UnprintableCharacterStyleApplicator extends CharacterRunStyleApplicator {
     public UnprintableCharacterStyleApplicator(PTextArea textArea) {
-        super(textArea, UNPRINTABLE_CHARACTER_PATTERN, PStyle.UNPRINTABLE);
+        super(textArea);
     }
     
     @Override
-    protected PTextSegment makeNewSegment(PTextArea textArea, Matcher matcher, int start, int end, PStyle style) {
-        return new UnprintableCharacterTextSegment(textArea, start, end, style);
+    protected boolean isRunCharacter(char ch) {
+        return (ch < ' ' && ch != '\t') || ch == '\u007f';
+    }
+    
+    @Override
+    protected PLineSegment makeRunSegment(int start, int end) {
+        return new UnprintableCharacterTextSegment(textArea, start, end, PStyle.UNPRINTABLE);
+    }
+    
+    public boolean canApplyStylingTo(PStyle style) {
+        return (style == PStyle.NORMAL);
     }
 }
@@ -12,6 +12,7 @@ import org.jessies.os.*;
  */
 public class FileFinder {
     private boolean includeDirectories = false;
+    private boolean inPathOrder = false;
     
     /**
      * Used to filter results.
@@ -54,6 +55,16 @@ public class FileFinder {
         return this;
     }
     
+    /**
+     * Whether or not the result of filesUnder should be in SortedPathList.ORDER.
+     * Defaults to false, in which case the order is whatever the file system gives us.
+     * Sorting each directory's entries as we go is much cheaper than sorting the whole result afterwards.
+     */
+    public FileFinder inPathOrder(boolean inPathOrder) {
+        this.inPathOrder = inPathOrder;
+        return this;
+    }
+    
     /**
      * Returns all files under 'root', entering all directories and accepting all files.
      */
@@ -78,10 +89,21 @@ public class FileFinder {
         if (files == null) {
             return;
         }
-        for (File file : files) {
+        final Stat[] stats = new Stat[files.length];
+        for (int i = 0; i < files.length; ++i) {
             final Stat stat = new Stat();
-            if (Posix.lstat(file.toString(), stat) != 0) {
-                // Ignore files that disappear while we're traversing the directory structure.
+            // Ignore files that disappear while we're traversing the directory structure.
+            if (Posix.lstat(files[i].toString(), stat) == 0) {
+                stats[i] = stat;
+            }
+        }
+        if (inPathOrder) {
+            sortInPathOrder(files, stats);
+        }
+        for (int i = 0; i < files.length; ++i) {
+            final File file = files[i];
+            final Stat stat = stats[i];
+            if (stat == null) {
                 continue;
             }
             if (stat.isDirectory()) {
@@ -98,4 +120,30 @@ public class FileFinder {
             }
         }
     }
+    
+    /**
+     * Sorts a directory's entries so that the paths of the files they contain will be in SortedPathList.ORDER.
+     * We compare a directory as its name plus a '/', because that's how the paths of its contents start.
+     */
+    private static void sortInPathOrder(File[] files, Stat[] stats) {
+        final String[] keys = new String[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            keys[i] = files[i].getName() + ((stats[i] != null && stats[i].isDirectory()) ? "/" : "");
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer lhs, Integer rhs) {
+                return SortedPathList.ORDER.compare(keys[lhs], keys[rhs]);
+            }
+        });
+        final File[] sortedFiles = new File[files.length];
+        final Stat[] sortedStats = new Stat[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            sortedFiles[i] = files[order[i]];
+            sortedStats[i] = stats[order[i]];
+        }
+        System.arraycopy(sortedFiles, 0, files, 0, files.length);
+        System.arraycopy(sortedStats, 0, stats, 0, stats.length);
+    }
 }
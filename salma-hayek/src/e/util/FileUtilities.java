@@ -5,6 +5,7 @@ import java.nio.channels.*;
 import java.security.*;
 import java.util.*;
 import java.util.regex.*;
+import java.util.zip.*;
 import org.jessies.os.*;
 
 /**
@@ -224,6 +225,25 @@ public class FileUtilities {
         return (digest == null) ? null : byteArrayToHexString(digest);
     }
     
+    /**
+     * Returns the CRC-32 checksum of the given file's content. This is much
+     * cheaper than md5, for when you just want to know whether a file's changed.
+     */
+    public static long crc32(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] bytes = new byte[8192];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int byteCount;
+            while ((byteCount = in.read(bytes)) > 0) {
+                crc.update(bytes, 0, byteCount);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+    
     // FIXME: move this somewhere more suitable.
     public static String byteArrayToHexString(byte[] bytes) {
         StringBuilder result = new StringBuilder();
@@ -379,6 +399,45 @@ public class FileUtilities {
         }
     }
 
+    /**
+     * Replaces 'file' with 'newFile', a complete new copy in the same directory.
+     * 
+     * Where we can, we rename 'newFile' over 'file', having first given it the
+     * same permissions and ownership, so no-one ever sees a half-written file.
+     * We can't do that if 'file' is a symbolic link (perhaps on a CIFS server,
+     * where it's important that we write into the original file rather than
+     * creating a new one), if it has other hard links, or if we can't give
+     * 'newFile' the same owner. CIFS and Windows may also refuse to rename over
+     * an existing file. In any of those cases, we copy 'newFile' into 'file',
+     * and only delete 'newFile' if that worked, so there's always a good copy.
+     */
+    public static void replaceFile(File file, File newFile) {
+        if (canReplaceByRenaming(file, newFile) && newFile.renameTo(file)) {
+            return;
+        }
+        copyFile(newFile, file);
+        newFile.delete();
+    }
+    
+    private static boolean canReplaceByRenaming(File file, File newFile) {
+        final Stat stat = new Stat();
+        if (Posix.lstat(file.toString(), stat) != 0) {
+            // There's nothing there to replace.
+            return true;
+        }
+        final Stat newStat = new Stat();
+        if (stat.isRegular() == false || stat.st_nlink() != 1 || Posix.lstat(newFile.toString(), newStat) != 0) {
+            return false;
+        }
+        if (stat.st_uid() != newStat.st_uid() || stat.st_gid() != newStat.st_gid()) {
+            if (Posix.chown(newFile.toString(), stat.st_uid(), stat.st_gid()) != 0) {
+                return false;
+            }
+        }
+        // Change the mode after the owner, because chown(2) may clear the set-user-ID and set-group-ID bits.
+        return Posix.chmod(newFile.toString(), stat.st_mode() & 07777) == 0;
+    }
+    
     public static void loadNativeLibrary(String libraryName) {
         final String directories = System.getProperty(LIBS_SYSTEM_PROPERTY);
         if (directories == null) {
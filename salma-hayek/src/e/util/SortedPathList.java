@@ -0,0 +1,576 @@
+package e.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import org.jessies.test.*;
+
+/**
+ * An immutable, sorted list of relative paths, stored compactly.
+ * 
+ * A big source tree's paths share long prefixes: every file in a directory starts with the same directory names.
+ * Rather than keep a String per path, we front-code them: each path is stored as the length of the prefix it shares with the previous path, followed by the rest of its characters.
+ * So the directory components are, in effect, stored once per directory rather than once per file.
+ * Every BUCKET_SIZE'th path is stored in full, so random access only has to decode at most that many paths.
+ * 
+ * The list is sorted by ORDER, which is String.CASE_INSENSITIVE_ORDER with ties broken by case, and contains no duplicates.
+ * Use a Builder to make one, or withChanges to make a modified copy without re-sorting.
+ * Use a Cursor (or getPathsMatching or getPathsWithPrefix) to look at many paths without creating a String for each.
+ */
+public final class SortedPathList extends AbstractList<String> implements RandomAccess {
+    private static final int BUCKET_SIZE = 16;
+    
+    // We store lengths as chars.
+    private static final int MAX_PATH_LENGTH = Character.MAX_VALUE;
+    
+    /**
+     * The order in which paths are kept: case-insensitive, with ties broken by case so that distinct paths never compare equal.
+     */
+    public static final Comparator<CharSequence> ORDER = new Comparator<CharSequence>() {
+        public int compare(CharSequence lhs, CharSequence rhs) {
+            return SortedPathList.compare(lhs, rhs, true);
+        }
+    };
+    
+    public static final SortedPathList EMPTY = new Builder().build();
+    
+    // Each path is stored as the length of the prefix shared with the previous path, the length of the rest, and the rest.
+    private final char[] chars;
+    // The offset in 'chars' of the start of each bucket. The first path in each bucket shares no prefix.
+    private final int[] bucketOffsets;
+    private final int size;
+    
+    private SortedPathList(char[] chars, int[] bucketOffsets, int size) {
+        this.chars = chars;
+        this.bucketOffsets = bucketOffsets;
+        this.size = size;
+    }
+    
+    /**
+     * Returns a list of the given paths, which needn't be sorted and may contain duplicates.
+     */
+    public static SortedPathList fromPaths(Collection<? extends CharSequence> paths) {
+        Builder builder = new Builder();
+        for (CharSequence path : paths) {
+            builder.add(path);
+        }
+        return builder.build();
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " not in [0, " + size + ")");
+        }
+        Cursor cursor = new Cursor();
+        cursor.seek(index);
+        return cursor.toString();
+    }
+    
+    @Override public Iterator<String> iterator() {
+        final Cursor cursor = new Cursor();
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return cursor.getIndex() + 1 < size;
+            }
+            
+            public String next() {
+                if (cursor.next() == false) {
+                    throw new NoSuchElementException();
+                }
+                return cursor.toString();
+            }
+            
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    @Override public int indexOf(Object o) {
+        if (o instanceof CharSequence == false || size == 0) {
+            return -1;
+        }
+        final CharSequence path = (CharSequence) o;
+        // Find the last bucket whose first path isn't after 'path'...
+        Cursor cursor = new Cursor();
+        int low = 0;
+        int high = bucketOffsets.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            cursor.seek(mid * BUCKET_SIZE);
+            if (compare(cursor, path, true) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        // ...and search it.
+        cursor.seek(low * BUCKET_SIZE);
+        do {
+            final int comparison = compare(cursor, path, true);
+            if (comparison == 0) {
+                return cursor.getIndex();
+            } else if (comparison > 0) {
+                break;
+            }
+        } while (cursor.getIndex() + 1 < (low + 1) * BUCKET_SIZE && cursor.next());
+        return -1;
+    }
+    
+    @Override public int lastIndexOf(Object o) {
+        // There are no duplicates.
+        return indexOf(o);
+    }
+    
+    @Override public boolean contains(Object o) {
+        return indexOf(o) != -1;
+    }
+    
+    /**
+     * Returns the paths in which 'pattern' can be found, in order.
+     * Only the matching paths are turned into Strings.
+     */
+    public List<String> getPathsMatching(Pattern pattern) {
+        ArrayList<String> result = new ArrayList<String>();
+        Cursor cursor = new Cursor();
+        Matcher matcher = pattern.matcher("");
+        while (cursor.next()) {
+            if (matcher.reset(cursor).find()) {
+                result.add(cursor.toString());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the paths that start with 'prefix' (case-sensitively), in order.
+     * Only those paths are decoded, because they're contiguous.
+     */
+    public List<String> getPathsWithPrefix(String prefix) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (size == 0) {
+            return result;
+        }
+        // Paths starting with 'prefix' are in the run of paths that start with it case-insensitively, which starts with the first path not case-insensitively before it.
+        Cursor cursor = new Cursor();
+        int low = 0;
+        int high = bucketOffsets.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            cursor.seek(mid * BUCKET_SIZE);
+            if (compare(cursor, prefix, false) < 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        cursor.seek(low * BUCKET_SIZE);
+        do {
+            if (startsWith(cursor, prefix, true)) {
+                if (startsWith(cursor, prefix, false)) {
+                    result.add(cursor.toString());
+                }
+            } else if (compare(cursor, prefix, false) > 0) {
+                break;
+            }
+        } while (cursor.next());
+        return result;
+    }
+    
+    /**
+     * Returns a copy of this list with 'removed' removed and then 'added' added.
+     * Neither collection need be sorted; only they are sorted, rather than the whole list.
+     * Removing paths that aren't present, or adding ones that are, does nothing.
+     * A path in both collections is present in the result.
+     */
+    public SortedPathList withChanges(Collection<String> added, Collection<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return this;
+        }
+        String[] sortedAdded = added.toArray(new String[added.size()]);
+        Arrays.sort(sortedAdded, ORDER);
+        String[] sortedRemoved = removed.toArray(new String[removed.size()]);
+        Arrays.sort(sortedRemoved, ORDER);
+        
+        // Merge the sorted additions into the existing paths, skipping the removals.
+        Builder builder = new Builder();
+        Cursor cursor = new Cursor();
+        boolean haveCurrent = cursor.next();
+        int addedIndex = 0;
+        int removedIndex = 0;
+        while (haveCurrent || addedIndex < sortedAdded.length) {
+            CharSequence next;
+            if (haveCurrent == false || (addedIndex < sortedAdded.length && compare(sortedAdded[addedIndex], cursor, true) < 0)) {
+                next = sortedAdded[addedIndex++];
+            } else {
+                next = cursor;
+            }
+            if (next == cursor) {
+                while (removedIndex < sortedRemoved.length && compare(sortedRemoved[removedIndex], cursor, true) < 0) {
+                    ++removedIndex;
+                }
+                if (removedIndex == sortedRemoved.length || compare(sortedRemoved[removedIndex], cursor, true) != 0) {
+                    builder.add(cursor);
+                }
+                haveCurrent = cursor.next();
+            } else {
+                builder.add(next);
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Writes this list in its compact form, to be read back by readFrom.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(chars.length);
+        for (char ch : chars) {
+            out.writeChar(ch);
+        }
+    }
+    
+    /**
+     * Reads a list written by writeTo, checking that it's well-formed.
+     */
+    public static SortedPathList readFrom(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        final int charCount = in.readInt();
+        if (size < 0 || charCount < 0 || charCount < 2L * size) {
+            throw new IOException("corrupt path list: " + size + " paths in " + charCount + " chars");
+        }
+        char[] chars = new char[charCount];
+        for (int i = 0; i < charCount; ++i) {
+            chars[i] = in.readChar();
+        }
+        // The bucket offsets aren't stored, because finding them checks the encoding anyway.
+        int[] bucketOffsets = new int[(size + BUCKET_SIZE - 1) / BUCKET_SIZE];
+        int offset = 0;
+        int previousLength = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i % BUCKET_SIZE == 0) {
+                bucketOffsets[i / BUCKET_SIZE] = offset;
+            }
+            if (offset + 2 > charCount) {
+                throw new IOException("corrupt path list: truncated at path " + i);
+            }
+            final int sharedLength = chars[offset++];
+            final int suffixLength = chars[offset++];
+            if (sharedLength > previousLength || (i % BUCKET_SIZE == 0 && sharedLength != 0) || offset + suffixLength > charCount) {
+                throw new IOException("corrupt path list: bad lengths at path " + i);
+            }
+            offset += suffixLength;
+            previousLength = sharedLength + suffixLength;
+        }
+        if (offset != charCount) {
+            throw new IOException("corrupt path list: " + (charCount - offset) + " trailing chars");
+        }
+        return new SortedPathList(chars, bucketOffsets, size);
+    }
+    
+    /**
+     * Returns an estimate of the memory used by this list.
+     */
+    public long getSizeInBytes() {
+        return 2L * chars.length + 4L * bucketOffsets.length;
+    }
+    
+    /**
+     * Compares 'lhs' and 'rhs' as String.CASE_INSENSITIVE_ORDER does, then, if 'breakTies' is true and they're equal, by case.
+     */
+    private static int compare(CharSequence lhs, CharSequence rhs, boolean breakTies) {
+        final int lhsLength = lhs.length();
+        final int rhsLength = rhs.length();
+        final int length = Math.min(lhsLength, rhsLength);
+        for (int i = 0; i < length; ++i) {
+            char c1 = lhs.charAt(i);
+            char c2 = rhs.charAt(i);
+            if (c1 != c2) {
+                c1 = Character.toUpperCase(c1);
+                c2 = Character.toUpperCase(c2);
+                if (c1 != c2) {
+                    c1 = Character.toLowerCase(c1);
+                    c2 = Character.toLowerCase(c2);
+                    if (c1 != c2) {
+                        return c1 - c2;
+                    }
+                }
+            }
+        }
+        if (lhsLength != rhsLength) {
+            return lhsLength - rhsLength;
+        }
+        if (breakTies) {
+            for (int i = 0; i < length; ++i) {
+                final char c1 = lhs.charAt(i);
+                final char c2 = rhs.charAt(i);
+                if (c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+        }
+        return 0;
+    }
+    
+    private static boolean startsWith(CharSequence path, String prefix, boolean ignoreCase) {
+        final int length = prefix.length();
+        if (path.length() < length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            final char c1 = path.charAt(i);
+            final char c2 = prefix.charAt(i);
+            if (c1 != c2 && (ignoreCase == false || equalsIgnoringCase(c1, c2) == false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean equalsIgnoringCase(char c1, char c2) {
+        c1 = Character.toUpperCase(c1);
+        c2 = Character.toUpperCase(c2);
+        return c1 == c2 || Character.toLowerCase(c1) == Character.toLowerCase(c2);
+    }
+    
+    /**
+     * Walks a SortedPathList, decoding each path into the same buffer.
+     * A Cursor is itself the CharSequence for the current path; call toString if you need to keep it.
+     * Moving forwards is cheap. Moving backwards means going back to the start of a bucket.
+     */
+    public class Cursor implements CharSequence {
+        private int index = -1;
+        // The offset in 'chars' of the path after the current one.
+        private int offset = 0;
+        private char[] buffer = new char[64];
+        private int length = 0;
+        
+        private Cursor() {
+        }
+        
+        /**
+         * Returns the index of the current path, or -1 before the first call to next or seek.
+         */
+        public int getIndex() {
+            return index;
+        }
+        
+        /**
+         * Moves to the next path, returning false if there isn't one.
+         */
+        public boolean next() {
+            if (index + 1 >= size) {
+                return false;
+            }
+            ++index;
+            final int sharedLength = chars[offset++];
+            final int suffixLength = chars[offset++];
+            length = sharedLength + suffixLength;
+            if (length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length, 2 * buffer.length));
+            }
+            System.arraycopy(chars, offset, buffer, sharedLength, suffixLength);
+            offset += suffixLength;
+            return true;
+        }
+        
+        /**
+         * Moves to the path at 'newIndex'.
+         */
+        public void seek(int newIndex) {
+            if (newIndex < 0 || newIndex >= size) {
+                throw new IndexOutOfBoundsException("index " + newIndex + " not in [0, " + size + ")");
+            }
+            final int bucket = newIndex / BUCKET_SIZE;
+            if (index == -1 || newIndex < index || index / BUCKET_SIZE != bucket) {
+                index = bucket * BUCKET_SIZE - 1;
+                offset = bucketOffsets[bucket];
+            }
+            while (index < newIndex) {
+                next();
+            }
+        }
+        
+        public int length() {
+            return length;
+        }
+        
+        public char charAt(int i) {
+            if (i < 0 || i >= length) {
+                throw new IndexOutOfBoundsException("index " + i + " not in [0, " + length + ")");
+            }
+            return buffer[i];
+        }
+        
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+        
+        @Override public String toString() {
+            return new String(buffer, 0, length);
+        }
+    }
+    
+    /**
+     * Returns a Cursor positioned before the first path.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+    
+    /**
+     * Builds a SortedPathList.
+     * Paths added in ORDER are encoded as they arrive, so a sorted list is never held in full as Strings.
+     * If paths arrive out of order, we fall back to collecting and sorting them.
+     */
+    public static class Builder {
+        private char[] chars = new char[1024];
+        private int charCount = 0;
+        private int[] bucketOffsets = new int[16];
+        private int size = 0;
+        private char[] previous = new char[64];
+        private int previousLength = 0;
+        // Non-null once we've seen a path out of order.
+        private ArrayList<String> unsortedPaths;
+        
+        public Builder() {
+        }
+        
+        public Builder add(CharSequence path) {
+            final int length = path.length();
+            if (length > MAX_PATH_LENGTH) {
+                throw new IllegalArgumentException("path too long (" + length + " characters)");
+            }
+            if (unsortedPaths != null) {
+                unsortedPaths.add(path.toString());
+                return this;
+            }
+            if (size > 0) {
+                final int comparison = compare(new CharArrayCharSequence(previous, 0, previousLength), path, true);
+                if (comparison == 0) {
+                    return this;
+                } else if (comparison > 0) {
+                    unsortedPaths = new ArrayList<String>(makeList());
+                    unsortedPaths.add(path.toString());
+                    return this;
+                }
+            }
+            
+            int sharedLength = 0;
+            if (size % BUCKET_SIZE == 0) {
+                if (size / BUCKET_SIZE == bucketOffsets.length) {
+                    bucketOffsets = Arrays.copyOf(bucketOffsets, 2 * bucketOffsets.length);
+                }
+                bucketOffsets[size / BUCKET_SIZE] = charCount;
+            } else {
+                final int maxSharedLength = Math.min(previousLength, length);
+                while (sharedLength < maxSharedLength && previous[sharedLength] == path.charAt(sharedLength)) {
+                    ++sharedLength;
+                }
+            }
+            final int suffixLength = length - sharedLength;
+            if (charCount + 2 + suffixLength > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(charCount + 2 + suffixLength, 2 * chars.length));
+            }
+            chars[charCount++] = (char) sharedLength;
+            chars[charCount++] = (char) suffixLength;
+            for (int i = sharedLength; i < length; ++i) {
+                chars[charCount++] = path.charAt(i);
+            }
+            
+            if (length > previous.length) {
+                previous = Arrays.copyOf(previous, Math.max(length, 2 * previous.length));
+            }
+            for (int i = sharedLength; i < length; ++i) {
+                previous[i] = path.charAt(i);
+            }
+            previousLength = length;
+            ++size;
+            return this;
+        }
+        
+        public SortedPathList build() {
+            if (unsortedPaths != null) {
+                Collections.sort(unsortedPaths, ORDER);
+                Builder sortedBuilder = new Builder();
+                for (String path : unsortedPaths) {
+                    sortedBuilder.add(path);
+                }
+                return sortedBuilder.build();
+            }
+            return makeList();
+        }
+        
+        private SortedPathList makeList() {
+            final int bucketCount = (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+            return new SortedPathList(Arrays.copyOf(chars, charCount), Arrays.copyOf(bucketOffsets, bucketCount), size);
+        }
+    }
+    
+    @Test private static void testSortingAndAccess() {
+        List<String> paths = Arrays.asList("src/b.java", "Makefile", "src/A.java", "src/sub/c.java", "README", "src/a.java", "src/b.java");
+        SortedPathList list = fromPaths(paths);
+        Assert.equals(list.size(), 6);
+        Assert.equals(list, Arrays.asList("Makefile", "README", "src/A.java", "src/a.java", "src/b.java", "src/sub/c.java"));
+        Assert.equals(list.get(3), "src/a.java");
+        Assert.equals(list.indexOf("src/b.java"), 4);
+        Assert.equals(list.contains("src/B.java"), false);
+        Assert.equals(list.contains("src"), false);
+        
+        // Check random access across several buckets.
+        ArrayList<String> manyPaths = new ArrayList<String>();
+        for (int i = 0; i < 1000; ++i) {
+            manyPaths.add(String.format("dir%d/sub%d/file%04d.c", i % 7, i % 3, i));
+        }
+        list = fromPaths(manyPaths);
+        Collections.sort(manyPaths, ORDER);
+        Assert.equals(list, manyPaths);
+        for (int i = 0; i < manyPaths.size(); i += 37) {
+            Assert.equals(list.get(i), manyPaths.get(i));
+            Assert.equals(list.indexOf(manyPaths.get(i)), i);
+        }
+        Assert.equals(list.getSizeInBytes() < 2L * manyPaths.size() * manyPaths.get(0).length(), true);
+    }
+    
+    @Test private static void testMatchingAndPrefixes() {
+        SortedPathList list = fromPaths(Arrays.asList("src/e/edit/Evergreen.java", "src/e/util/Log.java", "src/E/Other.java", "Makefile", "srcs/x"));
+        Assert.equals(list.getPathsMatching(Pattern.compile("\\.java$")), Arrays.asList("src/e/edit/Evergreen.java", "src/E/Other.java", "src/e/util/Log.java"));
+        Assert.equals(list.getPathsWithPrefix("src/e/"), Arrays.asList("src/e/edit/Evergreen.java", "src/e/util/Log.java"));
+        Assert.equals(list.getPathsWithPrefix("src/"), Arrays.asList("src/e/edit/Evergreen.java", "src/E/Other.java", "src/e/util/Log.java"));
+        Assert.equals(list.getPathsWithPrefix("nothing"), Collections.<String>emptyList());
+        Assert.equals(EMPTY.getPathsWithPrefix(""), Collections.<String>emptyList());
+    }
+    
+    @Test private static void testSerialization() throws IOException {
+        SortedPathList list = fromPaths(Arrays.asList("b/c", "a", "b/d", "b/d/e"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        list.writeTo(new DataOutputStream(bytes));
+        SortedPathList copy = readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.equals(copy, list);
+        Assert.equals(copy.indexOf("b/d"), 2);
+        
+        byte[] corrupt = bytes.toByteArray();
+        // Claim that the first path shares a prefix with the non-existent path before it.
+        corrupt[9] = 0x7f;
+        try {
+            readFrom(new DataInputStream(new ByteArrayInputStream(corrupt)));
+            Assert.failure("corrupt list read without error");
+        } catch (IOException ex) {
+        }
+    }
+    
+    @Test private static void testWithChanges() {
+        SortedPathList list = fromPaths(Arrays.asList("a", "c", "e"));
+        SortedPathList changed = list.withChanges(Arrays.asList("f", "b", "c"), Arrays.asList("e", "z"));
+        Assert.equals(changed, Arrays.asList("a", "b", "c", "f"));
+        Assert.equals(list.withChanges(Arrays.asList("c"), Arrays.asList("c", "a")), Arrays.asList("c", "e"));
+        Assert.equals(list, Arrays.asList("a", "c", "e"));
+        Assert.equals(list.withChanges(Collections.<String>emptyList(), Collections.<String>emptyList()) == list, true);
+        Assert.equals(EMPTY.withChanges(Arrays.asList("x"), Collections.<String>emptyList()), Arrays.asList("x"));
+    }
+}
@@ -3,10 +3,12 @@ package e.util;
 import e.ptextarea.FileType;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 /**
  * Uses an ispell(1)-compatible back end to check spelling.
+ * If the user has a compiled SpellingDictionary, we use that in-process instead, which is much faster, and saves starting a process.
  */
 public class SpellingChecker {
     private static final SpellingChecker instance = new SpellingChecker();
@@ -14,23 +16,39 @@ public class SpellingChecker {
     
     private static final Stopwatch stopwatch = Stopwatch.get("SpellingChecker");
     
+    // How many words we send to the back end before reading its responses.
+    // If we sent too many, the back end could block writing responses we're not yet reading, while we block writing requests it's not yet reading.
+    // Even a response full of suggestions is only a few hundred bytes, so this is well within any pipe's buffer.
+    private static final int MAX_WORDS_PER_BATCH = 32;
+    
     private static WordCache wordCache = new WordCache();
     
     /**
-     * Caches whether or not the last MAX_ENTRIES words were spelled correctly or incorrectly.
+     * Caches whether or not recently-checked words were spelled correctly or incorrectly.
+     * This is read without holding any lock, so that cached words can be checked while another thread is talking to the back end.
+     * When it's full, we forget an arbitrary quarter of the words rather than keep track of which were least recently used.
      */
-    private static class WordCache extends LinkedHashMap<String, Boolean> {
-        private static final int MAX_ENTRIES = 4096;
+    private static class WordCache extends ConcurrentHashMap<String, Boolean> {
+        private static final int MAX_ENTRIES = 64 * 1024;
         
         public WordCache() {
             super(MAX_ENTRIES);
         }
         
-        @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
-            return size() > MAX_ENTRIES;
+        @Override public Boolean put(String word, Boolean misspelled) {
+            if (size() >= MAX_ENTRIES) {
+                Iterator<String> it = keySet().iterator();
+                for (int i = 0; i < MAX_ENTRIES / 4 && it.hasNext(); ++i) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            return super.put(word, misspelled);
         }
     }
     
+    private SpellingDictionary dictionary;
+    
     private Process ispell;
     private PrintWriter out;
     private BufferedReader in;
@@ -40,8 +58,11 @@ public class SpellingChecker {
         return instance;
     }
     
-    /** Establishes the connection to ispell, if possible. */
+    /** Loads the in-process dictionary, or establishes the connection to ispell, if possible. */
     private SpellingChecker() {
+        if (loadDictionary()) {
+            return;
+        }
         // On Mac OS, we want to use the system's spelling checker, so try our NSSpell utility (which gives Apple's code an ispell-like interface) first.
         File nsSpellBinary = FileUtilities.findSupportBinary("NSSpell");
         if (nsSpellBinary != null && connectTo(new String[] { nsSpellBinary.toString(), "-a" })) {
@@ -59,6 +80,27 @@ public class SpellingChecker {
         Log.warn("SpellingChecker: failed to find any back end. Please install aspell(1) or ispell(1).");
     }
     
+    /**
+     * Attempts to map the user's compiled dictionary, if they have one.
+     * The location can be overridden with the "e.util.SpellingChecker.dictionary" system property.
+     */
+    private boolean loadDictionary() {
+        String filename = System.getProperty("e.util.SpellingChecker.dictionary", FileUtilities.getUserHomeDirectory() + File.separator + ".org.jessies.spelling-dictionary");
+        File file = FileUtilities.fileFromString(filename);
+        if (file.exists() == false) {
+            return false;
+        }
+        try {
+            final long startTimeNs = System.nanoTime();
+            dictionary = SpellingDictionary.fromFile(file);
+            Log.warn("SpellingChecker: using dictionary \"" + filename + "\", mapped in " + TimeUtilities.nsToString(System.nanoTime() - startTimeNs) + ".");
+            return true;
+        } catch (IOException ex) {
+            Log.warn("SpellingChecker: couldn't load dictionary \"" + filename + "\"", ex);
+            return false;
+        }
+    }
+    
     /** Attempts to connect to the given command-line spelling checker, which must be compatible with ispell's -a mode. */
     private boolean connectTo(String[] execArguments) {
         try {
@@ -87,34 +129,86 @@ public class SpellingChecker {
     /**
      * Tests whether the given word is misspelled.
      * If ispell is unavailable, no words are considered misspelled.
+     * This may block while we talk to ispell, so it's best not called on the event dispatch thread.
+     * If you have more than one word to check, findMisspelledWords is much faster.
+     */
+    public boolean isMisspelledWord(String word, FileType fileType) {
+        return findMisspelledWords(Collections.singletonList(word), fileType).isEmpty() == false;
+    }
+    
+    /**
+     * Returns those of the given words that are misspelled.
+     * If ispell is unavailable, no words are considered misspelled.
      * We only ask ispell about any given word at most once: the
      * word cache is used to save on expensive inter-process communication.
+     * The words we do need to ask about are sent in batches, rather than
+     * waiting for each response before sending the next word.
+     * This may block while we talk to ispell, so it's best not called on the event dispatch thread.
      */
-    public synchronized boolean isMisspelledWord(String word, FileType fileType) {
-        if (ispell == null) {
+    public Set<String> findMisspelledWords(Collection<String> words, FileType fileType) {
+        HashSet<String> result = new HashSet<String>();
+        if (ispell == null && dictionary == null) {
             debug("ispell == null");
-            return false;
+            return result;
         }
         
-        word = word.toLowerCase();
-        
-        // Check the exceptions lists first...
-        if (isException(word, fileType)) {
-            return false;
+        // Maps each lowercase word we need to ask ispell about to the words we were given.
+        LinkedHashMap<String, List<String>> uncachedWords = new LinkedHashMap<String, List<String>>();
+        for (String word : words) {
+            final String lowerCaseWord = word.toLowerCase();
+            
+            // Check the exceptions lists first...
+            if (isException(lowerCaseWord, fileType)) {
+                continue;
+            }
+            
+            // ...then the word cache...
+            Boolean cachedResult = wordCache.get(lowerCaseWord);
+            if (cachedResult != null) {
+                if (cachedResult) {
+                    result.add(word);
+                }
+                continue;
+            }
+            
+            // ...and only then give in and ask the spelling checker.
+            List<String> originalWords = uncachedWords.get(lowerCaseWord);
+            if (originalWords == null) {
+                originalWords = new ArrayList<String>(1);
+                // We copy the word into a new string to avoid accidental retention
+                // of character arrays representing documents in their entirety.
+                uncachedWords.put(new String(lowerCaseWord), originalWords);
+            }
+            originalWords.add(word);
         }
-        
-        // ...then the word cache...
-        Boolean cachedResult = wordCache.get(word);
-        if (cachedResult != null) {
-            return cachedResult;
+        if (uncachedWords.isEmpty()) {
+            return result;
         }
         
-        // ...and only then give in and ask the spelling checker.
-        // We copy the word into a new string to avoid accidental retention
-        // of character arrays representing documents in their entirety.
-        boolean misspelled = isMisspelledWordAccordingToIspell(word, null);
-        wordCache.put(new String(word), Boolean.valueOf(misspelled));
-        return misspelled;
+        ArrayList<String> batch = new ArrayList<String>(MAX_WORDS_PER_BATCH);
+        for (String lowerCaseWord : uncachedWords.keySet()) {
+            batch.add(lowerCaseWord);
+            if (batch.size() == MAX_WORDS_PER_BATCH) {
+                checkBatch(batch, uncachedWords, result);
+                batch.clear();
+            }
+        }
+        checkBatch(batch, uncachedWords, result);
+        return result;
+    }
+    
+    private void checkBatch(List<String> batch, Map<String, List<String>> originalWords, Set<String> result) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean[] misspelled = (dictionary != null) ? areMisspelledWordsAccordingToDictionary(batch) : areMisspelledWordsAccordingToIspell(batch);
+        for (int i = 0; i < batch.size(); ++i) {
+            final String lowerCaseWord = batch.get(i);
+            wordCache.put(lowerCaseWord, Boolean.valueOf(misspelled[i]));
+            if (misspelled[i]) {
+                result.addAll(originalWords.get(lowerCaseWord));
+            }
+        }
     }
     
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -230,6 +324,17 @@ public class SpellingChecker {
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     
     public synchronized String[] getSuggestionsFor(String misspelledWord) {
+        if (dictionary != null) {
+            final String lowerCaseWord = misspelledWord.toLowerCase();
+            if (dictionary.contains(lowerCaseWord)) {
+                return new String[0];
+            }
+            List<String> suggestions = dictionary.getSuggestionsFor(lowerCaseWord, 2, 10);
+            return suggestions.toArray(new String[suggestions.size()]);
+        }
+        if (ispell == null) {
+            return new String[0];
+        }
         ArrayList<String> suggestions = new ArrayList<String>();
         boolean isMisspelled = isMisspelledWordAccordingToIspell(misspelledWord, suggestions);
         if (isMisspelled == false) {
@@ -262,15 +367,54 @@ public class SpellingChecker {
         }
     }
     
+    private boolean[] areMisspelledWordsAccordingToDictionary(List<String> batch) {
+        boolean[] result = new boolean[batch.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = (dictionary.contains(batch.get(i)) == false);
+        }
+        return result;
+    }
+    
+    /**
+     * Sends all the words in 'batch' to ispell before reading any of the responses.
+     */
+    private synchronized boolean[] areMisspelledWordsAccordingToIspell(List<String> batch) {
+        Stopwatch.Timer timer = stopwatch.start();
+        try {
+            for (String word : batch) {
+                sendRequest(word);
+            }
+            out.flush();
+            boolean[] result = new boolean[batch.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = readResponse(batch.get(i), null);
+            }
+            return result;
+        } finally {
+            timer.stop();
+        }
+    }
+    
     private boolean isMisspelledWordAccordingToIspell(String word, Collection<String> returnSuggestions) {
         Stopwatch.Timer timer = stopwatch.start();
         try {
-            // Send the word to ispell for checking.
-            String request = "^" + word;
-            debug(request);
-            out.println(request);
+            sendRequest(word);
             out.flush();
-            
+            return readResponse(word, returnSuggestions);
+        } finally {
+            timer.stop();
+        }
+    }
+    
+    private void sendRequest(String word) {
+        // The '^' stops ispell from interpreting the word as a command.
+        String request = "^" + word;
+        debug(request);
+        out.println(request);
+    }
+    
+    private boolean readResponse(String word, Collection<String> returnSuggestions) {
+        try {
             // ispell's response will be one of:
             // 1. a blank line (meaning "correctly spelled"),
             // 2. lines beginning with [&?#] containing suggested corrections, followed by a blank line.
@@ -314,8 +458,6 @@ public class SpellingChecker {
             // Should we stop talking to ispell?
             Log.warn("SpellingChecker: I/O error.", ex);
             return false;
-        } finally {
-            timer.stop();
         }
     }
     
@@ -0,0 +1,416 @@
+package e.util;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import org.jessies.test.*;
+
+/**
+ * An in-process word list for SpellingChecker, so we needn't talk to an ispell(1)-compatible process.
+ * 
+ * The words are stored as a minimal acyclic automaton (a DAWG): a trie in which identical suffixes are shared.
+ * English word lists with all their inflections shrink to a small fraction of their size as plain text this way.
+ * The automaton is compiled once from a word list by running this class, and written in a form we can map straight into memory, so loading the dictionary costs nothing.
+ * 
+ * Usage: SpellingDictionary WORD-LIST OUTPUT
+ * The word list should have one word per line, as from "aspell dump master | aspell expand | tr ' ' '\n'".
+ * Words are lowercased, because SpellingChecker only ever asks about lowercase words.
+ * 
+ * The compiled form is a sequence of big-endian ints: a header, then two ints per node, then two ints per edge.
+ * A node's ints are the index of its first edge, and its edge count shifted left one with the low bit set if the node ends a word.
+ * An edge's ints are its character, and the node it leads to.
+ * Each node's edges are sorted by character, so we can binary search them.
+ */
+public class SpellingDictionary {
+    private static final int MAGIC = 0x44415747; // "DAWG"
+    private static final int VERSION = 1;
+    private static final int HEADER_INTS = 5;
+    
+    private final IntBuffer ints;
+    private final int nodeCount;
+    private final int edgeCount;
+    private final int root;
+    private final int edgesOffset;
+    
+    private SpellingDictionary(ByteBuffer bytes) throws IOException {
+        this.ints = bytes.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        if (ints.limit() < HEADER_INTS || ints.get(0) != MAGIC || ints.get(1) != VERSION) {
+            throw new IOException("not a compiled spelling dictionary");
+        }
+        this.nodeCount = ints.get(2);
+        this.edgeCount = ints.get(3);
+        this.root = ints.get(4);
+        this.edgesOffset = HEADER_INTS + 2 * nodeCount;
+        if (ints.limit() != edgesOffset + 2 * edgeCount) {
+            throw new IOException("truncated compiled spelling dictionary");
+        }
+    }
+    
+    /**
+     * Maps the compiled dictionary in 'file' into memory.
+     */
+    public static SpellingDictionary fromFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping remains valid after the channel is closed.
+            return new SpellingDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+    
+    /**
+     * Returns a dictionary of the given words, without going via a file.
+     */
+    public static SpellingDictionary fromWords(Collection<String> words) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            compile(words, bytes);
+            return new SpellingDictionary(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (IOException ex) {
+            // We're only writing to memory.
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    public int getWordCount() {
+        return countWordsFrom(root, new HashMap<Integer, Integer>());
+    }
+    
+    private int countWordsFrom(int node, HashMap<Integer, Integer> counts) {
+        Integer cachedCount = counts.get(node);
+        if (cachedCount != null) {
+            return cachedCount;
+        }
+        int count = isTerminal(node) ? 1 : 0;
+        final int firstEdge = getFirstEdge(node);
+        for (int edge = firstEdge; edge < firstEdge + getEdgeCount(node); ++edge) {
+            count += countWordsFrom(getEdgeTarget(edge), counts);
+        }
+        counts.put(node, count);
+        return count;
+    }
+    
+    /**
+     * Tests whether 'word' (which should be lowercase) is in the dictionary.
+     */
+    public boolean contains(CharSequence word) {
+        int node = root;
+        for (int i = 0; i < word.length() && node != -1; ++i) {
+            node = findChild(node, word.charAt(i));
+        }
+        return (node != -1 && isTerminal(node));
+    }
+    
+    /**
+     * Returns up to 'maxSuggestionCount' words within 'maxDistance' edits of 'word', closest first.
+     * An edit is inserting, removing, or replacing one character, or swapping two adjacent characters.
+     */
+    public List<String> getSuggestionsFor(String word, int maxDistance, int maxSuggestionCount) {
+        // Walk the automaton, computing a row of the edit distance matrix for each prefix we visit.
+        // We abandon a prefix as soon as no word starting with it could be close enough.
+        ArrayList<Suggestion> suggestions = new ArrayList<Suggestion>();
+        int[] firstRow = new int[word.length() + 1];
+        for (int i = 0; i < firstRow.length; ++i) {
+            firstRow[i] = i;
+        }
+        suggestFrom(root, word, new StringBuilder(), null, firstRow, maxDistance, suggestions);
+        Collections.sort(suggestions);
+        ArrayList<String> result = new ArrayList<String>();
+        for (Suggestion suggestion : suggestions) {
+            if (result.size() == maxSuggestionCount) {
+                break;
+            }
+            result.add(suggestion.word);
+        }
+        return result;
+    }
+    
+    private void suggestFrom(int node, String word, StringBuilder prefix, int[] previousRow, int[] row, int maxDistance, List<Suggestion> suggestions) {
+        final int distance = row[word.length()];
+        if (isTerminal(node) && distance <= maxDistance && prefix.length() > 0) {
+            suggestions.add(new Suggestion(prefix.toString(), distance));
+        }
+        final int firstEdge = getFirstEdge(node);
+        for (int edge = firstEdge; edge < firstEdge + getEdgeCount(node); ++edge) {
+            final char ch = getEdgeLabel(edge);
+            final int prefixLength = prefix.length() + 1;
+            int[] nextRow = new int[row.length];
+            nextRow[0] = prefixLength;
+            int minimum = nextRow[0];
+            for (int i = 1; i < row.length; ++i) {
+                final int cost = (word.charAt(i - 1) == ch) ? 0 : 1;
+                nextRow[i] = Math.min(Math.min(nextRow[i - 1] + 1, row[i] + 1), row[i - 1] + cost);
+                // Optimal string alignment: allow a transposition of the previous two characters.
+                if (previousRow != null && i > 1 && word.charAt(i - 1) == prefix.charAt(prefixLength - 2) && word.charAt(i - 2) == ch) {
+                    nextRow[i] = Math.min(nextRow[i], previousRow[i - 2] + 1);
+                }
+                minimum = Math.min(minimum, nextRow[i]);
+            }
+            if (minimum <= maxDistance) {
+                prefix.append(ch);
+                suggestFrom(getEdgeTarget(edge), word, prefix, row, nextRow, maxDistance, suggestions);
+                prefix.setLength(prefix.length() - 1);
+            }
+        }
+    }
+    
+    private static class Suggestion implements Comparable<Suggestion> {
+        private final String word;
+        private final int distance;
+        
+        private Suggestion(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+        
+        public int compareTo(Suggestion other) {
+            if (distance != other.distance) {
+                return distance - other.distance;
+            }
+            return word.compareTo(other.word);
+        }
+    }
+    
+    private int findChild(int node, char ch) {
+        int low = getFirstEdge(node);
+        int high = low + getEdgeCount(node) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = getEdgeLabel(mid);
+            if (label < ch) {
+                low = mid + 1;
+            } else if (label > ch) {
+                high = mid - 1;
+            } else {
+                return getEdgeTarget(mid);
+            }
+        }
+        return -1;
+    }
+    
+    private int getFirstEdge(int node) {
+        return ints.get(HEADER_INTS + 2 * node);
+    }
+    
+    private int getEdgeCount(int node) {
+        return ints.get(HEADER_INTS + 2 * node + 1) >>> 1;
+    }
+    
+    private boolean isTerminal(int node) {
+        return (ints.get(HEADER_INTS + 2 * node + 1) & 1) != 0;
+    }
+    
+    private char getEdgeLabel(int edge) {
+        return (char) ints.get(edgesOffset + 2 * edge);
+    }
+    
+    private int getEdgeTarget(int edge) {
+        return ints.get(edgesOffset + 2 * edge + 1);
+    }
+    
+    /**
+     * A node of the automaton while we're building it.
+     * Once a node has been registered, it's never changed, so we can compare nodes by their edges' labels and their targets' identities.
+     */
+    private static class Node {
+        private boolean terminal;
+        private char[] labels = new char[0];
+        private Node[] targets = new Node[0];
+        private int number = -1;
+        
+        private void addEdge(char label, Node target) {
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            targets = Arrays.copyOf(targets, targets.length + 1);
+            labels[labels.length - 1] = label;
+            targets[targets.length - 1] = target;
+        }
+        
+        private Node getLastTarget() {
+            return targets[targets.length - 1];
+        }
+        
+        private void setLastTarget(Node target) {
+            targets[targets.length - 1] = target;
+        }
+        
+        @Override public boolean equals(Object o) {
+            if (o instanceof Node == false) {
+                return false;
+            }
+            Node other = (Node) o;
+            if (terminal != other.terminal || Arrays.equals(labels, other.labels) == false) {
+                return false;
+            }
+            for (int i = 0; i < targets.length; ++i) {
+                if (targets[i] != other.targets[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override public int hashCode() {
+            int result = terminal ? 1 : 0;
+            for (int i = 0; i < labels.length; ++i) {
+                result = 31 * result + labels[i];
+                result = 31 * result + System.identityHashCode(targets[i]);
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Builds the minimal automaton for 'words', and writes it to 'out'.
+     * This is Daciuk et al's incremental algorithm for sorted input: after each word, the part of the previous word that isn't a prefix of this one can never change again, so we replace each of its nodes with an equivalent registered node, if there is one.
+     */
+    public static void compile(Collection<String> words, OutputStream out) throws IOException {
+        TreeSet<String> sortedWords = new TreeSet<String>();
+        for (String word : words) {
+            word = word.trim().toLowerCase();
+            if (word.length() > 0) {
+                sortedWords.add(word);
+            }
+        }
+        
+        Node root = new Node();
+        HashMap<Node, Node> register = new HashMap<Node, Node>();
+        String previousWord = "";
+        for (String word : sortedWords) {
+            int commonPrefixLength = 0;
+            while (commonPrefixLength < word.length() && commonPrefixLength < previousWord.length() && word.charAt(commonPrefixLength) == previousWord.charAt(commonPrefixLength)) {
+                ++commonPrefixLength;
+            }
+            Node node = root;
+            for (int i = 0; i < commonPrefixLength; ++i) {
+                node = node.getLastTarget();
+            }
+            if (node.targets.length > 0) {
+                replaceOrRegister(node, register);
+            }
+            for (int i = commonPrefixLength; i < word.length(); ++i) {
+                Node child = new Node();
+                node.addEdge(word.charAt(i), child);
+                node = child;
+            }
+            node.terminal = true;
+            previousWord = word;
+        }
+        if (root.targets.length > 0) {
+            replaceOrRegister(root, register);
+        }
+        
+        // Number the nodes, and then write them out.
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        numberNodes(root, nodes);
+        int edgeCount = 0;
+        for (Node node : nodes) {
+            edgeCount += node.labels.length;
+        }
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(VERSION);
+        dataOut.writeInt(nodes.size());
+        dataOut.writeInt(edgeCount);
+        dataOut.writeInt(root.number);
+        int firstEdge = 0;
+        for (Node node : nodes) {
+            dataOut.writeInt(firstEdge);
+            dataOut.writeInt((node.labels.length << 1) | (node.terminal ? 1 : 0));
+            firstEdge += node.labels.length;
+        }
+        for (Node node : nodes) {
+            for (int i = 0; i < node.labels.length; ++i) {
+                dataOut.writeInt(node.labels[i]);
+                dataOut.writeInt(node.targets[i].number);
+            }
+        }
+        dataOut.flush();
+    }
+    
+    /**
+     * Replaces the last child of 'parent', and that child's last descendants, with equivalent registered nodes, registering any that are new.
+     */
+    private static void replaceOrRegister(Node parent, HashMap<Node, Node> register) {
+        // We work iteratively, because words can be long enough to make recursion a worry.
+        ArrayList<Node> path = new ArrayList<Node>();
+        for (Node node = parent; node.targets.length > 0; node = node.getLastTarget()) {
+            path.add(node);
+        }
+        for (int i = path.size() - 1; i >= 0; --i) {
+            Node node = path.get(i);
+            Node child = node.getLastTarget();
+            Node equivalent = register.get(child);
+            if (equivalent != null) {
+                node.setLastTarget(equivalent);
+            } else {
+                register.put(child, child);
+            }
+        }
+    }
+    
+    private static void numberNodes(Node root, List<Node> nodes) {
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        root.number = nodes.size();
+        nodes.add(root);
+        stack.push(root);
+        while (stack.isEmpty() == false) {
+            Node node = stack.pop();
+            for (Node target : node.targets) {
+                if (target.number == -1) {
+                    target.number = nodes.size();
+                    nodes.add(target);
+                    stack.push(target);
+                }
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: SpellingDictionary WORD-LIST OUTPUT");
+            System.exit(1);
+        }
+        final long startTimeNs = System.nanoTime();
+        List<String> words = Arrays.asList(StringUtilities.readLinesFromFile(args[0]));
+        FileOutputStream out = new FileOutputStream(args[1]);
+        try {
+            compile(words, out);
+        } finally {
+            out.close();
+        }
+        SpellingDictionary dictionary = fromFile(new File(args[1]));
+        System.out.println("Compiled " + StringUtilities.pluralize(dictionary.getWordCount(), "word", "words") + " into " + StringUtilities.pluralize(dictionary.nodeCount, "node", "nodes") + " and " + StringUtilities.pluralize(dictionary.edgeCount, "edge", "edges") + " (" + new File(args[1]).length() + " bytes) in " + TimeUtilities.nsToString(System.nanoTime() - startTimeNs) + ".");
+    }
+    
+    @Test private static void testContains() {
+        SpellingDictionary dictionary = fromWords(Arrays.asList("tap", "taps", "top", "tops", "Cat", "cats", "", "doesn't"));
+        Assert.equals(dictionary.getWordCount(), 7);
+        Assert.equals(dictionary.contains("tap"), true);
+        Assert.equals(dictionary.contains("tops"), true);
+        Assert.equals(dictionary.contains("cat"), true);
+        Assert.equals(dictionary.contains("doesn't"), true);
+        Assert.equals(dictionary.contains("ta"), false);
+        Assert.equals(dictionary.contains("tapss"), false);
+        Assert.equals(dictionary.contains("dog"), false);
+        Assert.equals(dictionary.contains(""), false);
+        // "tap"/"top" and "taps"/"tops" share their suffixes, so there are fewer nodes than in a trie.
+        Assert.equals(dictionary.nodeCount < 1 + "taps".length() + "op".length() + "cats".length() + "doesn't".length(), true);
+    }
+    
+    @Test private static void testSuggestions() {
+        SpellingDictionary dictionary = fromWords(Arrays.asList("receive", "recipe", "deceive", "relieve", "the", "their", "there", "then"));
+        Assert.equals(dictionary.getSuggestionsFor("recieve", 2, 10), Arrays.asList("receive", "relieve", "deceive", "recipe"));
+        Assert.equals(dictionary.getSuggestionsFor("teh", 1, 10), Arrays.asList("the"));
+        Assert.equals(dictionary.getSuggestionsFor("thier", 1, 1), Arrays.asList("their"));
+        Assert.equals(dictionary.getSuggestionsFor("xyzzy", 2, 10), Collections.<String>emptyList());
+    }
+    
+    @Test private static void testEmptyDictionary() {
+        SpellingDictionary dictionary = fromWords(Collections.<String>emptyList());
+        Assert.equals(dictionary.getWordCount(), 0);
+        Assert.equals(dictionary.contains("word"), false);
+    }
+}
@@ -23,6 +23,19 @@ public class ThreadUtilities {
         });
     }
     
+    /**
+     * Returns a ScheduledExecutorService that uses a single worker thread, just like
+     * {@link Executors#newSingleThreadScheduledExecutor}. The worker thread
+     * will have the given name.
+     */
+    public static ScheduledExecutorService newSingleThreadScheduledExecutor(final String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory() {
+            public String newThreadName() {
+                return threadName;
+            }
+        });
+    }
+    
     /**
      * Returns an Executor that uses a fixed-size pool of worker thread, just like
      * {@link Executors#newFixedThreadPool}. The worker thread's name is
@@ -1,5 +1,7 @@
 package org.jessies.os;
 
+import java.nio.ByteBuffer;
+
 /**
  * Selected POSIX API.
  * 
@@ -394,6 +396,17 @@ public class Posix {
         return PosixJNI.read(fd, buffer, bufferOffset, byteCount);
     }
     
+    /**
+     * Reads 'byteCount' bytes from file descriptor 'fd' into the direct ByteBuffer 'buffer' at 'bufferOffset'.
+     * The buffer's position and limit are ignored, and left unchanged.
+     * Returns the number of bytes read, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/read.html
+     */
+    public static int read(int fd, ByteBuffer buffer, int bufferOffset, int byteCount) {
+        checkBufferArgs(buffer, bufferOffset, byteCount);
+        return PosixJNI.read(fd, buffer, bufferOffset, byteCount);
+    }
+    
     // FIXME: readlink. How do we express the String-or-int return type? Pass in a String[] and assign to element 0?
     
     /**
@@ -471,15 +484,40 @@ public class Posix {
         return PosixJNI.write(fd, buffer, bufferOffset, byteCount);
     }
     
+    /**
+     * Writes 'byteCount' bytes from 'bufferOffset' in the direct ByteBuffer 'buffer' to file descriptor 'fd'.
+     * The buffer's position and limit are ignored, and left unchanged.
+     * Returns the number of bytes written, -errno on error.
+     * http://www.opengroup.org/onlinepubs/000095399/functions/write.html
+     */
+    public static int write(int fd, ByteBuffer buffer, int bufferOffset, int byteCount) {
+        checkBufferArgs(buffer, bufferOffset, byteCount);
+        return PosixJNI.write(fd, buffer, bufferOffset, byteCount);
+    }
+    
+    private static void checkBufferArgs(ByteBuffer buffer, int bufferOffset, int byteCount) {
+        if (buffer == null) {
+            throw new NullPointerException("buffer == null");
+        }
+        if (buffer.isDirect() == false) {
+            throw new IllegalArgumentException("buffer must be a direct ByteBuffer");
+        }
+        checkBufferBounds(buffer.capacity(), bufferOffset, byteCount);
+    }
+    
     private static void checkBufferArgs(byte[] buffer, int bufferOffset, int byteCount) {
         if (buffer == null) {
             throw new NullPointerException("buffer == null");
         }
+        checkBufferBounds(buffer.length, bufferOffset, byteCount);
+    }
+    
+    private static void checkBufferBounds(int bufferLength, int bufferOffset, int byteCount) {
         if (bufferOffset < 0 || byteCount < 0) {
             throw new IllegalArgumentException("arguments must be non-negative; bufferOffset=" + bufferOffset + ", byteCount=" + byteCount);
         }
-        if (bufferOffset > buffer.length || bufferOffset + byteCount > buffer.length) {
-            throw new IllegalArgumentException("write out of bounds; buffer.length=" + buffer.length + ", bufferOffset=" + bufferOffset + ", byteCount=" + byteCount);
+        if (bufferOffset > bufferLength || bufferOffset + byteCount > bufferLength) {
+            throw new IllegalArgumentException("write out of bounds; buffer.length=" + bufferLength + ", bufferOffset=" + bufferOffset + ", byteCount=" + byteCount);
         }
     }
 }
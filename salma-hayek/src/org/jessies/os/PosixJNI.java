@@ -197,6 +197,7 @@ class PosixJNI {
     static native int pread(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int pwrite(int fd, byte[] buffer, int bufferOffset, int byteCount, long fileOffset);
     static native int read(int fd, byte[] buffer, int bufferOffset, int byteCount);
+    static native int read(int fd, java.nio.ByteBuffer buffer, int bufferOffset, int byteCount);
     static native int rmdir(String path);
     static native int stat(String path, Stat stat);
     static native String strerror(int errno);
@@ -206,4 +207,5 @@ class PosixJNI {
     static native int unlink(String path);
     static native int waitpid(int pid, WaitStatus status, int flags);
     static native int write(int fd, byte[] buffer, int bufferOffset, int byteCount);
+    static native int write(int fd, java.nio.ByteBuffer buffer, int bufferOffset, int byteCount);
 }
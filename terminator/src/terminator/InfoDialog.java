@@ -6,6 +6,7 @@ import e.util.*;
 import java.awt.*;
 import java.awt.event.*;
 import javax.swing.*;
+import terminator.model.*;
 import terminator.terminal.*;
 import terminator.view.*;
 
@@ -15,6 +16,7 @@ public class InfoDialog {
     private JTextField title;
     private JTextField dimensions;
     private JTextField processes;
+    private JTextField memory;
     private JTextField logFilename;
     private JTextField ptyFilename;
     private JCheckBox suspendLogging;
@@ -29,6 +31,7 @@ public class InfoDialog {
         });
         this.dimensions = new UneditableTextField();
         this.processes = new UneditableTextField();
+        this.memory = new UneditableTextField();
         this.logFilename = new UneditableTextField();
         this.ptyFilename = new UneditableTextField();
         this.suspendLogging = makeSuspendLoggingCheckBox();
@@ -62,6 +65,7 @@ public class InfoDialog {
         formPanel.addRow("Dimensions:", dimensions);
         formPanel.addRow("Pseudo-Terminal:", ptyFilename);
         formPanel.addRow("Processes:", processes);
+        formPanel.addRow("Scrollback:", memory);
         formPanel.addRow("Log Filename:", logFilename);
         if (GuiUtilities.isMacOs() || GuiUtilities.isWindows()) {
             JButton showInFinderButton = new JButton(GuiUtilities.isMacOs() ? "Show in Finder" : "Show in Explorer");
@@ -95,6 +99,12 @@ public class InfoDialog {
             processes.setText("");
         }
         
+        TerminalModel model = terminal.getTerminalView().getModel();
+        long paneBytes = model.estimateScrollbackMemoryUsage();
+        long totalBytes = MemoryGovernor.getSharedInstance().estimateTotalScrollbackMemoryUsage();
+        int percentage = (totalBytes == 0) ? 0 : (int) (100 * paneBytes / totalBytes);
+        memory.setText(String.format("%s, %.1f MiB (%d%% of all terminals' %.1f MiB)", StringUtilities.pluralize(model.getScrollbackLineCount(), "line", "lines"), paneBytes / 1024.0 / 1024.0, percentage, totalBytes / 1024.0 / 1024.0));
+        
         final TerminalLogWriter terminalLogWriter = terminal.getControl().getTerminalLogWriter();
         logFilename.setText(terminalLogWriter.getInfo());
         suspendLogging.setSelected(terminalLogWriter.isSuspended());
@@ -0,0 +1,131 @@
+package terminator;
+
+import e.util.*;
+import java.awt.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.List;
+import javax.management.*;
+import terminator.model.*;
+import terminator.view.*;
+
+/**
+ * Keeps Terminator's heap from filling up with scrollback.
+ * 
+ * We used to poll every few seconds, calling Runtime.gc ourselves, and throw away the whole of the biggest terminal's history when memory was low.
+ * That meant regular pauses for no good reason, and then one unlucky terminal losing everything at once.
+ * 
+ * Instead, we ask the JVM to tell us when the heap's long-lived pool is still too full after a collection.
+ * When that happens, we discard the oldest part of every terminal's history, in proportion to how much each terminal is using.
+ * The fuller the heap, the more we discard.
+ * (Discarded lines are still in each terminal's log file, if logging hasn't been suspended.)
+ */
+public class MemoryGovernor {
+    // The fraction of a pool's maximum size at which we start trimming.
+    private static final double THRESHOLD_FRACTION = 0.7;
+    
+    // The least and most of the total scrollback we'll discard in response to a single notification.
+    private static final double MIN_TRIM_FRACTION = 0.1;
+    private static final double MAX_TRIM_FRACTION = 0.9;
+    
+    private static final MemoryGovernor INSTANCE = new MemoryGovernor();
+    
+    private final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    private boolean started = false;
+    
+    private MemoryGovernor() {
+    }
+    
+    public static MemoryGovernor getSharedInstance() {
+        return INSTANCE;
+    }
+    
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || max <= 0) {
+                continue;
+            }
+            // The collection usage threshold is the better signal, because it ignores garbage that's about to go away anyway.
+            // Only the pools where long-lived objects end up support it, which is exactly what we want.
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold((long) (max * THRESHOLD_FRACTION));
+                pools.add(pool);
+            }
+        }
+        if (pools.isEmpty()) {
+            Log.warn("No heap memory pools support collection usage thresholds; scrollback won't be trimmed automatically.");
+            return;
+        }
+        
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                if (notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                    // We're on a JMX thread, but the models belong to the EDT.
+                    EventQueue.invokeLater(new Runnable() {
+                        public void run() {
+                            trimScrollback();
+                        }
+                    });
+                }
+            }
+        }, null, null);
+    }
+    
+    /**
+     * Returns how far into the danger zone the fullest of our pools is, from 0 (at the threshold) to 1 (completely full).
+     */
+    private double getPressure() {
+        double result = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getMax() <= 0) {
+                continue;
+            }
+            final double usedFraction = (double) usage.getUsed() / usage.getMax();
+            result = Math.max(result, (usedFraction - THRESHOLD_FRACTION) / (1.0 - THRESHOLD_FRACTION));
+        }
+        return Math.min(1.0, Math.max(0.0, result));
+    }
+    
+    private List<TerminalModel> getModels() {
+        ArrayList<TerminalModel> result = new ArrayList<TerminalModel>();
+        for (TerminatorFrame frame : Terminator.getSharedInstance().getFrames()) {
+            for (JTerminalPane pane : frame.getPanes()) {
+                result.add(pane.getTerminalView().getModel());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the estimated number of bytes used by the scrollback of every terminal.
+     */
+    public long estimateTotalScrollbackMemoryUsage() {
+        long result = 0;
+        for (TerminalModel model : getModels()) {
+            result += model.estimateScrollbackMemoryUsage();
+        }
+        return result;
+    }
+    
+    private void trimScrollback() {
+        final double trimFraction = MIN_TRIM_FRACTION + (MAX_TRIM_FRACTION - MIN_TRIM_FRACTION) * getPressure();
+        long bytesBefore = 0;
+        int linesDiscarded = 0;
+        for (TerminalModel model : getModels()) {
+            bytesBefore += model.estimateScrollbackMemoryUsage();
+            // Taking the same fraction of every terminal's history means the biggest terminals give back the most.
+            linesDiscarded += model.discardOldestLines((int) Math.ceil(model.getScrollbackLineCount() * trimFraction));
+        }
+        if (linesDiscarded > 0) {
+            Log.warn("Heap nearly full; discarded " + StringUtilities.pluralize(linesDiscarded, "line", "lines") + " (" + (int) (trimFraction * 100) + "% of " + (bytesBefore / 1024) + " KiB) of scrollback.");
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.net.*;
 import java.util.*;
 import java.util.List;
 import terminator.model.*;
+import terminator.terminal.*;
 import terminator.view.*;
 
 public class Terminator {
@@ -102,50 +103,6 @@ public class Terminator {
         new InAppServer("Terminator", System.getProperty("org.jessies.terminator.serverPortFileName"), loopbackAddress, TerminatorServer.class, new TerminatorServer());
     }
     
-    public void flushBiggestScrollBuffer() {
-        TerminalModel victim = null;
-        for (TerminatorFrame frame : getFrames()) {
-            for (JTerminalPane pane : frame.getPanes()) {
-                TerminalModel candidate = pane.getTerminalView().getModel();
-                if (victim == null || candidate.getLineCount() > victim.getLineCount()) {
-                    victim = candidate;
-                }
-            }
-        }
-        if (victim == null) {
-            return;
-        }
-        victim.flushScrollBuffer();
-    }
-    
-    public void checkMemory() {
-        Runtime runtime = Runtime.getRuntime();
-        long neverUsedMemory = runtime.maxMemory() - runtime.totalMemory();
-        long availableMemory = runtime.freeMemory() + neverUsedMemory;
-        // By the time 90% of the memory is gone, we've ground to a halt.
-        if (availableMemory > runtime.maxMemory() / 2) {
-            return;
-        }
-        if (availableMemory < runtime.maxMemory() / 4) {
-            Log.warn("Available memory down to " + availableMemory + ", flushing biggest scroll buffer...");
-            flushBiggestScrollBuffer();
-        }
-        // Turning the scroll buffer to garbage won't necessarily cause it to be collected.
-        // If it's not collected, then we'll clear another scroll buffer, needlessly and again ineffectually.
-        runtime.gc();
-    }
-    
-    private void startMemoryMonitor() {
-        // When streaming blank lines, one check per minute wasn't enough to save us.
-        javax.swing.Timer timer = new javax.swing.Timer(5 * 1000, new ActionListener() {
-            public void actionPerformed(ActionEvent e) {
-                checkMemory();
-            }
-        });
-        timer.setRepeats(true);
-        timer.start();
-    }
-    
     /**
      * Returns whether we did whatever was requested.
      */
@@ -166,7 +123,8 @@ public class Terminator {
                 return false;
             }
             startTerminatorServer();
-            startMemoryMonitor();
+            MemoryGovernor.getSharedInstance().start();
+            ShellPool.getSharedInstance().start();
             // We have no need to wait for the window to be closed.
         } finally {
             out.flush();
@@ -215,6 +173,8 @@ public class Terminator {
         for (int i = 0; i < frames.size(); ++i) {
             frames.get(i).optionsDidChange();
         }
+        
+        ShellPool.getSharedInstance().optionsDidChange();
     }
     
     public static void main(final String[] argumentArray) {
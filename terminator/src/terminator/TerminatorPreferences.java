@@ -29,6 +29,8 @@ public class TerminatorPreferences extends Preferences {
     public static final String PALETTE = "palette";
     public static final String SCROLL_ON_KEY_PRESS = "scrollKey";
     public static final String SCROLL_ON_TTY_OUTPUT = "scrollTtyOutput";
+    public static final String SHELL_POOL_IDLE_MINUTES = "shellPoolIdleMinutes";
+    public static final String SHELL_POOL_SIZE = "shellPoolSize";
     public static final String VISUAL_BELL = "visualBell";
     
     /**
@@ -66,6 +68,8 @@ public class TerminatorPreferences extends Preferences {
         addPreference("Behavior", HIDE_MOUSE_WHEN_TYPING, Boolean.TRUE, "Hide mouse when typing");
         addPreference("Behavior", VISUAL_BELL, Boolean.TRUE, "Visual bell (as opposed to no bell)");
         addPreference("Behavior", USE_ALT_AS_META, Boolean.FALSE, "Use alt key as meta key (for Emacs)");
+        addPreference("Behavior", SHELL_POOL_SIZE, Integer.valueOf(0), "Shells to start in advance");
+        addPreference("Behavior", SHELL_POOL_IDLE_MINUTES, Integer.valueOf(30), "Stop unused shells after (minutes)");
         
         addPreference("Appearance", ANTI_ALIAS, Boolean.TRUE, "Anti-alias text");
         addPreference("Appearance", BLINK_CURSOR, Boolean.TRUE, "Blink cursor");
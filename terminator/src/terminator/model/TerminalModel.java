@@ -133,6 +133,60 @@ public class TerminalModel {
         return flushes;
     }
     
+    /**
+     * Returns the number of lines of history above the visible screen.
+     */
+    public int getScrollbackLineCount() {
+        return Math.max(0, getFirstDisplayLine());
+    }
+    
+    /**
+     * Returns an estimate of the number of bytes used by the lines of history above the visible screen.
+     * This walks the scrollback, so it's intended for occasional use by the MemoryGovernor and the info dialog.
+     */
+    public long estimateScrollbackMemoryUsage() {
+        long result = 0;
+        final int scrollbackLineCount = getScrollbackLineCount();
+        for (int i = 0; i < scrollbackLineCount; ++i) {
+            result += textLines.get(i).estimateMemoryUsage();
+        }
+        return result;
+    }
+    
+    /**
+     * Discards up to 'count' of the oldest lines of history, leaving the visible screen alone.
+     * Unlike flushScrollBuffer, this lets us give back memory a bit at a time.
+     * Anything discarded is still in the terminal's log file, if logging is enabled.
+     * Returns the number of lines actually discarded.
+     */
+    public int discardOldestLines(int count) {
+        if (usingAlternateBuffer()) {
+            return 0;
+        }
+        count = Math.min(count, getScrollbackLineCount());
+        if (count <= 0) {
+            return 0;
+        }
+        
+        // Using a new ArrayList means we actually give the old array back, as clearScrollBuffer does.
+        textLines = new ArrayList<TextLine>(textLines.subList(count, textLines.size()));
+        textLines.get(0).setLineStartIndex(0);
+        lastValidStartIndex = 0;
+        
+        cursorPosition = new Location(cursorPosition.getLineIndex() - count, cursorPosition.getCharOffset());
+        if (savedPosition != null) {
+            savedPosition = new Location(Math.max(0, savedPosition.getLineIndex() - count), savedPosition.getCharOffset());
+        }
+        
+        // Every remaining line has a new index, so any selection is now meaningless.
+        linesChangedFrom(0);
+        view.linesDiscarded(count);
+        view.setCursorPosition(cursorPosition);
+        ++ flushes;
+        checkInvariant();
+        return count;
+    }
+    
     public void sizeChanged(Dimension sizeInChars) {
         setSize(sizeInChars.width, sizeInChars.height);
         cursorPosition = getLocationWithinBounds(cursorPosition);
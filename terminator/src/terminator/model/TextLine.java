@@ -124,6 +124,19 @@ public class TextLine {
         return length() + 1;
     }
     
+    /**
+     * Returns a rough estimate of the number of bytes of heap this line occupies.
+     * We don't need to be exact: the MemoryGovernor only uses this to share out the pain fairly.
+     */
+    public long estimateMemoryUsage() {
+        // Object headers and fields for this, the String, and the String's array.
+        long result = 16 + 4 + 4 + 4 + 4 + 24 + 16 + 2 * text.length();
+        if (styles != null) {
+            result += 16 + 4 * styles.length;
+        }
+        return result;
+    }
+    
     /**
     * Returns the offset of the character specified by charOffset.
     * The returned value will be charOffset for most characters, but may
@@ -3,6 +3,8 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.Dimension;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.concurrent.*;
 import org.jessies.os.*;
 
@@ -76,6 +78,8 @@ public class PtyProcess {
     private boolean didExitNormally = false;
     private boolean wasSignaled = false;
     private int exitValue;
+    // Set once waitpid(2) has given us the child's exit status, after which we mustn't wait for it again.
+    private boolean hasBeenReaped = false;
     
     private InputStream inStream;
     private OutputStream outStream;
@@ -129,6 +133,46 @@ public class PtyProcess {
         outStream = new PtyOutputStream();
     }
     
+    /**
+     * Reads from the child straight into 'buffer', which must be a direct ByteBuffer, without copying through the Java heap.
+     * Like ReadableByteChannel.read, the bytes go between the buffer's position and limit, and the position is advanced.
+     * As with our InputStream, we return as soon as a single read(2) returns.
+     * Returns the number of bytes read, or -1 at end of file.
+     */
+    public int read(ByteBuffer buffer) throws IOException {
+        final int offset = buffer.position();
+        final int byteCount = buffer.remaining();
+        int n = 0;
+        while ((n = Posix.read(fd, buffer, offset, byteCount)) < 0) {
+            if (n != -Errno.EINTR) {
+                throw new IOException("read(" + fd + ", buffer, " + offset + ", " + byteCount + ") failed: " + Errno.toString(-n));
+            }
+        }
+        if (n == 0 && byteCount > 0) {
+            return -1;
+        }
+        buffer.position(offset + n);
+        return n;
+    }
+    
+    /**
+     * Writes all the bytes between the position and limit of 'buffer', which must be a direct ByteBuffer, to the child.
+     * The buffer's position is advanced to its limit.
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        // See PtyOutputStream.write for the POSIX details.
+        int n = 0;
+        while (buffer.hasRemaining()) {
+            n = Posix.write(fd, buffer, buffer.position(), buffer.remaining());
+            if (n < 0 && n != -Errno.EINTR) {
+                throw new IOException("write(" + fd + ", buffer, " + buffer.position() + ", " + buffer.remaining() + ") failed: " + Errno.toString(-n));
+            }
+            if (n > 0) {
+                buffer.position(buffer.position() + n);
+            }
+        }
+    }
+    
     public InputStream getInputStream() {
         return inStream;
     }
@@ -173,6 +217,27 @@ public class PtyProcess {
         executorService.shutdownNow();
     }
     
+    /**
+     * Tests whether the child has exited, without waiting for it to do so.
+     * A child that has exited is reaped, so it isn't left as a zombie, and
+     * waitFor won't wait for it. (kill(pid, 0) can't tell a zombie from a
+     * live process.)
+     */
+    public boolean hasExited() throws Exception {
+        final boolean[] result = new boolean[1];
+        invoke(new Callable<Exception>() {
+            public Exception call() {
+                try {
+                    result[0] = reap(Posix.WNOHANG);
+                    return null;
+                } catch (Exception ex) {
+                    return ex;
+                }
+            }
+        });
+        return result[0];
+    }
+    
     private void waitFor0() throws IOException {
         // FIXME: rewrite this to be more like the JDK's Process.waitFor, both in behavior and implementation.
         
@@ -183,15 +248,34 @@ public class PtyProcess {
         Posix.close(fd);
         fd = -1;
         
+        reap(0);
+        
+        updateLoginRecord();
+    }
+    
+    /**
+     * Collects the child's exit status, if we haven't already, passing 'flags' to waitpid(2).
+     * Returns false if WNOHANG was given and the child hasn't exited yet.
+     */
+    private boolean reap(int flags) throws IOException {
+        if (hasBeenReaped) {
+            return true;
+        }
+        
         // Loop until waitpid(2) returns a status or a real error.
         WaitStatus status = new WaitStatus();
         int result;
-        while ((result = Posix.waitpid(pid, status, 0)) < 0) {
+        while ((result = Posix.waitpid(pid, status, flags)) < 0) {
             if (result != -Errno.EINTR) {
                 // Something really went wrong; give up.
                 throw new IOException("waitpid(" + pid + ") failed: " + Errno.toString(-result));
             }
         }
+        if (result == 0) {
+            // Only possible with WNOHANG: the child is still running.
+            return false;
+        }
+        hasBeenReaped = true;
         
         // Translate the status.
         if (status.WIFEXITED()) {
@@ -203,8 +287,7 @@ public class PtyProcess {
             wasSignaled = true;
             didDumpCore = status.WCOREDUMP();
         }
-        
-        updateLoginRecord();
+        return true;
     }
     
     /**
@@ -260,4 +343,55 @@ public class PtyProcess {
     public native void sendResizeNotification(Dimension sizeInChars, Dimension sizeInPixels) throws IOException;
     
     private native String nativeListProcessesUsingTty() throws IOException;
+    
+    /**
+     * Measures how fast we can consume a flood of output from yes(1), comparing the old InputStreamReader path with the direct ByteBuffer path TerminalControl now uses.
+     * Usage: PtyProcess [megabytes-per-run]
+     */
+    public static void main(String[] args) throws Exception {
+        final long byteCount = ((args.length > 0) ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        final int bufferSize = 8192;
+        
+        Stopwatch streamStopwatch = Stopwatch.get("InputStreamReader, char[] per read");
+        PtyProcess streamProcess = new PtyProcess("yes", new String[] { "yes" }, null);
+        InputStreamReader in = new InputStreamReader(streamProcess.getInputStream(), "UTF-8");
+        Stopwatch.Timer timer = streamStopwatch.start();
+        long total = 0;
+        while (total < byteCount) {
+            char[] chars = new char[bufferSize];
+            final int n = in.read(chars, 0, chars.length);
+            if (n == -1) {
+                // The child's gone, so there's nothing more to read.
+                break;
+            }
+            total += n;
+        }
+        timer.stop();
+        streamProcess.destroy();
+        streamProcess.waitFor();
+        System.err.println(streamStopwatch + String.format(" (%.1f MiB/s)", total / 1024.0 / 1024.0 / (timer.ns() / 1e9)));
+        
+        Stopwatch directStopwatch = Stopwatch.get("direct ByteBuffer, reused CharBuffer");
+        PtyProcess directProcess = new PtyProcess("yes", new String[] { "yes" }, null);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(bufferSize);
+        CharBuffer chars = CharBuffer.allocate(bufferSize);
+        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+        timer = directStopwatch.start();
+        total = 0;
+        while (total < byteCount) {
+            final int n = directProcess.read(bytes);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+            bytes.flip();
+            chars.clear();
+            decoder.decode(bytes, chars, false);
+            bytes.compact();
+        }
+        timer.stop();
+        directProcess.destroy();
+        directProcess.waitFor();
+        System.err.println(directStopwatch + String.format(" (%.1f MiB/s)", total / 1024.0 / 1024.0 / (timer.ns() / 1e9)));
+    }
 }
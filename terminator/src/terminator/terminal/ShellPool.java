@@ -0,0 +1,177 @@
+package terminator.terminal;
+
+import e.util.*;
+import java.util.*;
+import java.util.concurrent.*;
+import terminator.*;
+
+/**
+ * Keeps a few of the user's login shells started in the background, so a new tab or window doesn't have to wait for fork/exec and the shell's start-up files.
+ * 
+ * Only requests for a plain login shell in the default directory can be satisfied from the pool; everything else still starts its own process.
+ * A pooled shell's output (typically just its prompt) waits in the pseudo-terminal until a TerminalControl starts reading.
+ * When the pane is laid out, the usual resize notification tells the shell its real size.
+ * 
+ * If nobody has taken a shell for a while, we let the pool drain rather than keep idle processes around indefinitely.
+ */
+public class ShellPool {
+    private static final ShellPool INSTANCE = new ShellPool();
+    
+    private final ScheduledExecutorService executor = ThreadUtilities.newSingleThreadScheduledExecutor("Shell Pool");
+    private final LinkedList<PtyProcess> shells = new LinkedList<PtyProcess>();
+    private boolean started = false;
+    private long lastUseTimeMs;
+    
+    private ShellPool() {
+    }
+    
+    public static ShellPool getSharedInstance() {
+        return INSTANCE;
+    }
+    
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        lastUseTimeMs = System.currentTimeMillis();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                expireIdleShells();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+        scheduleRefill();
+    }
+    
+    /**
+     * Invoked when the preferences change, so that a new pool size takes effect immediately.
+     */
+    public synchronized void optionsDidChange() {
+        if (started) {
+            scheduleRefill();
+        }
+    }
+    
+    private static int getDesiredSize() {
+        return Math.max(0, Terminator.getPreferences().getInt(TerminatorPreferences.SHELL_POOL_SIZE));
+    }
+    
+    private static long getIdleTimeoutMs() {
+        return TimeUnit.MINUTES.toMillis(Terminator.getPreferences().getInt(TerminatorPreferences.SHELL_POOL_IDLE_MINUTES));
+    }
+    
+    /**
+     * Returns an already-running login shell suitable for 'command' in 'workingDirectory', or null if the caller should start its own.
+     */
+    public synchronized PtyProcess take(List<String> command, String workingDirectory) {
+        if (started == false || workingDirectory != null || TerminalControl.isDefaultShell(command) == false) {
+            return null;
+        }
+        lastUseTimeMs = System.currentTimeMillis();
+        PtyProcess shell = shells.poll();
+        scheduleRefill();
+        if (shell == null) {
+            return null;
+        }
+        // A shell that died while it was waiting for us is no use to anyone.
+        // It may not have been reaped yet, so we have to ask waitpid(2) rather than kill(2), which would think a zombie was alive.
+        try {
+            if (shell.hasExited()) {
+                scheduleDestroy(shell);
+                return null;
+            }
+        } catch (Exception ex) {
+            Log.warn("Couldn't check whether pooled " + shell + " is still running", ex);
+            scheduleDestroy(shell);
+            return null;
+        }
+        return shell;
+    }
+    
+    private void scheduleRefill() {
+        executor.execute(new Runnable() {
+            public void run() {
+                refill();
+            }
+        });
+    }
+    
+    private void refill() {
+        while (true) {
+            List<PtyProcess> excessShells = new ArrayList<PtyProcess>();
+            synchronized (this) {
+                while (shells.size() > getDesiredSize()) {
+                    excessShells.add(shells.removeLast());
+                }
+                if (excessShells.isEmpty() && (shells.size() == getDesiredSize() || isIdle())) {
+                    return;
+                }
+            }
+            if (excessShells.isEmpty() == false) {
+                // Destroying involves waiting, so we don't hold the lock for it.
+                destroy(excessShells);
+                return;
+            }
+            // Start the process without holding the lock, so take doesn't have to wait for it.
+            PtyProcess shell;
+            try {
+                List<String> command = TerminalControl.getDefaultShell();
+                shell = new PtyProcess(command.get(0), TerminalControl.makeLoginArgV(command), null);
+            } catch (Exception ex) {
+                Log.warn("Couldn't start a shell for the pool", ex);
+                return;
+            }
+            synchronized (this) {
+                shells.add(shell);
+            }
+        }
+    }
+    
+    private boolean isIdle() {
+        return System.currentTimeMillis() - lastUseTimeMs > getIdleTimeoutMs();
+    }
+    
+    private void expireIdleShells() {
+        List<PtyProcess> idleShells;
+        synchronized (this) {
+            if (shells.isEmpty() || isIdle() == false) {
+                return;
+            }
+            idleShells = new ArrayList<PtyProcess>(shells);
+            shells.clear();
+        }
+        Log.warn("Stopping " + StringUtilities.pluralize(idleShells.size(), "idle pooled shell", "idle pooled shells") + ".");
+        destroy(idleShells);
+    }
+    
+    private void scheduleDestroy(final PtyProcess shell) {
+        executor.execute(new Runnable() {
+            public void run() {
+                destroy(shell);
+            }
+        });
+    }
+    
+    private void destroy(List<PtyProcess> shellsToDestroy) {
+        for (PtyProcess shell : shellsToDestroy) {
+            destroy(shell);
+        }
+    }
+    
+    // Only called on our executor's thread, because waitFor blocks.
+    private void destroy(PtyProcess shell) {
+        try {
+            // Once a shell has been reaped, its process group id may be reused, so we mustn't signal it.
+            if (shell.hasExited() == false) {
+                shell.destroy();
+            }
+        } catch (Exception ex) {
+            // The shell may already have gone; we still need to reap it.
+        }
+        try {
+            shell.waitFor();
+        } catch (Exception ex) {
+            Log.warn("Problem waiting for pooled " + shell, ex);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package terminator.terminal;
 import e.util.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
@@ -42,7 +44,6 @@ public class TerminalControl {
     private boolean processIsRunning;
     private boolean processHasBeenDestroyed = false;
     
-    private InputStreamReader in;
     private OutputStream out;
     
     private ExecutorService writerExecutor;
@@ -71,6 +72,26 @@ public class TerminalControl {
     }
     
     public void initProcess(List<String> command, String workingDirectory) throws Throwable {
+        // We log an announceConnectionLost message if we fail to create the PtyProcess, so we need the TerminalLogWriter first.
+        this.terminalLogWriter = new TerminalLogWriter(command);
+        this.ptyProcess = ShellPool.getSharedInstance().take(command, workingDirectory);
+        if (ptyProcess == null) {
+            this.ptyProcess = new PtyProcess(command.get(0), makeLoginArgV(command), workingDirectory);
+        }
+        this.processIsRunning = true;
+        Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
+        this.out = ptyProcess.getOutputStream();
+        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+    }
+    
+    /**
+     * Tests whether 'command' is exactly the login shell Terminator itself would start, as opposed to something the user asked for with -e.
+     */
+    static boolean isDefaultShell(List<String> command) {
+        return command.size() == 1 && command.get(0) == TERMINATOR_DEFAULT_SHELL;
+    }
+    
+    static String[] makeLoginArgV(List<String> command) {
         // We always want to start a login shell.
         // This used to be an option, but it wasn't very useful and it caused confusion.
         // It's also hard to explain the difference without assuming a detailed knowledge of the particular shell.
@@ -79,7 +100,6 @@ public class TerminalControl {
         // POSIX's sh(1) doesn't even have the notion of login shell (though it does specify vi-compatible line editing).
         // So now we use the 1970s trick of prefixing argv[0] with "-".
         String[] argv = command.toArray(new String[command.size()]);
-        String executable = argv[0];
         // We deliberately use reference equality here so we're sure we know what we're meddling with.
         // We only want to modify a call to the user's default shell that Terminator itself inserted into 'command'.
         // If the user's messing about with -e, they get what they ask for no matter what that is.
@@ -87,15 +107,7 @@ public class TerminalControl {
         if (argv[0] == TERMINATOR_DEFAULT_SHELL) {
             argv[0] = "-" + argv[0];
         }
-        
-        // We log an announceConnectionLost message if we fail to create the PtyProcess, so we need the TerminalLogWriter first.
-        this.terminalLogWriter = new TerminalLogWriter(command);
-        this.ptyProcess = new PtyProcess(executable, argv, workingDirectory);
-        this.processIsRunning = true;
-        Log.warn("Created " + ptyProcess + " and logging to " + terminalLogWriter.getInfo());
-        this.in = new InputStreamReader(ptyProcess.getInputStream(), CHARSET_NAME);
-        this.out = ptyProcess.getOutputStream();
-        writerExecutor = ThreadUtilities.newSingleThreadExecutor(makeThreadName("Writer"));
+        return argv;
     }
     
     public static ArrayList<String> getDefaultShell() {
@@ -145,21 +157,34 @@ public class TerminalControl {
     }
     
     private class ReaderRunnable implements Runnable {
+        // We read straight into native memory and decode from there into a char[] we reuse, so there's no per-read garbage and no copying through intermediate byte[]s.
+        // processBuffer has finished with the chars by the time it returns.
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(INPUT_BUFFER_SIZE);
+        private final CharsetDecoder decoder = Charset.forName(CHARSET_NAME).newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        
         public void run() {
             try {
                 while (true) {
-                    char[] chars = new char[INPUT_BUFFER_SIZE];
-                    int readCount = in.read(chars, 0, chars.length);
+                    int readCount = ptyProcess.read(bytes);
                     if (readCount == -1) {
                         Log.warn("read returned -1 from " + ptyProcess);
                         return; // This isn't going to fix itself!
                     }
                     
-                    try {
-                        processBuffer(chars, readCount);
-                    } catch (Throwable th) {
-                        Log.warn("Problem processing output from " + ptyProcess, th);
-                    }
+                    // Any incomplete multi-byte sequence at the end of the buffer is left there by compact, to be completed by the next read.
+                    bytes.flip();
+                    CoderResult result;
+                    do {
+                        chars.clear();
+                        result = decoder.decode(bytes, chars, false);
+                        try {
+                            processBuffer(chars.array(), chars.position());
+                        } catch (Throwable th) {
+                            Log.warn("Problem processing output from " + ptyProcess, th);
+                        }
+                    } while (result.isOverflow());
+                    bytes.compact();
                 }
             } catch (Throwable th) {
                 Log.warn("Problem reading output from " + ptyProcess, th);
@@ -263,6 +263,21 @@ public class TerminalView extends JComponent implements FocusListener, Scrollabl
         redoHighlightsFrom(Math.min(oldSizeInChars.height, newSizeInChars.height));
     }
     
+    /**
+     * Invoked by TerminalModel when 'count' lines have been removed from the top of the history.
+     * We keep whatever the user was looking at on the display, if it still exists.
+     */
+    public void linesDiscarded(int count) {
+        JViewport viewport = getViewport();
+        Point position = (viewport != null) ? viewport.getViewPosition() : null;
+        sizeChanged();
+        if (position != null) {
+            position.y = Math.max(0, position.y - count * getCharUnitSize().height);
+            viewport.setViewPosition(position);
+        }
+        linesChangedFrom(0);
+    }
+    
     public void scrollToBottomButNotHorizontally() {
         JScrollPane pane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, this);
         